@@ -53,6 +53,24 @@ public final class CacheControl {
         return NumberUtils.toInt(directives.get("min-fresh"), -1);
     }
 
+    /**
+     * @return the number of seconds a stale response may be served while it is revalidated in the background,
+     * or {@code -1} if not present.
+     * @see <a href="http://tools.ietf.org/html/rfc5861#section-3">RFC 5861</a>
+     */
+    public int getStaleWhileRevalidate() {
+        return NumberUtils.toInt(directives.get("stale-while-revalidate"), -1);
+    }
+
+    /**
+     * @return the number of seconds a stale response may be served when the origin server fails,
+     * or {@code -1} if not present.
+     * @see <a href="http://tools.ietf.org/html/rfc5861#section-4">RFC 5861</a>
+     */
+    public int getStaleIfError() {
+        return NumberUtils.toInt(directives.get("stale-if-error"), -1);
+    }
+
     public boolean isOnlyIfCached() {
         return directives.hasDirective("only-if-cached");
     }
@@ -145,6 +163,16 @@ public final class CacheControl {
             return this;
         }
 
+        public Builder staleWhileRevalidate(int seconds) {
+            addDirective("stale-while-revalidate", String.valueOf(seconds));
+            return this;
+        }
+
+        public Builder staleIfError(int seconds) {
+            addDirective("stale-if-error", String.valueOf(seconds));
+            return this;
+        }
+
         public Builder withPublic() {
             addDirective("public");
             return this;
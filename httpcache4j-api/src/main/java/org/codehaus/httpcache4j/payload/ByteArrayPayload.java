@@ -22,7 +22,10 @@ import java.io.Serializable;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.Objects;
+import java.util.Optional;
 
 /**
  * @author <a href="mailto:erlend@codehaus.org">Erlend Hamnaberg</a>
@@ -56,6 +59,19 @@ public final class ByteArrayPayload implements Payload, Serializable {
         return new ByteArrayInputStream(bytes);
     }
 
+    @Override
+    public long transferTo(WritableByteChannel channel) throws IOException {
+        return IOUtils.write(ByteBuffer.wrap(bytes), channel);
+    }
+
+    /**
+     * @return a read only view of the bytes, which are not copied.
+     */
+    @Override
+    public Optional<ByteBuffer> asByteBuffer() {
+        return Optional.of(ByteBuffer.wrap(bytes).asReadOnlyBuffer());
+    }
+
     public long length() {
         return length;
     }
@@ -18,17 +18,31 @@ package org.codehaus.httpcache4j.payload;
 
 import org.codehaus.httpcache4j.HTTPException;
 import org.codehaus.httpcache4j.MIMEType;
+import org.codehaus.httpcache4j.util.IOUtils;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.util.Objects;
+import java.util.Optional;
 
 /**
  * Payload that accepts a file with mimetype.
+ * <p>
+ * {@link #transferTo(WritableByteChannel)} uses {@link FileChannel#transferTo(long, long, WritableByteChannel)},
+ * and files no larger than {@link #MAP_THRESHOLD} can be mapped into memory with {@link #asByteBuffer()}.
  *
  * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
  */
 public class FilePayload implements Payload, Serializable {
+    /**
+     * The largest file that is mapped into memory, larger files are only read through the channel.
+     */
+    public static final long MAP_THRESHOLD = 1024 * 1024;
+
     private final File file;
     private final MIMEType mimeType;
 
@@ -59,6 +73,30 @@ public class FilePayload implements Payload, Serializable {
         throw new HTTPException(String.format("File %s cannot be read.", file.getAbsolutePath()));
     }
 
+    @Override
+    public long transferTo(WritableByteChannel channel) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return IOUtils.transfer(fileChannel, 0, fileChannel.size(), channel);
+        }
+    }
+
+    /**
+     * Maps the file into memory, if it is no larger than {@link #MAP_THRESHOLD}.
+     * The mapping stays valid after the file is deleted or replaced, and is released when the buffer is collected.
+     */
+    @Override
+    public Optional<ByteBuffer> asByteBuffer() {
+        long length = length();
+        if (length == 0 || length > MAP_THRESHOLD || !isAvailable()) {
+            return Optional.empty();
+        }
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return Optional.of(fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(length, fileChannel.size())));
+        } catch (IOException e) {
+            throw new HTTPException(e);
+        }
+    }
+
     public boolean isAvailable() {
         return file.exists() && file.canRead();
     }
@@ -19,8 +19,13 @@ package org.codehaus.httpcache4j.payload;
 import org.codehaus.httpcache4j.HTTPException;
 import org.codehaus.httpcache4j.MIMEType;
 
+import org.codehaus.httpcache4j.util.IOUtils;
+
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.Optional;
 import java.util.function.Function;
 
@@ -64,6 +69,34 @@ public interface Payload {
      */
     public boolean isAvailable();
 
+    /**
+     * Writes the payload to the channel, without closing it.
+     * Payloads that are kept in files or in memory write directly to the channel, without copying the bytes
+     * through a buffer on the heap, the default copies the {@link #getInputStream() stream}.
+     *
+     * @param channel the channel to write to.
+     * @return the number of bytes written.
+     * @throws IOException if the payload is not available, or the payload could not be written.
+     */
+    public default long transferTo(WritableByteChannel channel) throws IOException {
+        try (InputStream is = getInputStream()) {
+            if (is == null) {
+                throw new IOException("Payload is not available");
+            }
+            return IOUtils.copy(is, Channels.newOutputStream(channel));
+        }
+    }
+
+    /**
+     * Returns a read only view of the payload, for payloads that are kept in memory, or can be mapped into memory.
+     * The view is only valid as long as the payload is available.
+     *
+     * @return the view, or {@link Optional#empty()} if the payload cannot be viewed as a buffer.
+     */
+    public default Optional<ByteBuffer> asByteBuffer() {
+        return Optional.empty();
+    }
+
     public default <A> Optional<A> transform(final Function<InputStream, A> f) {
         try(InputStream is = getInputStream()) {
             return Optional.ofNullable(f.apply(is));
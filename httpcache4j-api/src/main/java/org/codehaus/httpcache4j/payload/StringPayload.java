@@ -6,8 +6,11 @@ import org.codehaus.httpcache4j.util.IOUtils;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.Optional;
 
 /**
  * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
@@ -56,6 +59,16 @@ public final class StringPayload implements Payload, Serializable {
         return delegate.getInputStream();
     }
 
+    @Override
+    public long transferTo(WritableByteChannel channel) throws IOException {
+        return delegate.transferTo(channel);
+    }
+
+    @Override
+    public Optional<ByteBuffer> asByteBuffer() {
+        return delegate.asByteBuffer();
+    }
+
     @Override
     public long length() {
         return delegate.length();
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2008, The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package org.codehaus.httpcache4j.resolver;
+
+import org.codehaus.httpcache4j.HTTPException;
+import org.codehaus.httpcache4j.HTTPRequest;
+import org.codehaus.httpcache4j.HTTPResponse;
+import org.codehaus.httpcache4j.Status;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Implementors of non-blocking resolvers should extend this instead of using the AsyncResponseResolver interface directly.
+ * Authentication is handled the same way as in {@link AbstractResponseResolver}, by chaining the requests
+ * instead of blocking on them.
+ *
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public abstract class AbstractAsyncResponseResolver extends AbstractResponseResolver implements AsyncResponseResolver {
+
+    protected AbstractAsyncResponseResolver(ResolverConfiguration configuration) {
+        super(configuration);
+    }
+
+    public final CompletableFuture<HTTPResponse> resolveAsync(HTTPRequest request) {
+        final HTTPRequest req = preparePreemptiveAuthentication(request);
+        return resolveImplAsync(req).thenCompose(response -> {
+            if (response.getStatus() == Status.PROXY_AUTHENTICATION_REQUIRED) {
+                return resolveProxyAsync(req, response);
+            }
+            if (response.getStatus() == Status.UNAUTHORIZED) {
+                return resolveUnauthorizedAsync(req, response);
+            }
+            return CompletableFuture.completedFuture(response);
+        });
+    }
+
+    private CompletableFuture<HTTPResponse> resolveProxyAsync(final HTTPRequest request, final HTTPResponse response) {
+        HTTPRequest req = getProxyAuthenticator().prepareAuthentication(request, response);
+        if (req != request) {
+            response.consume();
+            return resolveImplAsync(req).whenComplete((newResponse, e) -> {
+                if (newResponse != null) {
+                    if (newResponse.getStatus() == Status.PROXY_AUTHENTICATION_REQUIRED) { //We failed
+                        getProxyAuthenticator().afterFailedAuthentication(newResponse.getHeaders());
+                    } else {
+                        getProxyAuthenticator().afterSuccessfulAuthentication(newResponse.getHeaders());
+                    }
+                }
+            });
+        }
+        return CompletableFuture.completedFuture(response);
+    }
+
+    private CompletableFuture<HTTPResponse> resolveUnauthorizedAsync(final HTTPRequest request, final HTTPResponse response) {
+        HTTPRequest req = getAuthenticator().prepareAuthentication(request, response);
+        if (req != request) {
+            response.consume();
+            return resolveImplAsync(req).whenComplete((newResponse, e) -> {
+                if (newResponse != null) {
+                    if (newResponse.getStatus() == Status.UNAUTHORIZED) { //We failed
+                        getAuthenticator().afterFailedAuthentication(req, newResponse.getHeaders());
+                    } else {
+                        getAuthenticator().afterSuccessfulAuthentication(req, newResponse.getHeaders());
+                    }
+                }
+            });
+        }
+        return CompletableFuture.completedFuture(response);
+    }
+
+    /**
+     * Blocks on {@link #resolveImplAsync(HTTPRequest)}.
+     * Implementors with a native blocking call may override this.
+     */
+    @Override
+    protected HTTPResponse resolveImpl(HTTPRequest request) throws IOException {
+        try {
+            return resolveImplAsync(request).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(String.format("Interrupted while resolving %s", request.getNormalizedURI()));
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() instanceof CompletionException && e.getCause().getCause() != null ? e.getCause().getCause() : e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new HTTPException(cause);
+        }
+    }
+
+    protected abstract CompletableFuture<HTTPResponse> resolveImplAsync(HTTPRequest request);
+}
@@ -44,7 +44,7 @@ public abstract class AbstractResponseResolver implements ResponseResolver {
         return configuration.getAuthenticator();
     }
 
-    protected final ResolverConfiguration getConfiguration() {
+    public final ResolverConfiguration getConfiguration() {
         return configuration;
     }
 
@@ -54,13 +54,7 @@ public abstract class AbstractResponseResolver implements ResponseResolver {
 
     private HTTPResponse resolveAuthenticated(final HTTPRequest request) throws IOException {
         HTTPResponse convertedResponse;
-        HTTPRequest req = request;
-        if (getAuthenticator().canAuthenticatePreemptively(request)) {
-            req = getAuthenticator().preparePreemptiveAuthentication(request);
-        }
-        if (getProxyAuthenticator().canAuthenticatePreemptively()) {
-            req = getProxyAuthenticator().preparePreemptiveAuthentication(req);
-        }
+        HTTPRequest req = preparePreemptiveAuthentication(request);
         convertedResponse = resolveImpl(req);
 
         if (convertedResponse.getStatus() == Status.PROXY_AUTHENTICATION_REQUIRED) {
@@ -72,6 +66,17 @@ public abstract class AbstractResponseResolver implements ResponseResolver {
         return convertedResponse;
     }
 
+    protected final HTTPRequest preparePreemptiveAuthentication(final HTTPRequest request) {
+        HTTPRequest req = request;
+        if (getAuthenticator().canAuthenticatePreemptively(request)) {
+            req = getAuthenticator().preparePreemptiveAuthentication(request);
+        }
+        if (getProxyAuthenticator().canAuthenticatePreemptively()) {
+            req = getProxyAuthenticator().preparePreemptiveAuthentication(req);
+        }
+        return req;
+    }
+
     protected HTTPResponse resolveProxy(final HTTPRequest request, final HTTPResponse response) throws IOException {
         HTTPRequest req = getProxyAuthenticator().prepareAuthentication(request, response);
         if (req != request) {
@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 2008, The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package org.codehaus.httpcache4j.resolver;
+
+import org.codehaus.httpcache4j.HTTPRequest;
+import org.codehaus.httpcache4j.HTTPResponse;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A {@link ResponseResolver} which is able to resolve requests without blocking the calling thread.
+ * This is used by {@link org.codehaus.httpcache4j.cache.HTTPCache#executeAsync(HTTPRequest) HTTPCache.executeAsync},
+ * which falls back to the blocking {@link #resolve(HTTPRequest)} for resolvers which do not implement this interface.
+ * Implementors would want to extend {@link AbstractAsyncResponseResolver} instead of using the interface directly.
+ *
+ * @since 5.2
+ */
+public interface AsyncResponseResolver extends ResponseResolver {
+    /**
+     * Resolves the given request into a response.
+     * The returned future is completed by the underlying client, usually on one of its I/O threads.
+     *
+     * @param request the request to resolve.
+     *
+     * @return the raw response from the server. The future is completed exceptionally with an
+     * {@link java.io.IOException} if an IOException occurs e.g: java.net.ConnectException.
+     */
+    CompletableFuture<HTTPResponse> resolveAsync(HTTPRequest request);
+}
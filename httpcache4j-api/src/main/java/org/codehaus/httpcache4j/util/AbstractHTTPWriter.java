@@ -6,8 +6,8 @@ import org.codehaus.httpcache4j.Headers;
 import org.codehaus.httpcache4j.payload.Payload;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.PrintStream;
+import java.nio.channels.Channels;
 import java.util.Optional;
 
 /**
@@ -35,8 +35,8 @@ public abstract class AbstractHTTPWriter {
         payload.ifPresent(p -> {
             writer.print("\r\n");
             if (p.isAvailable()) {
-                try (InputStream stream = p.getInputStream()) {
-                    IOUtils.copy(stream, writer);
+                try {
+                    p.transferTo(Channels.newChannel(writer));
                     writer.print("\r\n");
                 } catch (IOException e) {
                     throw new HTTPException("Unable to write the body of the response", e);
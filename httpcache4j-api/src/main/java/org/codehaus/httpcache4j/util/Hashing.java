@@ -0,0 +1,49 @@
+package org.codehaus.httpcache4j.util;
+
+/**
+ * Fast non-cryptographic 64 bit hashing, for hash keys and spreading files over directories.
+ * Strings are hashed with FNV-1a, and the result is run through the finalizer of MurmurHash3,
+ * so every bit of the input affects every bit of the hash.
+ *
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public final class Hashing {
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private Hashing() {
+    }
+
+    public static long hash(CharSequence value) {
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        return mix(hash ^ value.length());
+    }
+
+    /**
+     * Order dependent, {@code combine(a, b)} is not the same as {@code combine(b, a)}.
+     */
+    public static long combine(long hash, long next) {
+        return mix(hash * FNV_PRIME + next);
+    }
+
+    public static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * @return the hash as 16 lower case hex digits.
+     */
+    public static String toHex(long hash) {
+        String hex = Long.toHexString(hash);
+        return "0000000000000000".substring(hex.length()) + hex;
+    }
+}
@@ -1,6 +1,9 @@
 package org.codehaus.httpcache4j.util;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.function.Function;
 
 public final class IOUtils {
@@ -28,6 +31,35 @@ public final class IOUtils {
         return total;
     }
 
+    /**
+     * Writes what remains of the buffer to the channel, leaving the position of the buffer at its limit.
+     */
+    public static long write(ByteBuffer from, WritableByteChannel to) throws IOException {
+        long total = 0;
+        while (from.hasRemaining()) {
+            total += to.write(from);
+        }
+        return total;
+    }
+
+    /**
+     * Transfers a region of the file to the channel with {@link FileChannel#transferTo(long, long, WritableByteChannel)},
+     * which lets the operating system copy the bytes to sockets and files without passing them through the heap.
+     *
+     * @throws EOFException if the file ends before the region.
+     */
+    public static long transfer(FileChannel from, long position, long count, WritableByteChannel to) throws IOException {
+        long total = 0;
+        while (total < count) {
+            long transferred = from.transferTo(position + total, count - total, to);
+            if (transferred <= 0 && position + total >= from.size()) {
+                throw new EOFException(String.format("Expected %d bytes, the file ended after %d", count, total));
+            }
+            total += transferred;
+        }
+        return total;
+    }
+
     public static byte[] toByteArray(InputStream is) throws IOException {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
         copy(is, bos);
@@ -45,6 +45,23 @@ public class CacheControlTest {
         assertFalse(control.isProxyRevalidate());
     }
 
+    @Test
+    public void testStaleWhileRevalidate() {
+        Header header = new Header(HeaderConstants.CACHE_CONTROL, "max-age=60, stale-while-revalidate=30");
+        CacheControl control = new CacheControl(header.getDirectives());
+        assertEquals(60, control.getMaxAge());
+        assertEquals(30, control.getStaleWhileRevalidate());
+        assertEquals(-1, CacheControl.empty().getStaleWhileRevalidate());
+    }
+
+    @Test
+    public void testStaleIfError() {
+        CacheControl control = new CacheControl.Builder().maxAge(60).staleIfError(600).build();
+        assertEquals(600, control.getStaleIfError());
+        assertEquals(-1, control.getStaleWhileRevalidate());
+        assertEquals(-1, CacheControl.empty().getStaleIfError());
+    }
+
     @Test
     public void testNoCacheNoStore() {
         Header header = new Header(HeaderConstants.CACHE_CONTROL, "no-cache, no-store");
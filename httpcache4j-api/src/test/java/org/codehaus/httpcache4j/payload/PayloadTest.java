@@ -4,8 +4,14 @@ import org.codehaus.httpcache4j.MIMEType;
 import org.codehaus.httpcache4j.util.IOUtils;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.Random;
 
 import static org.junit.Assert.*;
@@ -43,4 +49,45 @@ public class PayloadTest {
         assertEquals(2048, p.length());
         assertArrayEquals(arr, actual);
     }
+
+    @Test
+    public void transferToWritesTheWholePayload() throws IOException {
+        byte[] arr = new byte[100000];
+        new Random().nextBytes(arr);
+        File file = File.createTempFile("payload", ".bin");
+        try {
+            Files.write(file.toPath(), arr);
+            Payload[] payloads = {
+                    new ByteArrayPayload(arr, MIMEType.APPLICATION_OCTET_STREAM),
+                    new FilePayload(file, MIMEType.APPLICATION_OCTET_STREAM),
+                    new InputStreamPayload(new ByteArrayInputStream(arr), MIMEType.APPLICATION_OCTET_STREAM)
+            };
+            for (Payload payload : payloads) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                assertEquals(arr.length, payload.transferTo(Channels.newChannel(out)));
+                assertArrayEquals(payload.getClass().getSimpleName(), arr, out.toByteArray());
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void bufferViewsAreReadOnly() throws IOException {
+        byte[] arr = s.getBytes(StandardCharsets.UTF_8);
+        File file = File.createTempFile("payload", ".bin");
+        try {
+            Files.write(file.toPath(), arr);
+            for (Payload payload : new Payload[] {new ByteArrayPayload(arr, MIMEType.APPLICATION_OCTET_STREAM), new FilePayload(file, MIMEType.APPLICATION_OCTET_STREAM)}) {
+                ByteBuffer buffer = payload.asByteBuffer().get();
+                assertTrue(buffer.isReadOnly());
+                byte[] actual = new byte[buffer.remaining()];
+                buffer.get(actual);
+                assertArrayEquals(arr, actual);
+            }
+            assertFalse(new InputStreamPayload(new ByteArrayInputStream(arr), MIMEType.APPLICATION_OCTET_STREAM).asByteBuffer().isPresent());
+        } finally {
+            file.delete();
+        }
+    }
 }
@@ -18,6 +18,7 @@ package org.codehaus.httpcache4j.cache;
 import org.codehaus.httpcache4j.util.CacheStatisticsMXBean;
 
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
 
 /**
  * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
@@ -26,6 +27,15 @@ import java.util.concurrent.atomic.AtomicLong;
 public class CacheStatistics implements CacheStatisticsMXBean {
     private final AtomicLong hits = new AtomicLong();
     private final AtomicLong misses = new AtomicLong();
+    private final LongSupplier weight;
+
+    public CacheStatistics() {
+        this(() -> -1);
+    }
+
+    CacheStatistics(LongSupplier weight) {
+        this.weight = weight;
+    }
 
     public long getHits() {
         return hits.get();
@@ -47,6 +57,14 @@ public class CacheStatistics implements CacheStatisticsMXBean {
         return getMisses() / (double)(getMisses() + getHits());
     }
 
+    /**
+     * @return the total weight of the cache storage, {@code -1} if the storage does not keep track of it.
+     * @see CacheStorage#getWeight()
+     */
+    public long getWeight() {
+        return weight.getAsLong();
+    }
+
     public void clear() {
         hits.set(0L);
         misses.set(0L);
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2009. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.cache;
+
+import org.codehaus.httpcache4j.util.Preconditions;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Probabilistic early expiration, also known as XFetch.
+ * A fresh item is treated as stale when {@code age - recomputeCost * beta * ln(random) >= ttl},
+ * so the chance of revalidating it grows as it approaches its time to live, and it grows sooner
+ * the longer the origin server takes to answer.
+ * Entries that were stored at the same time with the same {@code max-age} are then revalidated spread out over time,
+ * instead of all expiring in the same second.
+ * <p>
+ * The recompute cost is the time the last resolve of the variant took.
+ * Variants that have not been resolved yet, or not recently enough to be tracked, use the default recompute cost.
+ *
+ * @see <a href="http://www.vldb.org/pvldb/vol8/p886-vattani.pdf">Optimal Probabilistic Cache Stampede Prevention</a>
+ * @see HTTPCache#setEarlyExpiration(EarlyExpiration)
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public final class EarlyExpiration {
+    private static final int MAX_TRACKED_ENTRIES = 10000;
+
+    private final double beta;
+    private final Duration defaultRecomputeCost;
+    private final DoubleSupplier random;
+    private final KeyTracker<Duration> recomputeCosts = new KeyTracker<>(MAX_TRACKED_ENTRIES);
+
+    public EarlyExpiration() {
+        this(1.0, Duration.ofMillis(100));
+    }
+
+    /**
+     * @param beta how eager to be, values above 1 favour earlier revalidation, values below 1 later.
+     * @param defaultRecomputeCost the recompute cost of variants that have not been resolved yet.
+     */
+    public EarlyExpiration(double beta, Duration defaultRecomputeCost) {
+        this(beta, defaultRecomputeCost, () -> ThreadLocalRandom.current().nextDouble());
+    }
+
+    EarlyExpiration(double beta, Duration defaultRecomputeCost, DoubleSupplier random) {
+        Preconditions.checkArgument(beta > 0, "Beta must be positive");
+        this.beta = beta;
+        this.defaultRecomputeCost = Objects.requireNonNull(defaultRecomputeCost, "Default recompute cost may not be null");
+        this.random = random;
+    }
+
+    public double getBeta() {
+        return beta;
+    }
+
+    public Duration getDefaultRecomputeCost() {
+        return defaultRecomputeCost;
+    }
+
+    boolean isExpired(Key key, CacheItem item, LocalDateTime requestTime) {
+        long ttl = item.getTTL();
+        if (ttl <= 0) {
+            return false;
+        }
+        Duration recomputeCost = recomputeCosts.get(key);
+        double cost = (recomputeCost != null ? recomputeCost : defaultRecomputeCost).toMillis() / 1000.0;
+        // 1 - nextDouble() is in (0, 1], so the logarithm is always defined.
+        double gap = -cost * beta * Math.log(1 - random.getAsDouble());
+        return item.getAge(requestTime) + gap >= ttl;
+    }
+
+    void recomputed(Key key, Duration cost) {
+        recomputeCosts.put(key, cost);
+    }
+}
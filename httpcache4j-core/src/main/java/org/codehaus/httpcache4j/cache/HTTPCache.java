@@ -17,15 +17,38 @@
 package org.codehaus.httpcache4j.cache;
 
 import org.codehaus.httpcache4j.*;
+import org.codehaus.httpcache4j.payload.Payload;
+import org.codehaus.httpcache4j.resolver.AbstractResponseResolver;
+import org.codehaus.httpcache4j.resolver.AsyncResponseResolver;
+import org.codehaus.httpcache4j.resolver.ConnectionConfiguration;
 import org.codehaus.httpcache4j.resolver.ResponseResolver;
 import org.codehaus.httpcache4j.uri.URIBuilder;
 import org.codehaus.httpcache4j.util.OptionalUtils;
 
 import java.io.IOException;
 import java.net.URI;
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * The main HTTPCache class.
@@ -33,16 +56,29 @@ import java.util.Optional;
  * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
  */
 public class HTTPCache {
+    private final Logger logger = Logger.getLogger(getClass().getName());
     private final HTTPCacheHelper helper;
-    private final CacheStatistics statistics = new CacheStatistics();
+    private final CacheStatistics statistics;
     private final CacheStorage storage;
     private final ResponseResolver resolver;
     private final Mutex<URI> mutex = new Mutex<>();
+    private final RequestCoalescer<URI> coalescer = new RequestCoalescer<>();
     private boolean translateHEADToGET = false;
+    private boolean coalesceRequests = false;
+    private final Set<Key> revalidating = ConcurrentHashMap.newKeySet();
+    private Executor backgroundExecutor;
+    private RefreshAhead refreshAhead;
+    private EarlyExpiration earlyExpiration;
+    private HostLimiter hostLimiter;
+    // Created when first needed, and shut down with the cache. Guarded by this.
+    private ScheduledExecutorService deadlineTimer;
+    private ExecutorService defaultBackgroundExecutor;
+    private boolean shutdown;
 
     public HTTPCache(CacheStorage storage, ResponseResolver resolver) {
         this.storage = Objects.requireNonNull(storage, "Cache storage may not be null");
         this.resolver = Objects.requireNonNull(resolver, "Resolver may not be null");
+        statistics = new CacheStatistics(storage::getWeight);
         helper = new HTTPCacheHelper(CacheHeaderBuilder.getBuilder());
     }
 
@@ -63,37 +99,135 @@ public class HTTPCache {
     }
 
     public HTTPResponse execute(final HTTPRequest request) {
-        return execute(request, helper.isEndToEndReloadRequest(request));
+        return execute(request, helper.isEndToEndReloadRequest(request), Optional.empty());
+    }
+
+    /**
+     * Executes the request, but does not wait longer than the deadline for the origin server to revalidate
+     * a stale cached response. When the deadline passes, the stale response is returned with a {@code Warning},
+     * and the revalidation keeps running in the background to refresh the cache.
+     * Requests that cannot be answered from the cache are not affected by the deadline.
+     *
+     * @param request the request to execute
+     * @param deadline how long to wait for the origin server before serving stale.
+     * @return the response.
+     */
+    public HTTPResponse execute(final HTTPRequest request, final Duration deadline) {
+        Objects.requireNonNull(deadline, "Deadline may not be null");
+        return execute(request, helper.isEndToEndReloadRequest(request), Optional.of(deadline));
     }
 
     public HTTPResponse executeRefresh(final HTTPRequest request) {
-        return execute(request, true);
+        return execute(request, true, Optional.empty());
+    }
+
+    /**
+     * Executes the request without blocking the calling thread on the origin server.
+     * Cache hits are completed on the calling thread, misses and revalidations are completed by the resolver,
+     * on its I/O threads if it is an {@link AsyncResponseResolver}. Other resolvers are called on the calling thread.
+     * Unlike {@link #execute(HTTPRequest)}, requests for the same URI are not serialized,
+     * unless {@link #setCoalesceRequests(boolean) request coalescing} is enabled.
+     *
+     * @param request the request to execute
+     * @return the future response.
+     */
+    public CompletableFuture<HTTPResponse> executeAsync(final HTTPRequest request) {
+        return executeAsync(request, helper.isEndToEndReloadRequest(request), Optional.empty());
+    }
+
+    /**
+     * Asynchronous version of {@link #execute(HTTPRequest, Duration)}.
+     *
+     * @param request the request to execute
+     * @param deadline how long to wait for the origin server before serving stale.
+     * @return the future response.
+     */
+    public CompletableFuture<HTTPResponse> executeAsync(final HTTPRequest request, final Duration deadline) {
+        Objects.requireNonNull(deadline, "Deadline may not be null");
+        return executeAsync(request, helper.isEndToEndReloadRequest(request), Optional.of(deadline));
+    }
+
+    /**
+     * Executes all the requests in parallel.
+     * Fresh responses are looked up in one pass over the storage, and returned completed.
+     * The rest are executed as with {@link #executeAsync(HTTPRequest)} on the
+     * {@link #setBackgroundExecutor(Executor) background executor}, with at most as many concurrent requests per host as
+     * allowed by the resolver's {@link ConnectionConfiguration}.
+     *
+     * @param requests the requests to execute
+     * @return the future responses, in the same order as the requests.
+     */
+    public List<CompletableFuture<HTTPResponse>> executeAll(final Collection<HTTPRequest> requests) {
+        List<CompletableFuture<HTTPResponse>> responses = new ArrayList<>(requests.size());
+        List<Integer> misses = new ArrayList<>();
+        for (HTTPRequest request : requests) {
+            Optional<HTTPResponse> hit = lookup(request);
+            if (hit.isPresent()) {
+                responses.add(CompletableFuture.completedFuture(hit.get()));
+            } else {
+                misses.add(responses.size());
+                responses.add(null);
+            }
+        }
+        List<HTTPRequest> requestList = new ArrayList<>(requests);
+        for (int index : misses) {
+            HTTPRequest request = requestList.get(index);
+            URI uri = request.getNormalizedURI();
+            // Only http and https have a known default port.
+            if ("http".equals(uri.getScheme()) || "https".equals(uri.getScheme())) {
+                responses.set(index, hostLimiter().submit(new HTTPHost(uri), () -> executeInBackground(request)));
+            } else {
+                responses.set(index, executeInBackground(request));
+            }
+        }
+        return responses;
+    }
+
+    /**
+     * Executes all the requests in parallel like {@link #executeAll(Collection)},
+     * and hands each response to the consumer as soon as it is available.
+     * The consumer is called from the thread completing the response.
+     *
+     * @param requests the requests to execute
+     * @param consumer receives the request and its response.
+     * @return completed when all the responses have been consumed, exceptionally if any of the requests failed.
+     */
+    public CompletableFuture<Void> executeAll(final Collection<HTTPRequest> requests, final BiConsumer<HTTPRequest, HTTPResponse> consumer) {
+        List<CompletableFuture<HTTPResponse>> responses = executeAll(requests);
+        CompletableFuture<?>[] consumed = new CompletableFuture<?>[responses.size()];
+        int index = 0;
+        for (HTTPRequest request : requests) {
+            consumed[index] = responses.get(index).thenAccept(response -> consumer.accept(request, response));
+            index++;
+        }
+        return CompletableFuture.allOf(consumed);
     }
 
     public void shutdown() {
+        synchronized (this) {
+            shutdown = true;
+            if (defaultBackgroundExecutor != null) {
+                defaultBackgroundExecutor.shutdown();
+            }
+            if (deadlineTimer != null) {
+                deadlineTimer.shutdownNow();
+            }
+        }
         storage.shutdown();
         resolver.shutdown();
     }
 
-    private HTTPResponse execute(final HTTPRequest request, boolean force) {
+    private HTTPResponse execute(final HTTPRequest request, boolean force, final Optional<Duration> deadline) {
         HTTPResponse response;
         if (!helper.isCacheableRequest(request)) {
-            response = unconditionalResolve(request);
+            response = await(unconditionalResolve(request, this::resolve));
         } else {
             //request is cacheable
-            boolean shouldUnlock = true;
-            try {
-                force = force || request.getMethod() == HTTPMethod.OPTIONS || request.getMethod() == HTTPMethod.TRACE;
-                if (mutex.acquire(request.getNormalizedURI())) {
-                    response = doRequest(request, force || (OptionalUtils.exists(request.getHeaders().getCacheControl(), CacheControl::isNoStore)));
-                } else {
-                    response = new HTTPResponse(null, Status.BAD_GATEWAY, new Headers());
-                    shouldUnlock = false;
-                }
-            } finally {
-                if (shouldUnlock) {
-                    mutex.release(request.getNormalizedURI());
-                }
+            force = isForced(request, force);
+            if (coalesceRequests) {
+                response = coalescedRequest(request, force, deadline);
+            } else {
+                response = serializedRequest(request, force, deadline);
             }
         }
         if (response == null) {
@@ -102,49 +236,363 @@ public class HTTPCache {
         return response;
     }
 
-    private HTTPResponse doRequest(HTTPRequest request, final boolean force) {
-        if (request.getMethod() == HTTPMethod.HEAD && isTranslateHEADToGET()) {
-            request = request.withMethod(HTTPMethod.GET);
+    private CompletableFuture<HTTPResponse> executeAsync(final HTTPRequest request, boolean force, final Optional<Duration> deadline) {
+        CompletableFuture<HTTPResponse> response;
+        if (!helper.isCacheableRequest(request)) {
+            response = unconditionalResolve(request, this::resolveAsync);
+        } else {
+            final boolean forced = isForced(request, force);
+            if (coalesceRequests) {
+                response = coalescedRequestAsync(request, forced, deadline);
+            } else {
+                response = doRequest(request, forced, deadline, this::resolveAsync);
+            }
+        }
+        return response.thenApply(r -> {
+            if (r == null) {
+                throw new HTTPException("No response produced");
+            }
+            return r;
+        });
+    }
+
+    /**
+     * @return the response if it could be answered from the cache without going to the origin server.
+     */
+    private Optional<HTTPResponse> lookup(HTTPRequest request) {
+        if (!helper.isCacheableRequest(request) || isForced(request, helper.isEndToEndReloadRequest(request))) {
+            return Optional.empty();
+        }
+        HTTPRequest req = translateHEAD(request);
+        LocalDateTime requestTime = LocalDateTime.now();
+        CacheItem item = storage.get(req);
+        if (item == null || helper.isStale(item, requestTime) || !isPayloadAvailable(item)) {
+            return Optional.empty();
+        }
+        if (!helper.isAcceptable(item, req, requestTime) || isExpiredEarly(req, item, requestTime)) {
+            return Optional.empty();
+        }
+        statistics.hit();
+        refreshAhead(req, item, requestTime);
+        return Optional.of(freshResponse(req, item, requestTime));
+    }
+
+    private CompletableFuture<HTTPResponse> executeInBackground(HTTPRequest request) {
+        try {
+            return CompletableFuture.supplyAsync(() -> executeAsync(request), backgroundExecutor()).thenCompose(Function.identity());
+        } catch (RejectedExecutionException e) {
+            CompletableFuture<HTTPResponse> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    /**
+     * @throws RejectedExecutionException if the cache has been shut down.
+     */
+    private synchronized Executor backgroundExecutor() {
+        if (backgroundExecutor == null) {
+            if (shutdown) {
+                throw new RejectedExecutionException("The cache has been shut down");
+            }
+            defaultBackgroundExecutor = Executors.newCachedThreadPool(new BackgroundThreadFactory("httpcache4j-background-"));
+            backgroundExecutor = defaultBackgroundExecutor;
         }
+        return backgroundExecutor;
+    }
+
+    /**
+     * @throws RejectedExecutionException if the cache has been shut down.
+     */
+    private synchronized ScheduledExecutorService deadlineTimer() {
+        if (deadlineTimer == null) {
+            if (shutdown) {
+                throw new RejectedExecutionException("The cache has been shut down");
+            }
+            deadlineTimer = Executors.newSingleThreadScheduledExecutor(new BackgroundThreadFactory("httpcache4j-deadline-"));
+        }
+        return deadlineTimer;
+    }
+
+    private synchronized HostLimiter hostLimiter() {
+        if (hostLimiter == null) {
+            ConnectionConfiguration configuration = new ConnectionConfiguration();
+            if (resolver instanceof AbstractResponseResolver) {
+                configuration = ((AbstractResponseResolver) resolver).getConfiguration().getConnectionConfiguration();
+            }
+            hostLimiter = new HostLimiter(configuration);
+        }
+        return hostLimiter;
+    }
+
+    private boolean isForced(HTTPRequest request, boolean force) {
+        force = force || request.getMethod() == HTTPMethod.OPTIONS || request.getMethod() == HTTPMethod.TRACE;
+        return force || (OptionalUtils.exists(request.getHeaders().getCacheControl(), CacheControl::isNoStore));
+    }
+
+    private HTTPResponse serializedRequest(final HTTPRequest request, final boolean force, final Optional<Duration> deadline) {
         HTTPResponse response;
+        boolean shouldUnlock = true;
+        try {
+            if (mutex.acquire(request.getNormalizedURI())) {
+                response = await(doRequest(request, force, deadline, this::resolve));
+            } else {
+                response = new HTTPResponse(null, Status.BAD_GATEWAY, new Headers());
+                shouldUnlock = false;
+            }
+        } finally {
+            if (shouldUnlock) {
+                mutex.release(request.getNormalizedURI());
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Concurrent requests for the same URI share one trip to the origin server.
+     * The variant is not known until the response is resolved, so followers look themselves up in the storage
+     * once the leader is done. Followers that do not find a fresh response there, or whose leader failed, take another turn,
+     * where one of them leads and the rest follow, so they still reach the origin server one at a time.
+     */
+    private HTTPResponse coalescedRequest(final HTTPRequest request, final boolean force, final Optional<Duration> deadline) {
+        try {
+            while (true) {
+                Optional<HTTPResponse> response = coalescer.execute(
+                        request.getNormalizedURI(),
+                        () -> Optional.of(await(doRequest(request, force, deadline, this::resolve))),
+                        leader -> followRequest(request, force, leader)
+                );
+                if (response.isPresent()) {
+                    return response.get();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new HTTPResponse(null, Status.BAD_GATEWAY, new Headers());
+        }
+    }
+
+    private CompletableFuture<HTTPResponse> coalescedRequestAsync(final HTTPRequest request, final boolean force, final Optional<Duration> deadline) {
+        return coalescer.executeAsync(
+                request.getNormalizedURI(),
+                () -> doRequest(request, force, deadline, this::resolveAsync).thenApply(Optional::of),
+                leader -> CompletableFuture.completedFuture(followRequest(request, force, leader))
+        ).thenCompose(response -> response.map(CompletableFuture::completedFuture).orElseGet(() -> coalescedRequestAsync(request, force, deadline)));
+    }
+
+    /**
+     * @param leader the response of the leader of the flight, {@code null} if the leader failed.
+     * @return the fresh item the leader left in the storage, or empty if the follower has to go to the origin server.
+     */
+    private Optional<HTTPResponse> followRequest(HTTPRequest request, final boolean force, Optional<HTTPResponse> leader) {
+        if (!force && leader != null) {
+            HTTPRequest req = translateHEAD(request);
+            LocalDateTime requestTime = LocalDateTime.now();
+            CacheItem item = storage.get(req);
+            if (item != null && isPayloadAvailable(item) && !helper.isStale(item, requestTime) && helper.isAcceptable(item, req, requestTime)) {
+                statistics.hit();
+                return Optional.of(helper.rewriteResponse(req, item.getResponse(), item.getAge(requestTime)));
+            }
+        }
+        return Optional.empty();
+    }
+
+    private boolean isPayloadAvailable(CacheItem item) {
+        return item.getResponse().getPayload().map(Payload::isAvailable).orElse(true);
+    }
+
+    private HTTPRequest translateHEAD(HTTPRequest request) {
+        if (request.getMethod() == HTTPMethod.HEAD && isTranslateHEADToGET()) {
+            return request.withMethod(HTTPMethod.GET);
+        }
+        return request;
+    }
+
+    private CompletableFuture<HTTPResponse> doRequest(HTTPRequest request, final boolean force, Optional<Duration> deadline, Resolution resolution) {
+        request = translateHEAD(request);
+        CompletableFuture<HTTPResponse> response;
         if (force) {
-            response = unconditionalResolve(request);
+            response = unconditionalResolve(request, resolution);
         } else {
-            response = getFromStorage(request);
+            response = getFromStorage(request, deadline, resolution);
         }
         return response;
     }
 
-    private HTTPResponse getFromStorage(HTTPRequest request) {
+    private CompletableFuture<HTTPResponse> getFromStorage(HTTPRequest request, Optional<Duration> deadline, Resolution resolution) {
         final LocalDateTime requestTime = LocalDateTime.now();
-        HTTPResponse response;
+        CompletableFuture<HTTPResponse> response;
         final CacheItem item = storage.get(request);
         if (item != null) {
             statistics.hit();
             final HTTPResponse cachedResponse = item.getResponse();
-            boolean mustRevalidate = cachedResponse.getHeaders().getCacheControl().orElse(CacheControl.empty()).isMustRevalidate();
-            if (mustRevalidate || item.isStale(requestTime)) {
-                //If the cached value is stale, execute the request and try to cache it.
+            boolean stale = helper.isStale(item, requestTime);
+            if (stale || !helper.isAcceptable(item, request, requestTime)) {
+                //If the cached value is stale, or too old for the request, execute the request and try to cache it.
                 //If the payload has been deleted for some reason, we want to do a unconditional GET
                 HTTPRequest conditionalRequest = maybePrepareConditionalResponse(request, cachedResponse);
-                response = handleStaleResponse(conditionalRequest, request, item, requestTime);
+                if (stale && isPayloadAvailable(item) && helper.isStaleWhileRevalidate(item, requestTime)) {
+                    revalidateInBackground(conditionalRequest, request, item);
+                    response = CompletableFuture.completedFuture(helper.rewriteStaleResponse(request, cachedResponse, item.getAge(requestTime)));
+                } else {
+                    response = handleStaleResponse(conditionalRequest, request, item, requestTime, deadline, resolution);
+                }
+            } else if (isExpiredEarly(request, item, requestTime)) {
+                HTTPRequest conditionalRequest = maybePrepareConditionalResponse(request, cachedResponse);
+                response = executeImpl(conditionalRequest, item, resolution).thenApply(r -> helper.rewriteResponse(request, r, item.getAge(requestTime)));
             } else {
-                response = helper.rewriteResponse(request, cachedResponse, item.getAge(requestTime));
+                refreshAhead(request, item, requestTime);
+                response = CompletableFuture.completedFuture(freshResponse(request, item, requestTime));
             }
         } else {
             statistics.miss();
-            response = unconditionalResolve(request);
+            response = unconditionalResolve(request, resolution);
         }
         return response;
     }
 
-    private HTTPResponse handleStaleResponse(HTTPRequest conditionalRequest, HTTPRequest originalRequest, CacheItem item, LocalDateTime requestTime) {
+    private HTTPResponse freshResponse(HTTPRequest request, CacheItem item, LocalDateTime requestTime) {
+        long age = item.getAge(requestTime);
+        return helper.warnHeuristicExpiration(item, helper.rewriteResponse(request, item.getResponse(), age), age);
+    }
+
+    private CompletableFuture<HTTPResponse> handleStaleResponse(HTTPRequest conditionalRequest, HTTPRequest originalRequest, CacheItem item, LocalDateTime requestTime, Optional<Duration> deadline, Resolution resolution) {
         long age = item.getAge(LocalDateTime.now());
         if (!helper.allowStale(item, originalRequest, requestTime)) {
-            HTTPResponse response = executeImpl(conditionalRequest, item);
-            return helper.rewriteResponse(originalRequest, response, age);
+            CompletableFuture<HTTPResponse> response;
+            if (deadline.isPresent() && isPayloadAvailable(item) && !helper.isRevalidationRequired(item)) {
+                response = executeWithDeadline(conditionalRequest, originalRequest, item, deadline.get());
+            } else {
+                response = executeImpl(conditionalRequest, item, resolution);
+            }
+            return response.thenApply(r -> helper.rewriteResponse(originalRequest, r, age));
+        }
+        return CompletableFuture.completedFuture(helper.rewriteStaleResponse(originalRequest, item.getResponse(), age));
+    }
+
+    /**
+     * Revalidates the stale item off the request path.
+     * Only one revalidation per variant is in flight at any time, requests arriving in the meantime get the stale item.
+     */
+    private boolean revalidateInBackground(HTTPRequest conditionalRequest, HTTPRequest originalRequest, CacheItem item) {
+        return revalidateInBackground(conditionalRequest, originalRequest, item, () -> {});
+    }
+
+    /**
+     * @param done run when the revalidation is over, if it was started.
+     * @return {@code false} if the revalidation was not started.
+     */
+    private boolean revalidateInBackground(HTTPRequest conditionalRequest, HTTPRequest originalRequest, CacheItem item, Runnable done) {
+        Key key = Key.create(originalRequest, item.getResponse());
+        if (!revalidating.add(key)) {
+            return false;
+        }
+        Runnable finished = () -> {
+            revalidating.remove(key);
+            done.run();
+        };
+        try {
+            backgroundExecutor().execute(() -> {
+                try {
+                    executeImpl(conditionalRequest, item, this::resolveAsync).whenComplete((response, failure) -> {
+                        finished.run();
+                        if (failure != null) {
+                            logger.log(Level.WARNING, String.format("Background revalidation of %s failed", key), failure);
+                        }
+                        else if (response != null) {
+                            response.consume();
+                        }
+                    });
+                } catch (RuntimeException e) {
+                    finished.run();
+                    logger.log(Level.WARNING, String.format("Background revalidation of %s failed", key), e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            revalidating.remove(key);
+            logger.log(Level.WARNING, String.format("Background revalidation of %s was rejected", key), e);
+            return false;
         }
-        return helper.rewriteStaleResponse(originalRequest, item.getResponse(), age);
+        return true;
+    }
+
+    private boolean isExpiredEarly(HTTPRequest request, CacheItem item, LocalDateTime requestTime) {
+        EarlyExpiration earlyExpiration = this.earlyExpiration;
+        if (earlyExpiration != null && isPayloadAvailable(item) && earlyExpiration.isExpired(Key.create(request, item.getResponse()), item, requestTime)) {
+            if (logger.isLoggable(Level.FINE)) {
+                logger.fine(String.format("Revalidating %s ahead of expiry", request.getNormalizedURI()));
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private void refreshAhead(HTTPRequest request, CacheItem item, LocalDateTime requestTime) {
+        RefreshAhead refreshAhead = this.refreshAhead;
+        URI uri = request.getNormalizedURI();
+        if (refreshAhead == null || !("http".equals(uri.getScheme()) || "https".equals(uri.getScheme()))) {
+            return;
+        }
+        HTTPHost host = new HTTPHost(uri);
+        if (refreshAhead.accessed(Key.create(request, item.getResponse()), host, item, requestTime)) {
+            if (logger.isLoggable(Level.FINE)) {
+                logger.fine(String.format("Refreshing %s ahead of expiry", uri));
+            }
+            HTTPRequest conditionalRequest = maybePrepareConditionalResponse(request, item.getResponse());
+            if (!revalidateInBackground(conditionalRequest, request, item, () -> refreshAhead.refreshed(host))) {
+                refreshAhead.refreshed(host);
+            }
+        }
+    }
+
+    /**
+     * Revalidates the item in the background, and completes with the stale item if the origin server
+     * has not answered within the deadline. The revalidation still updates the cache when it completes.
+     * Only one revalidation per variant is in flight at any time, like with {@code stale-while-revalidate},
+     * requests arriving in the meantime get the stale item at once.
+     */
+    private CompletableFuture<HTTPResponse> executeWithDeadline(HTTPRequest conditionalRequest, HTTPRequest originalRequest, CacheItem item, Duration deadline) {
+        Key key = Key.create(originalRequest, item.getResponse());
+        if (!revalidating.add(key)) {
+            return CompletableFuture.completedFuture(staleResponse(item));
+        }
+        CompletableFuture<HTTPResponse> response = new CompletableFuture<>();
+        CompletableFuture<HTTPResponse> revalidation;
+        ScheduledExecutorService timer;
+        try {
+            timer = deadlineTimer();
+            revalidation = CompletableFuture.supplyAsync(() -> executeImpl(conditionalRequest, item, this::resolveAsync), backgroundExecutor()).thenCompose(Function.identity());
+        } catch (RejectedExecutionException e) {
+            logger.log(Level.WARNING, "Background revalidation was rejected, revalidating on the calling thread", e);
+            try {
+                return executeImpl(conditionalRequest, item, this::resolveAsync).whenComplete((resolved, failure) -> revalidating.remove(key));
+            } catch (RuntimeException failure) {
+                revalidating.remove(key);
+                throw failure;
+            }
+        }
+        revalidation.whenComplete((resolved, failure) -> {
+            revalidating.remove(key);
+            if (failure != null) {
+                response.completeExceptionally(failure);
+            }
+            else if (!response.complete(resolved) && resolved != null) {
+                resolved.consume();
+            }
+        });
+        ScheduledFuture<?> timeout = timer.schedule(() -> {
+            if (response.complete(staleResponse(item))) {
+                if (logger.isLoggable(Level.FINE)) {
+                    logger.fine(String.format("Deadline of %s passed for %s, serving stale response", deadline, conditionalRequest.getNormalizedURI()));
+                }
+            }
+        }, deadline.toMillis(), TimeUnit.MILLISECONDS);
+        response.whenComplete((r, failure) -> timeout.cancel(false));
+        return response;
+    }
+
+    private HTTPResponse staleResponse(CacheItem item) {
+        return item.getResponse().withHeaders(helper.warnRevalidationFailed(item.getResponse().getHeaders()));
     }
 
     private HTTPRequest maybePrepareConditionalResponse(HTTPRequest request, HTTPResponse staleResponse) {
@@ -154,24 +602,44 @@ public class HTTPCache {
         return request.headers(request.getHeaders().withConditionals(new Conditionals()));
     }
 
-    private HTTPResponse unconditionalResolve(final HTTPRequest request) {
-        return helper.rewriteResponse(request, executeImpl(request, null), -1);
+    private CompletableFuture<HTTPResponse> unconditionalResolve(final HTTPRequest request, Resolution resolution) {
+        return executeImpl(request, null, resolution).thenApply(response -> helper.rewriteResponse(request, response, -1));
     }
 
-    private HTTPResponse executeImpl(final HTTPRequest request, final CacheItem item) {
-        HTTPResponse response = null;
-        HTTPResponse resolvedResponse = null;
-        try {
-            resolvedResponse = resolver.resolve(request);
-        } catch (IOException e) {
-            //No cached item found, we throw an exception.
-            if (item == null) {
-                throw new HTTPException(e);
-            } else {
-                Headers headers = helper.warn(item.getResponse().getHeaders(), e);
-                response = item.getResponse().withHeaders(headers);
+    private CompletableFuture<HTTPResponse> executeImpl(final HTTPRequest request, final CacheItem item, Resolution resolution) {
+        final long started = System.nanoTime();
+        return resolution.resolve(request).handle((resolvedResponse, failure) -> {
+            if (failure != null) {
+                Throwable cause = unwrap(failure);
+                //No cached item found, we throw an exception.
+                if (!(cause instanceof IOException) || item == null) {
+                    throw cause instanceof RuntimeException ? (RuntimeException) cause : new HTTPException(cause);
+                }
+                Headers headers = helper.warn(item.getResponse().getHeaders(), (IOException) cause);
+                return item.getResponse().withHeaders(headers);
             }
-        }
+            EarlyExpiration earlyExpiration = this.earlyExpiration;
+            if (earlyExpiration != null && resolvedResponse != null && request.getMethod().isCacheable()) {
+                Key key = Key.create(request, item != null ? item.getResponse() : resolvedResponse);
+                earlyExpiration.recomputed(key, Duration.ofNanos(System.nanoTime() - started));
+            }
+            if (resolvedResponse != null && item != null && isServerError(resolvedResponse.getStatus())
+                    && isPayloadAvailable(item) && helper.isStaleIfError(item, request, LocalDateTime.now())) {
+                resolvedResponse.consume();
+                Headers headers = helper.warnRevalidationFailed(item.getResponse().getHeaders());
+                return item.getResponse().withHeaders(headers);
+            }
+            return handleResolved(request, item, resolvedResponse);
+        });
+    }
+
+    private boolean isServerError(Status status) {
+        return status == Status.INTERNAL_SERVER_ERROR || status == Status.BAD_GATEWAY
+                || status == Status.SERVICE_UNAVAILABLE || status == Status.GATEWAY_TIMEOUT;
+    }
+
+    private HTTPResponse handleResolved(final HTTPRequest request, final CacheItem item, final HTTPResponse resolvedResponse) {
+        HTTPResponse response = null;
         if (resolvedResponse != null) {
             boolean updated = false;
 
@@ -208,6 +676,48 @@ public class HTTPCache {
         return response;
     }
 
+    private CompletableFuture<HTTPResponse> resolve(HTTPRequest request) {
+        CompletableFuture<HTTPResponse> future = new CompletableFuture<>();
+        try {
+            future.complete(resolver.resolve(request));
+        } catch (IOException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    private CompletableFuture<HTTPResponse> resolveAsync(HTTPRequest request) {
+        if (resolver instanceof AsyncResponseResolver) {
+            return ((AsyncResponseResolver) resolver).resolveAsync(request);
+        }
+        return resolve(request);
+    }
+
+    private static Throwable unwrap(Throwable failure) {
+        if (failure instanceof CompletionException && failure.getCause() != null) {
+            return failure.getCause();
+        }
+        return failure;
+    }
+
+    /**
+     * The blocking paths only ever wait on futures from {@link #resolve(HTTPRequest)}, which are already completed.
+     */
+    private static HTTPResponse await(CompletableFuture<HTTPResponse> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = unwrap(e);
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new HTTPException(cause);
+        }
+    }
+
     //http://tools.ietf.org/html/rfc2616#section-9.4
     private boolean isInvalidatingHEADResponse(HTTPRequest request, CacheItem item, HTTPResponse resolvedResponse) {
         return request.getMethod() == HTTPMethod.HEAD && item != null && resolvedResponse.getStatus() != Status.NOT_MODIFIED;
@@ -242,9 +752,87 @@ public class HTTPCache {
         this.translateHEADToGET = translateHEADToGET;
     }
 
+    public boolean isCoalesceRequests() {
+        return coalesceRequests;
+    }
+
+    /**
+     * If enabled, concurrent requests for the same resource wait for a single request to the origin server,
+     * instead of queueing up to do one request each.
+     *
+     * @param coalesceRequests {@code true} to enable request coalescing. Default is {@code false}.
+     */
+    public void setCoalesceRequests(boolean coalesceRequests) {
+        this.coalesceRequests = coalesceRequests;
+    }
+
+    /**
+     * The executor used for work done off the request path, like revalidating responses with
+     * {@code stale-while-revalidate}.
+     * Background resolves are done with {@link AsyncResponseResolver#resolveAsync(HTTPRequest)} if available,
+     * so with an asynchronous resolver the executor only needs to start them.
+     *
+     * @param backgroundExecutor the executor to use. Default is a cached thread pool owned by this cache,
+     *                           created when first needed.
+     */
+    public synchronized void setBackgroundExecutor(Executor backgroundExecutor) {
+        Objects.requireNonNull(backgroundExecutor, "Background executor may not be null");
+        if (defaultBackgroundExecutor != null) {
+            defaultBackgroundExecutor.shutdown();
+            defaultBackgroundExecutor = null;
+        }
+        this.backgroundExecutor = backgroundExecutor;
+    }
+
+    public Optional<RefreshAhead> getRefreshAhead() {
+        return Optional.ofNullable(refreshAhead);
+    }
+
+    /**
+     * Enables refresh-ahead of hot entries, which are then revalidated on the
+     * {@link #setBackgroundExecutor(Executor) background executor} before they expire.
+     *
+     * @param refreshAhead the refresh-ahead configuration, or {@code null} to disable. Default is disabled.
+     */
+    public void setRefreshAhead(RefreshAhead refreshAhead) {
+        this.refreshAhead = refreshAhead;
+    }
+
+    public Optional<EarlyExpiration> getEarlyExpiration() {
+        return Optional.ofNullable(earlyExpiration);
+    }
+
+    /**
+     * Enables probabilistic early expiration, which spreads out the revalidation of entries
+     * that would otherwise expire at the same time.
+     *
+     * @param earlyExpiration the early expiration configuration, or {@code null} to disable. Default is disabled.
+     */
+    public void setEarlyExpiration(EarlyExpiration earlyExpiration) {
+        this.earlyExpiration = earlyExpiration;
+    }
+
+    public Optional<HeuristicFreshness> getHeuristicFreshness() {
+        return Optional.ofNullable(helper.getHeuristicFreshness());
+    }
+
+    /**
+     * Enables heuristic freshness for responses that have a {@code Last-Modified} header, but no explicit expiration.
+     * Without it, these responses are revalidated on every request.
+     *
+     * @param heuristicFreshness the heuristic to use, or {@code null} to disable. Default is disabled.
+     */
+    public void setHeuristicFreshness(HeuristicFreshness heuristicFreshness) {
+        helper.setHeuristicFreshness(heuristicFreshness);
+    }
+
     private void invalidateIfSameHostAsRequest(Optional<URI> uri, URI requestUri) {
         if (uri.isPresent() && uri.get().getHost() != null && uri.get().getHost().equals(requestUri.getHost())) {
             storage.invalidate(URIBuilder.fromURI(uri.get()).toNormalizedURI());
         }
     }
+
+    private interface Resolution {
+        CompletableFuture<HTTPResponse> resolve(HTTPRequest request);
+    }
 }
@@ -59,12 +59,63 @@ class HTTPCacheHelper {
         )));
     }
 
+    private static final long ONE_DAY = 24 * 60 * 60;
+
     private CacheHeaderBuilder cacheHeaderBuilder;
+    private HeuristicFreshness heuristicFreshness;
 
     HTTPCacheHelper(CacheHeaderBuilder cacheHeaderBuilder) {
         this.cacheHeaderBuilder = cacheHeaderBuilder;
     }
 
+    HeuristicFreshness getHeuristicFreshness() {
+        return heuristicFreshness;
+    }
+
+    void setHeuristicFreshness(HeuristicFreshness heuristicFreshness) {
+        this.heuristicFreshness = heuristicFreshness;
+    }
+
+    /**
+     * @return the freshness lifetime of the item, using heuristic freshness if enabled and the item has no explicit expiration.
+     */
+    long getTTL(CacheItem item) {
+        long ttl = item.getTTL();
+        HeuristicFreshness heuristic = heuristicFreshness;
+        if (ttl > 0 || heuristic == null || !cacheableStatuses.contains(item.getResponse().getStatus())) {
+            return ttl;
+        }
+        return heuristic.getLifetime(item.getResponse(), item.getCachedTime());
+    }
+
+    boolean isStale(CacheItem item, LocalDateTime requestTime) {
+        if (!item.isStale(requestTime)) {
+            return false;
+        }
+        HTTPResponse response = item.getResponse();
+        if (item.getTTL() > 0 || (response.hasPayload() && !response.getPayload().get().isAvailable())) {
+            return true;
+        }
+        return getTTL(item) - item.getAge(requestTime) <= 0;
+    }
+
+    /**
+     * @return {@code true} if the {@code max-age} and {@code min-fresh} directives of the request accept the fresh item.
+     */
+    boolean isAcceptable(CacheItem item, HTTPRequest request, LocalDateTime requestTime) {
+        return !request.getCacheControl().isPresent() || FreshnessCalculator.PRIVATE.isAcceptable(request, getTTL(item), item.getAge(requestTime));
+    }
+
+    /**
+     * http://tools.ietf.org/html/rfc7234#section-5.5.4
+     */
+    HTTPResponse warnHeuristicExpiration(CacheItem item, HTTPResponse response, long age) {
+        if (age > ONE_DAY && item.getTTL() <= 0 && getTTL(item) > ONE_DAY) {
+            return response.withHeaders(response.getHeaders().add(Warning.HEURISTIC_EXPIRATION_WARNING.toHeader()));
+        }
+        return response;
+    }
+
     Headers warn(Headers headers, IOException e) {
         headers = headers.add(Warning.STALE_WARNING.toHeader());
         if (e instanceof SocketException) {
@@ -73,6 +124,11 @@ class HTTPCacheHelper {
         return headers;
     }
 
+    Headers warnRevalidationFailed(Headers headers) {
+        headers = headers.add(Warning.STALE_WARNING.toHeader());
+        return headers.add(Warning.REVALIDATE_FAILED_WARNING.toHeader());
+    }
+
     Headers removeUnmodifiableHeaders(Headers headers) {
         Headers washedHeaders = new Headers();
         Set<String> usableHeaders = new HashSet<>(headers.keySet());
@@ -136,10 +192,13 @@ class HTTPCacheHelper {
 
     boolean allowStale(CacheItem item, HTTPRequest req, LocalDateTime requestTime) {
         Optional<CacheControl> control = req.getCacheControl();
-        return OptionalUtils.exists(control, cc -> {
+        return !isRevalidationRequired(item) && OptionalUtils.exists(control, cc -> {
+            if (!cc.getDirectives().hasDirective("max-stale")) {
+                return false;
+            }
             int maxStale = cc.getMaxStale();
             if (maxStale > -1) {
-                long ttl = item.getTTL();
+                long ttl = getTTL(item);
                 long age = item.getAge(requestTime);
                 return (ttl - maxStale - age) < 0;
             }
@@ -147,6 +206,36 @@ class HTTPCacheHelper {
         });
     }
 
+    /**
+     * http://tools.ietf.org/html/rfc5861#section-3
+     */
+    boolean isStaleWhileRevalidate(CacheItem item, LocalDateTime requestTime) {
+        Optional<CacheControl> control = item.getResponse().getHeaders().getCacheControl();
+        return !isRevalidationRequired(item) && OptionalUtils.exists(control, cc -> {
+            int staleWhileRevalidate = cc.getStaleWhileRevalidate();
+            return staleWhileRevalidate > 0 && item.getAge(requestTime) - getTTL(item) <= staleWhileRevalidate;
+        });
+    }
+
+    /**
+     * http://tools.ietf.org/html/rfc5861#section-4
+     */
+    boolean isStaleIfError(CacheItem item, HTTPRequest request, LocalDateTime requestTime) {
+        if (isRevalidationRequired(item)) {
+            return false;
+        }
+        long staleness = item.getAge(requestTime) - getTTL(item);
+        Optional<CacheControl> responseControl = item.getResponse().getHeaders().getCacheControl();
+        Optional<CacheControl> requestControl = request.getCacheControl();
+        return OptionalUtils.exists(responseControl, cc -> cc.getStaleIfError() > -1 && staleness <= cc.getStaleIfError()) ||
+                OptionalUtils.exists(requestControl, cc -> cc.getStaleIfError() > -1 && staleness <= cc.getStaleIfError());
+    }
+
+    boolean isRevalidationRequired(CacheItem item) {
+        Optional<CacheControl> control = item.getResponse().getHeaders().getCacheControl();
+        return OptionalUtils.exists(control, cc -> cc.isMustRevalidate() || cc.isProxyRevalidate());
+    }
+
     HTTPResponse rewriteStaleResponse(HTTPRequest request, HTTPResponse cachedResponse, long age) {
         return rewriteResponse(request, cachedResponse, true, age, age < 0);
     }
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2009. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.cache;
+
+import org.codehaus.httpcache4j.CacheControl;
+import org.codehaus.httpcache4j.HTTPResponse;
+import org.codehaus.httpcache4j.HeaderConstants;
+import org.codehaus.httpcache4j.Headers;
+import org.codehaus.httpcache4j.util.Preconditions;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * Heuristic freshness for responses without explicit expiration, as described in
+ * <a href="http://tools.ietf.org/html/rfc7234#section-4.2.2">RFC 7234 section 4.2.2</a>.
+ * The freshness lifetime is a fraction of the time between {@code Last-Modified} and {@code Date},
+ * up to a maximum.
+ *
+ * @see HTTPCache#setHeuristicFreshness(HeuristicFreshness)
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public final class HeuristicFreshness {
+    private final double fraction;
+    private final Duration maxLifetime;
+
+    /**
+     * 10% of the time since last modification, at most one day.
+     */
+    public HeuristicFreshness() {
+        this(0.1, Duration.ofDays(1));
+    }
+
+    public HeuristicFreshness(double fraction, Duration maxLifetime) {
+        Preconditions.checkArgument(fraction > 0 && fraction <= 1, "Fraction must be between 0 and 1");
+        this.fraction = fraction;
+        this.maxLifetime = Objects.requireNonNull(maxLifetime, "Max lifetime may not be null");
+    }
+
+    public double getFraction() {
+        return fraction;
+    }
+
+    public Duration getMaxLifetime() {
+        return maxLifetime;
+    }
+
+    /**
+     * @return the heuristic freshness lifetime in seconds, or 0 if the response has explicit expiration
+     * or no {@code Last-Modified}.
+     */
+    long getLifetime(HTTPResponse response, LocalDateTime cachedTime) {
+        Headers headers = response.getHeaders();
+        if (headers.contains(HeaderConstants.EXPIRES)) {
+            return 0;
+        }
+        Optional<CacheControl> cacheControl = headers.getCacheControl();
+        if (cacheControl.isPresent() && (cacheControl.get().getMaxAge() > -1 || cacheControl.get().getSMaxAge() > -1)) {
+            return 0;
+        }
+        Optional<LocalDateTime> lastModified = headers.getLastModified();
+        if (!lastModified.isPresent()) {
+            return 0;
+        }
+        LocalDateTime date = headers.getDate().orElse(cachedTime);
+        if (!lastModified.get().isBefore(date)) {
+            return 0;
+        }
+        long sinceModified = Duration.between(lastModified.get(), date).getSeconds();
+        return Math.min((long) (sinceModified * fraction), maxLifetime.getSeconds());
+    }
+}
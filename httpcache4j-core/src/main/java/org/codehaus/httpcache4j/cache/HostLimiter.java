@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2009. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.cache;
+
+import org.codehaus.httpcache4j.HTTPHost;
+import org.codehaus.httpcache4j.resolver.ConnectionConfiguration;
+
+import java.util.ArrayDeque;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * Limits the number of concurrent tasks per host, without blocking.
+ * Tasks above the limit are queued, and started when a running task for the same host completes.
+ * The limits are taken from {@link ConnectionConfiguration#getConnectionsPerHost()},
+ * then {@link ConnectionConfiguration#getDefaultConnectionsPerHost()},
+ * and default to 2 as recommended by RFC 2616 section 8.1.4.
+ *
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+class HostLimiter {
+    static final int DEFAULT_CONNECTIONS_PER_HOST = 2;
+
+    private final ConnectionConfiguration configuration;
+    private final ConcurrentMap<HTTPHost, Limit> limits = new ConcurrentHashMap<>();
+
+    HostLimiter(ConnectionConfiguration configuration) {
+        this.configuration = Objects.requireNonNull(configuration, "Connection configuration may not be null");
+    }
+
+    <A> CompletableFuture<A> submit(HTTPHost host, Supplier<CompletableFuture<A>> task) {
+        Limit limit = limits.computeIfAbsent(host, h -> new Limit(limitFor(h)));
+        CompletableFuture<A> result = new CompletableFuture<>();
+        limit.submit(() -> {
+            CompletableFuture<A> future;
+            try {
+                future = task.get();
+            } catch (RuntimeException | Error e) {
+                limit.release();
+                result.completeExceptionally(e);
+                return;
+            }
+            future.whenComplete((a, failure) -> {
+                limit.release();
+                if (failure != null) {
+                    result.completeExceptionally(failure);
+                } else {
+                    result.complete(a);
+                }
+            });
+        });
+        return result;
+    }
+
+    int limitFor(HTTPHost host) {
+        Integer connections = configuration.getConnectionsPerHost().get(host);
+        if (connections != null && connections > 0) {
+            return connections;
+        }
+        return configuration.getDefaultConnectionsPerHost().filter(i -> i > 0).orElse(DEFAULT_CONNECTIONS_PER_HOST);
+    }
+
+    /**
+     * Tasks are started in a loop, not from inside {@link #release()}, as tasks that complete at once
+     * release their permit while they are being started, and would otherwise start the next one recursively.
+     */
+    private static class Limit {
+        private final Queue<Runnable> waiting = new ArrayDeque<>();
+        // Set while this thread is starting tasks, so a release from one of them leaves the next to the loop.
+        private final ThreadLocal<Boolean> draining = ThreadLocal.withInitial(() -> false);
+        private int available;
+
+        Limit(int available) {
+            this.available = available;
+        }
+
+        void submit(Runnable task) {
+            synchronized (this) {
+                waiting.add(task);
+            }
+            drain();
+        }
+
+        void release() {
+            synchronized (this) {
+                available++;
+            }
+            drain();
+        }
+
+        private void drain() {
+            if (draining.get()) {
+                return;
+            }
+            draining.set(true);
+            try {
+                while (true) {
+                    Runnable next;
+                    synchronized (this) {
+                        if (available == 0 || waiting.isEmpty()) {
+                            return;
+                        }
+                        available--;
+                        next = waiting.poll();
+                    }
+                    next.run();
+                }
+            } finally {
+                draining.set(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2009. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.cache;
+
+import org.codehaus.httpcache4j.util.Preconditions;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BiFunction;
+
+/**
+ * A bounded map of what is tracked per cached variant, for {@link RefreshAhead} and {@link EarlyExpiration}.
+ * <p>
+ * The keys are spread over a number of segments, each an access ordered map with its own lock.
+ * When a segment is full, its least recently used key is dropped, so the keys that are used are kept,
+ * and the eviction order is only approximately least recently used across the whole tracker.
+ *
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+final class KeyTracker<V> {
+    private static final int SEGMENTS = 16;
+
+    private final Segment<V>[] segments;
+
+    @SuppressWarnings("unchecked")
+    KeyTracker(int capacity) {
+        Preconditions.checkArgument(capacity > 0, "Capacity must be positive");
+        int numberOfSegments = Integer.highestOneBit(Math.min(SEGMENTS, capacity));
+        this.segments = new Segment[numberOfSegments];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment<>(capacity / numberOfSegments + (i < capacity % numberOfSegments ? 1 : 0));
+        }
+    }
+
+    V get(Key key) {
+        Segment<V> segment = segmentFor(key);
+        synchronized (segment) {
+            return segment.get(key);
+        }
+    }
+
+    void put(Key key, V value) {
+        Segment<V> segment = segmentFor(key);
+        synchronized (segment) {
+            segment.put(key, value);
+        }
+    }
+
+    /**
+     * @see Map#compute(Object, BiFunction)
+     */
+    V compute(Key key, BiFunction<? super Key, ? super V, ? extends V> remapping) {
+        Segment<V> segment = segmentFor(key);
+        synchronized (segment) {
+            return segment.compute(key, remapping);
+        }
+    }
+
+    int size() {
+        int size = 0;
+        for (Segment<V> segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    private Segment<V> segmentFor(Key key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return segments[h & (segments.length - 1)];
+    }
+
+    private static class Segment<V> extends LinkedHashMap<Key, V> {
+        private final int capacity;
+
+        Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, V> eldest) {
+            return size() > capacity;
+        }
+    }
+}
@@ -18,53 +18,297 @@ package org.codehaus.httpcache4j.cache;
 
 import org.codehaus.httpcache4j.HTTPRequest;
 import org.codehaus.httpcache4j.HTTPResponse;
+import org.codehaus.httpcache4j.HeaderConstants;
+import org.codehaus.httpcache4j.Headers;
 import org.codehaus.httpcache4j.payload.ByteArrayPayload;
 import org.codehaus.httpcache4j.payload.Payload;
+import org.codehaus.httpcache4j.util.EvictionPolicy;
+import org.codehaus.httpcache4j.util.LRUEvictionPolicy;
 import org.codehaus.httpcache4j.util.LRUMap;
 import org.codehaus.httpcache4j.util.MemoryCache;
+import org.codehaus.httpcache4j.util.Preconditions;
+import org.codehaus.httpcache4j.util.TimerWheel;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.Supplier;
 
 /**
  * In Memory implementation of a cache storage.
+ * <p>
+ * Which URI to evict when the storage is full is decided by an {@link EvictionPolicy}, least recently used by default.
+ * When a URI has more than {@code varyCapacity} variants, the oldest variant is evicted.
+ * <p>
+ * The storage also keeps track of how much its items weigh, see {@link Weigher}.
+ * With a maximum weight, URIs are evicted until the total weight fits, except for the URI that was just stored.
+ * A response heavier than the maximum on its own is not stored, as it would push out everything else and still not fit,
+ * it is handed to {@link #onEvict(Key, CacheItem)} straight away.
+ * <p>
+ * Items without validators, which can not be revalidated once they are stale, are kept in a {@link TimerWheel}
+ * by the time they stop being of use, including any {@code stale-while-revalidate} or {@code stale-if-error} grace.
+ * {@link #removeExpired()} removes them without looking at the rest of the storage,
+ * and {@link #startExpirySweeper(Duration)} calls it in the background.
+ * <p>
+ * Subclasses are told about items stored through {@link #onPut(Key, CacheItem)},
+ * and about items evicted to make room through {@link #onEvict(Key, CacheItem)}.
  *
  * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
  */
-public class MemoryCacheStorage implements CacheStorage {
+public class MemoryCacheStorage implements CacheStorage, MemoryCache.KeyListener {
 
     protected final int capacity;
+    protected final EvictionPolicy<URI> evictionPolicy;
     protected MemoryCache cache;
     private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
     private final Lock read = lock.readLock();
     private final Lock write = lock.writeLock();
-    private int varyCapacity;
+    private final int varyCapacity;
+    // The index of the stored keys, which size and iteration use without locking.
+    private final ConcurrentMap<Key, Entry> keys = new ConcurrentHashMap<>();
+    // The Vary headers of the responses stored for every URI, with the number of variants that have it.
+    private final Map<URI, Map<String, Integer>> varyHeaders = new HashMap<>();
+    private volatile long weight;
+    private volatile long maximumWeight = Long.MAX_VALUE;
+    private Weigher weigher = Weigher.payloadAndHeaders();
+    private final TimerWheel<Key> expiry = new TimerWheel<>(System.currentTimeMillis());
+    private ScheduledExecutorService sweeper;
+    // Set while items are removed on purpose, so they are not reported as evicted. Guarded by the write lock.
+    private boolean removing;
 
     public MemoryCacheStorage() {
         this(1000, 10);
     }
 
-    protected MemoryCacheStorage(int capacity, int varyCapacity) {
+    public MemoryCacheStorage(int capacity, int varyCapacity) {
+        this(capacity, varyCapacity, new LRUEvictionPolicy<>());
+    }
+
+    /**
+     * @param capacity the maximum number of URIs to keep.
+     * @param varyCapacity the maximum number of variants to keep per URI.
+     * @param evictionPolicy decides which URI to evict, may not be shared with other storages.
+     */
+    public MemoryCacheStorage(int capacity, int varyCapacity, EvictionPolicy<URI> evictionPolicy) {
+        Preconditions.checkArgument(varyCapacity > 0, "Vary capacity must be positive");
         this.capacity = capacity;
+        this.evictionPolicy = Objects.requireNonNull(evictionPolicy, "Eviction policy may not be null");
         this.cache = new MemoryCache(this.capacity);
+        this.cache.setEvictionPolicy(evictionPolicy);
+        this.cache.setKeyListener(this);
         this.varyCapacity = varyCapacity;
     }
 
-    private HTTPResponse rewriteResponse(Key key, HTTPResponse response) {
-        return response.getPayload().map(p -> {
-            if (!persistablePayload(p)) {
-                try(InputStream stream = p.getInputStream()) {
-                    return response.withPayload(createPayload(key, p, stream));
-                } catch (IOException ignore) {
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getVaryCapacity() {
+        return varyCapacity;
+    }
+
+    /**
+     * @return the total weight of the stored items, as calculated by the {@link Weigher}.
+     */
+    @Override
+    public long getWeight() {
+        return weight;
+    }
+
+    public long getMaximumWeight() {
+        return maximumWeight;
+    }
+
+    /**
+     * Limits the total weight of the storage, weighed by the weigher already in use,
+     * {@link Weigher#payloadAndHeaders()} unless another has been set.
+     *
+     * @param maximumWeight the maximum weight, typically in bytes.
+     */
+    public void setMaximumWeight(long maximumWeight) {
+        withVoidWriteLock(() -> setMaximumWeight(maximumWeight, weigher));
+    }
+
+    /**
+     * Limits the total weight of the storage. The items already stored are weighed again, and evicted if they do not fit.
+     *
+     * @param maximumWeight the maximum weight, typically in bytes.
+     * @param weigher calculates the weight of every item.
+     */
+    public void setMaximumWeight(long maximumWeight, Weigher weigher) {
+        Preconditions.checkArgument(maximumWeight > 0, "Maximum weight must be positive");
+        Objects.requireNonNull(weigher, "Weigher may not be null");
+        withVoidWriteLock(() -> {
+            this.maximumWeight = maximumWeight;
+            this.weigher = weigher;
+            reindex();
+            evictToFit(null);
+        });
+    }
+
+    /**
+     * Called when an item has been removed from the storage, always with the write lock held.
+     */
+    @Override
+    public void onRemove(Key key) {
+        Entry removed = keys.remove(key);
+        if (removed != null) {
+            weight -= removed.weight;
+            unindexVary(key.getURI(), removed.varyHeader);
+        }
+        expiry.cancel(key);
+    }
+
+    @Override
+    public final void onRemove(Key key, CacheItem item) {
+        onRemove(key);
+        if (!removing) {
+            onEvict(key, item);
+        }
+    }
+
+    /**
+     * Called when an item has been evicted to make room, always with the write lock held, after {@link #onRemove(Key)}.
+     * Also called for an item heavier than the maximum weight on its own, which is not stored, and so not removed.
+     * Not called for items that are invalidated, replaced, cleared or removed because they expired.
+     */
+    protected void onEvict(Key key, CacheItem item) {
+    }
+
+    private void remove(Runnable removal) {
+        removing = true;
+        try {
+            removal.run();
+        } finally {
+            removing = false;
+        }
+    }
+
+    /**
+     * Removes the items that have expired and can not be revalidated.
+     *
+     * @return the number of items removed.
+     */
+    public int removeExpired() {
+        return removeExpired(LocalDateTime.now());
+    }
+
+    int removeExpired(LocalDateTime now) {
+        return withWriteLock(() -> {
+            List<Key> expired = expiry.advance(toMillis(now));
+            remove(() -> expired.forEach(cache::remove));
+            return expired.size();
+        });
+    }
+
+    /**
+     * Starts calling {@link #removeExpired()} in the background, until the storage is shut down.
+     *
+     * @param interval the time between every sweep.
+     */
+    public synchronized void startExpirySweeper(Duration interval) {
+        Preconditions.checkArgument(!interval.isNegative() && !interval.isZero(), "Interval must be positive");
+        if (sweeper != null) {
+            sweeper.shutdownNow();
+        }
+        sweeper = Executors.newSingleThreadScheduledExecutor(new BackgroundThreadFactory("httpcache4j-expiry-"));
+        sweeper.scheduleWithFixedDelay(this::removeExpired, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Weighs every stored item again, and rebuilds the expiry index. Must be called with the write lock held.
+     */
+    protected final void reindex() {
+        keys.clear();
+        varyHeaders.clear();
+        expiry.clear();
+        long total = 0;
+        for (Map.Entry<URI, LRUMap<Vary, CacheItem>> entry : cache.entrySet()) {
+            for (Map.Entry<Vary, CacheItem> variant : entry.getValue().entrySet()) {
+                Key key = new Key(entry.getKey(), variant.getKey());
+                long itemWeight = weigher.weigh(key, variant.getValue());
+                index(key, itemWeight, variant.getValue());
+                total += itemWeight;
+                scheduleExpiry(key, variant.getValue());
+            }
+        }
+        weight = total;
+    }
+
+    /**
+     * @return the weight the key had before, {@code 0} if it is new.
+     */
+    private long index(Key key, long itemWeight, CacheItem item) {
+        String varyHeader = item.getResponse().getHeaders().getFirstHeaderValue(HeaderConstants.VARY).orElse("");
+        Entry replaced = keys.put(key, new Entry(itemWeight, varyHeader));
+        if (replaced != null) {
+            unindexVary(key.getURI(), replaced.varyHeader);
+        }
+        varyHeaders.computeIfAbsent(key.getURI(), uri -> new HashMap<>(2)).merge(varyHeader, 1, Integer::sum);
+        return replaced == null ? 0 : replaced.weight;
+    }
+
+    private void unindexVary(URI uri, String varyHeader) {
+        Map<String, Integer> headers = varyHeaders.get(uri);
+        if (headers != null && headers.merge(varyHeader, -1, Integer::sum) <= 0) {
+            headers.remove(varyHeader);
+            if (headers.isEmpty()) {
+                varyHeaders.remove(uri);
+            }
+        }
+    }
+
+    private void scheduleExpiry(Key key, CacheItem item) {
+        Headers headers = item.getResponse().getHeaders();
+        if (headers.contains(HeaderConstants.ETAG) || headers.contains(HeaderConstants.LAST_MODIFIED)) {
+            expiry.cancel(key);
+            return;
+        }
+        long grace = headers.getCacheControl().map(cc -> Math.max(0, Math.max(cc.getStaleWhileRevalidate(), cc.getStaleIfError()))).orElse(0);
+        long usefulFor = item.getTTL() - item.getAge(item.getCachedTime()) + grace;
+        expiry.schedule(key, toMillis(item.getCachedTime()) + TimeUnit.SECONDS.toMillis(Math.max(0, usefulFor)));
+    }
+
+    private static long toMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private void evictToFit(URI keep) {
+        while (weight > maximumWeight && cache.size() > (keep == null ? 0 : 1)) {
+            URI victim = evictionPolicy.selectVictim(keep);
+            if (victim == null || victim.equals(keep) || !cache.containsKey(victim)) {
+                victim = null;
+                for (URI uri : cache.keySet()) {
+                    if (!uri.equals(keep)) {
+                        victim = uri;
+                        break;
+                    }
                 }
             }
-            return response;
-        }).orElse(response.withPayload(null));
+            cache.remove(victim);
+        }
+    }
+
+    private HTTPResponse rewriteResponse(Key key, HTTPResponse response) {
+        return StoredResponses.rewrite(key, response, this::persistablePayload, this::createPayload);
+    }
+
+    /**
+     * Whether the payload can be stored under the key as it is, or has to be copied with {@link #createPayload(Key, Payload, InputStream)}.
+     */
+    protected boolean persistablePayload(Key key, Payload payload) {
+        return persistablePayload(payload);
     }
 
     protected boolean persistablePayload(Payload payload) {
@@ -73,71 +317,126 @@ public class MemoryCacheStorage implements CacheStorage {
 
     public final HTTPResponse insert(final HTTPRequest request, final HTTPResponse response) {
         Key key = Key.create(request, response);
+        HTTPResponse cacheableResponse = rewriteResponse(key, response);
         return withWriteLock(() -> {
-            HTTPResponse cacheableResponse = rewriteResponse(key, response);
-            invalidate(key);
+            if (!hasStoredPayload(key, cacheableResponse)) {
+                invalidate(key);
+            }
             return putImpl(key, cacheableResponse);
         });
     }
 
+    /**
+     * A response that still has the payload stored for the key is stored again like an update,
+     * as removing the key first would free the payload it carries.
+     */
+    private boolean hasStoredPayload(Key key, HTTPResponse response) {
+        Payload payload = response.getPayload().orElse(null);
+        Map<Vary, CacheItem> variants = cache.get(key.getURI());
+        CacheItem stored = variants != null ? variants.get(key.getVary()) : null;
+        return payload != null && stored != null && stored.getResponse().getPayload().orElse(null) == payload;
+    }
+
     protected HTTPResponse putImpl(final Key key, final HTTPResponse response) {
         CacheItem item = createCacheItem(response);
+        long itemWeight = weigher.weigh(key, item);
+        if (itemWeight > maximumWeight) {
+            onEvict(key, item);
+            return response;
+        }
+        weight += itemWeight - index(key, itemWeight, item);
+        scheduleExpiry(key, item);
         LRUMap<Vary, CacheItem> varyCacheItemMap = cache.get(key.getURI());
         if (varyCacheItemMap == null) {
+            // Stored with its first variant, so the variant is reported if the eviction policy rejects the new URI.
             varyCacheItemMap = new LRUMap<>(varyCapacity);
+            varyCacheItemMap.put(key.getVary(), item);
             cache.put(key.getURI(), varyCacheItemMap);
         }
-        varyCacheItemMap.put(key.getVary(), item);
+        else {
+            varyCacheItemMap.put(key.getVary(), item);
+        }
+        onPut(key, item);
+        evictToFit(key.getURI());
         return response;
     }
 
+    /**
+     * Must be called with the write lock held, as {@link #putImpl(Key, HTTPResponse)} is.
+     *
+     * @return {@code true} if an item of the response is heavier than the maximum weight on its own, and will not be stored.
+     */
+    protected final boolean isTooHeavy(Key key, HTTPResponse response) {
+        return weigher.weigh(key, createCacheItem(response)) > maximumWeight;
+    }
+
+    /**
+     * Called when an item has been stored, always with the write lock held.
+     */
+    protected void onPut(Key key, CacheItem item) {
+    }
+
     protected CacheItem createCacheItem(HTTPResponse response) {
         return new DefaultCacheItem(response);
     }
 
     public final HTTPResponse update(final HTTPRequest request, final HTTPResponse response) {
         Key key = Key.create(request, response);
-
-        return withWriteLock(() -> {
-            HTTPResponse cacheableResponse = rewriteResponse(key, response);
-            return putImpl(key, cacheableResponse);
-        });
+        HTTPResponse cacheableResponse = rewriteResponse(key, response);
+        return withWriteLock(() -> putImpl(key, cacheableResponse));
     }
 
     protected Payload createPayload(Key key, Payload payload, InputStream stream) throws IOException {
-        ByteArrayPayload p = new ByteArrayPayload(stream, payload.getMimeType());
-        if (p.isAvailable()) {
-            return p;
-        }
-        return null;
+        return StoredResponses.copyToHeap(payload, stream);
     }
 
+    /**
+     * Computes the variation of the request once for every distinct {@code Vary} header stored for the URI,
+     * usually only one, and looks each of them up directly.
+     */
     public final CacheItem get(HTTPRequest request) {
+        URI uri = request.getNormalizedURI();
         return withReadLock(() -> {
-            Map<Vary, CacheItem> varyCacheItemMap = cache.get(request.getNormalizedURI());
-            if (varyCacheItemMap == null) {
+            Map<Vary, CacheItem> varyCacheItemMap = cache.get(uri);
+            Map<String, Integer> headers = varyHeaders.get(uri);
+            if (varyCacheItemMap == null || headers == null) {
                 return null;
             }
-            else {
-                for (Map.Entry<Vary, CacheItem> entry : varyCacheItemMap.entrySet()) {
-                    if (entry.getKey().matches(request)) {
-                        return entry.getValue();
-                    }
+            for (String varyHeader : headers.keySet()) {
+                Vary vary = Vary.of(varyHeader.isEmpty() ? null : varyHeader, request);
+                CacheItem item = varyCacheItemMap.get(vary);
+                if (item != null && selects(vary, request)) {
+                    return item;
                 }
             }
             return null;
         });
     }
 
+    /**
+     * The rules {@link Vary#matches(HTTPRequest)} adds on top of the variations being equal.
+     */
+    static boolean selects(Vary vary, HTTPRequest request) {
+        if (vary.equals(Vary.ALL)) {
+            return false;
+        }
+        if (vary.isEmpty()) {
+            Headers headers = request.getAllHeaders();
+            return !(headers.contains(HeaderConstants.ACCEPT) || headers.contains(HeaderConstants.ACCEPT_CHARSET) || headers.contains(HeaderConstants.ACCEPT_LANGUAGE));
+        }
+        return true;
+    }
+
     public final void invalidate(URI uri) {
         withVoidWriteLock(() -> {
             Map<Vary, CacheItem> varyCacheItemMap = cache.get(uri);
             if (varyCacheItemMap != null) {
                 Set<Vary> vary = new HashSet<>(varyCacheItemMap.keySet());
-                for (Vary v : vary) {
-                    Key key = new Key(uri, v);
-                    cache.remove(key);
-                }
+                remove(() -> {
+                    for (Vary v : vary) {
+                        cache.remove(new Key(uri, v));
+                    }
+                });
             }
         });
     }
@@ -153,15 +452,21 @@ public class MemoryCacheStorage implements CacheStorage {
     }
 
     private void invalidate(Key key) {
-        cache.remove(key);
+        remove(() -> cache.remove(key));
     }
 
     public final void clear() {
         withVoidWriteLock(() -> {
             Set<URI> uris = new HashSet<URI>(cache.keySet());
-            for (URI uri : uris) {
-                cache.remove(uri);
-            }
+            remove(() -> {
+                for (URI uri : uris) {
+                    cache.remove(uri);
+                }
+            });
+            keys.clear();
+            varyHeaders.clear();
+            weight = 0;
+            expiry.clear();
             afterClear();
         });
     }
@@ -170,26 +475,27 @@ public class MemoryCacheStorage implements CacheStorage {
     protected void afterClear() {
     }
 
+    /**
+     * Does not lock, the number of keys is kept up to date as the storage changes.
+     */
     public final int size() {
-        return withReadLock(() -> {
-            int size = 0;
-            for (Map<Vary, CacheItem> map : cache.values()) {
-                size += map.size();
-            }
-            return size;
-        });
+        return keys.size();
     }
 
+    /**
+     * The iterator is weakly consistent, it does not copy the keys, and reflects the state of the storage
+     * at some point at or since its creation. Keys may not be removed through it.
+     */
     public final Iterator<Key> iterator() {
-        return withReadLock(() -> {
-            HashSet<Key> keys = new HashSet<Key>();
-            for (Map.Entry<URI, LRUMap<Vary, CacheItem>> entry : cache.entrySet()) {
-                for (Vary vary : entry.getValue().keySet()) {
-                    keys.add(new Key(entry.getKey(), vary));
-                }
-            }
-            return Collections.unmodifiableSet(keys).iterator();
-        });
+        return Collections.unmodifiableSet(keys.keySet()).iterator();
+    }
+
+    /**
+     * Weakly consistent like the {@link #iterator()}, and splits well, so the keys can be traversed by a parallel stream.
+     */
+    @Override
+    public final Spliterator<Key> spliterator() {
+        return Collections.unmodifiableSet(keys.keySet()).spliterator();
     }
 
     protected final <A> A withReadLock(Supplier<A> block) {
@@ -219,6 +525,20 @@ public class MemoryCacheStorage implements CacheStorage {
     }
 
     @Override
-    public void shutdown() {
+    public synchronized void shutdown() {
+        if (sweeper != null) {
+            sweeper.shutdownNow();
+            sweeper = null;
+        }
+    }
+
+    private static final class Entry {
+        private final long weight;
+        private final String varyHeader;
+
+        Entry(long weight, String varyHeader) {
+            this.weight = weight;
+            this.varyHeader = varyHeader;
+        }
     }
 }
@@ -15,50 +15,44 @@
 
 package org.codehaus.httpcache4j.cache;
 
-import java.util.Set;
-import java.util.concurrent.CopyOnWriteArraySet;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
+ * Per object lock table.
+ * Each locked object has its own latch, so releasing an object only wakes the threads waiting for that object,
+ * and threads locking different objects never contend with each other.
+ *
  * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
  * @author <a href="mailto:erik@mogensoft.net">Erik Mogensen</p>
  * @version $Revision: $
  */
 class Mutex<T> {
-    private final Set<T> locks = new CopyOnWriteArraySet<T>();
-    private Lock lock = new ReentrantLock();
-    private Condition condition = lock.newCondition();
+    private final ConcurrentMap<T, CountDownLatch> locks = new ConcurrentHashMap<>();
     private final Logger logger = Logger.getLogger(getClass().getName());
 
     public boolean acquire(T object) {
         if (logger.isLoggable(Level.FINEST)) {
             logger.finest(String.format("About to acquire lock for %s", object));
         }
-        lock.lock();
-        try {
-            while (locks.contains(object)) {
-                try {
-                    condition.await();
-                } catch (InterruptedException e) {
-                    if (logger.isLoggable(Level.WARNING)) {
-                        logger.warning(String.format("Thread trying to get lock for %s was interrupted", object));
-                    }
-                    Thread.currentThread().interrupt();
-                    locks.remove(object);
-                    return false;
+        CountDownLatch latch = new CountDownLatch(1);
+        CountDownLatch existing;
+        while ((existing = locks.putIfAbsent(object, latch)) != null) {
+            try {
+                existing.await();
+            } catch (InterruptedException e) {
+                if (logger.isLoggable(Level.WARNING)) {
+                    logger.warning(String.format("Thread trying to get lock for %s was interrupted", object));
                 }
+                Thread.currentThread().interrupt();
+                return false;
             }
-            if (logger.isLoggable(Level.FINE)) {
-                logger.fine(String.format("Adding %s to locks", object));
-            }
-            locks.add(object);
         }
-        finally {
-            lock.unlock();
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine(String.format("Added %s to locks", object));
         }
         if (logger.isLoggable(Level.FINEST)) {
             logger.finest(String.format("Acquired lock for %s", object));
@@ -70,17 +64,12 @@ class Mutex<T> {
         if (logger.isLoggable(Level.FINEST)) {
             logger.finest(String.format("About to release lock for %s", object));
         }
-        lock.lock();
-        try {
-            if (locks.remove(object)) {
-                if (logger.isLoggable(Level.FINE)) {
-                    logger.fine(String.format("Removing %s from locks", object));
-                }
-                condition.signalAll();
+        CountDownLatch latch = locks.remove(object);
+        if (latch != null) {
+            if (logger.isLoggable(Level.FINE)) {
+                logger.fine(String.format("Removed %s from locks", object));
             }
-
-        } finally {
-            lock.unlock();
+            latch.countDown();
         }
         if (logger.isLoggable(Level.FINEST)) {
             logger.finest(String.format("Released lock for %s", object));
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2009. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.cache;
+
+import org.codehaus.httpcache4j.HTTPResponse;
+import org.codehaus.httpcache4j.payload.Payload;
+import org.codehaus.httpcache4j.util.EvictionPolicy;
+import org.codehaus.httpcache4j.util.LRUEvictionPolicy;
+import org.codehaus.httpcache4j.util.SlabAllocator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * In Memory implementation of a cache storage, which keeps the payloads outside of the heap.
+ * <p>
+ * The payloads are copied into chunks of direct memory handed out by a {@link SlabAllocator},
+ * so large bodies do not end up in the old generation of the heap, and do not add to the garbage collection pauses.
+ * The headers and the rest of the metadata stay on the heap.
+ * Hits are served as streams over read only views of the chunks.
+ * <p>
+ * The chunks of a payload are freed when its item is removed or evicted, and no open stream is reading from it.
+ * The payload length counts towards the weight of the storage, so the direct memory can be limited with
+ * {@link #setMaximumWeight(long)}.
+ *
+ * @see SlabPayload
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public class OffHeapCacheStorage extends MemoryCacheStorage {
+    private final SlabAllocator allocator;
+    private final Map<Key, SlabPayload> payloads = new HashMap<>();
+
+    public OffHeapCacheStorage() {
+        this(1000, 10);
+    }
+
+    public OffHeapCacheStorage(int capacity, int varyCapacity) {
+        this(capacity, varyCapacity, new LRUEvictionPolicy<>(), new SlabAllocator());
+    }
+
+    /**
+     * @param allocator hands out the direct memory, may not be shared with other storages.
+     */
+    public OffHeapCacheStorage(int capacity, int varyCapacity, EvictionPolicy<URI> evictionPolicy, SlabAllocator allocator) {
+        super(capacity, varyCapacity, evictionPolicy);
+        this.allocator = Objects.requireNonNull(allocator, "Allocator may not be null");
+    }
+
+    public SlabAllocator getAllocator() {
+        return allocator;
+    }
+
+    @Override
+    protected boolean persistablePayload(Payload payload) {
+        return payload instanceof SlabPayload;
+    }
+
+    @Override
+    protected Payload createPayload(Key key, Payload payload, InputStream stream) throws IOException {
+        SlabPayload p = SlabPayload.copyOf(allocator, stream, payload.getMimeType());
+        if (p.isAvailable()) {
+            return p;
+        }
+        p.release();
+        return null;
+    }
+
+    /**
+     * A payload that is already stored under another key, as happens when a cached response is stored again,
+     * is copied, so every key owns its own chunks.
+     * The chunks of a response that is too heavy to be stored go with the response, see {@link SlabPayload#detach()}.
+     */
+    @Override
+    protected HTTPResponse putImpl(Key key, HTTPResponse response) {
+        HTTPResponse owned = response;
+        Payload payload = response.getPayload().orElse(null);
+        if (payload instanceof SlabPayload && isTooHeavy(key, response)) {
+            ((SlabPayload) payload).detach();
+            return super.putImpl(key, response);
+        }
+        if (payload instanceof SlabPayload && payloads.get(key) != payload) {
+            SlabPayload slabPayload = (SlabPayload) payload;
+            if (!slabPayload.claim()) {
+                slabPayload = copy(slabPayload);
+                owned = response.withPayload(slabPayload);
+            }
+            if (slabPayload != null) {
+                slabPayload.claim();
+            }
+            release(slabPayload == null ? payloads.remove(key) : payloads.put(key, slabPayload));
+        }
+        return super.putImpl(key, owned);
+    }
+
+    @Override
+    public void onRemove(Key key) {
+        super.onRemove(key);
+        release(payloads.remove(key));
+    }
+
+    @Override
+    protected void afterClear() {
+        for (SlabPayload payload : new ArrayList<>(payloads.values())) {
+            payload.release();
+        }
+        payloads.clear();
+    }
+
+    private SlabPayload copy(SlabPayload payload) {
+        try (InputStream stream = payload.getInputStream()) {
+            if (stream != null) {
+                return (SlabPayload) createPayload(null, payload, stream);
+            }
+        } catch (IOException ignore) {
+        }
+        return null;
+    }
+
+    private static void release(SlabPayload payload) {
+        if (payload != null) {
+            payload.release();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2009. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.cache;
+
+import org.codehaus.httpcache4j.HTTPHost;
+import org.codehaus.httpcache4j.util.Preconditions;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Refresh-ahead of hot cache entries.
+ * Counts the hits on every cached variant, and when a variant has been hit at least {@code accessThreshold} times
+ * and has lived more than {@code refreshFraction} of its time to live, it is revalidated in the background.
+ * Entries that are popular enough are then refreshed before they expire, and requests for them never have
+ * to wait for the origin server.
+ * <p>
+ * The count starts over every time the entry is stored again.
+ * Only the hits on the most recently used entries are counted, see {@link KeyTracker}.
+ * At most {@code maxRefreshesPerHost} refreshes are run against the same host at once, refreshes above that
+ * are skipped and tried again on the next hit.
+ *
+ * @see HTTPCache#setRefreshAhead(RefreshAhead)
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public final class RefreshAhead {
+    private static final int MAX_TRACKED_ENTRIES = 10000;
+
+    private final int accessThreshold;
+    private final double refreshFraction;
+    private final int maxRefreshesPerHost;
+    private final KeyTracker<Accesses> accesses = new KeyTracker<>(MAX_TRACKED_ENTRIES);
+    private final ConcurrentMap<HTTPHost, Semaphore> refreshing = new ConcurrentHashMap<>();
+
+    public RefreshAhead() {
+        this(10, 0.8, 2);
+    }
+
+    /**
+     * @param accessThreshold the number of hits before an entry is considered hot.
+     * @param refreshFraction how much of the time to live should pass before a hot entry is refreshed, between 0 and 1.
+     * @param maxRefreshesPerHost the maximum number of concurrent refreshes per host.
+     */
+    public RefreshAhead(int accessThreshold, double refreshFraction, int maxRefreshesPerHost) {
+        Preconditions.checkArgument(accessThreshold > 0, "Access threshold must be positive");
+        Preconditions.checkArgument(refreshFraction > 0 && refreshFraction < 1, "Refresh fraction must be between 0 and 1");
+        Preconditions.checkArgument(maxRefreshesPerHost > 0, "Max refreshes per host must be positive");
+        this.accessThreshold = accessThreshold;
+        this.refreshFraction = refreshFraction;
+        this.maxRefreshesPerHost = maxRefreshesPerHost;
+    }
+
+    public int getAccessThreshold() {
+        return accessThreshold;
+    }
+
+    public double getRefreshFraction() {
+        return refreshFraction;
+    }
+
+    public int getMaxRefreshesPerHost() {
+        return maxRefreshesPerHost;
+    }
+
+    /**
+     * Records a hit on the item.
+     *
+     * @return {@code true} if the item should be refreshed now.
+     * The caller then holds one of the host's refresh permits, and must give it back with {@link #refreshed(HTTPHost)}.
+     */
+    boolean accessed(Key key, HTTPHost host, CacheItem item, LocalDateTime requestTime) {
+        Accesses count = accesses.compute(key, (k, existing) -> {
+            if (existing == null || !existing.cachedTime.equals(item.getCachedTime())) {
+                return new Accesses(item.getCachedTime());
+            }
+            return existing;
+        });
+        count.hits.increment();
+        long ttl = item.getTTL();
+        if (ttl <= 0 || count.hits.sum() < accessThreshold || item.getAge(requestTime) < ttl * refreshFraction) {
+            return false;
+        }
+        return refreshing.computeIfAbsent(host, h -> new Semaphore(maxRefreshesPerHost)).tryAcquire();
+    }
+
+    void refreshed(HTTPHost host) {
+        Semaphore permits = refreshing.get(host);
+        if (permits != null) {
+            permits.release();
+        }
+    }
+
+    int tracked() {
+        return accesses.size();
+    }
+
+    private static class Accesses {
+        private final LocalDateTime cachedTime;
+        private final LongAdder hits = new LongAdder();
+
+        Accesses(LocalDateTime cachedTime) {
+            this.cachedTime = cachedTime;
+        }
+    }
+}
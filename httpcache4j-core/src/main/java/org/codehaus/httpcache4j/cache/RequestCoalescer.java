@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2009. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.cache;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Single-flight execution per object.
+ * The first thread to arrive for an object becomes the leader and does the work,
+ * threads arriving while the leader is in flight wait for it to finish, and are then
+ * handed the result of the leader, or {@code null} if the leader failed.
+ *
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+class RequestCoalescer<T> {
+    private final ConcurrentMap<T, Flight<?>> flights = new ConcurrentHashMap<>();
+    private final Logger logger = Logger.getLogger(getClass().getName());
+
+    public <A> A execute(T object, Supplier<A> leader, Function<A, A> follower) throws InterruptedException {
+        Flight<A> flight = new Flight<>();
+        @SuppressWarnings("unchecked")
+        Flight<A> existing = (Flight<A>) flights.putIfAbsent(object, flight);
+        if (existing == null) {
+            if (logger.isLoggable(Level.FINEST)) {
+                logger.finest(String.format("Leading flight for %s", object));
+            }
+            A result = null;
+            try {
+                result = leader.get();
+                return result;
+            } finally {
+                land(object, flight, result);
+            }
+        }
+        if (logger.isLoggable(Level.FINEST)) {
+            logger.finest(String.format("Joining flight for %s", object));
+        }
+        A result;
+        try {
+            result = existing.landed.get();
+        } catch (ExecutionException e) {
+            // flights always land normally
+            result = null;
+        }
+        return follower.apply(result);
+    }
+
+    /**
+     * Same as {@link #execute(Object, Supplier, Function)}, but nobody waits.
+     * The flight lands when the future returned by the leader completes, and the followers are then run on
+     * the thread completing it.
+     */
+    public <A> CompletableFuture<A> executeAsync(T object, Supplier<CompletableFuture<A>> leader, Function<A, CompletableFuture<A>> follower) {
+        Flight<A> flight = new Flight<>();
+        @SuppressWarnings("unchecked")
+        Flight<A> existing = (Flight<A>) flights.putIfAbsent(object, flight);
+        if (existing == null) {
+            if (logger.isLoggable(Level.FINEST)) {
+                logger.finest(String.format("Leading flight for %s", object));
+            }
+            CompletableFuture<A> result;
+            try {
+                result = leader.get();
+            } catch (RuntimeException | Error e) {
+                land(object, flight, null);
+                throw e;
+            }
+            return result.whenComplete((a, failure) -> land(object, flight, a));
+        }
+        if (logger.isLoggable(Level.FINEST)) {
+            logger.finest(String.format("Joining flight for %s", object));
+        }
+        return existing.landed.thenCompose(follower);
+    }
+
+    /**
+     * @param result the result of the leader, {@code null} if it failed.
+     */
+    private <A> void land(T object, Flight<A> flight, A result) {
+        flights.remove(object, flight);
+        flight.landed.complete(result);
+    }
+
+    int inFlight() {
+        return flights.size();
+    }
+
+    private static class Flight<A> {
+        private final CompletableFuture<A> landed = new CompletableFuture<>();
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2009. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.cache;
+
+import org.codehaus.httpcache4j.MIMEType;
+import org.codehaus.httpcache4j.payload.Payload;
+import org.codehaus.httpcache4j.util.IOUtils;
+import org.codehaus.httpcache4j.util.SlabAllocator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A payload kept in chunks of direct memory, see {@link OffHeapCacheStorage}.
+ * <p>
+ * The chunks are reference counted. The storage holds one reference, and every open stream holds one,
+ * so a stream that was opened before the payload was evicted can still be read to the end.
+ * The chunks are given back to the allocator when the last reference is released.
+ * A stream that is never closed keeps its chunks from being reused.
+ *
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+final class SlabPayload implements Payload {
+    private final SlabAllocator allocator;
+    private final List<ByteBuffer> chunks;
+    private final MIMEType mimeType;
+    private final long length;
+    private final AtomicInteger references = new AtomicInteger(1);
+    private final AtomicBoolean owned = new AtomicBoolean();
+    private final AtomicBoolean released = new AtomicBoolean();
+    private final AtomicBoolean detached = new AtomicBoolean();
+
+    private SlabPayload(SlabAllocator allocator, List<ByteBuffer> chunks, MIMEType mimeType, long length) {
+        this.allocator = allocator;
+        this.chunks = chunks;
+        this.mimeType = mimeType;
+        this.length = length;
+    }
+
+    /**
+     * Copies the stream into chunks. The last chunk is copied into a smaller one if that fits,
+     * so a payload never wastes more than half of its last chunk.
+     */
+    static SlabPayload copyOf(SlabAllocator allocator, InputStream stream, MIMEType mimeType) throws IOException {
+        List<ByteBuffer> chunks = new ArrayList<>();
+        byte[] buffer = new byte[8192];
+        long length = 0;
+        ByteBuffer current = null;
+        try {
+            int read;
+            while ((read = stream.read(buffer)) != -1) {
+                int offset = 0;
+                while (offset < read) {
+                    if (current == null || !current.hasRemaining()) {
+                        current = allocator.allocate(allocator.getMaxChunkSize());
+                        chunks.add(current);
+                    }
+                    int count = Math.min(read - offset, current.remaining());
+                    current.put(buffer, offset, count);
+                    offset += count;
+                }
+                length += read;
+            }
+        } catch (IOException | RuntimeException e) {
+            chunks.forEach(allocator::free);
+            throw e;
+        }
+        for (ByteBuffer chunk : chunks) {
+            ((Buffer) chunk).flip();
+        }
+        if (current != null && current.remaining() <= allocator.getMaxChunkSize() / 2) {
+            ByteBuffer tail = allocator.allocate(current.remaining());
+            tail.put(current);
+            ((Buffer) tail).flip();
+            allocator.free(current);
+            chunks.set(chunks.size() - 1, tail);
+        }
+        return new SlabPayload(allocator, Collections.unmodifiableList(chunks), mimeType, length);
+    }
+
+    @Override
+    public MIMEType getMimeType() {
+        return mimeType;
+    }
+
+    /**
+     * @return a stream over read only views of the chunks, or {@code null} if the payload has been released.
+     */
+    @Override
+    public InputStream getInputStream() {
+        if (!handOver() && (released.get() || !retain())) {
+            return null;
+        }
+        return new ChunkInputStream();
+    }
+
+    /**
+     * Writes the chunks straight to the channel, holding a reference while doing so.
+     */
+    @Override
+    public long transferTo(WritableByteChannel channel) throws IOException {
+        if (!handOver() && (released.get() || !retain())) {
+            throw new IOException("Payload is not available");
+        }
+        try {
+            long total = 0;
+            for (ByteBuffer chunk : chunks) {
+                total += IOUtils.write(chunk.asReadOnlyBuffer(), channel);
+            }
+            return total;
+        } finally {
+            unreference();
+        }
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return length > 0 && !released.get();
+    }
+
+    /**
+     * Makes the caller the owner of the storage reference, which only one caller can be.
+     *
+     * @return {@code true} if nobody owned it before.
+     */
+    boolean claim() {
+        return owned.compareAndSet(false, true);
+    }
+
+    /**
+     * For a payload that is handed out without being stored. The storage reference is handed over to the first stream
+     * that is opened, so the chunks are freed when that stream is closed.
+     *
+     * @return {@code false} if somebody owns the storage reference already.
+     */
+    boolean detach() {
+        if (!claim()) {
+            return false;
+        }
+        detached.set(true);
+        return true;
+    }
+
+    private boolean handOver() {
+        if (detached.compareAndSet(true, false)) {
+            released.set(true);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Releases the reference held by the storage.
+     */
+    void release() {
+        if (released.compareAndSet(false, true)) {
+            unreference();
+        }
+    }
+
+    private void unreference() {
+        if (references.decrementAndGet() == 0) {
+            chunks.forEach(allocator::free);
+        }
+    }
+
+    private boolean retain() {
+        int current;
+        do {
+            current = references.get();
+            if (current <= 0) {
+                return false;
+            }
+        } while (!references.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    private class ChunkInputStream extends InputStream {
+        private int index = 0;
+        private ByteBuffer current;
+        private boolean closed;
+
+        @Override
+        public int read() throws IOException {
+            ByteBuffer chunk = next();
+            return chunk == null ? -1 : chunk.get() & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            ByteBuffer chunk = next();
+            if (chunk == null) {
+                return -1;
+            }
+            int count = Math.min(len, chunk.remaining());
+            chunk.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return closed || current == null ? 0 : current.remaining();
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                unreference();
+            }
+        }
+
+        private ByteBuffer next() throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            while (current == null || !current.hasRemaining()) {
+                if (index == chunks.size()) {
+                    return null;
+                }
+                current = chunks.get(index++).asReadOnlyBuffer();
+            }
+            return current;
+        }
+    }
+}
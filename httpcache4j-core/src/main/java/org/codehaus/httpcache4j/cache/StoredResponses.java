@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2009. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+
+package org.codehaus.httpcache4j.cache;
+
+import org.codehaus.httpcache4j.HTTPException;
+import org.codehaus.httpcache4j.HTTPResponse;
+import org.codehaus.httpcache4j.payload.ByteArrayPayload;
+import org.codehaus.httpcache4j.payload.Payload;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.function.BiPredicate;
+
+/**
+ * Prepares responses to be kept by the in memory storages.
+ * <p>
+ * The payload of a response from the origin can usually only be read once,
+ * so unless the storage can keep it as it is, it is copied before the response is stored.
+ *
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+final class StoredResponses {
+    private StoredResponses() {
+    }
+
+    interface PayloadFactory {
+        /**
+         * @return the copy of the payload, or {@code null} if the copy is not available.
+         */
+        Payload createPayload(Key key, Payload payload, InputStream stream) throws IOException;
+    }
+
+    /**
+     * @param persistable whether the storage can keep the payload as it is.
+     * @param factory copies the payloads that can not be kept as they are.
+     * @return the response with a payload that can be stored, and read more than once.
+     * @throws HTTPException if the payload could not be copied. The stream has been consumed,
+     *                       so neither the response nor the original payload can be used after that.
+     */
+    static HTTPResponse rewrite(Key key, HTTPResponse response, BiPredicate<Key, Payload> persistable, PayloadFactory factory) {
+        if (!response.getPayload().isPresent()) {
+            return response.withPayload(null);
+        }
+        Payload payload = response.getPayload().get();
+        if (persistable.test(key, payload)) {
+            return response;
+        }
+        try (InputStream stream = payload.getInputStream()) {
+            return response.withPayload(factory.createPayload(key, payload, stream));
+        } catch (IOException e) {
+            throw new HTTPException(String.format("Unable to copy the payload of %s", key.getURI()), e);
+        }
+    }
+
+    /**
+     * Copies the payload to the heap.
+     */
+    static Payload copyToHeap(Payload payload, InputStream stream) throws IOException {
+        ByteArrayPayload p = new ByteArrayPayload(stream, payload.getMimeType());
+        if (p.isAvailable()) {
+            return p;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright (c) 2009. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.cache;
+
+import org.codehaus.httpcache4j.HTTPRequest;
+import org.codehaus.httpcache4j.HTTPResponse;
+import org.codehaus.httpcache4j.HeaderConstants;
+import org.codehaus.httpcache4j.payload.ByteArrayPayload;
+import org.codehaus.httpcache4j.payload.Payload;
+import org.codehaus.httpcache4j.util.EvictionPolicy;
+import org.codehaus.httpcache4j.util.LRUEvictionPolicy;
+import org.codehaus.httpcache4j.util.Preconditions;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * In Memory implementation of a cache storage, for caches that are shared by many threads.
+ * <p>
+ * The URIs are spread over a number of segments, each with its own lock, so writes only block writes to the same segment.
+ * Reads never block, the variants of a URI are replaced as a whole on every write, and read without locking.
+ * A request is looked up by the distinct Vary headers of the variants of its URI, usually only one, not by matching every variant.
+ * Payloads are buffered before any lock is taken, so a slow response body does not hold up anybody else.
+ * <p>
+ * When the storage is full, the least recently used URI of the segment that was written to is evicted,
+ * so the eviction order is only approximately least recently used across the whole storage.
+ * Reads are recorded by a {@link LRUEvictionPolicy} per segment, which does not block readers.
+ *
+ * @see MemoryCacheStorage
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public class StripedMemoryCacheStorage implements CacheStorage {
+    private final int capacity;
+    private final int varyCapacity;
+    private final Segment[] segments;
+    private final AtomicInteger uris = new AtomicInteger();
+    private final LongAdder variants = new LongAdder();
+
+    public StripedMemoryCacheStorage() {
+        this(1000, 10);
+    }
+
+    public StripedMemoryCacheStorage(int capacity, int varyCapacity) {
+        this(capacity, varyCapacity, 16);
+    }
+
+    /**
+     * @param capacity the maximum number of URIs to keep.
+     * @param varyCapacity the maximum number of variants to keep per URI.
+     * @param concurrencyLevel the expected number of concurrent writers, rounded up to the closest power of two.
+     */
+    public StripedMemoryCacheStorage(int capacity, int varyCapacity, int concurrencyLevel) {
+        Preconditions.checkArgument(capacity > 0, "Capacity must be positive");
+        Preconditions.checkArgument(varyCapacity > 0, "Vary capacity must be positive");
+        Preconditions.checkArgument(concurrencyLevel > 0, "Concurrency level must be positive");
+        int numberOfSegments = Integer.highestOneBit(Math.min(concurrencyLevel, capacity) * 2 - 1);
+        this.capacity = capacity;
+        this.varyCapacity = varyCapacity;
+        this.segments = new Segment[numberOfSegments];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getVaryCapacity() {
+        return varyCapacity;
+    }
+
+    @Override
+    public final HTTPResponse insert(HTTPRequest request, HTTPResponse response) {
+        Key key = Key.create(request, response);
+        HTTPResponse cacheableResponse = rewriteResponse(key, response);
+        int index = indexFor(key.getURI());
+        if (segments[index].put(key, createCacheItem(cacheableResponse))) {
+            evictIfFull(index);
+        }
+        return cacheableResponse;
+    }
+
+    @Override
+    public final HTTPResponse update(HTTPRequest request, HTTPResponse response) {
+        return insert(request, response);
+    }
+
+    @Override
+    public final CacheItem get(Key key) {
+        Segment segment = segmentFor(key.getURI());
+        Variants variants = segment.entries.get(key.getURI());
+        if (variants == null) {
+            return null;
+        }
+        CacheItem item = variants.items.get(key.getVary());
+        if (item != null) {
+            segment.recordRead(key.getURI());
+        }
+        return item;
+    }
+
+    @Override
+    public final CacheItem get(HTTPRequest request) {
+        URI uri = request.getNormalizedURI();
+        Segment segment = segmentFor(uri);
+        Variants variants = segment.entries.get(uri);
+        if (variants == null) {
+            return null;
+        }
+        for (String varyHeader : variants.varyHeaders) {
+            Vary vary = Vary.of(varyHeader.isEmpty() ? null : varyHeader, request);
+            CacheItem item = variants.items.get(vary);
+            if (item != null && MemoryCacheStorage.selects(vary, request)) {
+                segment.recordRead(uri);
+                return item;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public final void invalidate(URI uri) {
+        segmentFor(uri).remove(uri);
+    }
+
+    @Override
+    public final void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    @Override
+    public final int size() {
+        return variants.intValue();
+    }
+
+    /**
+     * The iterator is weakly consistent, it reflects the state of the storage at some point at or since its creation.
+     */
+    @Override
+    public final Iterator<Key> iterator() {
+        return Arrays.stream(segments)
+                .flatMap(segment -> segment.entries.entrySet().stream())
+                .flatMap(entry -> entry.getValue().items.keySet().stream().map(vary -> new Key(entry.getKey(), vary)))
+                .iterator();
+    }
+
+    @Override
+    public void shutdown() {
+    }
+
+    protected CacheItem createCacheItem(HTTPResponse response) {
+        return new DefaultCacheItem(response);
+    }
+
+    protected Payload createPayload(Key key, Payload payload, InputStream stream) throws IOException {
+        return StoredResponses.copyToHeap(payload, stream);
+    }
+
+    private HTTPResponse rewriteResponse(Key key, HTTPResponse response) {
+        return StoredResponses.rewrite(key, response, (k, p) -> p instanceof ByteArrayPayload, this::createPayload);
+    }
+
+    private Segment segmentFor(URI uri) {
+        return segments[indexFor(uri)];
+    }
+
+    private int indexFor(URI uri) {
+        int h = uri.hashCode();
+        h ^= (h >>> 16);
+        return h & (segments.length - 1);
+    }
+
+    /**
+     * Every eviction is claimed by decrementing the number of URIs first, so concurrent writers do not evict more than needed.
+     * The segment that was written to is tried first, without evicting the URI that was just added.
+     */
+    private void evictIfFull(int index) {
+        int current;
+        while ((current = uris.get()) > capacity) {
+            if (uris.compareAndSet(current, current - 1)) {
+                boolean evicted = false;
+                for (int i = 0; i < segments.length && !evicted; i++) {
+                    evicted = segments[(index + i) & (segments.length - 1)].evictEldest(i == 0 ? 1 : 0);
+                }
+                if (!evicted) {
+                    uris.incrementAndGet();
+                    return;
+                }
+            }
+        }
+    }
+
+    private class Segment {
+        private final ConcurrentMap<URI, Variants> entries = new ConcurrentHashMap<>();
+        private final ReentrantLock lock = new ReentrantLock();
+        private final EvictionPolicy<URI> order = new LRUEvictionPolicy<>();
+
+        void recordRead(URI uri) {
+            order.recordAccess(uri);
+        }
+
+        /**
+         * @return {@code true} if the URI was not in the storage before.
+         */
+        boolean put(Key key, CacheItem item) {
+            lock.lock();
+            try {
+                Variants existing = entries.get(key.getURI());
+                LinkedHashMap<Vary, CacheItem> items = existing == null ? new LinkedHashMap<>() : new LinkedHashMap<>(existing.items);
+                items.remove(key.getVary());
+                items.put(key.getVary(), item);
+                Iterator<Vary> eldest = items.keySet().iterator();
+                while (items.size() > varyCapacity) {
+                    eldest.next();
+                    eldest.remove();
+                }
+                entries.put(key.getURI(), new Variants(items));
+                variants.add(items.size() - (existing == null ? 0 : existing.items.size()));
+                if (existing == null) {
+                    order.recordInsert(key.getURI());
+                    uris.incrementAndGet();
+                    return true;
+                }
+                order.recordAccess(key.getURI());
+                return false;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void remove(URI uri) {
+            lock.lock();
+            try {
+                Variants removed = entries.remove(uri);
+                if (removed != null) {
+                    variants.add(-removed.items.size());
+                    order.recordRemoval(uri);
+                    uris.decrementAndGet();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void clear() {
+            lock.lock();
+            try {
+                uris.addAndGet(-entries.size());
+                for (Variants removed : entries.values()) {
+                    variants.add(-removed.items.size());
+                }
+                entries.clear();
+                order.clear();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Does not count towards the number of URIs, the caller has already done that.
+         *
+         * @param keep the number of URIs to keep in the segment.
+         */
+        boolean evictEldest(int keep) {
+            lock.lock();
+            try {
+                if (entries.size() <= keep) {
+                    return false;
+                }
+                URI victim = order.selectVictim(null);
+                Variants removed = victim == null ? null : entries.remove(victim);
+                if (removed == null) {
+                    return false;
+                }
+                variants.add(-removed.items.size());
+                order.recordRemoval(victim);
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * The variants of a URI, with the distinct Vary headers of their responses to look a request up by.
+     * Never changed after it is created.
+     */
+    private static final class Variants {
+        private final Map<Vary, CacheItem> items;
+        private final Set<String> varyHeaders;
+
+        Variants(LinkedHashMap<Vary, CacheItem> items) {
+            this.items = Collections.unmodifiableMap(items);
+            Set<String> headers = new LinkedHashSet<>(2);
+            for (CacheItem item : items.values()) {
+                headers.add(item.getResponse().getHeaders().getFirstHeaderValue(HeaderConstants.VARY).orElse(""));
+            }
+            this.varyHeaders = Collections.unmodifiableSet(headers);
+        }
+    }
+}
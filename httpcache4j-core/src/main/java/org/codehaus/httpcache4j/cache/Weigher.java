@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2009. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.cache;
+
+import org.codehaus.httpcache4j.HTTPResponse;
+import org.codehaus.httpcache4j.Header;
+
+/**
+ * Calculates how much a cached variant weighs, in bytes.
+ * The weight of an item may not change while it is stored.
+ *
+ * @see MemoryCacheStorage#setMaximumWeight(long, Weigher)
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+@FunctionalInterface
+public interface Weigher {
+    /**
+     * Estimated size of the objects surrounding a single header, and a single cache item.
+     */
+    int HEADER_OVERHEAD = 64;
+    int ITEM_OVERHEAD = 256;
+
+    long weigh(Key key, CacheItem item);
+
+    /**
+     * The length of the payload, plus an estimate of what the headers and the key take up on the heap.
+     * Strings are counted as two bytes per character.
+     * Payloads of unknown length weigh nothing.
+     */
+    static Weigher payloadAndHeaders() {
+        return (key, item) -> {
+            HTTPResponse response = item.getResponse();
+            long weight = ITEM_OVERHEAD + 2L * key.getURI().toString().length();
+            for (Header header : response.getHeaders()) {
+                weight += HEADER_OVERHEAD + 2L * (header.getName().length() + header.getValue().length());
+            }
+            return weight + response.getPayload().map(p -> Math.max(0, p.length())).orElse(0L);
+        };
+    }
+}
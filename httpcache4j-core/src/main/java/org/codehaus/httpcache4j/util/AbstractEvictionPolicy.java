@@ -0,0 +1,108 @@
+package org.codehaus.httpcache4j.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Base class for eviction policies that keep state which is not safe for concurrent use.
+ * <p>
+ * Accesses are added to a queue without locking, and applied in order before the next insert, removal or eviction,
+ * or by the reader that fills up the queue, if nobody else is holding the lock.
+ * If the readers are faster than the queue is drained, accesses are dropped, which only makes the policy a little less precise.
+ * All the abstract methods are called while holding the lock.
+ *
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public abstract class AbstractEvictionPolicy<K> implements EvictionPolicy<K> {
+    private static final int READ_BUFFER_THRESHOLD = 64;
+    private static final int MAX_PENDING_READS = 16 * READ_BUFFER_THRESHOLD;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Queue<K> reads = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingReads = new AtomicInteger();
+
+    @Override
+    public final void recordAccess(K key) {
+        int pending = pendingReads.incrementAndGet();
+        if (pending > MAX_PENDING_READS) {
+            pendingReads.decrementAndGet();
+        }
+        else {
+            reads.add(key);
+        }
+        if (pending >= READ_BUFFER_THRESHOLD && lock.tryLock()) {
+            try {
+                drainReads();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public final void recordInsert(K key) {
+        lock.lock();
+        try {
+            drainReads();
+            onInsert(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public final void recordRemoval(K key) {
+        lock.lock();
+        try {
+            drainReads();
+            onRemoval(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public final K selectVictim(K candidate) {
+        lock.lock();
+        try {
+            drainReads();
+            return victim(candidate);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public final void clear() {
+        lock.lock();
+        try {
+            reads.clear();
+            pendingReads.set(0);
+            onClear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    protected abstract void onAccess(K key);
+
+    protected abstract void onInsert(K key);
+
+    protected abstract void onRemoval(K key);
+
+    protected abstract K victim(K candidate);
+
+    protected abstract void onClear();
+
+    private void drainReads() {
+        int drained = 0;
+        K key;
+        while (drained < MAX_PENDING_READS && (key = reads.poll()) != null) {
+            onAccess(key);
+            drained++;
+        }
+        pendingReads.addAndGet(-drained);
+    }
+}
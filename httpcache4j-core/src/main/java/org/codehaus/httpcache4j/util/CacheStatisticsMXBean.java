@@ -24,5 +24,7 @@ public interface CacheStatisticsMXBean {
 
     long getMisses();
 
+    long getWeight();
+
     void clear();
 }
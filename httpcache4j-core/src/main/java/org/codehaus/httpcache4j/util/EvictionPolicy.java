@@ -0,0 +1,32 @@
+package org.codehaus.httpcache4j.util;
+
+/**
+ * Decides which key to evict when a {@link LRUMap} is over capacity.
+ * <p>
+ * {@link #recordAccess(Object)} is called on every hit, and may be called by many readers at the same time.
+ * The other methods are called by the owner of the map, with no other writers running,
+ * but possibly with concurrent calls to {@link #recordAccess(Object)}.
+ * {@link AbstractEvictionPolicy} takes care of that.
+ *
+ * @see LRUEvictionPolicy
+ * @see WindowTinyLFUEvictionPolicy
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public interface EvictionPolicy<K> {
+    void recordAccess(K key);
+
+    void recordInsert(K key);
+
+    void recordRemoval(K key);
+
+    /**
+     * Called after {@code candidate} was inserted, and the map went over capacity.
+     *
+     * @param candidate the key that was just inserted.
+     * @return the key to evict, which may be the candidate itself.
+     * {@code null} if the policy does not know of any keys, in which case the oldest key is evicted.
+     */
+    K selectVictim(K candidate);
+
+    void clear();
+}
@@ -0,0 +1,39 @@
+package org.codehaus.httpcache4j.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Evicts the least recently used key.
+ *
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public class LRUEvictionPolicy<K> extends AbstractEvictionPolicy<K> {
+    private final LinkedHashMap<K, Boolean> order = new LinkedHashMap<>(16, 0.75f, true);
+
+    @Override
+    protected void onAccess(K key) {
+        order.get(key);
+    }
+
+    @Override
+    protected void onInsert(K key) {
+        order.put(key, Boolean.TRUE);
+    }
+
+    @Override
+    protected void onRemoval(K key) {
+        order.remove(key);
+    }
+
+    @Override
+    protected K victim(K candidate) {
+        Iterator<K> iterator = order.keySet().iterator();
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+
+    @Override
+    protected void onClear() {
+        order.clear();
+    }
+}
@@ -1,13 +1,28 @@
 package org.codehaus.httpcache4j.util;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CopyOnWriteArrayList;
 
+/**
+ * Map with a fixed capacity.
+ * Without an {@link EvictionPolicy} the oldest entry is evicted when the map is full,
+ * with one, the policy decides which entry to evict.
+ * <p>
+ * {@link #get(Object)} never changes the map, so it is safe to call from many readers at once,
+ * as long as the policy is.
+ */
 public class LRUMap<K, V> extends LinkedHashMap<K, V> {
+    // The serial version of the class before it had an eviction policy, so existing persistent caches can still be read.
+    private static final long serialVersionUID = 132335970950923534L;
+
     private final int capacity;
     private transient CopyOnWriteArrayList<ModificationListener<K, V>> listeners = new CopyOnWriteArrayList<>();
+    private transient volatile EvictionPolicy<K> evictionPolicy;
 
     public LRUMap(final int capacity) {
         super(capacity);
@@ -21,7 +36,7 @@ public class LRUMap<K, V> extends LinkedHashMap<K, V> {
 
     @Override
     protected final boolean removeEldestEntry(Map.Entry<K, V> eldest) {
-        boolean remove = size() > capacity;
+        boolean remove = evictionPolicy == null && size() > capacity;
         if (remove) {
             for (ModificationListener<K, V> listener : listeners) {
                 listener.onRemove(eldest.getKey(), eldest.getValue());
@@ -34,6 +49,25 @@ public class LRUMap<K, V> extends LinkedHashMap<K, V> {
         return capacity;
     }
 
+    public EvictionPolicy<K> getEvictionPolicy() {
+        return evictionPolicy;
+    }
+
+    /**
+     * Replaces the eviction policy. The keys already in the map are given to the new policy in their current order.
+     *
+     * @param evictionPolicy the new policy, {@code null} to evict the oldest entry.
+     */
+    public void setEvictionPolicy(EvictionPolicy<K> evictionPolicy) {
+        if (evictionPolicy != null) {
+            evictionPolicy.clear();
+            for (K key : keySet()) {
+                evictionPolicy.recordInsert(key);
+            }
+        }
+        this.evictionPolicy = evictionPolicy;
+    }
+
     public synchronized void addListener(ModificationListener<K, V> listener) {
         if (listeners == null) {
             listeners = new CopyOnWriteArrayList<>();
@@ -53,26 +87,74 @@ public class LRUMap<K, V> extends LinkedHashMap<K, V> {
         listeners.clear();
     }
 
+    @Override
+    public V get(Object key) {
+        V value = super.get(key);
+        EvictionPolicy<K> policy = evictionPolicy;
+        if (value != null && policy != null) {
+            policy.recordAccess(asKey(key));
+        }
+        return value;
+    }
+
     @Override
     public V remove(Object key) {
         V remove = super.remove(key);
         if (remove != null) {
+            K removed = asKey(key);
+            EvictionPolicy<K> policy = evictionPolicy;
+            if (policy != null) {
+                policy.recordRemoval(removed);
+            }
             for (ModificationListener<K, V> listener : listeners) {
-                listener.onRemove((K)key, remove);
+                listener.onRemove(removed, remove);
             }
         }
         return remove;
     }
 
+    /**
+     * Only called with keys that were found in the map, which are all of type {@code K}.
+     */
+    @SuppressWarnings("unchecked")
+    private K asKey(Object key) {
+        return (K) key;
+    }
+
     @Override
     public V put(K key, V value) {
         V put = super.put(key, value);
         for (ModificationListener<K, V> listener : listeners) {
             listener.onPut(key, value);
         }
+        EvictionPolicy<K> policy = evictionPolicy;
+        if (policy != null) {
+            if (put == null) {
+                policy.recordInsert(key);
+            }
+            else {
+                policy.recordAccess(key);
+            }
+            while (size() > capacity) {
+                K victim = policy.selectVictim(key);
+                if (victim == null || remove(victim) == null) {
+                    Iterator<K> eldest = keySet().iterator();
+                    remove(eldest.next());
+                }
+            }
+        }
         return put;
     }
 
+    @Override
+    public void clear() {
+        super.clear();
+        EvictionPolicy<K> policy = evictionPolicy;
+        if (policy != null) {
+            policy.clear();
+        }
+    }
+
     @Override
     public void putAll(Map<? extends K, ? extends V> m) {
         for (Map.Entry<? extends K, ? extends V> entry : m.entrySet()) {
@@ -80,6 +162,11 @@ public class LRUMap<K, V> extends LinkedHashMap<K, V> {
         }
     }
 
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        listeners = new CopyOnWriteArrayList<>();
+    }
+
     public static interface ModificationListener<K, V> {
         public void onPut(K key, V value);
         public void onRemove(K key, V value);
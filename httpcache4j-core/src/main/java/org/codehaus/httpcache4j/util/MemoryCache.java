@@ -4,7 +4,10 @@ import org.codehaus.httpcache4j.cache.CacheItem;
 import org.codehaus.httpcache4j.cache.Key;
 import org.codehaus.httpcache4j.cache.Vary;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.net.URI;
+import java.util.Map;
 
 public class MemoryCache extends LRUMap<URI, LRUMap<Vary, CacheItem>> {
     private static final long serialVersionUID = -8600084275381371031L;
@@ -51,8 +54,25 @@ public class MemoryCache extends LRUMap<URI, LRUMap<Vary, CacheItem>> {
         }
     }
 
+    /**
+     * Listeners are not serialized, so the variants are told about their URI again.
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        for (Map.Entry<URI, LRUMap<Vary, CacheItem>> entry : entrySet()) {
+            entry.getValue().addListener(new KeyModificationListener(entry.getKey()));
+        }
+    }
+
     public static interface KeyListener {
         public void onRemove(Key key);
+
+        /**
+         * Called with the item that was removed, by default the same as {@link #onRemove(Key)}.
+         */
+        public default void onRemove(Key key, CacheItem item) {
+            onRemove(key);
+        }
     }
 
     private static class ListenerImpl implements ModificationListener<URI, LRUMap<Vary, CacheItem>> {
@@ -68,8 +88,8 @@ public class MemoryCache extends LRUMap<URI, LRUMap<Vary, CacheItem>> {
 
         @Override
         public void onRemove(URI uri, LRUMap<Vary, CacheItem> value) {
-            for (Vary vary : value.keySet()) {
-                listener.onRemove(Key.create(uri, vary));
+            for (Map.Entry<Vary, CacheItem> variant : value.entrySet()) {
+                listener.onRemove(Key.create(uri, variant.getKey()), variant.getValue());
             }
             value.removeListeners();
         }
@@ -86,7 +106,7 @@ public class MemoryCache extends LRUMap<URI, LRUMap<Vary, CacheItem>> {
         public void onRemove(Vary key, CacheItem value) {
             if (listener != null) {
                 Key k = Key.create(uri, key);
-                listener.onRemove(k);
+                listener.onRemove(k, value);
             }
         }
 
@@ -0,0 +1,119 @@
+package org.codehaus.httpcache4j.util;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out chunks of direct memory, carved out of larger slabs.
+ * <p>
+ * Chunks come in size classes, every power of two from {@code minChunkSize} up to {@code maxChunkSize}.
+ * A chunk is always taken from the smallest class that fits, so at most half of a chunk is wasted.
+ * Freed chunks go back to the free list of their class and are reused, the slabs themselves are never released,
+ * so the direct memory in use is bounded by the most that was ever allocated at once.
+ *
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public final class SlabAllocator {
+    private final int slabSize;
+    private final int minShift;
+    private final SizeClass[] classes;
+    private final AtomicLong allocated = new AtomicLong();
+    private final AtomicLong used = new AtomicLong();
+
+    public SlabAllocator() {
+        this(1024 * 1024, 256, 64 * 1024);
+    }
+
+    /**
+     * @param slabSize the size of every slab of direct memory.
+     * @param minChunkSize the size of the smallest chunk, a power of two.
+     * @param maxChunkSize the size of the largest chunk, a power of two no larger than the slab size.
+     */
+    public SlabAllocator(int slabSize, int minChunkSize, int maxChunkSize) {
+        Preconditions.checkArgument(Integer.bitCount(minChunkSize) == 1, "Minimum chunk size must be a power of two");
+        Preconditions.checkArgument(Integer.bitCount(maxChunkSize) == 1, "Maximum chunk size must be a power of two");
+        Preconditions.checkArgument(minChunkSize <= maxChunkSize, "Minimum chunk size may not be larger than the maximum");
+        Preconditions.checkArgument(maxChunkSize <= slabSize, "Maximum chunk size may not be larger than the slab size");
+        this.slabSize = slabSize;
+        this.minShift = Integer.numberOfTrailingZeros(minChunkSize);
+        this.classes = new SizeClass[Integer.numberOfTrailingZeros(maxChunkSize) - minShift + 1];
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new SizeClass(minChunkSize << i);
+        }
+    }
+
+    public int getMaxChunkSize() {
+        return classes[classes.length - 1].chunkSize;
+    }
+
+    /**
+     * @return the direct memory taken by slabs, in bytes.
+     */
+    public long getAllocatedMemory() {
+        return allocated.get();
+    }
+
+    /**
+     * @return the direct memory taken by chunks that have not been freed, in bytes.
+     */
+    public long getUsedMemory() {
+        return used.get();
+    }
+
+    /**
+     * @param size the number of bytes needed, no more than {@link #getMaxChunkSize()}.
+     * @return an empty chunk, with a capacity of at least {@code size}, and the limit set to {@code size}.
+     */
+    public ByteBuffer allocate(int size) {
+        Preconditions.checkArgument(size > 0 && size <= getMaxChunkSize(), "Size must be between 1 and the maximum chunk size");
+        SizeClass sizeClass = classes[classFor(size)];
+        ByteBuffer chunk = sizeClass.take();
+        used.addAndGet(sizeClass.chunkSize);
+        // Buffer, so the class still runs on Java 8, where ByteBuffer does not override limit, position and clear.
+        ((Buffer) chunk).limit(size);
+        return chunk;
+    }
+
+    /**
+     * Gives a chunk back. The chunk, and any views of it, may not be used after this.
+     */
+    public void free(ByteBuffer chunk) {
+        int index = Integer.numberOfTrailingZeros(chunk.capacity()) - minShift;
+        Preconditions.checkArgument(index >= 0 && index < classes.length && classes[index].chunkSize == chunk.capacity(), "Not a chunk from this allocator");
+        ((Buffer) chunk).clear();
+        classes[index].give(chunk);
+        used.addAndGet(-chunk.capacity());
+    }
+
+    private int classFor(int size) {
+        int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+        return Math.max(0, shift - minShift);
+    }
+
+    private class SizeClass {
+        private final int chunkSize;
+        private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+
+        SizeClass(int chunkSize) {
+            this.chunkSize = chunkSize;
+        }
+
+        synchronized ByteBuffer take() {
+            if (free.isEmpty()) {
+                ByteBuffer slab = ByteBuffer.allocateDirect(slabSize);
+                allocated.addAndGet(slabSize);
+                for (int position = 0; position + chunkSize <= slabSize; position += chunkSize) {
+                    ((Buffer) slab).limit(position + chunkSize).position(position);
+                    free.add(slab.slice());
+                }
+            }
+            return free.poll();
+        }
+
+        synchronized void give(ByteBuffer chunk) {
+            free.push(chunk);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package org.codehaus.httpcache4j.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hierarchical timer wheel, keeps track of when keys expire.
+ * <p>
+ * Every level is a ring of 64 buckets, each covering 64 times the span of a bucket on the level below,
+ * from about a second on the lowest level to about half a year on the highest.
+ * A key is put on the lowest level that covers the time until it expires, and is moved down as its time comes closer.
+ * Scheduling and cancelling is constant time, and advancing the wheel only touches the buckets that have passed,
+ * so finding the expired keys costs in the order of the number of expired keys, not the number of keys.
+ * Keys that are due are reported with the resolution of the lowest level, about a second.
+ * <p>
+ * Not safe for concurrent use.
+ *
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public final class TimerWheel<K> {
+    private static final int BUCKETS = 64;
+    private static final int[] SHIFTS = {10, 16, 22, 28, 34};
+
+    private final Node<K>[][] wheel;
+    private final Map<K, Node<K>> nodes = new HashMap<>();
+    private long currentTime;
+
+    /**
+     * @param currentTime the current time, in milliseconds.
+     */
+    public TimerWheel(long currentTime) {
+        this.currentTime = currentTime;
+        @SuppressWarnings("unchecked")
+        Node<K>[][] wheel = (Node<K>[][]) new Node<?>[SHIFTS.length][BUCKETS];
+        this.wheel = wheel;
+        for (Node<K>[] level : wheel) {
+            for (int i = 0; i < level.length; i++) {
+                level[i] = new Node<>(null, 0);
+            }
+        }
+    }
+
+    public int size() {
+        return nodes.size();
+    }
+
+    /**
+     * Schedules the key to expire, replacing any time it was scheduled for before.
+     *
+     * @param time when the key expires, in milliseconds.
+     */
+    public void schedule(K key, long time) {
+        Node<K> node = nodes.get(key);
+        if (node == null) {
+            node = new Node<>(key, time);
+            nodes.put(key, node);
+        }
+        else {
+            node.unlink();
+            node.time = time;
+        }
+        place(node);
+    }
+
+    public void cancel(K key) {
+        Node<K> node = nodes.remove(key);
+        if (node != null) {
+            node.unlink();
+        }
+    }
+
+    public void clear() {
+        for (Node<K> node : nodes.values()) {
+            node.unlink();
+        }
+        nodes.clear();
+    }
+
+    /**
+     * Moves the wheel forward, and removes the keys that have expired.
+     * The highest levels are advanced first, so keys moving down are seen by the lower levels in the same pass.
+     *
+     * @param now the current time, in milliseconds.
+     * @return the keys that expired at or before {@code now}.
+     */
+    public List<K> advance(long now) {
+        List<K> expired = new ArrayList<>();
+        long previous = currentTime;
+        if (now < previous) {
+            return expired;
+        }
+        currentTime = now;
+        for (int level = SHIFTS.length - 1; level >= 0; level--) {
+            long previousTicks = previous >>> SHIFTS[level];
+            long ticks = Math.min(BUCKETS, (now >>> SHIFTS[level]) - previousTicks + 1);
+            for (long i = 0; i < ticks; i++) {
+                expire(wheel[level][(int) ((previousTicks + i) & (BUCKETS - 1))], now, expired);
+            }
+        }
+        return expired;
+    }
+
+    private void expire(Node<K> sentinel, long now, List<K> expired) {
+        Node<K> node = sentinel.next;
+        // Detached first, since keys that are not due yet may go back into the same bucket.
+        sentinel.next = sentinel;
+        sentinel.prev = sentinel;
+        while (node != sentinel) {
+            Node<K> next = node.next;
+            node.next = node;
+            node.prev = node;
+            if (node.time <= now) {
+                nodes.remove(node.key);
+                expired.add(node.key);
+            }
+            else {
+                place(node);
+            }
+            node = next;
+        }
+    }
+
+    private void place(Node<K> node) {
+        // Keys that are already due go in the current bucket, which is looked at on the next advance.
+        long time = Math.max(node.time, currentTime);
+        long duration = time - currentTime;
+        int level = 0;
+        while (level < SHIFTS.length - 1 && duration >= (1L << SHIFTS[level + 1])) {
+            level++;
+        }
+        Node<K> sentinel = wheel[level][(int) ((time >>> SHIFTS[level]) & (BUCKETS - 1))];
+        node.next = sentinel;
+        node.prev = sentinel.prev;
+        sentinel.prev.next = node;
+        sentinel.prev = node;
+    }
+
+    private static final class Node<K> {
+        private final K key;
+        private long time;
+        private Node<K> prev = this;
+        private Node<K> next = this;
+
+        Node(K key, long time) {
+            this.key = key;
+            this.time = time;
+        }
+
+        void unlink() {
+            prev.next = next;
+            next.prev = prev;
+            prev = this;
+            next = this;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package org.codehaus.httpcache4j.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * W-TinyLFU eviction.
+ * New keys enter a small LRU window, and when they fall out of it they have to compete with the least recently used key
+ * of the main space to stay: whichever has been seen least often, according to a {@link FrequencySketch}, is evicted.
+ * The main space is a segmented LRU, keys that are hit while on probation are promoted to the protected segment.
+ * <p>
+ * Popular keys are then not pushed out by a burst of keys that are only requested once,
+ * which gives a much better hit ratio than LRU on skewed traffic.
+ *
+ * @see <a href="https://arxiv.org/abs/1512.00727">TinyLFU: A Highly Efficient Cache Admission Policy</a>
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public class WindowTinyLFUEvictionPolicy<K> extends AbstractEvictionPolicy<K> {
+    private final int windowCapacity;
+    private final int protectedCapacity;
+    private final FrequencySketch<K> sketch;
+    private final LinkedHashMap<K, Boolean> window = new LinkedHashMap<>();
+    private final LinkedHashMap<K, Boolean> probation = new LinkedHashMap<>();
+    private final LinkedHashMap<K, Boolean> protectedSegment = new LinkedHashMap<>();
+    /**
+     * The last key that fell out of the window, which has not been admitted yet.
+     */
+    private K candidate;
+
+    /**
+     * @param capacity the capacity of the map using the policy.
+     */
+    public WindowTinyLFUEvictionPolicy(int capacity) {
+        Preconditions.checkArgument(capacity > 0, "Capacity must be positive");
+        this.windowCapacity = Math.max(1, capacity / 100);
+        this.protectedCapacity = (int) (Math.max(1, capacity - windowCapacity) * 0.8);
+        this.sketch = new FrequencySketch<>(capacity);
+    }
+
+    @Override
+    protected void onAccess(K key) {
+        sketch.increment(key);
+        if (window.remove(key) != null) {
+            window.put(key, Boolean.TRUE);
+        }
+        else if (probation.remove(key) != null) {
+            protectedSegment.put(key, Boolean.TRUE);
+            if (protectedSegment.size() > protectedCapacity) {
+                probation.put(removeFirst(protectedSegment), Boolean.TRUE);
+            }
+        }
+        else if (protectedSegment.remove(key) != null) {
+            protectedSegment.put(key, Boolean.TRUE);
+        }
+    }
+
+    @Override
+    protected void onInsert(K key) {
+        sketch.increment(key);
+        window.put(key, Boolean.TRUE);
+        while (window.size() > windowCapacity) {
+            candidate = removeFirst(window);
+            probation.put(candidate, Boolean.TRUE);
+        }
+    }
+
+    @Override
+    protected void onRemoval(K key) {
+        if (window.remove(key) == null && probation.remove(key) == null) {
+            protectedSegment.remove(key);
+        }
+        if (key.equals(candidate)) {
+            candidate = null;
+        }
+    }
+
+    @Override
+    protected K victim(K inserted) {
+        K victim = first(probation);
+        if (victim == null) {
+            victim = first(protectedSegment);
+        }
+        if (victim == null) {
+            return first(window);
+        }
+        K challenger = candidate;
+        candidate = null;
+        if (challenger == null || challenger.equals(victim) || !probation.containsKey(challenger)) {
+            return victim;
+        }
+        return sketch.frequency(challenger) > sketch.frequency(victim) ? victim : challenger;
+    }
+
+    @Override
+    protected void onClear() {
+        window.clear();
+        probation.clear();
+        protectedSegment.clear();
+        sketch.clear();
+        candidate = null;
+    }
+
+    private static <K> K first(LinkedHashMap<K, Boolean> segment) {
+        Iterator<K> iterator = segment.keySet().iterator();
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+
+    private static <K> K removeFirst(LinkedHashMap<K, Boolean> segment) {
+        Iterator<K> iterator = segment.keySet().iterator();
+        K first = iterator.next();
+        iterator.remove();
+        return first;
+    }
+}
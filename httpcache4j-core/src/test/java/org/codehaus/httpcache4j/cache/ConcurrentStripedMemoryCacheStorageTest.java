@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2009. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.cache;
+
+import org.codehaus.httpcache4j.*;
+import org.codehaus.httpcache4j.payload.InputStreamPayload;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public class ConcurrentStripedMemoryCacheStorageTest extends ConcurrentCacheStorageAbstractTest {
+    protected CacheStorage createCacheStorage() {
+        return new StripedMemoryCacheStorage();
+    }
+
+    @Test
+    public void test1001Concurrent() throws InterruptedException {
+        testIterations(1001, 1000);
+    }
+
+    @Test(timeout = 5000)
+    public void slowPayloadDoesNotBlockOthers() throws Exception {
+        HTTPRequest fast = new HTTPRequest(URI.create("fast"));
+        cacheStorage.insert(fast, new HTTPResponse(Status.OK, new Headers()));
+        CountDownLatch reading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        InputStream slow = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                reading.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return -1;
+            }
+        };
+        HTTPResponse slowResponse = new HTTPResponse(Optional.of(new InputStreamPayload(slow, MIMEType.APPLICATION_OCTET_STREAM)), Status.OK, new Headers());
+        CompletableFuture<HTTPResponse> inserted = CompletableFuture.supplyAsync(() -> cacheStorage.insert(new HTTPRequest(URI.create("slow")), slowResponse));
+        assertTrue(reading.await(1, TimeUnit.SECONDS));
+
+        assertNotNull(cacheStorage.get(fast));
+        cacheStorage.insert(new HTTPRequest(URI.create("other")), new HTTPResponse(Status.OK, new Headers()));
+        cacheStorage.invalidate(fast.getNormalizedURI());
+        assertFalse(inserted.isDone());
+
+        release.countDown();
+        inserted.get();
+        assertEquals(2, cacheStorage.size());
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2009. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.cache;
+
+import org.codehaus.httpcache4j.*;
+import org.junit.Test;
+
+import java.net.URI;
+import java.time.Duration;
+import java.time.LocalDateTime;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public class EarlyExpirationTest {
+    private static final Key KEY = Key.create(URI.create("http://example.com/"), new Vary());
+    private final LocalDateTime now = LocalDateTime.now();
+
+    @Test
+    public void neverEarlyWhenRandomIsZero() {
+        EarlyExpiration expiration = new EarlyExpiration(1.0, Duration.ofSeconds(10), () -> 0.0);
+        assertFalse(expiration.isExpired(KEY, item(59), now));
+        assertTrue(expiration.isExpired(KEY, item(60), now));
+    }
+
+    @Test
+    public void probabilityGrowsTowardsTTL() {
+        EarlyExpiration expiration = new EarlyExpiration(1.0, Duration.ofSeconds(1), () -> 0.9);
+        // -ln(0.1) is about 2.3 seconds
+        assertFalse(expiration.isExpired(KEY, item(30), now));
+        assertFalse(expiration.isExpired(KEY, item(57), now));
+        assertTrue(expiration.isExpired(KEY, item(58), now));
+    }
+
+    @Test
+    public void scaledByObservedRecomputeCost() {
+        EarlyExpiration expiration = new EarlyExpiration(1.0, Duration.ofMillis(100), () -> 0.9);
+        assertFalse(expiration.isExpired(KEY, item(40), now));
+        expiration.recomputed(KEY, Duration.ofSeconds(10));
+        assertTrue(expiration.isExpired(KEY, item(40), now));
+        assertFalse("Other keys use the default cost", expiration.isExpired(Key.create(URI.create("http://example.com/other"), new Vary()), item(40), now));
+    }
+
+    @Test
+    public void itemsWithoutTTLAreNotAffected() {
+        EarlyExpiration expiration = new EarlyExpiration(1.0, Duration.ofSeconds(1), () -> 0.99);
+        CacheItem item = new DefaultCacheItem(new HTTPResponse(Status.OK, new Headers()), now);
+        assertFalse(expiration.isExpired(KEY, item, now));
+    }
+
+    private CacheItem item(int age) {
+        Headers headers = new Headers().add(HeaderConstants.CACHE_CONTROL, "max-age=60");
+        return new DefaultCacheItem(new HTTPResponse(Status.OK, headers), now.minusSeconds(age));
+    }
+}
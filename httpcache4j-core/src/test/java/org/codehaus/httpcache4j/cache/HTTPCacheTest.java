@@ -16,10 +16,12 @@
 
 package org.codehaus.httpcache4j.cache;
 
+import org.codehaus.httpcache4j.resolver.AsyncResponseResolver;
 import org.codehaus.httpcache4j.resolver.ResponseResolver;
 import org.codehaus.httpcache4j.*;
 import org.codehaus.httpcache4j.payload.Payload;
 import org.codehaus.httpcache4j.payload.ClosedInputStreamPayload;
+import org.codehaus.httpcache4j.payload.ByteArrayPayload;
 
 import org.junit.Test;
 import org.junit.Before;
@@ -28,11 +30,24 @@ import org.junit.Assert;
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 import static org.mockito.Matchers.eq;
+import static org.mockito.ArgumentMatchers.argThat;
 
 import java.net.URI;
 import java.io.IOException;
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -74,6 +89,12 @@ public class HTTPCacheTest {
         doGet(new Headers(), Status.OK, 0);
     }
 
+    @Test
+    public void statisticsExposeTheWeightOfTheStorage() {
+        when(cacheStorage.getWeight()).thenReturn(1234L);
+        assertEquals(1234L, cache.getStatistics().getWeight());
+    }
+
 
     @Test
     public void testResponseWherePayloadHasBeenRemoved() throws IOException {
@@ -99,7 +120,7 @@ public class HTTPCacheTest {
         HTTPRequest request = new HTTPRequest(DUMMY_URI);
 
         Headers headers = new Headers();
-        headers = headers.add(HeaderUtils.toHttpDate(HeaderConstants.DATE, LocalDateTime.now()));
+        headers = headers.add(httpDate(HeaderConstants.DATE, LocalDateTime.now()));
         headers = headers.add(HeaderConstants.ETAG, new Tag("foo", false).format());
         headers = headers.add(HeaderConstants.CACHE_CONTROL, "max-age=10");
         Payload payload = mock(Payload.class);
@@ -147,13 +168,13 @@ public class HTTPCacheTest {
 
         LocalDateTime prev = LocalDateTime.now();
         Headers responseHeaders = new Headers();
-        responseHeaders = responseHeaders.add(HeaderUtils.toHttpDate(HeaderConstants.DATE, prev));
+        responseHeaders = responseHeaders.add(httpDate(HeaderConstants.DATE, prev));
         responseHeaders = responseHeaders.add(new Header(HeaderConstants.CACHE_CONTROL, "private, max-age=60"));
         responseHeaders = responseHeaders.add(new Header(HeaderConstants.ETAG, "\"1234\""));
         when(cacheStorage.get(isA(HTTPRequest.class))).thenReturn(new DefaultCacheItem(new HTTPResponse(createClosedPayload(), Status.OK, responseHeaders)));
 
         Headers updatedHeaders = new Headers(responseHeaders);
-        updatedHeaders = updatedHeaders.add(HeaderUtils.toHttpDate(HeaderConstants.DATE, prev.plusMinutes(2)));
+        updatedHeaders = updatedHeaders.add(httpDate(HeaderConstants.DATE, prev.plusMinutes(2)));
         when(responseResolver.resolve(isA(HTTPRequest.class))).thenReturn(new HTTPResponse(Status.NOT_MODIFIED, updatedHeaders));
         HTTPResponse response = cache.execute(request);
         Assert.assertNotNull("Response was null", response);
@@ -167,7 +188,7 @@ public class HTTPCacheTest {
         request = request.addIfNoneMatch(new Tag("1234"));
         Headers responseHeaders = new Headers();
         responseHeaders = responseHeaders.add(new Header(HeaderConstants.CACHE_CONTROL, "private, max-age=60"));
-        responseHeaders = responseHeaders.add(HeaderUtils.toHttpDate(HeaderConstants.DATE, LocalDateTime.now()));
+        responseHeaders = responseHeaders.add(httpDate(HeaderConstants.DATE, LocalDateTime.now()));
         responseHeaders = responseHeaders.add(new Header(HeaderConstants.ETAG, "\"1234\""));
         when(cacheStorage.get(isA(HTTPRequest.class))).thenReturn(new DefaultCacheItem(new HTTPResponse(createClosedPayload(), Status.OK, responseHeaders)));
         HTTPResponse response = cache.execute(request);
@@ -182,11 +203,11 @@ public class HTTPCacheTest {
         Headers responseHeaders = new Headers();
         responseHeaders = responseHeaders.add(new Header(HeaderConstants.CACHE_CONTROL, "private, max-age=60"));
         LocalDateTime dateHeader = LocalDateTime.now();
-        responseHeaders = responseHeaders.add(HeaderUtils.toHttpDate(HeaderConstants.DATE, dateHeader));
-        responseHeaders = responseHeaders.add(HeaderUtils.toHttpDate(HeaderConstants.LAST_MODIFIED, dateHeader.minusSeconds(2)));
+        responseHeaders = responseHeaders.add(httpDate(HeaderConstants.DATE, dateHeader));
+        responseHeaders = responseHeaders.add(httpDate(HeaderConstants.LAST_MODIFIED, dateHeader.minusSeconds(2)));
         when(cacheStorage.get(isA(HTTPRequest.class))).thenReturn(new DefaultCacheItem(new HTTPResponse(createClosedPayload(), Status.OK, responseHeaders)));
         Headers updatedHeaders = new Headers(responseHeaders);
-        updatedHeaders = updatedHeaders.add(HeaderUtils.toHttpDate(HeaderConstants.DATE, dateHeader.plusMinutes(2)));
+        updatedHeaders = updatedHeaders.add(httpDate(HeaderConstants.DATE, dateHeader.plusMinutes(2)));
         when(responseResolver.resolve(isA(HTTPRequest.class))).thenReturn(new HTTPResponse(Status.NOT_MODIFIED, updatedHeaders));
 
         HTTPResponse response = cache.execute(request);
@@ -200,11 +221,11 @@ public class HTTPCacheTest {
         LocalDateTime dateHeader = LocalDateTime.now();
         LocalDateTime lastModified = dateHeader.minusSeconds(2);
         HTTPRequest request = new HTTPRequest(URI.create("foo"));
-        request = request.withIfModifiedSince(lastModified);
+        request = request.withIfModifiedSince(toGMT(lastModified));
         Headers responseHeaders = new Headers();
         responseHeaders = responseHeaders.add(new Header(HeaderConstants.CACHE_CONTROL, "private, max-age=60"));
-        responseHeaders = responseHeaders.add(HeaderUtils.toHttpDate(HeaderConstants.DATE, dateHeader));
-        responseHeaders = responseHeaders.add(HeaderUtils.toHttpDate(HeaderConstants.LAST_MODIFIED, lastModified));
+        responseHeaders = responseHeaders.add(httpDate(HeaderConstants.DATE, dateHeader));
+        responseHeaders = responseHeaders.add(httpDate(HeaderConstants.LAST_MODIFIED, lastModified));
         when(cacheStorage.get(isA(HTTPRequest.class))).thenReturn(new DefaultCacheItem(new HTTPResponse(createClosedPayload(), Status.OK, responseHeaders)));
 
         HTTPResponse response = cache.execute(request);
@@ -219,7 +240,7 @@ public class HTTPCacheTest {
         request = request.addIfNoneMatch(new Tag("12345"));
         Headers responseHeaders = new Headers();
         responseHeaders = responseHeaders.add(new Header(HeaderConstants.CACHE_CONTROL, "private, max-age=60"));
-        responseHeaders = responseHeaders.add(HeaderUtils.toHttpDate(HeaderConstants.DATE, LocalDateTime.now()));
+        responseHeaders = responseHeaders.add(httpDate(HeaderConstants.DATE, LocalDateTime.now()));
         responseHeaders = responseHeaders.add(new Header(HeaderConstants.ETAG, "\"1234\""));
         when(cacheStorage.get(isA(HTTPRequest.class))).thenReturn(new DefaultCacheItem(new HTTPResponse(createClosedPayload(), Status.OK, responseHeaders)));
         HTTPResponse response = cache.execute(request);
@@ -233,7 +254,7 @@ public class HTTPCacheTest {
         HTTPRequest request = new HTTPRequest(REQUEST_URI);
         request = request.addIfNoneMatch(Tag.ALL);
         Headers responseHeaders = new Headers();
-        responseHeaders = responseHeaders.add(HeaderUtils.toHttpDate(HeaderConstants.DATE, LocalDateTime.now()));
+        responseHeaders = responseHeaders.add(httpDate(HeaderConstants.DATE, LocalDateTime.now()));
         responseHeaders = responseHeaders.add(new Header(HeaderConstants.CACHE_CONTROL, "private, max-age=60"));
         responseHeaders = responseHeaders.add(new Header(HeaderConstants.ETAG, "\"1234\""));
         HTTPResponse resolvedResponse = new HTTPResponse(createClosedPayload(), Status.OK, responseHeaders);
@@ -339,7 +360,7 @@ public class HTTPCacheTest {
         HTTPRequest request = new HTTPRequest(REQUEST_URI, HTTPMethod.HEAD);
         Headers headers = new Headers();
         headers = headers.add(new Header("ETag", "\"foo\""));
-        headers = headers.add(HeaderUtils.toHttpDate(HeaderConstants.DATE, LocalDateTime.now()));
+        headers = headers.add(httpDate(HeaderConstants.DATE, LocalDateTime.now()));
         HTTPResponse cachedResponse = new HTTPResponse(createClosedPayload(), Status.OK, headers);
         //when(responseResolver.resolve(isA(HTTPRequest.class))).thenReturn(cachedResponse);
         when(cacheStorage.get(isA(HTTPRequest.class))).thenReturn(new DefaultCacheItem(cachedResponse) {
@@ -362,7 +383,7 @@ public class HTTPCacheTest {
         HTTPRequest request = new HTTPRequest(REQUEST_URI, HTTPMethod.HEAD);
         Headers headers = new Headers();
         headers = headers.add(new Header("Cache-Control", "private, max-age=65000"));
-        headers = headers.add(HeaderUtils.toHttpDate(HeaderConstants.DATE, LocalDateTime.now()));
+        headers = headers.add(httpDate(HeaderConstants.DATE, LocalDateTime.now()));
         HTTPResponse cachedResponse = new HTTPResponse(createClosedPayload(), Status.OK, headers);
 
         CacheItem item = new DefaultCacheItem(cachedResponse);
@@ -378,7 +399,7 @@ public class HTTPCacheTest {
         LocalDateTime now = LocalDateTime.of(2010, 2, 3, 10, 0, 0, 0);
         Headers headers = new Headers();
         headers = headers.add(new Header("Cache-Control", "private, max-age=5"));
-        headers = headers.add(HeaderUtils.toHttpDate(HeaderConstants.DATE, now));
+        headers = headers.add(httpDate(HeaderConstants.DATE, now));
         HTTPResponse cachedResponse = new HTTPResponse(Status.OK, headers);
 
         CacheItem item = new DefaultCacheItem(cachedResponse, now);
@@ -396,7 +417,7 @@ public class HTTPCacheTest {
         LocalDateTime base = LocalDateTime.of(2010, 2, 3, 10, 0, 0, 0);
         Headers headers = new Headers();
         headers = headers.add(new CacheControl.Builder().maxAge(50).withPrivate().build().toHeader());
-        headers = headers.add(HeaderUtils.toHttpDate(HeaderConstants.DATE, base));
+        headers = headers.add(httpDate(HeaderConstants.DATE, base));
         HTTPResponse cachedResponse = new HTTPResponse(createClosedPayload(), Status.OK, headers);
         CacheItem item = new DefaultCacheItem(cachedResponse) {
             @Override
@@ -419,7 +440,7 @@ public class HTTPCacheTest {
         Headers headers = new Headers();
         CacheControl cacheControl = new CacheControl.Builder().maxAge(50).withPrivate().build();
         headers = headers.add(cacheControl.toHeader());
-        headers = headers.add(HeaderUtils.toHttpDate(HeaderConstants.DATE, base));
+        headers = headers.add(httpDate(HeaderConstants.DATE, base));
         headers = headers.withETag(new Tag("foo"));
         HTTPResponse cachedResponse = new HTTPResponse(createClosedPayload(), Status.OK, headers);
         CacheItem item = new DefaultCacheItem(cachedResponse) {
@@ -443,6 +464,425 @@ public class HTTPCacheTest {
     }
 
 
+    @Test(timeout = 10000)
+    public void testCoalescedRequestsResolveOnce() throws Exception {
+        cache = new HTTPCache(new MemoryCacheStorage(), responseResolver);
+        cache.setCoalesceRequests(true);
+        Headers headers = new Headers().add(HeaderConstants.CACHE_CONTROL, "max-age=60");
+        when(responseResolver.resolve(isA(HTTPRequest.class))).thenAnswer(invocation -> {
+            Thread.sleep(500);
+            return new HTTPResponse(Optional.of(new ByteArrayPayload("hello".getBytes(), MIMEType.valueOf("text/plain"))), Status.OK, headers);
+        });
+        ExecutorService service = Executors.newFixedThreadPool(10);
+        try {
+            List<Future<HTTPResponse>> responses = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                responses.add(service.submit(() -> cache.execute(new HTTPRequest(REQUEST_URI))));
+            }
+            for (Future<HTTPResponse> future : responses) {
+                HTTPResponse response = future.get();
+                assertEquals(Status.OK, response.getStatus());
+                assertTrue("Payload was not available", response.getPayload().get().isAvailable());
+            }
+        } finally {
+            service.shutdownNow();
+        }
+        verify(responseResolver, times(1)).resolve(isA(HTTPRequest.class));
+    }
+
+    @Test(timeout = 10000)
+    public void testCoalescedRequestsForUncacheableResponsesResolveOneAtATime() throws Exception {
+        cache = new HTTPCache(new MemoryCacheStorage(), responseResolver);
+        cache.setCoalesceRequests(true);
+        AtomicInteger concurrent = new AtomicInteger();
+        AtomicInteger maximum = new AtomicInteger();
+        when(responseResolver.resolve(isA(HTTPRequest.class))).thenAnswer(invocation -> {
+            maximum.accumulateAndGet(concurrent.incrementAndGet(), Math::max);
+            Thread.sleep(50);
+            concurrent.decrementAndGet();
+            return new HTTPResponse(Status.OK, new Headers().add(HeaderConstants.CACHE_CONTROL, "no-store"));
+        });
+        ExecutorService service = Executors.newFixedThreadPool(5);
+        try {
+            List<Future<HTTPResponse>> responses = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                responses.add(service.submit(() -> cache.execute(new HTTPRequest(REQUEST_URI))));
+            }
+            for (Future<HTTPResponse> future : responses) {
+                assertEquals(Status.OK, future.get().getStatus());
+            }
+        } finally {
+            service.shutdownNow();
+        }
+        assertEquals(1, maximum.get());
+        verify(responseResolver, times(5)).resolve(isA(HTTPRequest.class));
+    }
+
+    @Test
+    public void testAsyncHitDoesNotResolve() throws Exception {
+        AsyncResponseResolver asyncResolver = mock(AsyncResponseResolver.class);
+        cache = new HTTPCache(cacheStorage, asyncResolver);
+        Headers headers = new Headers().add(httpDate(HeaderConstants.DATE, LocalDateTime.now()));
+        headers = headers.add(HeaderConstants.CACHE_CONTROL, "max-age=60");
+        when(cacheStorage.get(isA(HTTPRequest.class))).thenReturn(new DefaultCacheItem(new HTTPResponse(createClosedPayload(), Status.OK, headers)));
+        CompletableFuture<HTTPResponse> response = cache.executeAsync(new HTTPRequest(REQUEST_URI));
+        assertTrue("Cache hit was not completed immediately", response.isDone());
+        assertEquals(Status.OK, response.get().getStatus());
+        verify(asyncResolver, never()).resolveAsync(isA(HTTPRequest.class));
+        verify(asyncResolver, never()).resolve(isA(HTTPRequest.class));
+    }
+
+    @Test
+    public void testAsyncMissCompletesWithResolver() throws Exception {
+        AsyncResponseResolver asyncResolver = mock(AsyncResponseResolver.class);
+        cache = new HTTPCache(cacheStorage, asyncResolver);
+        CompletableFuture<HTTPResponse> resolved = new CompletableFuture<>();
+        when(asyncResolver.resolveAsync(isA(HTTPRequest.class))).thenReturn(resolved);
+        HTTPResponse resolvedResponse = new HTTPResponse(createClosedPayload(), Status.OK, new Headers().add(HeaderConstants.CACHE_CONTROL, "max-age=60"));
+        when(cacheStorage.insert(isA(HTTPRequest.class), eq(resolvedResponse))).thenReturn(resolvedResponse);
+        CompletableFuture<HTTPResponse> response = cache.executeAsync(new HTTPRequest(REQUEST_URI));
+        assertFalse("Response completed before the resolver", response.isDone());
+        resolved.complete(resolvedResponse);
+        assertEquals(Status.OK, response.get().getStatus());
+        verify(cacheStorage, times(1)).insert(isA(HTTPRequest.class), eq(resolvedResponse));
+        verify(asyncResolver, never()).resolve(isA(HTTPRequest.class));
+    }
+
+    @Test
+    public void testAsyncFailureServesStaleWithWarning() throws Exception {
+        AsyncResponseResolver asyncResolver = mock(AsyncResponseResolver.class);
+        cache = new HTTPCache(cacheStorage, asyncResolver);
+        Headers headers = new Headers().add(httpDate(HeaderConstants.DATE, LocalDateTime.now().minusMinutes(2)));
+        headers = headers.add(HeaderConstants.CACHE_CONTROL, "max-age=60");
+        headers = headers.add(HeaderConstants.ETAG, new Tag("foo", false).format());
+        when(cacheStorage.get(isA(HTTPRequest.class))).thenReturn(new DefaultCacheItem(new HTTPResponse(createClosedPayload(), Status.OK, headers), LocalDateTime.now().minusMinutes(2)));
+        CompletableFuture<HTTPResponse> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new IOException("Connection refused"));
+        when(asyncResolver.resolveAsync(isA(HTTPRequest.class))).thenReturn(failed);
+        HTTPResponse response = cache.executeAsync(new HTTPRequest(REQUEST_URI)).get();
+        assertEquals(Status.OK, response.getStatus());
+        assertTrue("No warning was added", response.getHeaders().contains(HeaderConstants.WARNING));
+    }
+
+    @Test
+    public void testAsyncWithSynchronousResolver() throws Exception {
+        cache = new HTTPCache(cacheStorage, responseResolver);
+        HTTPResponse resolvedResponse = new HTTPResponse(createClosedPayload(), Status.OK, new Headers());
+        when(responseResolver.resolve(isA(HTTPRequest.class))).thenReturn(resolvedResponse);
+        HTTPResponse response = cache.executeAsync(new HTTPRequest(REQUEST_URI)).get();
+        assertEquals(Status.OK, response.getStatus());
+        verify(responseResolver, times(1)).resolve(isA(HTTPRequest.class));
+    }
+
+    @Test
+    public void testStaleWhileRevalidateServesStaleAndRevalidatesInBackground() throws IOException {
+        List<Runnable> background = new ArrayList<>();
+        cache.setBackgroundExecutor(background::add);
+        HTTPRequest request = new HTTPRequest(REQUEST_URI);
+        CacheItem item = staleWhileRevalidateItem(LocalDateTime.now().minusSeconds(90));
+        when(cacheStorage.get(isA(HTTPRequest.class))).thenReturn(item);
+        when(responseResolver.resolve(isA(HTTPRequest.class))).thenReturn(new HTTPResponse(Status.NOT_MODIFIED, new Headers()));
+        when(cacheStorage.update(isA(HTTPRequest.class), isA(HTTPResponse.class))).thenReturn(item.getResponse());
+
+        HTTPResponse response = cache.execute(request);
+        assertEquals(Status.OK, response.getStatus());
+        assertTrue("No warning was added", response.getHeaders().contains(HeaderConstants.WARNING));
+        cache.execute(request);
+        verify(responseResolver, never()).resolve(isA(HTTPRequest.class));
+        assertEquals("Only one revalidation should be scheduled", 1, background.size());
+
+        background.get(0).run();
+        verify(responseResolver, times(1)).resolve(argThat(req -> !req.getHeaders().getConditionals().getNoneMatch().isEmpty()));
+        verify(cacheStorage, times(1)).update(isA(HTTPRequest.class), isA(HTTPResponse.class));
+        cache.execute(request);
+        assertEquals("A new revalidation should be scheduled once the first completed", 2, background.size());
+    }
+
+    @Test
+    public void testStaleWhileRevalidateWindowHasPassed() throws IOException {
+        List<Runnable> background = new ArrayList<>();
+        cache.setBackgroundExecutor(background::add);
+        CacheItem item = staleWhileRevalidateItem(LocalDateTime.now().minusSeconds(200));
+        when(cacheStorage.get(isA(HTTPRequest.class))).thenReturn(item);
+        when(responseResolver.resolve(isA(HTTPRequest.class))).thenReturn(new HTTPResponse(Status.NOT_MODIFIED, new Headers()));
+        when(cacheStorage.update(isA(HTTPRequest.class), isA(HTTPResponse.class))).thenReturn(item.getResponse());
+
+        HTTPResponse response = cache.execute(new HTTPRequest(REQUEST_URI));
+        assertEquals(Status.OK, response.getStatus());
+        assertFalse("Warning was added", response.getHeaders().contains(HeaderConstants.WARNING));
+        assertTrue(background.isEmpty());
+        verify(responseResolver, times(1)).resolve(isA(HTTPRequest.class));
+    }
+
+    @Test
+    public void testStaleIfErrorServesStaleOnServerError() throws IOException {
+        CacheItem item = staleItem("max-age=60, stale-if-error=600");
+        when(cacheStorage.get(isA(HTTPRequest.class))).thenReturn(item);
+        when(responseResolver.resolve(isA(HTTPRequest.class))).thenReturn(new HTTPResponse(Status.SERVICE_UNAVAILABLE, new Headers()));
+        HTTPResponse response = cache.execute(new HTTPRequest(REQUEST_URI));
+        assertEquals(Status.OK, response.getStatus());
+        assertTrue("No warning was added", response.getHeaders().contains(HeaderConstants.WARNING));
+        verify(cacheStorage, never()).insert(isA(HTTPRequest.class), isA(HTTPResponse.class));
+    }
+
+    @Test
+    public void testStaleIfErrorFromRequest() throws IOException {
+        CacheItem item = staleItem("max-age=60");
+        when(cacheStorage.get(isA(HTTPRequest.class))).thenReturn(item);
+        when(responseResolver.resolve(isA(HTTPRequest.class))).thenReturn(new HTTPResponse(Status.BAD_GATEWAY, new Headers()));
+        HTTPRequest request = new HTTPRequest(REQUEST_URI).withCacheControl(new CacheControl.Builder().staleIfError(600).build());
+        assertEquals(Status.OK, cache.execute(request).getStatus());
+        assertEquals(Status.BAD_GATEWAY, cache.execute(new HTTPRequest(REQUEST_URI)).getStatus());
+    }
+
+    @Test
+    public void testServerErrorWithoutStaleIfError() throws IOException {
+        CacheItem item = staleItem("max-age=60, stale-if-error=10");
+        when(cacheStorage.get(isA(HTTPRequest.class))).thenReturn(item);
+        when(responseResolver.resolve(isA(HTTPRequest.class))).thenReturn(new HTTPResponse(Status.INTERNAL_SERVER_ERROR, new Headers()));
+        HTTPResponse response = cache.execute(new HTTPRequest(REQUEST_URI));
+        assertEquals("Stale-if-error window has passed", Status.INTERNAL_SERVER_ERROR, response.getStatus());
+    }
+
+    @Test(timeout = 10000)
+    public void testDeadlineServesStaleAndRefreshesInBackground() throws Exception {
+        CacheItem item = staleItem("max-age=60");
+        when(cacheStorage.get(isA(HTTPRequest.class))).thenReturn(item);
+        CountDownLatch release = new CountDownLatch(1);
+        when(responseResolver.resolve(isA(HTTPRequest.class))).thenAnswer(invocation -> {
+            release.await();
+            return new HTTPResponse(Status.NOT_MODIFIED, new Headers());
+        });
+        when(cacheStorage.update(isA(HTTPRequest.class), isA(HTTPResponse.class))).thenReturn(item.getResponse());
+        HTTPResponse response = cache.execute(new HTTPRequest(REQUEST_URI), Duration.ofMillis(100));
+        assertEquals(Status.OK, response.getStatus());
+        assertTrue("No warning was added", response.getHeaders().contains(HeaderConstants.WARNING));
+        verify(cacheStorage, never()).update(isA(HTTPRequest.class), isA(HTTPResponse.class));
+        release.countDown();
+        verify(cacheStorage, timeout(5000)).update(isA(HTTPRequest.class), isA(HTTPResponse.class));
+    }
+
+    @Test(timeout = 10000)
+    public void testDeadlineRequestsShareOneRevalidation() throws Exception {
+        CacheItem item = staleItem("max-age=60");
+        when(cacheStorage.get(isA(HTTPRequest.class))).thenReturn(item);
+        CountDownLatch release = new CountDownLatch(1);
+        when(responseResolver.resolve(isA(HTTPRequest.class))).thenAnswer(invocation -> {
+            release.await();
+            return new HTTPResponse(Status.NOT_MODIFIED, new Headers());
+        });
+        when(cacheStorage.update(isA(HTTPRequest.class), isA(HTTPResponse.class))).thenReturn(item.getResponse());
+        CompletableFuture<HTTPResponse> first = cache.executeAsync(new HTTPRequest(REQUEST_URI), Duration.ofSeconds(5));
+        for (int i = 0; i < 5; i++) {
+            HTTPResponse response = cache.executeAsync(new HTTPRequest(REQUEST_URI), Duration.ofSeconds(5)).get();
+            assertTrue("No warning was added", response.getHeaders().contains(HeaderConstants.WARNING));
+        }
+        release.countDown();
+        assertEquals(Status.OK, first.get().getStatus());
+        verify(responseResolver, times(1)).resolve(isA(HTTPRequest.class));
+    }
+
+    @Test
+    public void testDeadlineNotReached() throws Exception {
+        CacheItem item = staleItem("max-age=60");
+        when(cacheStorage.get(isA(HTTPRequest.class))).thenReturn(item);
+        when(responseResolver.resolve(isA(HTTPRequest.class))).thenReturn(new HTTPResponse(Status.NOT_MODIFIED, new Headers()));
+        when(cacheStorage.update(isA(HTTPRequest.class), isA(HTTPResponse.class))).thenReturn(item.getResponse());
+        HTTPResponse response = cache.executeAsync(new HTTPRequest(REQUEST_URI), Duration.ofSeconds(5)).get();
+        assertEquals(Status.OK, response.getStatus());
+        assertFalse("Warning was added", response.getHeaders().contains(HeaderConstants.WARNING));
+        verify(cacheStorage, times(1)).update(isA(HTTPRequest.class), isA(HTTPResponse.class));
+    }
+
+    @Test
+    public void testRefreshAheadRevalidatesHotEntriesBeforeExpiry() throws IOException {
+        List<Runnable> background = new ArrayList<>();
+        cache.setBackgroundExecutor(background::add);
+        cache.setRefreshAhead(new RefreshAhead(2, 0.5, 1));
+        LocalDateTime cachedTime = LocalDateTime.now().minusSeconds(45);
+        Headers headers = new Headers().add(httpDate(HeaderConstants.DATE, cachedTime));
+        headers = headers.add(HeaderConstants.CACHE_CONTROL, "max-age=60");
+        headers = headers.add(HeaderConstants.ETAG, new Tag("foo", false).format());
+        CacheItem item = new DefaultCacheItem(new HTTPResponse(createClosedPayload(), Status.OK, headers), cachedTime);
+        when(cacheStorage.get(isA(HTTPRequest.class))).thenReturn(item);
+        when(responseResolver.resolve(isA(HTTPRequest.class))).thenReturn(new HTTPResponse(Status.NOT_MODIFIED, new Headers()));
+        when(cacheStorage.update(isA(HTTPRequest.class), isA(HTTPResponse.class))).thenReturn(item.getResponse());
+
+        HTTPRequest request = new HTTPRequest(REQUEST_URI);
+        assertFalse(cache.execute(request).getHeaders().contains(HeaderConstants.WARNING));
+        assertTrue("Entry was not hot yet", background.isEmpty());
+        cache.execute(request);
+        cache.execute(request);
+        assertEquals("Only one refresh per host should run", 1, background.size());
+        verify(responseResolver, never()).resolve(isA(HTTPRequest.class));
+
+        background.get(0).run();
+        verify(responseResolver, times(1)).resolve(argThat(req -> !req.getHeaders().getConditionals().getNoneMatch().isEmpty()));
+        verify(cacheStorage, times(1)).update(isA(HTTPRequest.class), isA(HTTPResponse.class));
+    }
+
+    @Test
+    public void testEarlyExpirationRevalidatesFreshEntry() throws IOException {
+        cache.setEarlyExpiration(new EarlyExpiration(1.0, Duration.ofSeconds(10), () -> 0.99));
+        LocalDateTime cachedTime = LocalDateTime.now().minusSeconds(30);
+        Headers headers = new Headers().add(httpDate(HeaderConstants.DATE, cachedTime));
+        headers = headers.add(HeaderConstants.CACHE_CONTROL, "max-age=60");
+        headers = headers.add(HeaderConstants.ETAG, new Tag("foo", false).format());
+        CacheItem item = new DefaultCacheItem(new HTTPResponse(createClosedPayload(), Status.OK, headers), cachedTime);
+        when(cacheStorage.get(isA(HTTPRequest.class))).thenReturn(item);
+        when(responseResolver.resolve(isA(HTTPRequest.class))).thenReturn(new HTTPResponse(Status.NOT_MODIFIED, new Headers()));
+        when(cacheStorage.update(isA(HTTPRequest.class), isA(HTTPResponse.class))).thenReturn(item.getResponse());
+
+        HTTPResponse response = cache.execute(new HTTPRequest(REQUEST_URI));
+        assertEquals(Status.OK, response.getStatus());
+        assertFalse(response.getHeaders().contains(HeaderConstants.WARNING));
+        verify(responseResolver, times(1)).resolve(argThat(req -> !req.getHeaders().getConditionals().getNoneMatch().isEmpty()));
+        verify(cacheStorage, times(1)).update(isA(HTTPRequest.class), isA(HTTPResponse.class));
+
+        cache.setEarlyExpiration(null);
+        cache.execute(new HTTPRequest(REQUEST_URI));
+        verify(responseResolver, times(1)).resolve(isA(HTTPRequest.class));
+    }
+
+    @Test(timeout = 10000)
+    public void testExecuteAllAnswersHitsAndFansOutMisses() throws Exception {
+        URI cached = URI.create("http://some/uri/cached");
+        Headers headers = new Headers().add(httpDate(HeaderConstants.DATE, LocalDateTime.now()));
+        headers = headers.add(HeaderConstants.CACHE_CONTROL, "max-age=60");
+        CacheItem item = new DefaultCacheItem(new HTTPResponse(createClosedPayload(), Status.OK, headers));
+        when(cacheStorage.get(argThat((HTTPRequest req) -> req.getNormalizedURI().equals(cached)))).thenReturn(item);
+        when(responseResolver.resolve(isA(HTTPRequest.class))).thenAnswer(invocation -> {
+            HTTPRequest req = invocation.getArgument(0);
+            return new HTTPResponse(Status.OK, new Headers().add("X-Path", req.getNormalizedURI().getPath()));
+        });
+        List<HTTPRequest> requests = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            requests.add(new HTTPRequest(i == 5 ? cached : URI.create("http://some/uri/" + i)));
+        }
+        List<CompletableFuture<HTTPResponse>> responses = cache.executeAll(requests);
+        assertEquals(10, responses.size());
+        assertTrue("Hit was not completed immediately", responses.get(5).isDone());
+        for (int i = 0; i < 10; i++) {
+            HTTPResponse response = responses.get(i).get();
+            assertEquals(Status.OK, response.getStatus());
+            if (i != 5) {
+                assertEquals("/uri/" + i, response.getHeaders().getFirstHeaderValue("X-Path").get());
+            }
+        }
+        verify(responseResolver, times(9)).resolve(isA(HTTPRequest.class));
+
+        List<HTTPRequest> consumed = new CopyOnWriteArrayList<>();
+        cache.executeAll(requests, (request, response) -> consumed.add(request)).get();
+        assertEquals(10, consumed.size());
+        assertTrue(consumed.containsAll(requests));
+    }
+
+    @Test
+    public void testHeuristicFreshnessFromLastModified() throws IOException {
+        LocalDateTime cachedTime = LocalDateTime.now().minusMinutes(10);
+        Headers headers = new Headers().add(httpDate(HeaderConstants.DATE, cachedTime));
+        headers = headers.add(httpDate(HeaderConstants.LAST_MODIFIED, cachedTime.minusDays(10)));
+        CacheItem item = new DefaultCacheItem(new HTTPResponse(createClosedPayload(), Status.OK, headers), cachedTime);
+        when(cacheStorage.get(isA(HTTPRequest.class))).thenReturn(item);
+        when(responseResolver.resolve(isA(HTTPRequest.class))).thenReturn(new HTTPResponse(Status.NOT_MODIFIED, new Headers()));
+        when(cacheStorage.update(isA(HTTPRequest.class), isA(HTTPResponse.class))).thenReturn(item.getResponse());
+
+        cache.execute(new HTTPRequest(REQUEST_URI));
+        verify(responseResolver, times(1)).resolve(isA(HTTPRequest.class));
+
+        cache.setHeuristicFreshness(new HeuristicFreshness());
+        HTTPResponse response = cache.execute(new HTTPRequest(REQUEST_URI));
+        assertEquals(Status.OK, response.getStatus());
+        assertFalse(response.getHeaders().contains(HeaderConstants.WARNING));
+        verify(responseResolver, times(1)).resolve(isA(HTTPRequest.class));
+    }
+
+    @Test
+    public void testHeuristicExpirationWarningAfterOneDay() throws IOException {
+        cache.setHeuristicFreshness(new HeuristicFreshness(0.1, Duration.ofDays(30)));
+        LocalDateTime cachedTime = LocalDateTime.now().minusDays(2);
+        Headers headers = new Headers().add(httpDate(HeaderConstants.DATE, cachedTime));
+        headers = headers.add(httpDate(HeaderConstants.LAST_MODIFIED, cachedTime.minusDays(100)));
+        CacheItem item = new DefaultCacheItem(new HTTPResponse(createClosedPayload(), Status.OK, headers), cachedTime);
+        when(cacheStorage.get(isA(HTTPRequest.class))).thenReturn(item);
+
+        HTTPResponse response = cache.execute(new HTTPRequest(REQUEST_URI));
+        assertEquals(Status.OK, response.getStatus());
+        assertTrue(response.getHeaders().getFirstHeaderValue(HeaderConstants.WARNING).get().startsWith("113 "));
+        verify(responseResolver, never()).resolve(isA(HTTPRequest.class));
+    }
+
+    @Test
+    public void testMustRevalidateIsServedFromCacheWhileFresh() throws IOException {
+        when(cacheStorage.get(isA(HTTPRequest.class))).thenReturn(cachedItem("max-age=60, must-revalidate", 30, new Headers()));
+
+        HTTPResponse response = cache.execute(new HTTPRequest(REQUEST_URI));
+        assertEquals(Status.OK, response.getStatus());
+        assertEquals("30", response.getHeaders().getFirstHeaderValue(HeaderConstants.AGE).get());
+        verify(responseResolver, never()).resolve(isA(HTTPRequest.class));
+    }
+
+    @Test
+    public void testRequestMaxAgeRevalidatesOlderResponse() throws IOException {
+        CacheItem item = cachedItem("max-age=60", 30, new Headers());
+        when(cacheStorage.get(isA(HTTPRequest.class))).thenReturn(item);
+        when(responseResolver.resolve(isA(HTTPRequest.class))).thenReturn(new HTTPResponse(Status.NOT_MODIFIED, new Headers()));
+        when(cacheStorage.update(isA(HTTPRequest.class), isA(HTTPResponse.class))).thenReturn(item.getResponse());
+
+        cache.execute(new HTTPRequest(REQUEST_URI).headers(new Headers().add(HeaderConstants.CACHE_CONTROL, "max-age=40")));
+        verify(responseResolver, never()).resolve(isA(HTTPRequest.class));
+        cache.execute(new HTTPRequest(REQUEST_URI).headers(new Headers().add(HeaderConstants.CACHE_CONTROL, "max-age=10")));
+        verify(responseResolver, times(1)).resolve(argThat(r -> r.getHeaders().getConditionals().getNoneMatch().contains(new Tag("foo", false))));
+    }
+
+    @Test
+    public void testRequestMinFreshRevalidatesResponseAboutToExpire() throws IOException {
+        CacheItem item = cachedItem("max-age=60", 30, new Headers());
+        when(cacheStorage.get(isA(HTTPRequest.class))).thenReturn(item);
+        when(responseResolver.resolve(isA(HTTPRequest.class))).thenReturn(new HTTPResponse(Status.NOT_MODIFIED, new Headers()));
+        when(cacheStorage.update(isA(HTTPRequest.class), isA(HTTPResponse.class))).thenReturn(item.getResponse());
+
+        cache.execute(new HTTPRequest(REQUEST_URI).headers(new Headers().add(HeaderConstants.CACHE_CONTROL, "min-fresh=20")));
+        verify(responseResolver, never()).resolve(isA(HTTPRequest.class));
+        cache.execute(new HTTPRequest(REQUEST_URI).headers(new Headers().add(HeaderConstants.CACHE_CONTROL, "min-fresh=40")));
+        verify(responseResolver, times(1)).resolve(isA(HTTPRequest.class));
+    }
+
+    @Test
+    public void testUpstreamAgeCountsTowardsFreshness() throws IOException {
+        CacheItem item = cachedItem("max-age=60", 20, new Headers().add(HeaderConstants.AGE, "50"));
+        assertEquals(70, item.getAge(LocalDateTime.now()));
+        when(cacheStorage.get(isA(HTTPRequest.class))).thenReturn(item);
+        when(responseResolver.resolve(isA(HTTPRequest.class))).thenReturn(new HTTPResponse(Status.NOT_MODIFIED, new Headers()));
+        when(cacheStorage.update(isA(HTTPRequest.class), isA(HTTPResponse.class))).thenReturn(item.getResponse());
+
+        cache.execute(new HTTPRequest(REQUEST_URI));
+        verify(responseResolver, times(1)).resolve(isA(HTTPRequest.class));
+    }
+
+    private CacheItem cachedItem(String cacheControl, int secondsAgo, Headers headers) {
+        LocalDateTime cachedTime = LocalDateTime.now().minusSeconds(secondsAgo);
+        headers = headers.add(httpDate(HeaderConstants.DATE, cachedTime));
+        headers = headers.add(HeaderConstants.CACHE_CONTROL, cacheControl);
+        headers = headers.add(HeaderConstants.ETAG, new Tag("foo", false).format());
+        return new DefaultCacheItem(new HTTPResponse(createClosedPayload(), Status.OK, headers), cachedTime);
+    }
+
+    private CacheItem staleItem(String cacheControl) {
+        LocalDateTime cachedTime = LocalDateTime.now().minusSeconds(90);
+        Headers headers = new Headers().add(httpDate(HeaderConstants.DATE, cachedTime));
+        headers = headers.add(HeaderConstants.CACHE_CONTROL, cacheControl);
+        headers = headers.add(HeaderConstants.ETAG, new Tag("foo", false).format());
+        return new DefaultCacheItem(new HTTPResponse(createClosedPayload(), Status.OK, headers), cachedTime);
+    }
+
+    private CacheItem staleWhileRevalidateItem(LocalDateTime cachedTime) {
+        Headers headers = new Headers().add(httpDate(HeaderConstants.DATE, cachedTime));
+        headers = headers.add(HeaderConstants.CACHE_CONTROL, "max-age=60, stale-while-revalidate=60");
+        headers = headers.add(HeaderConstants.ETAG, new Tag("foo", false).format());
+        return new DefaultCacheItem(new HTTPResponse(createClosedPayload(), Status.OK, headers), cachedTime);
+    }
+
     @Test
     public void testUpdateHeadersFromResolvedUpdatesHeaders() throws Exception {
         Headers headers = new Headers().add("Link", "<foo>");
@@ -464,8 +904,8 @@ public class HTTPCacheTest {
     @Test
     public void updateHeadersFromResolvedOverwritesHeadersThereCanOnlyBeOneOf() throws Exception {
         LocalDateTime now = LocalDateTime.now();
-        Headers headers = new Headers().add(HeaderUtils.toHttpDate("Date", now)).add("Allow", "GET, PUT");
-        Headers updatedHeaders = new Headers().add("Allow", "GET").add(HeaderUtils.toHttpDate("Date", now));
+        Headers headers = new Headers().add(httpDate("Date", now)).add("Allow", "GET, PUT");
+        Headers updatedHeaders = new Headers().add("Allow", "GET").add(httpDate("Date", now));
         Headers merged = dryCleanHeaders(headers, updatedHeaders);
         assertEquals(1, merged.getHeaders("Date").size());
         assertEquals(1, merged.getHeaders("Allow").size());
@@ -550,6 +990,17 @@ public class HTTPCacheTest {
         return response;
     }
 
+    /**
+     * The tests keep their times in local time, like the cache does, while a date header is always GMT.
+     */
+    private static Header httpDate(String name, LocalDateTime localTime) {
+        return HeaderUtils.toHttpDate(name, toGMT(localTime));
+    }
+
+    private static LocalDateTime toGMT(LocalDateTime localTime) {
+        return localTime.atZone(ZoneId.systemDefault()).withZoneSameInstant(ZoneOffset.UTC).toLocalDateTime();
+    }
+
     private static Optional<Payload> createClosedPayload() {
         return Optional.of(new ClosedInputStreamPayload(MIMEType.APPLICATION_OCTET_STREAM));
     }
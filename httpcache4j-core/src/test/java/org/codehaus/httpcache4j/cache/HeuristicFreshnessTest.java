@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2009. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.cache;
+
+import org.codehaus.httpcache4j.*;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public class HeuristicFreshnessTest {
+    private final HeuristicFreshness heuristic = new HeuristicFreshness();
+    private final LocalDateTime now = LocalDateTime.now().withNano(0);
+
+    @Test
+    public void fractionOfTimeSinceLastModified() {
+        Headers headers = new Headers().add(HeaderUtils.toHttpDate(HeaderConstants.DATE, now));
+        headers = headers.add(HeaderUtils.toHttpDate(HeaderConstants.LAST_MODIFIED, now.minusHours(10)));
+        assertEquals(3600, heuristic.getLifetime(new HTTPResponse(Status.OK, headers), now));
+    }
+
+    @Test
+    public void cappedAtMaxLifetime() {
+        Headers headers = new Headers().add(HeaderUtils.toHttpDate(HeaderConstants.DATE, now));
+        headers = headers.add(HeaderUtils.toHttpDate(HeaderConstants.LAST_MODIFIED, now.minusDays(365)));
+        assertEquals(Duration.ofDays(1).getSeconds(), heuristic.getLifetime(new HTTPResponse(Status.OK, headers), now));
+        assertEquals(Duration.ofDays(7).getSeconds(), new HeuristicFreshness(0.5, Duration.ofDays(7)).getLifetime(new HTTPResponse(Status.OK, headers), now));
+    }
+
+    @Test
+    public void cachedTimeIsUsedWithoutDate() {
+        Headers headers = new Headers().add(HeaderUtils.toHttpDate(HeaderConstants.LAST_MODIFIED, now.minusHours(1)));
+        assertEquals(360, heuristic.getLifetime(new HTTPResponse(Status.OK, headers), now));
+    }
+
+    @Test
+    public void explicitExpirationIsNotOverridden() {
+        Headers headers = new Headers().add(HeaderUtils.toHttpDate(HeaderConstants.DATE, now));
+        headers = headers.add(HeaderUtils.toHttpDate(HeaderConstants.LAST_MODIFIED, now.minusHours(10)));
+        assertEquals(0, heuristic.getLifetime(new HTTPResponse(Status.OK, headers.add(HeaderConstants.CACHE_CONTROL, "max-age=0")), now));
+        assertEquals(0, heuristic.getLifetime(new HTTPResponse(Status.OK, headers.add(HeaderUtils.toHttpDate(HeaderConstants.EXPIRES, now))), now));
+        assertEquals(0, heuristic.getLifetime(new HTTPResponse(Status.OK, new Headers()), now));
+    }
+}
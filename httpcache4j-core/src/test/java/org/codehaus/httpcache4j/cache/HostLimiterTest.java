@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2009. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.cache;
+
+import org.codehaus.httpcache4j.HTTPHost;
+import org.codehaus.httpcache4j.resolver.ConnectionConfiguration;
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public class HostLimiterTest {
+    private static final HTTPHost HOST = new HTTPHost(URI.create("http://example.com/"));
+    private static final HTTPHost OTHER = new HTTPHost(URI.create("http://example.org/"));
+
+    @Test
+    public void limitsComeFromConfiguration() {
+        HostLimiter limiter = new HostLimiter(new ConnectionConfiguration.Builder().add(HOST, 5).setDefaultConnectionPerHost(3).build());
+        assertEquals(5, limiter.limitFor(HOST));
+        assertEquals(3, limiter.limitFor(OTHER));
+        assertEquals(HostLimiter.DEFAULT_CONNECTIONS_PER_HOST, new HostLimiter(new ConnectionConfiguration()).limitFor(HOST));
+    }
+
+    @Test
+    public void tasksAboveTheLimitAreQueued() {
+        HostLimiter limiter = new HostLimiter(new ConnectionConfiguration.Builder().add(HOST, 2).build());
+        List<CompletableFuture<Integer>> started = new ArrayList<>();
+        List<CompletableFuture<Integer>> results = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            results.add(limiter.submit(HOST, () -> {
+                CompletableFuture<Integer> future = new CompletableFuture<>();
+                started.add(future);
+                return future;
+            }));
+        }
+        CompletableFuture<Integer> other = limiter.submit(OTHER, () -> CompletableFuture.completedFuture(42));
+        assertEquals(2, started.size());
+        assertEquals(Integer.valueOf(42), other.join());
+
+        started.get(0).complete(0);
+        assertEquals(Integer.valueOf(0), results.get(0).join());
+        assertEquals(3, started.size());
+        started.get(1).completeExceptionally(new IllegalStateException());
+        assertTrue(results.get(1).isCompletedExceptionally());
+        assertEquals(4, started.size());
+        started.get(2).complete(2);
+        started.get(3).complete(3);
+        assertEquals(5, started.size());
+        started.get(4).complete(4);
+        assertEquals(Integer.valueOf(4), results.get(4).join());
+    }
+
+    @Test
+    public void failingTaskReleasesPermit() {
+        HostLimiter limiter = new HostLimiter(new ConnectionConfiguration.Builder().add(HOST, 1).build());
+        CompletableFuture<Integer> failed = limiter.submit(HOST, () -> {
+            throw new IllegalStateException();
+        });
+        assertTrue(failed.isCompletedExceptionally());
+        assertEquals(Integer.valueOf(1), limiter.submit(HOST, () -> CompletableFuture.completedFuture(1)).join());
+    }
+
+    @Test
+    public void tasksThatCompleteAtOnceDoNotRecurse() {
+        HostLimiter limiter = new HostLimiter(new ConnectionConfiguration.Builder().add(HOST, 1).build());
+        CompletableFuture<Integer> blocker = new CompletableFuture<>();
+        CompletableFuture<Integer> first = limiter.submit(HOST, () -> blocker);
+        List<CompletableFuture<Integer>> results = new ArrayList<>();
+        for (int i = 0; i < 100000; i++) {
+            int value = i;
+            results.add(limiter.submit(HOST, () -> CompletableFuture.completedFuture(value)));
+        }
+        blocker.complete(-1);
+        assertEquals(Integer.valueOf(-1), first.join());
+        for (int i = 0; i < results.size(); i++) {
+            assertEquals(Integer.valueOf(i), results.get(i).join());
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2009. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.cache;
+
+import org.junit.Test;
+
+import java.net.URI;
+
+import static org.junit.Assert.*;
+
+/** @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a> */
+public class KeyTrackerTest {
+    @Test
+    public void leastRecentlyUsedKeyIsDroppedWhenFull() {
+        KeyTracker<Integer> tracker = new KeyTracker<>(1);
+        tracker.put(key("a"), 1);
+        tracker.put(key("b"), 2);
+        assertEquals(1, tracker.size());
+        assertNull(tracker.get(key("a")));
+        assertEquals(Integer.valueOf(2), tracker.get(key("b")));
+    }
+
+    @Test
+    public void usedKeysAreKeptWhenOthersAreAdded() {
+        KeyTracker<Integer> tracker = new KeyTracker<>(1000);
+        tracker.put(key("hot"), 1);
+        for (int i = 0; i < 10000; i++) {
+            tracker.compute(key("hot"), (k, count) -> count + 1);
+            tracker.put(key("cold" + i), 0);
+        }
+        assertTrue(tracker.size() <= 1000);
+        assertTrue(tracker.size() > 900);
+        assertEquals(Integer.valueOf(10001), tracker.get(key("hot")));
+    }
+
+    private static Key key(String path) {
+        return Key.create(URI.create("http://example.com/" + path), new Vary());
+    }
+}
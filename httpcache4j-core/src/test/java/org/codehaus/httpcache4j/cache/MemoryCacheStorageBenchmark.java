@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2009. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.cache;
+
+import org.codehaus.httpcache4j.*;
+import org.codehaus.httpcache4j.payload.ByteArrayPayload;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Throughput benchmark for {@link MemoryCacheStorage} and {@link StripedMemoryCacheStorage}.
+ * Mixed workload of 90% reads and 10% writes, with every thread working on random URIs.
+ * Not run as part of the build, run it with:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.mainClass=org.codehaus.httpcache4j.cache.MemoryCacheStorageBenchmark -Dexec.classpathScope=test
+ * </pre>
+ *
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public class MemoryCacheStorageBenchmark {
+    private static final int URIS = 500;
+    private static final long DURATION = TimeUnit.SECONDS.toMillis(2);
+
+    public static void main(String[] args) throws InterruptedException {
+        System.out.println("threads\tMemoryCacheStorage ops/s\tStripedMemoryCacheStorage ops/s");
+        for (int threads = 1; threads <= 64; threads *= 2) {
+            long memory = run(new MemoryCacheStorage(), threads);
+            long striped = run(new StripedMemoryCacheStorage(), threads);
+            System.out.println(String.format("%d\t%d\t%d", threads, memory, striped));
+        }
+    }
+
+    private static long run(CacheStorage storage, int threads) throws InterruptedException {
+        final List<HTTPRequest> requests = new ArrayList<>();
+        for (int i = 0; i < URIS; i++) {
+            HTTPRequest request = new HTTPRequest(URI.create("http://example.com/" + i));
+            requests.add(request);
+            storage.insert(request, response());
+        }
+        final LongAdder operations = new LongAdder();
+        final CountDownLatch start = new CountDownLatch(1);
+        final long end = System.currentTimeMillis() + DURATION;
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (System.currentTimeMillis() < end) {
+                    HTTPRequest request = requests.get(random.nextInt(URIS));
+                    if (random.nextInt(10) == 0) {
+                        storage.insert(request, response());
+                    }
+                    else {
+                        storage.get(request);
+                    }
+                    operations.increment();
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        storage.shutdown();
+        return operations.sum() * 1000 / DURATION;
+    }
+
+    private static HTTPResponse response() {
+        return new HTTPResponse(Optional.of(new ByteArrayPayload(new byte[40], MIMEType.APPLICATION_OCTET_STREAM)), Status.OK, new Headers());
+    }
+}
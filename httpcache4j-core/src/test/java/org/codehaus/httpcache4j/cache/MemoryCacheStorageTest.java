@@ -16,6 +16,32 @@
 
 package org.codehaus.httpcache4j.cache;
 
+import org.codehaus.httpcache4j.HTTPException;
+import org.codehaus.httpcache4j.HTTPRequest;
+import org.codehaus.httpcache4j.HTTPResponse;
+import org.codehaus.httpcache4j.HeaderConstants;
+import org.codehaus.httpcache4j.Headers;
+import org.codehaus.httpcache4j.MIMEType;
+import org.codehaus.httpcache4j.Status;
+import org.codehaus.httpcache4j.payload.ByteArrayPayload;
+import org.codehaus.httpcache4j.payload.InputStreamPayload;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.stream.Collectors;
+import java.util.Optional;
+
+import static org.junit.Assert.*;
 
 /** @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a> */
 public class MemoryCacheStorageTest extends CacheStorageAbstractTest {
@@ -27,4 +53,255 @@ public class MemoryCacheStorageTest extends CacheStorageAbstractTest {
     @Override
 	protected void afterTest() {
     }
+
+    @Test
+    public void recentlyUsedURIIsNotEvicted() {
+        storage = new MemoryCacheStorage(2, 10);
+        HTTPRequest a = new HTTPRequest(URI.create("a"));
+        HTTPRequest b = new HTTPRequest(URI.create("b"));
+        storage.insert(a, new HTTPResponse(Status.OK, new Headers()));
+        storage.insert(b, new HTTPResponse(Status.OK, new Headers()));
+        assertNotNull(storage.get(a));
+        storage.insert(new HTTPRequest(URI.create("c")), new HTTPResponse(Status.OK, new Headers()));
+        assertEquals(2, storage.size());
+        assertNotNull(storage.get(a));
+        assertNull(storage.get(b));
+    }
+
+    @Test
+    public void weightIsPayloadPlusHeaderOverhead() throws IOException {
+        MemoryCacheStorage memoryStorage = new MemoryCacheStorage();
+        storage = memoryStorage;
+        assertEquals(0, memoryStorage.getWeight());
+        HTTPResponse response = storage.insert(REQUEST, response(1000));
+        long weight = memoryStorage.getWeight();
+        assertEquals(Weigher.payloadAndHeaders().weigh(Key.create(REQUEST, response), storage.get(REQUEST)), weight);
+        assertTrue(weight > 1000);
+        storage.update(REQUEST, response(1000));
+        assertEquals(weight, memoryStorage.getWeight());
+        storage.invalidate(REQUEST.getNormalizedURI());
+        assertEquals(0, memoryStorage.getWeight());
+    }
+
+    @Test
+    public void evictsUntilTheWeightFits() throws IOException {
+        MemoryCacheStorage memoryStorage = new MemoryCacheStorage();
+        memoryStorage.setMaximumWeight(10000, (key, item) -> item.getResponse().getPayload().get().length());
+        storage = memoryStorage;
+        for (int i = 0; i < 4; i++) {
+            storage.insert(new HTTPRequest(URI.create("small" + i)), response(2000));
+        }
+        assertEquals(8000, memoryStorage.getWeight());
+        storage.insert(new HTTPRequest(URI.create("large")), response(7000));
+        assertEquals(2, storage.size());
+        assertEquals(9000, memoryStorage.getWeight());
+        assertNotNull(storage.get(new HTTPRequest(URI.create("large"))));
+        assertNotNull(storage.get(new HTTPRequest(URI.create("small3"))));
+    }
+
+    @Test
+    public void responseHeavierThanTheMaximumIsNotStored() throws IOException {
+        MemoryCacheStorage memoryStorage = new MemoryCacheStorage();
+        memoryStorage.setMaximumWeight(1000, (key, item) -> item.getResponse().getPayload().get().length());
+        storage = memoryStorage;
+        storage.insert(new HTTPRequest(URI.create("small")), response(500));
+        HTTPResponse huge = storage.insert(new HTTPRequest(URI.create("huge")), response(5000));
+        assertEquals(5000, huge.getPayload().get().length());
+        assertNull(storage.get(new HTTPRequest(URI.create("huge"))));
+        assertNotNull(storage.get(new HTTPRequest(URI.create("small"))));
+        assertEquals(1, storage.size());
+        assertEquals(500, memoryStorage.getWeight());
+    }
+
+    @Test
+    public void changingOnlyTheMaximumWeightKeepsTheWeigher() throws IOException {
+        MemoryCacheStorage memoryStorage = new MemoryCacheStorage();
+        memoryStorage.setMaximumWeight(10000, (key, item) -> item.getResponse().getPayload().get().length());
+        storage = memoryStorage;
+        for (int i = 0; i < 4; i++) {
+            storage.insert(new HTTPRequest(URI.create("uri" + i)), response(2000));
+        }
+        memoryStorage.setMaximumWeight(6000);
+        assertEquals(3, storage.size());
+        assertEquals(6000, memoryStorage.getWeight());
+    }
+
+    @Test
+    public void loweringTheMaximumWeightEvicts() throws IOException {
+        MemoryCacheStorage memoryStorage = new MemoryCacheStorage();
+        storage = memoryStorage;
+        for (int i = 0; i < 4; i++) {
+            storage.insert(new HTTPRequest(URI.create("uri" + i)), response(2000));
+        }
+        memoryStorage.setMaximumWeight(4000, (key, item) -> item.getResponse().getPayload().get().length());
+        assertEquals(2, storage.size());
+        assertEquals(4000, memoryStorage.getWeight());
+    }
+
+    @Test
+    public void expiredItemsWithoutValidatorsAreRemoved() {
+        MemoryCacheStorage memoryStorage = new MemoryCacheStorage();
+        storage = memoryStorage;
+        storage.insert(new HTTPRequest(URI.create("short")), cacheable("max-age=10"));
+        storage.insert(new HTTPRequest(URI.create("long")), cacheable("max-age=3600"));
+        storage.insert(new HTTPRequest(URI.create("grace")), cacheable("max-age=10, stale-if-error=600"));
+        storage.insert(new HTTPRequest(URI.create("etag")), new HTTPResponse(Status.OK, new Headers().add(HeaderConstants.CACHE_CONTROL, "max-age=10").add(HeaderConstants.ETAG, "\"1\"")));
+        LocalDateTime now = LocalDateTime.now();
+        assertEquals(0, memoryStorage.removeExpired(now));
+        assertEquals(1, memoryStorage.removeExpired(now.plusSeconds(60)));
+        assertNull(storage.get(new HTTPRequest(URI.create("short"))));
+        assertEquals(3, storage.size());
+        assertEquals(1, memoryStorage.removeExpired(now.plusSeconds(700)));
+        assertEquals(1, memoryStorage.removeExpired(now.plusSeconds(4000)));
+        assertEquals(1, storage.size());
+        assertNotNull(storage.get(new HTTPRequest(URI.create("etag"))));
+    }
+
+    @Test
+    public void replacedAndInvalidatedItemsAreNotSwept() {
+        MemoryCacheStorage memoryStorage = new MemoryCacheStorage();
+        storage = memoryStorage;
+        HTTPRequest request = new HTTPRequest(URI.create("uri"));
+        storage.insert(request, cacheable("max-age=10"));
+        storage.update(request, cacheable("max-age=3600"));
+        storage.insert(new HTTPRequest(URI.create("other")), cacheable("max-age=10"));
+        storage.invalidate(URI.create("other"));
+        assertEquals(0, memoryStorage.removeExpired(LocalDateTime.now().plusSeconds(60)));
+        assertEquals(1, storage.size());
+    }
+
+    @Test
+    public void sizeCountsVariants() {
+        storage = new MemoryCacheStorage(10, 2);
+        for (int i = 0; i < 3; i++) {
+            HTTPRequest request = new HTTPRequest(URI.create("uri")).headers(new Headers().add("Accept-Language", "lang" + i));
+            storage.insert(request, new HTTPResponse(Status.OK, new Headers().add("Vary", "Accept-Language")));
+        }
+        storage.insert(new HTTPRequest(URI.create("other")), new HTTPResponse(Status.OK, new Headers()));
+        assertEquals(3, storage.size());
+        storage.invalidate(URI.create("uri"));
+        assertEquals(1, storage.size());
+    }
+
+    @Test
+    public void iteratorIsWeaklyConsistent() {
+        storage = new MemoryCacheStorage(1000, 10);
+        for (int i = 0; i < 100; i++) {
+            storage.insert(new HTTPRequest(URI.create("uri" + i)), new HTTPResponse(Status.OK, new Headers()));
+        }
+        Iterator<Key> iterator = storage.iterator();
+        int seen = 0;
+        while (iterator.hasNext()) {
+            Key key = iterator.next();
+            storage.invalidate(key.getURI());
+            storage.insert(new HTTPRequest(URI.create("new" + seen)), new HTTPResponse(Status.OK, new Headers()));
+            seen++;
+        }
+        assertTrue(seen >= 100);
+        assertEquals(100, storage.size());
+    }
+
+    @Test
+    public void keysCanBeTraversedInParallel() {
+        storage = new MemoryCacheStorage(10000, 10);
+        for (int i = 0; i < 5000; i++) {
+            storage.insert(new HTTPRequest(URI.create("uri" + i)), new HTTPResponse(Status.OK, new Headers()));
+        }
+        assertTrue(storage.spliterator().hasCharacteristics(Spliterator.CONCURRENT));
+        Set<URI> uris = storage.stream().parallel().map(Key::getURI).collect(Collectors.toSet());
+        assertEquals(5000, uris.size());
+        storage.stream().parallel().filter(key -> key.getURI().toString().endsWith("0")).forEach(key -> storage.invalidate(key.getURI()));
+        assertEquals(4500, storage.size());
+    }
+
+    @Test
+    public void variantsAreFoundByTheirVariation() {
+        storage = new MemoryCacheStorage(10, 100);
+        String[] languages = {"en", "no", "de", "fr", "sv"};
+        String[] charsets = {"utf-8", "iso-8859-1", "us-ascii"};
+        for (String language : languages) {
+            for (String charset : charsets) {
+                HTTPRequest request = variantRequest(language, charset);
+                Headers headers = new Headers().add("Vary", "Accept-Language,Accept-Charset").add("X-Variant", language + charset);
+                storage.insert(request, new HTTPResponse(Status.OK, headers));
+            }
+        }
+        assertEquals(15, storage.size());
+        for (String language : languages) {
+            for (String charset : charsets) {
+                CacheItem item = storage.get(variantRequest(language, charset));
+                assertNotNull(item);
+                assertEquals(language + charset, item.getResponse().getHeaders().getFirstHeaderValue("X-Variant").get());
+            }
+        }
+        assertNull(storage.get(variantRequest("da", "utf-8")));
+    }
+
+    @Test
+    public void variantsWithDifferentVaryHeadersForTheSameURI() {
+        storage = new MemoryCacheStorage(10, 10);
+        HTTPRequest english = new HTTPRequest(URI.create("uri")).headers(new Headers().add("Accept-Language", "en"));
+        HTTPRequest gzip = new HTTPRequest(URI.create("uri")).headers(new Headers().add("Accept-Encoding", "gzip"));
+        storage.insert(english, new HTTPResponse(Status.OK, new Headers().add("Vary", "Accept-Language")));
+        storage.insert(gzip, new HTTPResponse(Status.OK, new Headers().add("Vary", "Accept-Encoding")));
+        assertEquals("Accept-Language", storage.get(english).getResponse().getHeaders().getFirstHeaderValue("Vary").get());
+        assertEquals("Accept-Encoding", storage.get(gzip).getResponse().getHeaders().getFirstHeaderValue("Vary").get());
+        storage.invalidate(URI.create("uri"));
+        assertNull(storage.get(english));
+        storage.insert(new HTTPRequest(URI.create("uri")), new HTTPResponse(Status.OK, new Headers().add("Vary", "*")));
+        assertNull(storage.get(new HTTPRequest(URI.create("uri"))));
+    }
+
+    @Test
+    public void onlyEvictedItemsAreReportedAsEvicted() {
+        List<Key> evicted = new ArrayList<>();
+        storage = new MemoryCacheStorage(2, 10) {
+            @Override
+            protected void onEvict(Key key, CacheItem item) {
+                evicted.add(key);
+            }
+        };
+        storage.insert(new HTTPRequest(URI.create("a")), new HTTPResponse(Status.OK, new Headers()));
+        storage.insert(new HTTPRequest(URI.create("a")), new HTTPResponse(Status.OK, new Headers()));
+        storage.insert(new HTTPRequest(URI.create("b")), new HTTPResponse(Status.OK, new Headers()));
+        storage.invalidate(URI.create("b"));
+        assertTrue(evicted.isEmpty());
+        storage.insert(new HTTPRequest(URI.create("b")), new HTTPResponse(Status.OK, new Headers()));
+        storage.insert(new HTTPRequest(URI.create("c")), new HTTPResponse(Status.OK, new Headers()));
+        assertEquals(Collections.singletonList(URI.create("a")), evicted.stream().map(Key::getURI).collect(Collectors.toList()));
+        storage.clear();
+        assertEquals(1, evicted.size());
+    }
+
+    @Test
+    public void responseWithAPayloadThatCanNotBeReadIsNotStored() {
+        InputStream failing = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("Connection reset");
+            }
+        };
+        HTTPResponse response = new HTTPResponse(Optional.of(new InputStreamPayload(failing, MIMEType.APPLICATION_OCTET_STREAM)), Status.OK, new Headers());
+        try {
+            storage.insert(REQUEST, response);
+            fail("The payload was read");
+        } catch (HTTPException expected) {
+            assertTrue(expected.getCause() instanceof IOException);
+        }
+        assertNull(storage.get(REQUEST));
+        assertEquals(0, storage.size());
+    }
+
+    private static HTTPRequest variantRequest(String language, String charset) {
+        return new HTTPRequest(URI.create("uri")).headers(new Headers().add("Accept-Language", language).add("Accept-Charset", charset));
+    }
+
+    private static HTTPResponse cacheable(String cacheControl) {
+        return new HTTPResponse(Status.OK, new Headers().add(HeaderConstants.CACHE_CONTROL, cacheControl));
+    }
+
+    private static HTTPResponse response(int length) throws IOException {
+        ByteArrayPayload payload = new ByteArrayPayload(new ByteArrayInputStream(new byte[length]), MIMEType.APPLICATION_OCTET_STREAM);
+        return new HTTPResponse(Optional.of(payload), Status.OK, new Headers());
+    }
 }
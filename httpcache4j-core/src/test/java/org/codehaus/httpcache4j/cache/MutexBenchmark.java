@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2009. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.cache;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Stress benchmark for {@link Mutex}.
+ * Every thread acquires and releases its own URI as fast as it can, so the throughput should scale with the
+ * number of threads until we run out of cores.
+ * Not run as part of the build, run it with:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.mainClass=org.codehaus.httpcache4j.cache.MutexBenchmark -Dexec.classpathScope=test
+ * </pre>
+ *
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public class MutexBenchmark {
+    private static final long DURATION = TimeUnit.SECONDS.toMillis(2);
+
+    public static void main(String[] args) throws InterruptedException {
+        System.out.println("threads\tdistinct ops/s\tshared (8 URIs) ops/s");
+        for (int threads = 1; threads <= 64; threads *= 2) {
+            long distinct = run(threads, threads);
+            long shared = run(threads, 8);
+            System.out.println(String.format("%d\t%d\t%d", threads, distinct, shared));
+        }
+    }
+
+    private static long run(int threads, int uris) throws InterruptedException {
+        final Mutex<URI> mutex = new Mutex<>();
+        final LongAdder operations = new LongAdder();
+        final CountDownLatch start = new CountDownLatch(1);
+        final long end = System.currentTimeMillis() + DURATION;
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            final URI uri = URI.create("http://example.com/" + (i % uris));
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                while (System.currentTimeMillis() < end) {
+                    if (mutex.acquire(uri)) {
+                        mutex.release(uri);
+                        operations.increment();
+                    }
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return operations.sum() * 1000 / DURATION;
+    }
+}
@@ -20,6 +20,7 @@ import org.junit.Assert;
 
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Map;
@@ -140,6 +141,37 @@ public class MutexTest {
         thread2.join();
     }
 
+    @Test(timeout = 5000)
+    public void interruptedAcquireDoesNotReleaseLockHeldByOthers() throws Exception {
+        Assert.assertTrue(mutex.acquire(URI_1));
+        final AtomicBoolean interruptedResult = new AtomicBoolean(true);
+        Thread interrupted = new Thread(new Runnable() {
+            public void run() {
+                Thread.currentThread().interrupt();
+                interruptedResult.set(mutex.acquire(URI_1));
+            }
+        });
+        interrupted.start();
+        interrupted.join();
+        Assert.assertFalse("Interrupted thread acquired the lock", interruptedResult.get());
+
+        final AtomicBoolean acquired = new AtomicBoolean(false);
+        Thread waiting = new Thread(new Runnable() {
+            public void run() {
+                if (mutex.acquire(URI_1)) {
+                    acquired.set(true);
+                    mutex.release(URI_1);
+                }
+            }
+        });
+        waiting.start();
+        Thread.sleep(200);
+        Assert.assertFalse("Lock was released by the interrupted thread", acquired.get());
+        mutex.release(URI_1);
+        waiting.join();
+        Assert.assertTrue(acquired.get());
+    }
+
     @Test(timeout = 5000)
     public void testTiming() throws Exception {
         Thread[] threads = new Thread[]{
@@ -168,9 +200,7 @@ public class MutexTest {
         final DoTheThingSlowly runnable = new DoTheThingSlowly(uri);
         Thread slowThread = new Thread(runnable);
         slowThread.start();
-        synchronized (runnable) {
-            runnable.wait();
-        }
+        runnable.acquired.await();
         threads.add(slowThread);
         for (int i = 0; i < 4; i++) {
             Thread t = new Thread(worker);
@@ -213,6 +243,7 @@ public class MutexTest {
 
     class DoTheThingSlowly implements Runnable {
         private final String uri;
+        private final CountDownLatch acquired = new CountDownLatch(1);
 
         public DoTheThingSlowly(URI uri) {
             this.uri = uri.toString();
@@ -220,9 +251,7 @@ public class MutexTest {
 
         public void run() {
             mutex.acquire(URI.create(uri));
-            synchronized (this) {
-                notify();
-            }
+            acquired.countDown();
             try {
                 Thread.sleep(2000);
                 flag.set(true);
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2008, The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package org.codehaus.httpcache4j.cache;
+
+import org.codehaus.httpcache4j.HTTPRequest;
+import org.codehaus.httpcache4j.HTTPResponse;
+import org.codehaus.httpcache4j.Headers;
+import org.codehaus.httpcache4j.MIMEType;
+import org.codehaus.httpcache4j.Status;
+import org.codehaus.httpcache4j.payload.ByteArrayPayload;
+import org.codehaus.httpcache4j.util.IOUtils;
+import org.codehaus.httpcache4j.util.LRUEvictionPolicy;
+import org.codehaus.httpcache4j.util.SlabAllocator;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.channels.Channels;
+import java.util.Optional;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/** @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a> */
+public class OffHeapCacheStorageTest extends CacheStorageAbstractTest {
+    private final SlabAllocator allocator = new SlabAllocator(64 * 1024, 256, 16 * 1024);
+
+    @Override
+    protected CacheStorage createCacheStorage() {
+        return new OffHeapCacheStorage(2, 10, new LRUEvictionPolicy<>(), allocator);
+    }
+
+    @Override
+    protected void afterTest() {
+        assertEquals(0, allocator.getUsedMemory());
+    }
+
+    @Test
+    public void payloadIsKeptOffHeap() throws IOException {
+        byte[] bytes = bytes(50000);
+        HTTPResponse response = storage.insert(REQUEST, response(bytes));
+        assertTrue(response.getPayload().get() instanceof SlabPayload);
+        assertEquals(bytes.length, response.getPayload().get().length());
+        // three full chunks, and the rest in the smallest chunk that fits.
+        assertEquals(3 * 16 * 1024 + 1024, allocator.getUsedMemory());
+        CacheItem item = storage.get(REQUEST);
+        try (InputStream stream = item.getResponse().getPayload().get().getInputStream()) {
+            assertArrayEquals(bytes, IOUtils.toByteArray(stream));
+        }
+    }
+
+    @Test
+    public void chunksAreFreedOnEviction() throws IOException {
+        storage.insert(new HTTPRequest(URI.create("a")), response(bytes(1000)));
+        storage.insert(new HTTPRequest(URI.create("b")), response(bytes(1000)));
+        assertEquals(2 * 1024, allocator.getUsedMemory());
+        storage.insert(new HTTPRequest(URI.create("c")), response(bytes(1000)));
+        assertEquals(2, storage.size());
+        assertEquals(2 * 1024, allocator.getUsedMemory());
+        storage.invalidate(URI.create("b"));
+        assertEquals(1024, allocator.getUsedMemory());
+    }
+
+    @Test
+    public void openStreamSurvivesEviction() throws IOException {
+        byte[] bytes = bytes(1000);
+        storage.insert(REQUEST, response(bytes));
+        SlabPayload payload = (SlabPayload) storage.get(REQUEST).getResponse().getPayload().get();
+        try (InputStream stream = payload.getInputStream()) {
+            storage.invalidate(REQUEST.getNormalizedURI());
+            assertFalse(payload.isAvailable());
+            assertNull(payload.getInputStream());
+            assertEquals(1024, allocator.getUsedMemory());
+            assertArrayEquals(bytes, IOUtils.toByteArray(stream));
+        }
+        assertEquals(0, allocator.getUsedMemory());
+    }
+
+    @Test
+    public void updateWithTheCachedPayloadKeepsIt() throws IOException {
+        byte[] bytes = bytes(1000);
+        storage.insert(REQUEST, response(bytes));
+        HTTPResponse cached = storage.get(REQUEST).getResponse();
+        storage.update(REQUEST, cached);
+        storage.update(new HTTPRequest(URI.create("other")), cached);
+        assertEquals(2 * 1024, allocator.getUsedMemory());
+        try (InputStream stream = storage.get(REQUEST).getResponse().getPayload().get().getInputStream()) {
+            assertArrayEquals(bytes, IOUtils.toByteArray(stream));
+        }
+        storage.invalidate(REQUEST.getNormalizedURI());
+        try (InputStream stream = storage.get(new HTTPRequest(URI.create("other"))).getResponse().getPayload().get().getInputStream()) {
+            assertArrayEquals(bytes, IOUtils.toByteArray(stream));
+        }
+    }
+
+    @Test
+    public void chunksOfAResponseTooHeavyToStoreAreFreedWhenItIsRead() throws IOException {
+        ((OffHeapCacheStorage) storage).setMaximumWeight(2000);
+        byte[] bytes = bytes(5000);
+        HTTPResponse response = storage.insert(REQUEST, response(bytes));
+        assertNull(storage.get(REQUEST));
+        assertTrue(allocator.getUsedMemory() > 0);
+        try (InputStream stream = response.getPayload().get().getInputStream()) {
+            assertArrayEquals(bytes, IOUtils.toByteArray(stream));
+        }
+        assertEquals(0, allocator.getUsedMemory());
+    }
+
+    @Test
+    public void insertingTheCachedResponseAgainKeepsItsPayload() throws IOException {
+        byte[] bytes = bytes(1000);
+        storage.insert(REQUEST, response(bytes));
+        HTTPResponse stored = storage.insert(REQUEST, storage.get(REQUEST).getResponse());
+        assertEquals(1024, allocator.getUsedMemory());
+        try (InputStream stream = stored.getPayload().get().getInputStream()) {
+            assertArrayEquals(bytes, IOUtils.toByteArray(stream));
+        }
+        try (InputStream stream = storage.get(REQUEST).getResponse().getPayload().get().getInputStream()) {
+            assertArrayEquals(bytes, IOUtils.toByteArray(stream));
+        }
+    }
+
+    @Test
+    public void chunksAreTransferredToChannels() throws IOException {
+        byte[] bytes = bytes(50000);
+        storage.insert(REQUEST, response(bytes));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(bytes.length, storage.get(REQUEST).getResponse().getPayload().get().transferTo(Channels.newChannel(out)));
+        assertArrayEquals(bytes, out.toByteArray());
+    }
+
+    private static byte[] bytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static HTTPResponse response(byte[] bytes) {
+        return new HTTPResponse(Optional.of(new ByteArrayPayload(bytes, MIMEType.APPLICATION_OCTET_STREAM)), Status.OK, new Headers());
+    }
+}
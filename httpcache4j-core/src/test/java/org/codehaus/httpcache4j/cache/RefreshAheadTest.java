@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2009. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.cache;
+
+import org.codehaus.httpcache4j.*;
+import org.junit.Test;
+
+import java.net.URI;
+import java.time.LocalDateTime;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public class RefreshAheadTest {
+    private static final HTTPHost HOST = new HTTPHost(URI.create("http://example.com/"));
+    private final RefreshAhead refreshAhead = new RefreshAhead(3, 0.5, 1);
+    private final LocalDateTime now = LocalDateTime.now();
+
+    @Test
+    public void coldEntriesAreNotRefreshed() {
+        CacheItem item = item(now.minusSeconds(50));
+        Key key = key("a");
+        assertFalse(refreshAhead.accessed(key, HOST, item, now));
+        assertFalse(refreshAhead.accessed(key, HOST, item, now));
+        assertTrue(refreshAhead.accessed(key, HOST, item, now));
+    }
+
+    @Test
+    public void youngEntriesAreNotRefreshed() {
+        CacheItem item = item(now.minusSeconds(10));
+        Key key = key("a");
+        for (int i = 0; i < 10; i++) {
+            assertFalse(refreshAhead.accessed(key, HOST, item, now));
+        }
+    }
+
+    @Test
+    public void refreshesArePerHostBounded() {
+        CacheItem item = item(now.minusSeconds(50));
+        HTTPHost other = new HTTPHost(URI.create("http://example.org/"));
+        hit(key("a"), HOST, item, 2);
+        hit(key("b"), HOST, item, 2);
+        hit(key("c"), other, item, 2);
+        assertTrue(refreshAhead.accessed(key("a"), HOST, item, now));
+        assertFalse("Host limit was exceeded", refreshAhead.accessed(key("b"), HOST, item, now));
+        assertTrue(refreshAhead.accessed(key("c"), other, item, now));
+        refreshAhead.refreshed(HOST);
+        assertTrue(refreshAhead.accessed(key("b"), HOST, item, now));
+    }
+
+    @Test
+    public void countStartsOverWhenEntryIsStoredAgain() {
+        Key key = key("a");
+        hit(key, HOST, item(now.minusSeconds(50)), 2);
+        assertFalse(refreshAhead.accessed(key, HOST, item(now.minusSeconds(40)), now));
+        assertEquals(1, refreshAhead.tracked());
+    }
+
+    private void hit(Key key, HTTPHost host, CacheItem item, int times) {
+        for (int i = 0; i < times; i++) {
+            refreshAhead.accessed(key, host, item, now);
+        }
+    }
+
+    private static Key key(String path) {
+        return Key.create(URI.create("http://example.com/" + path), new Vary());
+    }
+
+    private static CacheItem item(LocalDateTime cachedTime) {
+        Headers headers = new Headers().add(HeaderConstants.CACHE_CONTROL, "max-age=60");
+        return new DefaultCacheItem(new HTTPResponse(Status.OK, headers), cachedTime);
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2009. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.cache;
+
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public class RequestCoalescerTest {
+    private final RequestCoalescer<URI> coalescer = new RequestCoalescer<>();
+    private static final URI URI_1 = URI.create("foo");
+
+    @Test(timeout = 5000)
+    public void followersWaitForLeader() throws Exception {
+        AtomicInteger leaders = new AtomicInteger();
+        AtomicInteger followers = new AtomicInteger();
+        CountDownLatch leading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService service = Executors.newFixedThreadPool(10);
+        try {
+            List<Future<String>> futures = new ArrayList<>();
+            futures.add(service.submit(() -> coalescer.execute(URI_1, () -> {
+                leaders.incrementAndGet();
+                leading.countDown();
+                await(release);
+                return "leader";
+            }, landed -> "follower")));
+            leading.await();
+            for (int i = 0; i < 9; i++) {
+                futures.add(service.submit(() -> coalescer.execute(URI_1, () -> {
+                    leaders.incrementAndGet();
+                    return "leader";
+                }, landed -> {
+                    followers.incrementAndGet();
+                    return "follower";
+                })));
+            }
+            // Give the followers time to join the flight
+            Thread.sleep(200);
+            assertTrue("Somebody landed before the leader", futures.stream().noneMatch(Future::isDone));
+            release.countDown();
+            assertEquals("leader", futures.get(0).get());
+            for (Future<String> future : futures.subList(1, futures.size())) {
+                future.get();
+            }
+            assertEquals(0, coalescer.inFlight());
+            assertEquals(10, leaders.get() + followers.get());
+            assertEquals(1, leaders.get());
+        } finally {
+            service.shutdownNow();
+        }
+    }
+
+    @Test
+    public void differentObjectsDoNotCoalesce() throws Exception {
+        String result = coalescer.execute(URI_1, () -> {
+            try {
+                return coalescer.execute(URI.create("bar"), () -> "leader", landed -> "follower");
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        }, landed -> "follower");
+        assertEquals("leader", result);
+    }
+
+    @Test
+    public void leaderFailureReleasesFollowers() throws Exception {
+        try {
+            coalescer.execute(URI_1, () -> {
+                throw new IllegalStateException("failed");
+            }, landed -> "follower");
+            fail("Expected exception");
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(0, coalescer.inFlight());
+        assertEquals("leader", coalescer.execute(URI_1, () -> "leader", landed -> "follower"));
+    }
+
+    @Test
+    public void asyncFollowersRunWhenLeaderCompletes() throws Exception {
+        CompletableFuture<String> leaderResult = new CompletableFuture<>();
+        CompletableFuture<String> leader = coalescer.executeAsync(URI_1, () -> leaderResult, landed -> CompletableFuture.completedFuture("follower"));
+        CompletableFuture<String> follower = coalescer.executeAsync(URI_1, () -> CompletableFuture.completedFuture("leader"), landed -> CompletableFuture.completedFuture("follower"));
+        assertFalse(follower.isDone());
+        assertEquals(1, coalescer.inFlight());
+        leaderResult.complete("leader");
+        assertEquals("leader", leader.get());
+        assertEquals("follower", follower.get());
+        assertEquals(0, coalescer.inFlight());
+    }
+
+    @Test
+    public void asyncLeaderFailureReleasesFollowers() throws Exception {
+        CompletableFuture<String> leaderResult = new CompletableFuture<>();
+        CompletableFuture<String> leader = coalescer.executeAsync(URI_1, () -> leaderResult, landed -> CompletableFuture.completedFuture("follower"));
+        CompletableFuture<String> follower = coalescer.executeAsync(URI_1, () -> CompletableFuture.completedFuture("leader"), landed -> CompletableFuture.completedFuture("follower"));
+        leaderResult.completeExceptionally(new IllegalStateException("failed"));
+        assertTrue(leader.isCompletedExceptionally());
+        assertEquals("follower", follower.get());
+        assertEquals(0, coalescer.inFlight());
+    }
+
+    @Test(timeout = 5000)
+    public void followersAreHandedTheResultOfTheLeader() throws Exception {
+        CountDownLatch leading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService service = Executors.newFixedThreadPool(2);
+        try {
+            Future<String> leader = service.submit(() -> coalescer.execute(URI_1, () -> {
+                leading.countDown();
+                await(release);
+                return "leader";
+            }, landed -> "follower"));
+            leading.await();
+            Future<String> follower = service.submit(() -> coalescer.execute(URI_1, () -> "leader", landed -> "follower of " + landed));
+            // Give the follower time to join the flight
+            Thread.sleep(200);
+            release.countDown();
+            assertEquals("leader", leader.get());
+            assertEquals("follower of leader", follower.get());
+        } finally {
+            service.shutdownNow();
+        }
+    }
+
+    @Test
+    public void asyncFollowersAreHandedNothingWhenTheLeaderFails() throws Exception {
+        CompletableFuture<String> leaderResult = new CompletableFuture<>();
+        coalescer.executeAsync(URI_1, () -> leaderResult, landed -> CompletableFuture.completedFuture("follower"));
+        CompletableFuture<String> follower = coalescer.executeAsync(URI_1, () -> CompletableFuture.completedFuture("leader"), landed -> CompletableFuture.completedFuture("follower of " + landed));
+        leaderResult.completeExceptionally(new IllegalStateException("failed"));
+        assertEquals("follower of null", follower.get());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2009. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.cache;
+
+import org.codehaus.httpcache4j.*;
+import org.junit.Test;
+
+import java.net.URI;
+
+import static org.junit.Assert.*;
+
+/** @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a> */
+public class StripedMemoryCacheStorageTest extends CacheStorageAbstractTest {
+    @Override
+    protected CacheStorage createCacheStorage() {
+        return new StripedMemoryCacheStorage();
+    }
+
+    @Override
+    protected void afterTest() {
+    }
+
+    @Test
+    public void leastRecentlyUsedURIIsEvicted() {
+        storage = new StripedMemoryCacheStorage(2, 10, 1);
+        HTTPRequest a = new HTTPRequest(URI.create("a"));
+        HTTPRequest b = new HTTPRequest(URI.create("b"));
+        HTTPRequest c = new HTTPRequest(URI.create("c"));
+        storage.insert(a, new HTTPResponse(Status.OK, new Headers()));
+        storage.insert(b, new HTTPResponse(Status.OK, new Headers()));
+        assertNotNull(storage.get(a));
+        storage.insert(c, new HTTPResponse(Status.OK, new Headers()));
+        assertEquals(2, storage.size());
+        assertNotNull(storage.get(a));
+        assertNull(storage.get(b));
+        assertNotNull(storage.get(c));
+    }
+
+    @Test
+    public void oldestVariantIsEvicted() {
+        storage = new StripedMemoryCacheStorage(10, 2, 1);
+        for (String language : new String[] {"en", "no", "sv"}) {
+            HTTPRequest request = new HTTPRequest(URI.create("a")).headers(new Headers().add(HeaderConstants.ACCEPT_LANGUAGE, language));
+            storage.insert(request, new HTTPResponse(Status.OK, new Headers().add(HeaderConstants.VARY, HeaderConstants.ACCEPT_LANGUAGE)));
+        }
+        assertEquals(2, storage.size());
+        assertNull(storage.get(new HTTPRequest(URI.create("a")).headers(new Headers().add(HeaderConstants.ACCEPT_LANGUAGE, "en"))));
+        assertNotNull(storage.get(new HTTPRequest(URI.create("a")).headers(new Headers().add(HeaderConstants.ACCEPT_LANGUAGE, "sv"))));
+    }
+
+    @Test
+    public void sizeCountsVariantsLeftAfterEvictions() {
+        storage = new StripedMemoryCacheStorage(2, 2, 1);
+        for (String uri : new String[] {"a", "b", "c"}) {
+            for (String language : new String[] {"en", "no", "sv"}) {
+                HTTPRequest request = new HTTPRequest(URI.create(uri)).headers(new Headers().add(HeaderConstants.ACCEPT_LANGUAGE, language));
+                storage.insert(request, new HTTPResponse(Status.OK, new Headers().add(HeaderConstants.VARY, HeaderConstants.ACCEPT_LANGUAGE)));
+            }
+        }
+        assertEquals(4, storage.size());
+        int keys = 0;
+        for (Key ignored : storage) {
+            keys++;
+        }
+        assertEquals(4, keys);
+        storage.invalidate(URI.create("c"));
+        assertEquals(2, storage.size());
+        storage.clear();
+        assertEquals(0, storage.size());
+    }
+
+    @Test
+    public void variantsWithDifferentVaryHeadersAreFound() {
+        storage = new StripedMemoryCacheStorage(10, 10, 1);
+        HTTPRequest english = new HTTPRequest(URI.create("a")).headers(new Headers().add(HeaderConstants.ACCEPT_LANGUAGE, "en"));
+        HTTPRequest gzip = new HTTPRequest(URI.create("a")).headers(new Headers().add("Accept-Encoding", "gzip"));
+        storage.insert(english, new HTTPResponse(Status.OK, new Headers().add(HeaderConstants.VARY, HeaderConstants.ACCEPT_LANGUAGE)));
+        storage.insert(gzip, new HTTPResponse(Status.OK, new Headers().add(HeaderConstants.VARY, "Accept-Encoding")));
+        assertEquals(HeaderConstants.ACCEPT_LANGUAGE, storage.get(english).getResponse().getHeaders().getFirstHeaderValue(HeaderConstants.VARY).get());
+        assertEquals("Accept-Encoding", storage.get(gzip).getResponse().getHeaders().getFirstHeaderValue(HeaderConstants.VARY).get());
+        assertNull(storage.get(new HTTPRequest(URI.create("a")).headers(new Headers().add(HeaderConstants.ACCEPT_LANGUAGE, "no"))));
+    }
+}
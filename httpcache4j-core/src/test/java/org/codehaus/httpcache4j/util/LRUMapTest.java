@@ -88,6 +88,41 @@ public class LRUMapTest {
         assertThat(removeCounter.get(), equalTo(0));
     }
 
+    @Test
+    public void evictionPolicyDecidesWhatToEvict() {
+        final AtomicInteger removeCounter = new AtomicInteger();
+        map.addListener(new LRUMap.ModificationListener<String, Integer>() {
+            @Override
+            public void onPut(String key, Integer value) {
+            }
+
+            @Override
+            public void onRemove(String key, Integer value) {
+                removeCounter.incrementAndGet();
+            }
+        });
+        map.setEvictionPolicy(new LRUEvictionPolicy<>());
+        map.put("hello", 1);
+        map.put("hello2", 2);
+        map.get("hello");
+        map.put("hello3", 3);
+        assertThat(map.size(), equalTo(2));
+        assertThat(map.containsKey("hello"), equalTo(true));
+        assertThat(map.containsKey("hello2"), equalTo(false));
+        assertThat(removeCounter.get(), equalTo(1));
+    }
+
+    @Test
+    public void evictionPolicyIsGivenExistingKeys() {
+        map.put("hello", 1);
+        map.put("hello2", 2);
+        map.setEvictionPolicy(new LRUEvictionPolicy<>());
+        map.get("hello");
+        map.put("hello3", 3);
+        assertThat(map.containsKey("hello"), equalTo(true));
+        assertThat(map.containsKey("hello2"), equalTo(false));
+    }
+
     @After
     public void tearDown() throws Exception {
         map.removeListeners();
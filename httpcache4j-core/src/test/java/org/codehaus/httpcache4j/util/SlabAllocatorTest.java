@@ -0,0 +1,46 @@
+package org.codehaus.httpcache4j.util;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class SlabAllocatorTest {
+    private final SlabAllocator allocator = new SlabAllocator(4096, 256, 1024);
+
+    @Test
+    public void chunksAreTakenFromTheSmallestClassThatFits() {
+        assertEquals(256, allocator.allocate(1).capacity());
+        assertEquals(256, allocator.allocate(256).capacity());
+        assertEquals(512, allocator.allocate(257).capacity());
+        assertEquals(1024, allocator.allocate(1024).capacity());
+        assertEquals(256 + 256 + 512 + 1024, allocator.getUsedMemory());
+        assertEquals(3 * 4096, allocator.getAllocatedMemory());
+    }
+
+    @Test
+    public void freedChunksAreReused() {
+        ByteBuffer chunk = allocator.allocate(1000);
+        assertEquals(1000, chunk.limit());
+        assertTrue(chunk.isDirect());
+        allocator.free(chunk);
+        assertEquals(0, allocator.getUsedMemory());
+        for (int i = 0; i < 4; i++) {
+            allocator.allocate(1000);
+        }
+        assertEquals(4096, allocator.getAllocatedMemory());
+        allocator.allocate(1000);
+        assertEquals(2 * 4096, allocator.getAllocatedMemory());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void chunksLargerThanTheMaximumAreRejected() {
+        allocator.allocate(1025);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void foreignBuffersAreRejected() {
+        allocator.free(ByteBuffer.allocateDirect(300));
+    }
+}
@@ -0,0 +1,69 @@
+package org.codehaus.httpcache4j.util;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TimerWheelTest {
+    private static final long START = 1_000_000_000L;
+
+    @Test
+    public void keysExpireOnTheirLevel() {
+        TimerWheel<String> wheel = new TimerWheel<>(START);
+        wheel.schedule("second", START + 1000);
+        wheel.schedule("minute", START + 60 * 1000);
+        wheel.schedule("hour", START + 3600 * 1000);
+        wheel.schedule("week", START + 7 * 24 * 3600 * 1000L);
+        assertEquals(Collections.emptyList(), wheel.advance(START + 500));
+        assertEquals(Collections.singletonList("second"), wheel.advance(START + 3000));
+        assertEquals(Collections.emptyList(), wheel.advance(START + 59 * 1000));
+        assertEquals(Collections.singletonList("minute"), wheel.advance(START + 62 * 1000));
+        assertEquals(Collections.singletonList("hour"), wheel.advance(START + 3602 * 1000));
+        assertEquals(1, wheel.size());
+        assertEquals(Collections.singletonList("week"), wheel.advance(START + 8 * 24 * 3600 * 1000L));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void keysThatAreAlreadyDueExpireOnTheNextAdvance() {
+        TimerWheel<String> wheel = new TimerWheel<>(START);
+        wheel.schedule("past", START - 5000);
+        assertEquals(Collections.singletonList("past"), wheel.advance(START));
+    }
+
+    @Test
+    public void cancelledAndRescheduledKeys() {
+        TimerWheel<String> wheel = new TimerWheel<>(START);
+        wheel.schedule("a", START + 1000);
+        wheel.schedule("b", START + 1000);
+        wheel.cancel("a");
+        wheel.schedule("b", START + 100 * 1000);
+        assertEquals(Collections.emptyList(), wheel.advance(START + 5000));
+        assertEquals(Collections.singletonList("b"), wheel.advance(START + 102 * 1000));
+    }
+
+    @Test
+    public void keysAreReportedOnTheFirstAdvancePastTheirTime() {
+        TimerWheel<Integer> wheel = new TimerWheel<>(START);
+        Random random = new Random(42);
+        long[] times = new long[5000];
+        for (int i = 0; i < times.length; i++) {
+            times[i] = START + (long) (random.nextDouble() * 10 * 24 * 3600 * 1000L);
+            wheel.schedule(i, times[i]);
+        }
+        int expired = 0;
+        long previous = START;
+        for (long now = START; expired < times.length; now += 1000 + random.nextInt(10 * 60 * 1000)) {
+            for (Integer key : wheel.advance(now)) {
+                assertTrue("Expired early", times[key] <= now);
+                assertTrue("Expired late", times[key] > previous);
+                expired++;
+            }
+            previous = now;
+        }
+        assertEquals(0, wheel.size());
+    }
+}
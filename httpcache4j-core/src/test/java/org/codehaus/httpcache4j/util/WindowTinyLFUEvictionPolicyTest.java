@@ -0,0 +1,116 @@
+package org.codehaus.httpcache4j.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class WindowTinyLFUEvictionPolicyTest {
+
+    @Test
+    public void frequentKeysSurviveAScan() {
+        LRUMap<Integer, Integer> map = new LRUMap<>(100);
+        map.setEvictionPolicy(new WindowTinyLFUEvictionPolicy<>(100));
+        for (int i = 0; i < 50; i++) {
+            map.put(i, i);
+        }
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 50; i++) {
+                map.get(i);
+            }
+        }
+        for (int i = 1000; i < 2000; i++) {
+            map.put(i, i);
+        }
+        assertThat(map.size(), equalTo(100));
+        for (int i = 0; i < 50; i++) {
+            assertTrue("Hot key " + i + " was evicted", map.containsKey(i));
+        }
+    }
+
+    @Test
+    public void betterHitRatioThanLRUOnZipfianTraffic() {
+        double lru = hitRatio(new LRUEvictionPolicy<>());
+        double tinyLFU = hitRatio(new WindowTinyLFUEvictionPolicy<>(100));
+        assertTrue(String.format("W-TinyLFU %.3f, LRU %.3f", tinyLFU, lru), tinyLFU > lru + 0.05);
+    }
+
+    @Test
+    public void accessesAreSafeWhileWriting() throws InterruptedException {
+        WindowTinyLFUEvictionPolicy<Integer> policy = new WindowTinyLFUEvictionPolicy<>(100);
+        AtomicBoolean running = new AtomicBoolean(true);
+        List<Thread> readers = new ArrayList<>();
+        List<Throwable> failures = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Thread reader = new Thread(() -> {
+                Random random = new Random();
+                while (running.get()) {
+                    policy.recordAccess(random.nextInt(200));
+                }
+            });
+            reader.setUncaughtExceptionHandler((t, e) -> failures.add(e));
+            reader.start();
+            readers.add(reader);
+        }
+        LRUMap<Integer, Integer> map = new LRUMap<>(100);
+        map.setEvictionPolicy(policy);
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            map.put(random.nextInt(200), i);
+        }
+        running.set(false);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertTrue(failures.toString(), failures.isEmpty());
+        assertThat(map.size(), equalTo(100));
+    }
+
+    private static double hitRatio(EvictionPolicy<Integer> policy) {
+        LRUMap<Integer, Integer> map = new LRUMap<>(100);
+        map.setEvictionPolicy(policy);
+        Zipf zipf = new Zipf(10000, 0.9, new Random(42));
+        int hits = 0;
+        int requests = 200000;
+        for (int i = 0; i < requests; i++) {
+            int key = zipf.next();
+            if (map.get(key) != null) {
+                hits++;
+            }
+            else {
+                map.put(key, key);
+            }
+        }
+        return (double) hits / requests;
+    }
+
+    private static class Zipf {
+        private final double[] cumulative;
+        private final Random random;
+
+        Zipf(int size, double skew, Random random) {
+            this.random = random;
+            this.cumulative = new double[size];
+            double sum = 0;
+            for (int i = 0; i < size; i++) {
+                sum += 1 / Math.pow(i + 1, skew);
+                cumulative[i] = sum;
+            }
+            for (int i = 0; i < size; i++) {
+                cumulative[i] /= sum;
+            }
+        }
+
+        int next() {
+            int index = Arrays.binarySearch(cumulative, random.nextDouble());
+            return index < 0 ? -index - 1 : index;
+        }
+    }
+}
@@ -35,6 +35,7 @@ import org.junit.Test;
 import java.io.FileInputStream;
 import java.net.URI;
 import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
 
 import org.eclipse.jetty.server.handler.HandlerList;
 import org.eclipse.jetty.servlet.ServletContextHandler;
@@ -301,6 +302,32 @@ public abstract class AbstractCacheIntegrationTest {
         response.consume();
     }
 
+    @Test
+    public void GETWithETagResponseAsync() throws Exception {
+        URI uri = baseRequestURI.resolve(String.format("etag/%s", TEST_FILE));
+        HTTPResponse response = cache.executeAsync(new HTTPRequest(uri)).get(10, TimeUnit.SECONDS);
+        assertNotNull(response.getHeaders().getETag().orElse(null));
+        assertEquals(Status.OK, response.getStatus());
+        assertEquals(1, storage.size());
+        response.consume();
+        response = cache.executeAsync(new HTTPRequest(uri)).get(10, TimeUnit.SECONDS);
+        assertEquals(Status.OK, response.getStatus());
+        assertTrue(response.isCached());
+        response.consume();
+    }
+
+    @Test
+    public void GETWithBasicAuthenticationAsync() throws Exception {
+        URI uri = baseRequestURI.resolve(String.format("etag/basic,u=u,p=p/%s", TEST_FILE));
+        HTTPResponse response = cache.executeAsync(new HTTPRequest(uri)).get(10, TimeUnit.SECONDS);
+        assertEquals(Status.UNAUTHORIZED, response.getStatus());
+        response.consume();
+        HTTPRequest request = new HTTPRequest(uri).withChallenge(new UsernamePasswordChallenge("u", "p"));
+        response = cache.executeAsync(request).get(10, TimeUnit.SECONDS);
+        assertEquals(Status.OK, response.getStatus());
+        response.consume();
+    }
+
     private HTTPResponse get(URI uri) {
         return doRequest(uri, HTTPMethod.GET);
     }
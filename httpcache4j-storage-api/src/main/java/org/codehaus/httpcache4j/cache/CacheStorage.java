@@ -20,6 +20,8 @@ import org.codehaus.httpcache4j.HTTPRequest;
 import org.codehaus.httpcache4j.HTTPResponse;
 
 import java.net.URI;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /** @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a> */
 //TODO: Document.
@@ -39,5 +41,19 @@ public interface CacheStorage extends Iterable<Key> {
 
     int size();
 
+    /**
+     * @return the total weight of the stored items, typically in bytes, or {@code -1} if the storage does not keep track of it.
+     */
+    default long getWeight() {
+        return -1;
+    }
+
     void shutdown();
+
+    /**
+     * @return the keys of the storage, call {@link Stream#parallel()} to traverse them in parallel.
+     */
+    default Stream<Key> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
 }
@@ -17,16 +17,18 @@
 package org.codehaus.httpcache4j.cache;
 
 import org.codehaus.httpcache4j.*;
-import org.codehaus.httpcache4j.util.OptionalUtils;
 
 import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.Objects;
-import java.util.Optional;
 
 /**
  * This is an internal class, and should not be used by clients.
+ * <p>
+ * The freshness lifetime and the corrected initial age of the response are calculated when the item is created,
+ * so checking if it is stale only compares the request time with the time the item stops being fresh.
  *
+ * @see FreshnessCalculator
  * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
  */
 public class DefaultCacheItem implements CacheItem {
@@ -34,6 +36,8 @@ public class DefaultCacheItem implements CacheItem {
     protected LocalDateTime cachedTime;
     protected HTTPResponse response;
     protected long ttl;
+    protected long initialAge;
+    protected LocalDateTime freshUntil;
 
     public DefaultCacheItem(HTTPResponse response) {
         this(response, LocalDateTime.now());
@@ -42,7 +46,9 @@ public class DefaultCacheItem implements CacheItem {
     public DefaultCacheItem(HTTPResponse response, LocalDateTime cachedTime) {
         this.response = Objects.requireNonNull(response, "Response may not be null");
         this.cachedTime = Objects.requireNonNull(cachedTime, "CacheTime may not be null");
-        this.ttl = getTTL(response, 0);
+        this.ttl = FreshnessCalculator.PRIVATE.getFreshnessLifetime(response);
+        this.initialAge = FreshnessCalculator.PRIVATE.getCorrectedInitialAge(response, cachedTime, cachedTime);
+        this.freshUntil = cachedTime.plusSeconds(ttl - initialAge);
     }
 
     public long getTTL() {
@@ -53,39 +59,19 @@ public class DefaultCacheItem implements CacheItem {
         if (response.hasPayload() && !response.getPayload().get().isAvailable()) {
             return true;
         }
-        return ttl - getAge(requestTime) <= 0;
+        return !requestTime.isBefore(freshUntil);
     }
 
+    /**
+     * @return the age of the response, which is the age it had when it was stored plus the time it has been in the cache.
+     */
     public long getAge(LocalDateTime requestTime) {
-        return Duration.between(cachedTime, requestTime).getSeconds();
+        return initialAge + Duration.between(cachedTime, requestTime).getSeconds();
     }
 
     public static long getTTL(HTTPResponse response, int defaultTTLinSeconds) {
-        final Optional<CacheControl> cc = response.getHeaders().getCacheControl();
-
-        if (cc.isPresent()) {
-            int maxAge = cc.get().getMaxAge();
-            if (maxAge > 0) {
-                return maxAge;
-            }
-        }
-        /**
-         * HTTP/1.1 clients and caches MUST treat other invalid date formats, especially including the value "0", as in the past (i.e., "already expired").
-         * To mark a response as "already expired," an origin server sends an Expires date that is equal to the Date header value.
-         * (See the rules for expiration calculations in section 13.2.4.)
-         * To mark a response as "never expires," an origin server sends an Expires date approximately one year from the time the response is sent.
-         * HTTP/1.1 servers SHOULD NOT send Expires dates more than one year in the future.
-         */
-        Optional<LocalDateTime> expires = response.getHeaders().getExpires();
-        if (expires.isPresent()) {
-            LocalDateTime expiryDate = expires.get();
-            Optional<LocalDateTime> date = response.getHeaders().getDate();
-            if (OptionalUtils.exists(date, dt -> dt.isBefore(expiryDate))) {
-                return Duration.between(date.get(), expiryDate).getSeconds();
-            }
-        }
-
-        return defaultTTLinSeconds;
+        long lifetime = FreshnessCalculator.PRIVATE.getFreshnessLifetime(response);
+        return lifetime > 0 ? lifetime : defaultTTLinSeconds;
     }
 
     public LocalDateTime getCachedTime() {
@@ -17,15 +17,22 @@ package org.codehaus.httpcache4j.cache;
 
 import java.io.*;
 import java.net.URI;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.Objects;
+import java.util.stream.Stream;
 
 import org.codehaus.httpcache4j.util.DeletingFileVisitor;
-import org.codehaus.httpcache4j.util.Digester;
+import org.codehaus.httpcache4j.util.Hashing;
 import org.codehaus.httpcache4j.util.IOUtils;
 
 /**
+ * Maps keys to files under a base directory.
+ * <p>
+ * Not synchronized, resolving is pure computation, and files are written to a temporary file next to them
+ * and moved in place, so a reader sees either the old or the new content of a file, never a partly written one.
+ * Callers writing the same key from several threads must coordinate themselves, as must callers
+ * that need a removal and a write to the same URI to happen in a certain order.
+ *
  * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
  * @version $Revision: #5 $ $Date: 2008/09/15 $
  */
@@ -42,31 +49,40 @@ public final class FileManager implements Serializable {
         return baseDirectory;
     }
 
-    public synchronized File createFile(Key key, InputStream stream) throws IOException {
-        File file = resolve(key);
-        if (!file.getParentFile().exists()) {
-            ensureDirectoryExists(file.getParentFile());
-        }
-        try (InputStream is = stream; OutputStream to = Files.newOutputStream(file.toPath())) {
+    public File createFile(Key key, InputStream stream) throws IOException {
+        return createFile(resolve(key), stream);
+    }
+
+    /**
+     * Writes the stream to a temporary file in the same directory, and moves it in place.
+     *
+     * @return the file, or {@code null} if the stream was empty, in which case any existing file is deleted.
+     */
+    public File createFile(File file, InputStream stream) throws IOException {
+        File tmp = createTempFile(file);
+        try (InputStream is = stream; OutputStream to = Files.newOutputStream(tmp.toPath())) {
             IOUtils.copy(is, to);
+        } catch (IOException | RuntimeException e) {
+            tmp.delete();
+            throw e;
         }
-        if (file.length() == 0) {
-            file.delete();
-            file = null;
+        if (tmp.length() == 0) {
+            tmp.delete();
+            Files.deleteIfExists(file.toPath());
+            return null;
         }
-        if (file != null && !file.exists()) {
-            throw new IOException(String.format("Failed to create File '%s' for Key: %s", file.getName(), key));
-        }
-
+        publish(tmp.toPath(), file.toPath());
         return file;
     }
 
-    public synchronized File moveFile(File fromFile, Key to) throws IOException {
+    /**
+     * Moves the file to where the key resolves. The directories the file is moved out of are deleted if that leaves them empty.
+     */
+    public File moveFile(File fromFile, Key to) throws IOException {
         File toFile = resolve(to);
-        if (!toFile.getParentFile().exists()) {
-            ensureDirectoryExists(toFile.getParentFile());
-        }
-        Files.move(fromFile.toPath(), toFile.toPath());
+        ensureDirectoryExists(toFile.getParentFile());
+        publish(fromFile.toPath(), toFile.toPath());
+        deleteEmptyDirectories(fromFile.getParentFile());
         if (toFile.length() == 0) {
             toFile.delete();
             toFile = null;
@@ -78,45 +94,100 @@ public final class FileManager implements Serializable {
         return toFile;
     }
 
-    public synchronized void clear() {
+    private File createTempFile(File file) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            ensureDirectoryExists(file.getParentFile());
+            try {
+                return Files.createTempFile(file.getParentFile().toPath(), file.getName(), ".tmp").toFile();
+            } catch (NoSuchFileException e) {
+                // The directory was deleted as it became empty, by a removal of another key.
+                if (attempt == 2) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private static void publish(Path from, Path to) throws IOException {
+        try {
+            Files.move(from, to, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    public void clear() {
         deleteDirectory(baseDirectory);
+        ensureDirectoryExists(baseDirectory);
     }
 
-    public synchronized void remove(Key key) {
+    public void remove(Key key) {
         File resolved = resolve(key);
-        if (resolved.delete() && directoryIsEmpty(resolved.getParentFile())) {
-            try {
-                Files.deleteIfExists(resolved.getParentFile().toPath());
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
+        if (resolved.delete()) {
+            deleteIfEmpty(resolved.getParentFile());
         }
     }
 
-    public synchronized void clear(URI uri) {
+    /**
+     * Deletes a file under the base directory, and the directories that leaves empty.
+     */
+    public void delete(File file) throws IOException {
+        Files.deleteIfExists(file.toPath());
+        deleteEmptyDirectories(file.getParentFile());
+    }
+
+    public void clear(URI uri) {
         File resolved = resolve(uri);
         deleteDirectory(resolved);
-        if (directoryIsEmpty(resolved.getParentFile())) {
+        deleteIfEmpty(resolved.getParentFile());
+    }
+
+    private void deleteDirectory(File resolved) {
+        Path path = resolved.toPath();
+        for (int attempt = 0; attempt < 3 && Files.isDirectory(path); attempt++) {
             try {
-                Files.deleteIfExists(resolved.getParentFile().toPath());
+                Files.walkFileTree(path, new DeletingFileVisitor());
+                Files.deleteIfExists(path);
+            } catch (DirectoryNotEmptyException | NoSuchFileException ignore) {
+                // Written to, or deleted from, by somebody else at the same time, so try again.
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
         }
     }
 
-    private void deleteDirectory(File resolved) {
-        if (Files.isDirectory(resolved.toPath())) {
+    /**
+     * @return {@code true} if the directory was deleted.
+     */
+    private boolean deleteIfEmpty(File directory) {
+        if (directoryIsEmpty(directory)) {
             try {
-                Files.walkFileTree(resolved.toPath(), new DeletingFileVisitor());
-                Files.deleteIfExists(resolved.toPath());
+                return Files.deleteIfExists(directory.toPath());
+            } catch (DirectoryNotEmptyException ignore) {
+                // Written to by somebody else since it was found empty.
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
         }
+        return false;
     }
 
-    public synchronized void ensureDirectoryExists(File directory) {
+    private void deleteEmptyDirectories(File directory) {
+        while (isBelowBase(directory) && deleteIfEmpty(directory)) {
+            directory = directory.getParentFile();
+        }
+    }
+
+    private boolean isBelowBase(File directory) {
+        if (directory == null) {
+            return false;
+        }
+        Path base = baseDirectory.toPath().toAbsolutePath().normalize();
+        Path path = directory.toPath().toAbsolutePath().normalize();
+        return path.startsWith(base) && !path.equals(base);
+    }
+
+    public void ensureDirectoryExists(File directory) {
         try {
             Files.createDirectories(directory.toPath());
         } catch (IOException e) {
@@ -124,27 +195,28 @@ public final class FileManager implements Serializable {
         }
     }
 
-    public synchronized File resolve(Key key) {
+    public File resolve(Key key) {
         File uriFolder = resolve(key.getURI());
         String vary;
         if (key.getVary().isEmpty()) {
             vary = "default";
         }
         else {
-            vary = Digester.md5(key.getVary().toString(), StandardCharsets.UTF_8);
+            vary = Hashing.toHex(key.getVary().hash64());
         }
         return new File(uriFolder, vary);
     }
 
-    public synchronized File resolve(URI uri) {
-        String uriHex = Digester.md5(uri.toString(), StandardCharsets.UTF_8);
+    public File resolve(URI uri) {
+        // Only spreads the files, so a fast hash will do. Keys that collide share a file, which the storages check for.
+        String uriHex = Hashing.toHex(Hashing.hash(uri.toString()));
         String distribution = uriHex.substring(0, 2);
         return new File(new File(baseDirectory, distribution), uriHex);
     }
 
     private boolean directoryIsEmpty(File directory) {
-        try {
-            return !Files.list(directory.toPath()).findAny().isPresent();
+        try (Stream<Path> files = Files.list(directory.toPath())) {
+            return !files.findAny().isPresent();
         } catch (IOException e) {
             return false;
         }
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2009. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.cache;
+
+import org.codehaus.httpcache4j.CacheControl;
+import org.codehaus.httpcache4j.HTTPRequest;
+import org.codehaus.httpcache4j.HTTPResponse;
+import org.codehaus.httpcache4j.HeaderConstants;
+import org.codehaus.httpcache4j.Headers;
+import org.codehaus.httpcache4j.util.NumberUtils;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Optional;
+
+/**
+ * Calculates freshness as described in <a href="http://tools.ietf.org/html/rfc7234#section-4.2">RFC 7234, section 4.2</a>.
+ * <p>
+ * The freshness lifetime and the corrected initial age only depend on the response and the time it was received,
+ * so they are calculated once, when the item is stored. See {@link DefaultCacheItem}.
+ * Deciding if a stored response is fresh is then a matter of comparing the two with the time it has been resident in the cache.
+ * <p>
+ * A private cache, which is what {@link #PRIVATE} is, ignores {@code s-maxage}.
+ *
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public final class FreshnessCalculator {
+    public static final FreshnessCalculator PRIVATE = new FreshnessCalculator(false);
+    public static final FreshnessCalculator SHARED = new FreshnessCalculator(true);
+
+    private final boolean shared;
+
+    private FreshnessCalculator(boolean shared) {
+        this.shared = shared;
+    }
+
+    public boolean isShared() {
+        return shared;
+    }
+
+    /**
+     * http://tools.ietf.org/html/rfc7234#section-4.2.1
+     *
+     * @return the freshness lifetime in seconds, {@code 0} if the response has no explicit expiration.
+     */
+    public long getFreshnessLifetime(HTTPResponse response) {
+        Headers headers = response.getHeaders();
+        Optional<CacheControl> cc = headers.getCacheControl();
+        if (cc.isPresent()) {
+            if (shared && cc.get().getSMaxAge() > -1) {
+                return cc.get().getSMaxAge();
+            }
+            if (cc.get().getMaxAge() > -1) {
+                return cc.get().getMaxAge();
+            }
+        }
+        /**
+         * HTTP/1.1 clients and caches MUST treat other invalid date formats, especially including the value "0", as in the past (i.e., "already expired").
+         * To mark a response as "already expired," an origin server sends an Expires date that is equal to the Date header value.
+         * To mark a response as "never expires," an origin server sends an Expires date approximately one year from the time the response is sent.
+         */
+        Optional<LocalDateTime> expires = headers.getExpires();
+        Optional<LocalDateTime> date = headers.getDate();
+        if (expires.isPresent() && date.isPresent() && date.get().isBefore(expires.get())) {
+            return Duration.between(date.get(), expires.get()).getSeconds();
+        }
+        return 0;
+    }
+
+    /**
+     * http://tools.ietf.org/html/rfc7234#section-4.2.3
+     * <p>
+     * The {@code Date} header is always in GMT, while the request and response times are local,
+     * so the apparent age is calculated in GMT.
+     *
+     * @param requestTime the local time the request was sent.
+     * @param responseTime the local time the response was received.
+     * @return the age in seconds the response had when it was received.
+     */
+    public long getCorrectedInitialAge(HTTPResponse response, LocalDateTime requestTime, LocalDateTime responseTime) {
+        Headers headers = response.getHeaders();
+        long apparentAge = headers.getDate().map(date -> Duration.between(date, toGMT(responseTime)).getSeconds()).orElse(0L);
+        long ageValue = headers.getFirstHeaderValue(HeaderConstants.AGE).flatMap(NumberUtils::optToLong).orElse(0L);
+        long responseDelay = Duration.between(requestTime, responseTime).getSeconds();
+        return Math.max(Math.max(0, apparentAge), Math.max(0, ageValue) + Math.max(0, responseDelay));
+    }
+
+    /**
+     * Applies the {@code max-age} and {@code min-fresh} directives of the request.
+     * http://tools.ietf.org/html/rfc7234#section-5.2.1
+     *
+     * @param lifetime the freshness lifetime of the stored response, in seconds.
+     * @param age the current age of the stored response, in seconds.
+     * @return {@code true} if the request accepts the stored response as fresh.
+     */
+    public boolean isAcceptable(HTTPRequest request, long lifetime, long age) {
+        Optional<CacheControl> cc = request.getCacheControl();
+        if (!cc.isPresent()) {
+            return true;
+        }
+        int maxAge = cc.get().getMaxAge();
+        if (maxAge > -1 && age > maxAge) {
+            return false;
+        }
+        int minFresh = cc.get().getMinFresh();
+        return minFresh <= -1 || lifetime - age >= minFresh;
+    }
+
+    private static LocalDateTime toGMT(LocalDateTime localTime) {
+        return localTime.atZone(ZoneId.systemDefault()).withZoneSameInstant(ZoneOffset.UTC).toLocalDateTime();
+    }
+}
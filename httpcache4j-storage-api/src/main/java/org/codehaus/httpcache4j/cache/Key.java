@@ -17,9 +17,8 @@ package org.codehaus.httpcache4j.cache;
 
 import org.codehaus.httpcache4j.HTTPRequest;
 import org.codehaus.httpcache4j.HTTPResponse;
-import org.codehaus.httpcache4j.HeaderConstants;
-import org.codehaus.httpcache4j.Headers;
 import org.codehaus.httpcache4j.uri.URIBuilder;
+import org.codehaus.httpcache4j.util.Hashing;
 
 import java.io.IOException;
 import java.io.ObjectInputStream;
@@ -31,6 +30,11 @@ import java.util.*;
 import static org.codehaus.httpcache4j.HeaderConstants.VARY;
 
 /**
+ * Identifies a cached response, by its normalized URI and the {@link Vary variation} it was selected by.
+ * <p>
+ * A 64 bit hash of the URI string is computed up front, so keys are cheap to hash, and keys that are not equal are rarely compared any further.
+ * Keys are compared by the URI string, which {@link URI} keeps once it is built, the same as the hash.
+ *
  * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
  * @version $Revision: #5 $ $Date: 2008/09/15 $
  */
@@ -39,6 +43,7 @@ public final class Key implements Serializable {
 
     private URI uri;
     private Vary vary;
+    private transient long hash;
 
     public static Key create(URI uri, Vary vary) {
         return new Key(
@@ -49,36 +54,19 @@ public final class Key implements Serializable {
 
     public static Key create(HTTPRequest request, HTTPResponse response) {
         URI uri = request.getNormalizedURI();
-        return new Key(uri, determineVariation(response.getHeaders(), request));
-    }
-
-    private static Vary determineVariation(Headers responseHeaders, HTTPRequest request) {
-        Headers requestHeaders = request.getAllHeaders();
-        Optional<String> varyHeader = responseHeaders.getFirstHeaderValue(VARY);
-        Map<String, String> resolvedVaryHeaders = new HashMap<String, String>();
-        if (varyHeader.isPresent()) {
-            String varyValue = varyHeader.get();
-            if (varyValue.equals("*")) {
-                return Vary.ALL;
-            }
-            String[] varies = varyValue.split(",");
-            for (String vary : varies) {
-                Optional<String> value = requestHeaders.getFirstHeaderValue(vary);
-                value.ifPresent(s -> resolvedVaryHeaders.put(vary, s));
-            }
-        }
-        if (request.getChallenge().isPresent() && Boolean.getBoolean("Vary.authorization")) {
-            resolvedVaryHeaders.put(HeaderConstants.AUTHORIZATION, request.getChallenge().get().getIdentifier());
-        }
-        return new Vary(resolvedVaryHeaders);
+        return new Key(uri, Vary.of(response.getHeaders().getFirstHeaderValue(VARY).orElse(null), request));
     }
 
-
     Key(URI uri, Vary vary) {
         Objects.requireNonNull(uri, "URI may not be null");
         Objects.requireNonNull(vary, "Vary may not be null");
         this.uri = uri;
         this.vary = vary;
+        init();
+    }
+
+    private void init() {
+        hash = Hashing.combine(Hashing.hash(uri.toString()), vary.hash64());
     }
 
     public URI getURI() {
@@ -89,6 +77,13 @@ public final class Key implements Serializable {
         return vary;
     }
 
+    /**
+     * @return a 64 bit hash of the URI and the variation, equal keys have equal hashes.
+     */
+    public long hash64() {
+        return hash;
+    }
+
     @Override
     public String toString() {
        return toProperties().toString();
@@ -105,21 +100,12 @@ public final class Key implements Serializable {
 
         Key key = (Key) o;
 
-        if (uri != null ? !uri.equals(key.uri) : key.uri != null) {
-            return false;
-        }
-        if (vary != null ? !vary.equals(key.vary) : key.vary != null) {
-            return false;
-        }
-
-        return true;
+        return hash == key.hash && uri.toString().equals(key.uri.toString()) && vary.equals(key.vary);
     }
 
     @Override
     public int hashCode() {
-        int result = uri != null ? uri.hashCode() : 0;
-        result = 31 * result + (vary != null ? vary.hashCode() : 0);
-        return result;
+        return (int) (hash ^ (hash >>> 32));
     }
 
     private void writeObject(ObjectOutputStream out) throws IOException {
@@ -132,6 +118,7 @@ public final class Key implements Serializable {
         Key key = parse(properties);
         uri = key.getURI();
         vary = key.getVary();
+        init();
     }
 
     public static Key parse(Properties properties) {
@@ -16,8 +16,10 @@
 
 package org.codehaus.httpcache4j.cache;
 
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
-import java.text.Collator;
 import java.util.*;
 
 import org.codehaus.httpcache4j.HTTPRequest;
@@ -26,6 +28,7 @@ import org.codehaus.httpcache4j.HeaderConstants;
 import org.codehaus.httpcache4j.Headers;
 import org.codehaus.httpcache4j.mutable.MutableHeaders;
 import org.codehaus.httpcache4j.preference.Preference;
+import org.codehaus.httpcache4j.util.Hashing;
 
 /**
  * Represents a HTTP Variation.
@@ -33,12 +36,23 @@ import org.codehaus.httpcache4j.preference.Preference;
  * E.G Accept headers.
  * Implementors of storage engines needs to have knowledge of this class.
  * See {@link Key} for how it's used.
+ * <p>
+ * The headers are kept as arrays sorted by name, with a 64 bit hash computed up front,
+ * since variations are hashed and compared on every lookup.
  *
  * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
  */
 public final class Vary implements Serializable {
+    // The serial version of the class before it had a serialized form, so existing persistent caches can still be read.
+    private static final long serialVersionUID = -8322184206805884840L;
     public static final Vary ALL = new Vary(Collections.singletonMap("ALL", "true"));
-    private final Map<String, String> varyHeaders;
+    private static final Comparator<String> ORDER = new VaryComparator();
+
+    private final String[] names;
+    private final String[] values;
+    private final long hash;
+    // Only set on a Vary read from the layout before SerializedForm, which readResolve replaces.
+    private transient Map<String, String> legacyHeaders;
 
     /**
      * Default constructor (no variations)
@@ -53,25 +67,69 @@ public final class Vary implements Serializable {
      * @param headers the vary headers as keys from the response, with request headers as values.
      */
     public Vary(final Map<String, String> headers) {
-        Objects.requireNonNull(headers, "Headers may not be null");
-        Map<String, String> h = new TreeMap<String, String>(new VaryComparator());
-        for (Map.Entry<String, String> entry : headers.entrySet()) {
-            String value = normalizeValue(entry.getKey(), entry.getValue());
-            h.put(entry.getKey(), value);
-        }
-        varyHeaders = Collections.unmodifiableMap(h);
+        this(sorted(Objects.requireNonNull(headers, "Headers may not be null").entrySet()));
     }
 
     public Vary(Headers headers) {
-        Map<String, String> h = new TreeMap<String, String>(new VaryComparator());
+        this(sorted(asEntries(headers)));
+    }
+
+    private Vary(SortedMap<String, String> headers) {
+        names = headers.keySet().toArray(new String[headers.size()]);
+        values = headers.values().toArray(new String[headers.size()]);
+        long h = names.length;
+        for (int i = 0; i < names.length; i++) {
+            h = Hashing.combine(h, Hashing.hash(names[i]));
+            h = Hashing.combine(h, values[i] == null ? 0 : Hashing.hash(values[i]));
+        }
+        hash = h;
+    }
+
+    private static SortedMap<String, String> sorted(Iterable<Map.Entry<String, String>> headers) {
+        SortedMap<String, String> sorted = new TreeMap<String, String>(ORDER);
+        for (Map.Entry<String, String> entry : headers) {
+            sorted.put(entry.getKey(), normalizeValue(entry.getKey(), entry.getValue()));
+        }
+        return sorted;
+    }
+
+    private static List<Map.Entry<String, String>> asEntries(Headers headers) {
+        List<Map.Entry<String, String>> entries = new ArrayList<>();
         for (Header header : headers) {
-            String value = normalizeValue(header.getName(), header.getValue());
-            h.put(header.getName(), value);
+            entries.add(new AbstractMap.SimpleImmutableEntry<>(header.getName(), header.getValue()));
+        }
+        return entries;
+    }
+
+    /**
+     * The variation a request selects, for responses with the given {@code Vary} header.
+     * The request headers named by the {@code Vary} header are normalized the same way as by the constructors,
+     * so two requests select the same variation exactly when their variations are equal,
+     * which lets storages find a variant with a single lookup instead of trying {@link #matches(HTTPRequest)} on every variant.
+     *
+     * @param varyHeader the value of the {@code Vary} header of the response, {@code null} if it has none.
+     * @return {@link #ALL} if the response varies on everything.
+     */
+    public static Vary of(String varyHeader, HTTPRequest request) {
+        Headers requestHeaders = request.getAllHeaders();
+        Map<String, String> resolvedVaryHeaders = new HashMap<String, String>();
+        if (varyHeader != null) {
+            if (varyHeader.equals("*")) {
+                return Vary.ALL;
+            }
+            String[] varies = varyHeader.split(",");
+            for (String vary : varies) {
+                Optional<String> value = requestHeaders.getFirstHeaderValue(vary);
+                value.ifPresent(s -> resolvedVaryHeaders.put(vary, s));
+            }
+        }
+        if (request.getChallenge().isPresent() && Boolean.getBoolean("Vary.authorization")) {
+            resolvedVaryHeaders.put(HeaderConstants.AUTHORIZATION, request.getChallenge().get().getIdentifier());
         }
-        varyHeaders = Collections.unmodifiableMap(h);
+        return new Vary(resolvedVaryHeaders);
     }
 
-    private String normalizeValue(String name, String value) {
+    private static String normalizeValue(String name, String value) {
         if (name.toLowerCase().startsWith("accept")) {
             List<Preference> parse = Preference.parse(new Header(name, value));
             value = Preference.toHeader(name, parse).getValue();
@@ -80,11 +138,11 @@ public final class Vary implements Serializable {
     }
 
     public int size() {
-        return varyHeaders.size();
+        return names.length;
     }
 
     public boolean isEmpty() {
-        return varyHeaders.isEmpty();
+        return names.length == 0;
     }
 
     /**
@@ -93,44 +151,48 @@ public final class Vary implements Serializable {
      * @param request the request to analyse
      * @return {@code true} if the request matches the variance. {@code false} if not.
      */
-    //todo: cleanup this
     public boolean matches(final HTTPRequest request) {
-        if (varyHeaders.containsKey("ALL")) return false;
+        if (equals(ALL)) return false;
         Headers headers = request.getAllHeaders();
 
-        for (Map.Entry<String, String> varyEntry : varyHeaders.entrySet()) {
-            if (request.getChallenge().isPresent() && varyEntry.getKey().equals(HeaderConstants.AUTHORIZATION)) {
-                if (!request.getChallenge().get().getIdentifier().equals(varyEntry.getValue())) {
+        for (int i = 0; i < names.length; i++) {
+            if (request.getChallenge().isPresent() && names[i].equals(HeaderConstants.AUTHORIZATION)) {
+                if (!request.getChallenge().get().getIdentifier().equals(values[i])) {
                     return false;
                 }
             }
             else {
-                List<Header> requestHeaderValue = headers.getHeaders(varyEntry.getKey());
-                boolean valid = requestHeaderValue.isEmpty() ? varyEntry.getValue() == null : headers.getFirstHeader(varyEntry.getKey()).get().getValue().equals(varyEntry.getValue());
+                Optional<String> requestValue = headers.getFirstHeaderValue(names[i]);
+                boolean valid = requestValue.isPresent() ? requestValue.get().equals(values[i]) : values[i] == null;
                 if (!valid) {
                     return false;
                 }
             }
         }
-        List<Preference> preferences = new ArrayList<>();
-        preferences.addAll(headers.getAccept());
-        preferences.addAll(headers.getAcceptCharset());
-        preferences.addAll(headers.getAcceptLanguage());
-
-        return !(varyHeaders.isEmpty() && !preferences.isEmpty());
+        if (names.length > 0) {
+            return true;
+        }
+        return headers.getAccept().isEmpty() && headers.getAcceptCharset().isEmpty() && headers.getAcceptLanguage().isEmpty();
     }
 
     @Override
     public String toString() {
         MutableHeaders headers = new MutableHeaders();
-        for (Map.Entry<String, String> entry : varyHeaders.entrySet()) {
-            headers.add(entry.getKey(), entry.getValue());
+        for (int i = 0; i < names.length; i++) {
+            headers.add(names[i], values[i]);
         }
         return headers.toHeaders().toString();
     }
 
+    /**
+     * @return the headers ordered by name.
+     */
     public Map<String, String> getVaryHeaders() {
-        return varyHeaders;
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        for (int i = 0; i < names.length; i++) {
+            headers.put(names[i], values[i]);
+        }
+        return Collections.unmodifiableMap(headers);
     }
 
     public static Vary parse(String value) {
@@ -138,6 +200,13 @@ public final class Vary implements Serializable {
         return new Vary(headers);
     }
 
+    /**
+     * @return a 64 bit hash of the headers, equal variations have equal hashes.
+     */
+    public long hash64() {
+        return hash;
+    }
+
     public boolean equals(final Object o) {
         if (this == o) {
             return true;
@@ -148,30 +217,61 @@ public final class Vary implements Serializable {
 
         Vary vary = (Vary) o;
 
-        if (varyHeaders != null ? !varyHeaders.equals(vary.varyHeaders) : vary.varyHeaders != null) {
-            return false;
-        }
-
-        return true;
+        return hash == vary.hash && Arrays.equals(names, vary.names) && Arrays.equals(values, vary.values);
     }
 
     public int hashCode() {
-        return varyHeaders.hashCode();
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    private Object writeReplace() {
+        return new SerializedForm(getVaryHeaders());
+    }
+
+    /**
+     * Vary is written through its {@link SerializedForm}, so this only reads the layout written before it had one,
+     * which kept the headers in a single map named {@code varyHeaders}.
+     */
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        Object headers = in.readFields().get("varyHeaders", null);
+        if (!(headers instanceof Map)) {
+            throw new InvalidObjectException("Vary is serialized through its SerializedForm");
+        }
+        legacyHeaders = (Map<String, String>) headers;
     }
 
+    private Object readResolve() {
+        return SerializedForm.resolve(legacyHeaders);
+    }
+
+    /**
+     * Orders header names ignoring case first, so the order does not depend on how the server spelled the headers.
+     */
     public static class VaryComparator implements Comparator<String>, Serializable {
         private static final long serialVersionUID = 7826440288680033131L;
-        private transient Collator collator = getCollator();
 
-        private Collator getCollator() {
-            if (collator == null) {
-                collator = Collator.getInstance(Locale.UK);
-            }
-            return collator;
+        public int compare(String one, String two) {
+            int result = one.compareToIgnoreCase(two);
+            return result != 0 ? result : one.compareTo(two);
         }
+    }
 
-        public int compare(String one, String two) {
-            return getCollator().compare(one, two);
+    private static final class SerializedForm implements Serializable {
+        private static final long serialVersionUID = 3158418723410532291L;
+        private final Map<String, String> headers;
+
+        SerializedForm(Map<String, String> headers) {
+            this.headers = new LinkedHashMap<String, String>(headers);
+        }
+
+        private Object readResolve() {
+            return resolve(headers);
+        }
+
+        static Vary resolve(Map<String, String> headers) {
+            Vary vary = new Vary(headers);
+            return vary.equals(ALL) ? ALL : vary;
         }
     }
 }
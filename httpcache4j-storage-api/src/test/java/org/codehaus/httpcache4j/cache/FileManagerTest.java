@@ -60,7 +60,7 @@ public class FileManagerTest {
     public void verifyResolve() {
         File file = fileManager.resolve(URI.create("http://hello.you.bastard.com"));
         assertFalse(file.exists());
-        assertTrue(file.getAbsolutePath().endsWith("files/57/57b16f3b10b61ed6ce07a15268874bc6"));
+        assertTrue(file.getAbsolutePath().endsWith("files/55/55d7bc134558f3da"));
     }
 
 
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2009. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.cache;
+
+import org.codehaus.httpcache4j.*;
+import org.junit.Test;
+
+import java.net.URI;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public class FreshnessCalculatorTest {
+    private final LocalDateTime now = LocalDateTime.of(2010, 2, 3, 10, 0, 0, 0);
+
+    @Test
+    public void maxAgeOverridesExpires() {
+        Headers headers = dated(now).add(HeaderConstants.CACHE_CONTROL, "max-age=0").add(HeaderUtils.toHttpDate(HeaderConstants.EXPIRES, now.plusHours(1)));
+        assertEquals(0, FreshnessCalculator.PRIVATE.getFreshnessLifetime(response(headers)));
+    }
+
+    @Test
+    public void expiresIsRelativeToDate() {
+        Headers headers = dated(now).add(HeaderUtils.toHttpDate(HeaderConstants.EXPIRES, now.plusHours(1)));
+        assertEquals(3600, FreshnessCalculator.PRIVATE.getFreshnessLifetime(response(headers)));
+    }
+
+    @Test
+    public void sMaxAgeIsOnlyUsedBySharedCaches() {
+        HTTPResponse response = response(dated(now).add(HeaderConstants.CACHE_CONTROL, "max-age=60, s-maxage=10"));
+        assertEquals(60, FreshnessCalculator.PRIVATE.getFreshnessLifetime(response));
+        assertEquals(10, FreshnessCalculator.SHARED.getFreshnessLifetime(response));
+    }
+
+    @Test
+    public void initialAgeUsesAgeHeaderAndResponseDelay() {
+        HTTPResponse response = response(dated(utc(now)).add(HeaderConstants.AGE, "20"));
+        assertEquals(20, FreshnessCalculator.PRIVATE.getCorrectedInitialAge(response, now, now));
+        assertEquals(25, FreshnessCalculator.PRIVATE.getCorrectedInitialAge(response, now, now.plusSeconds(5)));
+    }
+
+    @Test
+    public void initialAgeCorrectsForClockSkew() {
+        HTTPResponse response = response(dated(utc(now).minusSeconds(30)));
+        assertEquals(30, FreshnessCalculator.PRIVATE.getCorrectedInitialAge(response, now, now));
+        HTTPResponse ahead = response(dated(utc(now).plusSeconds(30)));
+        assertEquals(0, FreshnessCalculator.PRIVATE.getCorrectedInitialAge(ahead, now, now));
+    }
+
+    @Test
+    public void invalidAgeIsIgnored() {
+        HTTPResponse response = response(dated(utc(now)).add(HeaderConstants.AGE, "foo"));
+        assertEquals(0, FreshnessCalculator.PRIVATE.getCorrectedInitialAge(response, now, now));
+    }
+
+    @Test
+    public void requestDirectives() {
+        assertTrue(FreshnessCalculator.PRIVATE.isAcceptable(request(null), 60, 30));
+        assertTrue(FreshnessCalculator.PRIVATE.isAcceptable(request("max-age=30"), 60, 30));
+        assertFalse(FreshnessCalculator.PRIVATE.isAcceptable(request("max-age=29"), 60, 30));
+        assertTrue(FreshnessCalculator.PRIVATE.isAcceptable(request("min-fresh=30"), 60, 30));
+        assertFalse(FreshnessCalculator.PRIVATE.isAcceptable(request("min-fresh=31"), 60, 30));
+    }
+
+    @Test
+    public void cacheItemIsStaleWhenInitialAgeUsesUpItsLifetime() {
+        HTTPResponse response = response(dated(utc(now)).add(HeaderConstants.CACHE_CONTROL, "max-age=60").add(HeaderConstants.AGE, "50"));
+        DefaultCacheItem item = new DefaultCacheItem(response, now);
+        assertEquals(50, item.getAge(now));
+        assertFalse(item.isStale(now.plusSeconds(9)));
+        assertTrue(item.isStale(now.plusSeconds(10)));
+    }
+
+    private HTTPRequest request(String cacheControl) {
+        HTTPRequest request = new HTTPRequest(URI.create("http://example.com/"));
+        if (cacheControl != null) {
+            request = request.headers(new Headers().add(HeaderConstants.CACHE_CONTROL, cacheControl));
+        }
+        return request;
+    }
+
+    private static Headers dated(LocalDateTime date) {
+        return new Headers().add(HeaderUtils.toHttpDate(HeaderConstants.DATE, date));
+    }
+
+    private static HTTPResponse response(Headers headers) {
+        return new HTTPResponse(Status.OK, headers);
+    }
+
+    private static LocalDateTime utc(LocalDateTime localTime) {
+        return localTime.atZone(ZoneId.systemDefault()).withZoneSameInstant(ZoneOffset.UTC).toLocalDateTime();
+    }
+}
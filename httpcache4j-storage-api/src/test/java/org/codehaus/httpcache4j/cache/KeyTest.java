@@ -58,4 +58,24 @@ public class KeyTest {
         Assert.assertEquals("balle", key1.getVary().getVaryHeaders().get(HeaderConstants.AUTHORIZATION));
         System.setProperty("Vary.authorization", "");
     }
+
+    @Test
+    public void equalKeysHaveEqualHashes() {
+        Key key1 = Key.create(URI.create("foo"), new Vary(Collections.singletonMap("Accept-Language", "en")));
+        Key key2 = Key.parse(key1.toProperties());
+        Assert.assertEquals(key1, key2);
+        Assert.assertEquals(key1.hash64(), key2.hash64());
+        Assert.assertEquals(key1.hashCode(), key2.hashCode());
+    }
+
+    @Test
+    public void keysDifferingInVariationAreNotEqual() {
+        Key key1 = Key.create(URI.create("foo"), new Vary(Collections.singletonMap("Accept-Language", "en")));
+        Key key2 = Key.create(URI.create("foo"), new Vary(Collections.singletonMap("Accept-Language", "no")));
+        Key key3 = Key.create(URI.create("bar"), new Vary(Collections.singletonMap("Accept-Language", "en")));
+        Assert.assertNotEquals(key1, key2);
+        Assert.assertNotEquals(key1.hash64(), key2.hash64());
+        Assert.assertNotEquals(key1, key3);
+        Assert.assertNotEquals(key1.hash64(), key3.hash64());
+    }
 }
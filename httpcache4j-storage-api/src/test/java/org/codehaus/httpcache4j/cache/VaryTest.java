@@ -4,13 +4,17 @@ import org.codehaus.httpcache4j.*;
 import org.codehaus.httpcache4j.preference.Preference;
 import org.junit.Test;
 import org.junit.Assert;
+import org.codehaus.httpcache4j.util.SerializationUtils;
 import org.codehaus.httpcache4j.util.TestUtil;
 
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Collections;
 import java.net.URI;
 import java.io.File;
+import java.io.InputStream;
 
 import static org.junit.Assert.*;
 
@@ -159,6 +163,18 @@ public class VaryTest {
         assertTrue("Did not match request", new Vary(map).matches(request));
     }
 
+    @Test
+    public void variationOfRequest() {
+        HTTPRequest request = new HTTPRequest(URI.create("http://foo.com")).headers(new Headers().add("Accept-Language", "en").add("Accept", "application/json"));
+        assertEquals(new Vary(Collections.singletonMap("Accept-Language", "en")), Vary.of("Accept-Language", request));
+        assertEquals(new Vary(), Vary.of(null, request));
+        assertEquals(new Vary(), Vary.of("Accept-Charset", request));
+        assertSame(Vary.ALL, Vary.of("*", request));
+        Vary vary = Vary.of("Accept", request);
+        assertTrue(vary.matches(request));
+        assertEquals(vary, Vary.of("Accept", request.headers(new Headers().add("Accept", "application/json"))));
+    }
+
     @Test
     public void All() {
         Vary STAR = Vary.ALL;
@@ -182,4 +198,48 @@ public class VaryTest {
         assertEquals(file2.getAbsolutePath(), file3.getAbsolutePath());
         assertFalse(file4.getAbsolutePath().equals(file3.getAbsolutePath()));
     }
+
+    @Test
+    public void headersAreOrderedByNameRegardlessOfInsertionOrder() {
+        Map<String, String> one = new LinkedHashMap<String, String>();
+        one.put("X-Foo", "foo");
+        one.put("accept-language", "en");
+        Map<String, String> two = new LinkedHashMap<String, String>();
+        two.put("accept-language", "en");
+        two.put("X-Foo", "foo");
+        Vary vary = new Vary(one);
+        assertEquals(vary, new Vary(two));
+        assertEquals(vary.hash64(), new Vary(two).hash64());
+        assertEquals("[accept-language, X-Foo]", vary.getVaryHeaders().keySet().toString());
+        assertEquals(vary, Vary.parse(vary.toString()));
+    }
+
+    @Test
+    public void serializedVaryIsEqual() {
+        Vary vary = new Vary(Collections.singletonMap("Accept-Language", "en"));
+        Vary copy = (Vary) SerializationUtils.deserialize(SerializationUtils.serialize(vary));
+        assertEquals(vary, copy);
+        assertEquals(vary.hash64(), copy.hash64());
+        assertSame(Vary.ALL, SerializationUtils.deserialize(SerializationUtils.serialize(Vary.ALL)));
+    }
+
+    /**
+     * vary-legacy.ser is a list of the variations below, written before Vary had a serialized form.
+     */
+    @Test
+    public void varyWrittenWithTheLegacyLayoutCanBeRead() throws Exception {
+        List<?> varies;
+        try (InputStream stream = getClass().getResourceAsStream("vary-legacy.ser")) {
+            varies = (List<?>) SerializationUtils.deserialize(stream);
+        }
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Accept-Language", "en");
+        headers.put("Accept-Encoding", "gzip");
+        Vary vary = new Vary(headers);
+        assertEquals(3, varies.size());
+        assertEquals(vary, varies.get(0));
+        assertEquals(vary.hash64(), ((Vary) varies.get(0)).hash64());
+        assertEquals(new Vary(), varies.get(1));
+        assertSame(Vary.ALL, varies.get(2));
+    }
 }
@@ -6,7 +6,7 @@ import org.asynchttpclient.request.body.generator.InputStreamBodyGenerator;
 import org.codehaus.httpcache4j.*;
 import org.codehaus.httpcache4j.auth.Authenticator;
 import org.codehaus.httpcache4j.auth.ProxyAuthenticator;
-import org.codehaus.httpcache4j.resolver.AbstractResponseResolver;
+import org.codehaus.httpcache4j.resolver.AbstractAsyncResponseResolver;
 import org.codehaus.httpcache4j.resolver.ConnectionConfiguration;
 import org.codehaus.httpcache4j.resolver.ResolverConfiguration;
 import org.codehaus.httpcache4j.resolver.ResponseCreator;
@@ -16,8 +16,7 @@ import java.io.InputStream;
 import java.net.URI;
 import java.util.List;
 import java.util.Optional;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
@@ -28,7 +27,7 @@ import static org.codehaus.httpcache4j.HTTPMethod.*;
  * @author <a href="mailto:erlend@escenic.com">Erlend Hamnaberg</a>
  * @version $Revision: $
  */
-public class NingResponseResolver extends AbstractResponseResolver {
+public class NingResponseResolver extends AbstractAsyncResponseResolver {
     private final AsyncHttpClient client;
 
     protected NingResponseResolver(ResolverConfiguration configuration, DefaultAsyncHttpClientConfig.Builder builder, Consumer<DefaultAsyncHttpClientConfig.Builder> configF) {
@@ -85,9 +84,8 @@ public class NingResponseResolver extends AbstractResponseResolver {
     }
 
     @Override
-    protected HTTPResponse resolveImpl(HTTPRequest request) throws IOException {
-        Future<Response> responseFuture = execute(request);
-        return translate(responseFuture);
+    protected CompletableFuture<HTTPResponse> resolveImplAsync(HTTPRequest request) {
+        return execute(request).thenApply(this::translate);
     }
 
     public void shutdown() {
@@ -98,24 +96,15 @@ public class NingResponseResolver extends AbstractResponseResolver {
         }
     }
 
-    private HTTPResponse translate(Future<Response> responseFuture) throws IOException {
-        try {
-            Response response = responseFuture.get();
-            StatusLine line = new StatusLine(Status.valueOf(response.getStatusCode()), response.getStatusText());
-            HttpHeaders headers = response.getHeaders();
-            Optional<InputStream> stream = Optional.ofNullable(response.getResponseBodyAsStream());
-            List<Header> headerList = StreamSupport.stream(headers.spliterator(), false).map(e -> new Header(e.getKey(), e.getValue())).collect(Collectors.toList());
-            return ResponseCreator.createResponse(line, new Headers(headerList), stream);
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-        } catch (ExecutionException e) {
-            throw new HTTPException(e.getCause());
-        }
-
-        throw new HTTPException("Not possible to get response");
+    private HTTPResponse translate(Response response) {
+        StatusLine line = new StatusLine(Status.valueOf(response.getStatusCode()), response.getStatusText());
+        HttpHeaders headers = response.getHeaders();
+        Optional<InputStream> stream = Optional.ofNullable(response.getResponseBodyAsStream());
+        List<Header> headerList = StreamSupport.stream(headers.spliterator(), false).map(e -> new Header(e.getKey(), e.getValue())).collect(Collectors.toList());
+        return ResponseCreator.createResponse(line, new Headers(headerList), stream);
     }
 
-    private Future<Response> execute(final HTTPRequest request) throws IOException {
+    private CompletableFuture<Response> execute(final HTTPRequest request) {
         BoundRequestBuilder builder = builder(request.getNormalizedURI(), request.getMethod());
         if (request.getMethod().canHavePayload()) {
             request.getPayload().ifPresent(p -> {
@@ -129,7 +118,7 @@ public class NingResponseResolver extends AbstractResponseResolver {
         for (Header header : request.getAllHeaders()) {
             builder.addHeader(header.getName(), header.getValue());
         }
-        return builder.execute();
+        return builder.execute().toCompletableFuture();
     }
 
     private BoundRequestBuilder builder(URI uri, HTTPMethod method) {
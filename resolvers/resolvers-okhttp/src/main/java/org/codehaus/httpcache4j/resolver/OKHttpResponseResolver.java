@@ -5,17 +5,17 @@ import okio.BufferedSink;
 import org.codehaus.httpcache4j.*;
 import org.codehaus.httpcache4j.Headers;
 import org.codehaus.httpcache4j.payload.Payload;
-import org.codehaus.httpcache4j.util.IOUtils;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetSocketAddress;
 import java.net.Proxy;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
-public class OKHttpResponseResolver extends AbstractResponseResolver {
+public class OKHttpResponseResolver extends AbstractAsyncResponseResolver {
     private final OkHttpClient client;
 
     public OKHttpResponseResolver(ResolverConfiguration config) {
@@ -62,6 +62,27 @@ public class OKHttpResponseResolver extends AbstractResponseResolver {
         return transformResponse(response);
     }
 
+    @Override
+    protected CompletableFuture<HTTPResponse> resolveImplAsync(HTTPRequest request) {
+        final CompletableFuture<HTTPResponse> future = new CompletableFuture<>();
+        client.newCall(transformRequest(request)).enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                future.completeExceptionally(e);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                try {
+                    future.complete(transformResponse(response));
+                } catch (IOException | RuntimeException e) {
+                    future.completeExceptionally(e);
+                }
+            }
+        });
+        return future;
+    }
+
     private Request transformRequest(HTTPRequest request) {
         Request.Builder builder = new Request.Builder();
         builder.addHeader(HeaderConstants.USER_AGENT, getConfiguration().getUserAgent());
@@ -109,7 +130,7 @@ public class OKHttpResponseResolver extends AbstractResponseResolver {
 
         @Override
         public void writeTo(BufferedSink bufferedSink) throws IOException {
-            IOUtils.copy(payload.getInputStream(), bufferedSink.outputStream());
+            payload.transferTo(bufferedSink);
         }
     }
     private static class PayloadResponseBody implements Payload {
@@ -23,6 +23,7 @@ import org.codehaus.httpcache4j.annotation.Beta;
 import org.codehaus.httpcache4j.payload.FilePayload;
 import org.codehaus.httpcache4j.payload.Payload;
 import org.codehaus.httpcache4j.util.Pair;
+import org.codehaus.httpcache4j.util.Preconditions;
 import org.codehaus.httpcache4j.util.PropertiesLoader;
 
 import java.io.*;
@@ -30,22 +31,47 @@ import java.net.URI;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.stream.Stream;
-import java.util.stream.StreamSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Completely file-persistent storage, also for metadata.
- *
+ * <p>
+ * The metadata is also kept in an index in memory, which is rebuilt from the metadata files when the storage is created,
+ * and kept up to date as it is written. Lookups and {@link #size()} use only the index,
+ * so a hit costs no more disk access than reading the payload.
+ * The storage directory may not be shared with other storages while in use.
+ * <p>
+ * Reads do not lock. Writes lock one of a number of stripes, chosen by the URI, so writes to different URIs
+ * run in parallel. Files are written to a temporary file and moved in place, see {@link FileManager},
+ * so readers never see a partly written payload or metadata file.
  *
  * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
  */
 @Beta
 public class FilePersistentCacheStorage implements CacheStorage {
     private final FileManager fileManager;
+    private final ConcurrentMap<URI, Map<Vary, CacheItem>> index = new ConcurrentHashMap<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final ReentrantLock[] locks;
 
     public FilePersistentCacheStorage(final File storageDirectory) {
+        this(storageDirectory, 16);
+    }
+
+    /**
+     * @param concurrencyLevel the expected number of concurrent writers, rounded up to the closest power of two.
+     */
+    public FilePersistentCacheStorage(final File storageDirectory, int concurrencyLevel) {
+        Preconditions.checkArgument(concurrencyLevel > 0, "Concurrency level must be positive");
         fileManager = new FileManager(storageDirectory);
+        locks = new ReentrantLock[Integer.highestOneBit(concurrencyLevel * 2 - 1)];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        rebuildIndex();
     }
 
     FileManager getFileManager() {
@@ -69,8 +95,10 @@ public class FilePersistentCacheStorage implements CacheStorage {
     }
 
     @Override
-    public synchronized HTTPResponse insert(HTTPRequest request, HTTPResponse response) {
+    public HTTPResponse insert(HTTPRequest request, HTTPResponse response) {
         Key key = Key.create(request, response);
+        ReentrantLock lock = lockFor(key.getURI());
+        lock.lock();
         try {
             HTTPResponse storedResponse = createCacheableResponse(key, response);
             SerializableCacheItem item = createCacheItem(storedResponse);
@@ -78,26 +106,26 @@ public class FilePersistentCacheStorage implements CacheStorage {
             return item.getResponse();
         } catch (IOException e) {
             throw new HTTPException(e);
+        } finally {
+            lock.unlock();
         }
     }
 
+    /**
+     * Updates usually come with the payload that is already stored, anything else is stored like an insert.
+     */
+    private boolean isStored(Key key, HTTPResponse response) {
+        return response.getPayload().map(p -> p instanceof FilePayload && ((FilePayload) p).getFile().equals(fileManager.resolve(key))).orElse(true);
+    }
+
     private void writeItem(Key key, SerializableCacheItem item) throws IOException {
-        File metadata = new File(fileManager.resolve(key).getAbsolutePath() + ".metadata");
-        if (!metadata.getParentFile().exists()) {
-            fileManager.ensureDirectoryExists(metadata.getParentFile());
-        }
-        FileWriter writer = null;
-        try {
-            Properties properties = new Properties();
-            properties.putAll(key.toProperties());
-            properties.putAll(item.toProperties());
-            writer = new FileWriter(metadata);
-            properties.store(writer, null);
-        } finally {
-            if (writer != null) {
-                writer.close();
-            }
-        }
+        Properties properties = new Properties();
+        properties.putAll(key.toProperties());
+        properties.putAll(item.toProperties());
+        ByteArrayOutputStream metadata = new ByteArrayOutputStream();
+        properties.store(metadata, null);
+        fileManager.createFile(metadataFile(key), new ByteArrayInputStream(metadata.toByteArray()));
+        index(key, item);
     }
 
     private Pair<Key, CacheItem> readItem(File metadata) {
@@ -108,121 +136,206 @@ public class FilePersistentCacheStorage implements CacheStorage {
         return null;
     }
 
+    private File metadataFile(Key key) {
+        return new File(fileManager.resolve(key).getAbsolutePath() + ".metadata");
+    }
+
+    private void index(Key key, CacheItem item) {
+        Map<Vary, CacheItem> variants = index.computeIfAbsent(key.getURI(), uri -> new ConcurrentHashMap<>(2));
+        if (variants.put(key.getVary(), item) == null) {
+            size.incrementAndGet();
+        }
+    }
+
+    private void unindex(URI uri) {
+        Map<Vary, CacheItem> variants = index.remove(uri);
+        if (variants != null) {
+            size.addAndGet(-variants.size());
+        }
+    }
+
+    /**
+     * Reads every metadata file, skipping the ones that can not be parsed,
+     * and deletes the temporary files left behind by writes that never finished.
+     * Metadata that is not where its key resolves, as it was written by a version that spread the files differently,
+     * is moved there with its payload, unless the key was written again since, see {@link #relocate(File, Key, CacheItem)}.
+     */
+    private void rebuildIndex() {
+        index.clear();
+        size.set(0);
+        Map<File, Pair<Key, CacheItem>> misplaced = new LinkedHashMap<>();
+        try {
+            Files.walkFileTree(fileManager.getBaseDirectory().toPath(), new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    if (file.toFile().getName().endsWith(".tmp")) {
+                        Files.deleteIfExists(file);
+                    }
+                    else if (isMetdata(file)) {
+                        try {
+                            Pair<Key, CacheItem> item = readItem(file.toFile());
+                            if (item != null && !file.toFile().getAbsoluteFile().equals(metadataFile(item.getKey()).getAbsoluteFile())) {
+                                misplaced.put(file.toFile(), item);
+                            }
+                            else if (item != null) {
+                                index(item.getKey(), item.getValue());
+                            }
+                        } catch (RuntimeException ignore) {
+                        }
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            for (Map.Entry<File, Pair<Key, CacheItem>> entry : misplaced.entrySet()) {
+                relocate(entry.getKey(), entry.getValue().getKey(), entry.getValue().getValue());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Moves misplaced metadata and its payload to where the key resolves, so invalidations and updates of the key reach them.
+     * If the key is already stored where it resolves, that copy is the newer one, and the misplaced files are deleted,
+     * as they are if the payload can not be moved.
+     */
+    private void relocate(File metadata, Key key, CacheItem item) throws IOException {
+        HTTPResponse response = item.getResponse();
+        Payload payload = response.getPayload().orElse(null);
+        File payloadFile = payload instanceof FilePayload ? ((FilePayload) payload).getFile() : null;
+        if (get(key) == null) {
+            try {
+                if (payloadFile != null) {
+                    File file = fileManager.moveFile(payloadFile, key);
+                    response = response.withPayload(file == null ? null : new FilePayload(file, payload.getMimeType()));
+                    payloadFile = null;
+                }
+                writeItem(key, new SerializableCacheItem(new DefaultCacheItem(response, item.getCachedTime())));
+            } catch (IOException ignore) {
+                //Dropped with the misplaced files below.
+            }
+        }
+        if (payloadFile != null) {
+            fileManager.delete(payloadFile);
+        }
+        fileManager.delete(metadata);
+    }
+
     @Override
-    public synchronized HTTPResponse update(HTTPRequest request, HTTPResponse response) {
+    public HTTPResponse update(HTTPRequest request, HTTPResponse response) {
         Key key = Key.create(request, response);
+        ReentrantLock lock = lockFor(key.getURI());
+        lock.lock();
         try {
-            SerializableCacheItem item = createCacheItem(response);
+            HTTPResponse storedResponse = isStored(key, response) ? response : createCacheableResponse(key, response);
+            SerializableCacheItem item = createCacheItem(storedResponse);
             writeItem(key, item);
+            return item.getResponse();
         } catch (IOException e) {
             throw new HTTPException(e);
+        } finally {
+            lock.unlock();
         }
-
-        return get(key).getResponse();
     }
 
     @Override
-    public synchronized CacheItem get(Key key) {
-        File metadata = new File(fileManager.resolve(key).getAbsolutePath() + ".metadata");
-        Pair<Key, CacheItem> pair = readItem(metadata);
-        if (pair != null) {
-            return pair.getValue();
-        }
-        return null;
+    public CacheItem get(Key key) {
+        Map<Vary, CacheItem> variants = index.get(key.getURI());
+        return variants != null ? variants.get(key.getVary()) : null;
     }
 
     @Override
-    public synchronized CacheItem get(HTTPRequest request) {
+    public CacheItem get(HTTPRequest request) {
         Optional<Pair<Key, CacheItem>> item = getItem(request);
         return item.map(Pair::getValue).orElse(null);
     }
 
-    synchronized Optional<Pair<Key, CacheItem>> getItem(HTTPRequest request) {
-        File uri = fileManager.resolve(request.getNormalizedURI());
-        if (uri.exists()) {
-            DirectoryStream<Path> paths = getMetadata(uri);
-            Stream<Path> stream = StreamSupport.stream(paths.spliterator(), false);
-            return stream.map(f -> readItem(f.toFile())).filter(p -> p != null && p.getKey().getVary().matches(request)).findFirst();
+    Optional<Pair<Key, CacheItem>> getItem(HTTPRequest request) {
+        URI uri = request.getNormalizedURI();
+        Map<Vary, CacheItem> variants = index.get(uri);
+        if (variants != null) {
+            for (Map.Entry<Vary, CacheItem> variant : variants.entrySet()) {
+                if (variant.getKey().matches(request)) {
+                    return Optional.of(Pair.of(new Key(uri, variant.getKey()), variant.getValue()));
+                }
+            }
         }
         return Optional.empty();
     }
 
     @Override
-    public synchronized void invalidate(URI uri) {
-        fileManager.clear(uri);
-    }
-
-    synchronized void invalidate(Key key) {
-        fileManager.remove(key);
+    public void invalidate(URI uri) {
+        ReentrantLock lock = lockFor(uri);
+        lock.lock();
+        try {
+            unindex(uri);
+            fileManager.clear(uri);
+        } finally {
+            lock.unlock();
+        }
     }
 
-    @Override
-    public synchronized void clear() {
-        fileManager.clear();
+    void invalidate(Key key) {
+        ReentrantLock lock = lockFor(key.getURI());
+        lock.lock();
+        try {
+            Map<Vary, CacheItem> variants = index.get(key.getURI());
+            if (variants != null && variants.remove(key.getVary()) != null) {
+                size.decrementAndGet();
+                index.remove(key.getURI(), Collections.emptyMap());
+            }
+            metadataFile(key).delete();
+            fileManager.remove(key);
+        } finally {
+            lock.unlock();
+        }
     }
 
+    /**
+     * Takes every lock, in order, so no writes are in progress while the files are deleted.
+     */
     @Override
-    public synchronized int size() {
-        final AtomicInteger count = new AtomicInteger();
-        File base = fileManager.getBaseDirectory();
+    public void clear() {
+        for (ReentrantLock lock : locks) {
+            lock.lock();
+        }
         try {
-            Files.walkFileTree(base.toPath(), new SimpleFileVisitor<Path>(){
-                @Override
-                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                    if (isMetdata(file)) {
-                        count.incrementAndGet();
-                    }
-                    return FileVisitResult.CONTINUE;
-                }
-
-            });
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            index.clear();
+            size.set(0);
+            fileManager.clear();
+        } finally {
+            for (ReentrantLock lock : locks) {
+                lock.unlock();
+            }
         }
-        return count.get();
     }
 
-    private boolean isMetdata(Path file) {
-        return file.toFile().getName().endsWith(".metadata");
+    /**
+     * The lock writes to the URI take, so other tiers can order their own changes to the URI with the writes.
+     */
+    ReentrantLock lockFor(URI uri) {
+        int h = uri.hashCode();
+        h ^= (h >>> 16);
+        return locks[h & (locks.length - 1)];
     }
 
     @Override
-    public synchronized Iterator<Key> iterator() {
-        File base = fileManager.getBaseDirectory();
-        Stream<Path> stream = list(base.toPath()).flatMap(this::list).flatMap(p -> list(p, Optional.of(this::isMetdata)));
-        Stream<Key> keyStream = stream.map(p -> readItem(p.toFile())).map(Pair::getKey);
-        return keyStream.iterator();
+    public int size() {
+        return size.get();
     }
 
-    private Stream<Path> list(Path d)  {
-        try {
-            return Files.list(d);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-    }
-    private Stream<Path> list(Path d, Optional<DirectoryStream.Filter<Path>> ff)  {
-        if (ff.isPresent()) {
-            try {
-                return StreamSupport.stream(Files.newDirectoryStream(d, ff.get()).spliterator(), false);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-        }
-        return list(d);
+    private boolean isMetdata(Path file) {
+        return file.toFile().getName().endsWith(".metadata");
     }
 
     @Override
-    public void shutdown() {
+    public Iterator<Key> iterator() {
+        return index.entrySet().stream()
+                .flatMap(entry -> entry.getValue().keySet().stream().map(vary -> new Key(entry.getKey(), vary)))
+                .iterator();
     }
 
-    private DirectoryStream<Path> getMetadata(File uri) {
-        DirectoryStream<Path> paths;
-        try {
-            paths = Files.newDirectoryStream(uri.toPath(), this::isMetdata);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-        return paths;
+    @Override
+    public void shutdown() {
     }
 }
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2008, The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package org.codehaus.httpcache4j.cache;
+
+import org.codehaus.httpcache4j.HTTPResponse;
+import org.codehaus.httpcache4j.payload.ByteArrayPayload;
+import org.codehaus.httpcache4j.payload.FilePayload;
+import org.codehaus.httpcache4j.payload.Payload;
+import org.codehaus.httpcache4j.util.Preconditions;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * In memory cache storage which keeps small payloads on the heap, and spills large payloads to files.
+ * <p>
+ * Whether a payload is small is decided per response, by {@link Payload#length()},
+ * or for payloads of unknown length by reading up to the threshold from the stream.
+ * Small payloads are served at the speed of the {@link MemoryCacheStorage}, without large ones filling up the heap.
+ * The metadata of both kinds is kept in the same in memory index, only the payloads are on disk.
+ * <p>
+ * The weight of the storage only counts payloads on the heap, so {@link #setMaximumWeight(long)} limits the heap used.
+ * A weigher given to {@link #setMaximumWeight(long, Weigher)} should be wrapped with {@link #onHeap(Weigher)} to do the same.
+ * The storage is not persistent, the files are deleted when it is created and when it is cleared.
+ *
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public class HybridCacheStorage extends MemoryCacheStorage {
+    private final FileManager fileManager;
+    private final long inlineThreshold;
+    // The keys with a payload on disk, guarded by the write lock.
+    private final Set<Key> spilled = new HashSet<>();
+
+    public HybridCacheStorage(File storageDirectory) {
+        this(1000, 10, storageDirectory, 64 * 1024);
+    }
+
+    /**
+     * @param inlineThreshold the largest payload kept on the heap, in bytes.
+     */
+    public HybridCacheStorage(int capacity, int varyCapacity, File storageDirectory, long inlineThreshold) {
+        super(capacity, varyCapacity);
+        Preconditions.checkArgument(inlineThreshold >= 0 && inlineThreshold < Integer.MAX_VALUE, "Inline threshold must be between 0 and Integer.MAX_VALUE");
+        this.fileManager = new FileManager(Objects.requireNonNull(storageDirectory, "Storage directory may not be null"));
+        this.inlineThreshold = inlineThreshold;
+        fileManager.clear();
+        setMaximumWeight(Long.MAX_VALUE, onHeap(Weigher.payloadAndHeaders()));
+    }
+
+    FileManager getFileManager() {
+        return fileManager;
+    }
+
+    public long getInlineThreshold() {
+        return inlineThreshold;
+    }
+
+    /**
+     * @return a weigher which does not count payloads on disk.
+     */
+    public static Weigher onHeap(Weigher weigher) {
+        return (key, item) -> {
+            long weight = weigher.weigh(key, item);
+            Payload payload = item.getResponse().getPayload().orElse(null);
+            return payload instanceof FilePayload ? weight - Math.max(0, payload.length()) : weight;
+        };
+    }
+
+    /**
+     * Small payloads already on the heap are kept, as are payloads already stored in the file of the key.
+     */
+    @Override
+    protected boolean persistablePayload(Key key, Payload payload) {
+        if (payload instanceof ByteArrayPayload) {
+            return payload.length() <= inlineThreshold;
+        }
+        return payload instanceof FilePayload && ((FilePayload) payload).getFile().equals(fileManager.resolve(key));
+    }
+
+    /**
+     * Called without the lock held, so large payloads are written to a temporary file next to the file of the key,
+     * which is moved in place when stored.
+     */
+    @Override
+    protected Payload createPayload(Key key, Payload payload, InputStream stream) throws IOException {
+        if (payload.length() < 0 || payload.length() <= inlineThreshold) {
+            byte[] head = readAtMost(stream, (int) inlineThreshold + 1);
+            if (head.length <= inlineThreshold) {
+                return head.length > 0 ? new ByteArrayPayload(new ByteArrayInputStream(head), payload.getMimeType()) : null;
+            }
+            stream = new SequenceInputStream(new ByteArrayInputStream(head), stream);
+        }
+        File file = fileManager.createFile(spillFile(key), stream);
+        if (file != null && file.exists()) {
+            return new FilePayload(file, payload.getMimeType());
+        }
+        return null;
+    }
+
+    @Override
+    protected HTTPResponse putImpl(Key key, HTTPResponse response) {
+        HTTPResponse resolved = response;
+        Payload payload = response.getPayload().orElse(null);
+        if (payload instanceof FilePayload) {
+            File file = ((FilePayload) payload).getFile();
+            try {
+                if (!file.equals(fileManager.resolve(key))) {
+                    fileManager.remove(key);
+                    File moved = fileManager.moveFile(file, key);
+                    resolved = response.withPayload(moved != null ? new FilePayload(moved, payload.getMimeType()) : null);
+                }
+                spilled.add(key);
+            } catch (IOException e) {
+                file.delete();
+                resolved = response.withPayload(null);
+            }
+        }
+        else if (spilled.remove(key)) {
+            fileManager.remove(key);
+        }
+        return super.putImpl(key, resolved);
+    }
+
+    @Override
+    public void onRemove(Key key) {
+        super.onRemove(key);
+        if (spilled.remove(key)) {
+            fileManager.remove(key);
+        }
+    }
+
+    @Override
+    protected void afterClear() {
+        spilled.clear();
+        fileManager.clear();
+    }
+
+    private File spillFile(Key key) {
+        File file = fileManager.resolve(key);
+        return new File(file.getParentFile(), file.getName() + "." + UUID.randomUUID() + ".spill");
+    }
+
+    private static byte[] readAtMost(InputStream stream, int limit) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.min(limit, 8192));
+        byte[] buffer = new byte[Math.min(limit, 8192)];
+        int read;
+        while (out.size() < limit && (read = stream.read(buffer, 0, Math.min(buffer.length, limit - out.size()))) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
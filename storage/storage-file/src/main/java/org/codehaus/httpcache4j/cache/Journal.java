@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2008, The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package org.codehaus.httpcache4j.cache;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+import java.util.zip.CRC32;
+
+/**
+ * Append only log of the changes to a {@link PersistentCacheStorage} since its last snapshot.
+ * <p>
+ * Every record is a length, a CRC, a type and a properties file.
+ * Records are flushed to the file as they are appended, but not forced to the disk,
+ * and a record that was not written completely ends the journal when it is replayed.
+ * <p>
+ * When a snapshot is taken the journal is {@link #rotate() rotated}, and the rotated records
+ * are {@link #discardRotated() discarded} once the snapshot is written.
+ * If that never happens, the rotated records are replayed before the journal.
+ *
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+final class Journal implements Closeable {
+    static final byte PUT = 1;
+    static final byte REMOVE = 2;
+
+    private final File file;
+    private final File rotated;
+    private DataOutputStream out;
+
+    Journal(File file) {
+        this.file = file;
+        this.rotated = new File(file.getPath() + ".1");
+    }
+
+    synchronized void append(byte type, Properties record) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        record.store(bytes, null);
+        byte[] data = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(data);
+        if (out == null) {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        }
+        out.writeInt(data.length);
+        out.writeInt((int) crc.getValue());
+        out.writeByte(type);
+        out.write(data);
+        out.flush();
+    }
+
+    /**
+     * Starts a new journal. The records written so far are kept until {@link #discardRotated()},
+     * added to the ones rotated before if those were never discarded.
+     */
+    synchronized void rotate() throws IOException {
+        close();
+        if (!file.exists()) {
+            return;
+        }
+        if (rotated.exists()) {
+            try (FileChannel from = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                 FileChannel to = FileChannel.open(rotated.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                long size = from.size();
+                for (long position = 0; position < size; ) {
+                    position += from.transferTo(position, size - position, to);
+                }
+            }
+            Files.delete(file.toPath());
+        }
+        else {
+            Files.move(file.toPath(), rotated.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    synchronized void discardRotated() {
+        rotated.delete();
+    }
+
+    /**
+     * Replays the rotated records, then the journal.
+     * A journal is cut off after the last complete record, so new records are not appended after a torn one.
+     */
+    synchronized void replay(Visitor visitor) throws IOException {
+        close();
+        replay(rotated, visitor);
+        replay(file, visitor);
+    }
+
+    private static void replay(File journal, Visitor visitor) throws IOException {
+        if (!journal.exists()) {
+            return;
+        }
+        long length = journal.length();
+        long position = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journal)))) {
+            while (position < length) {
+                if (length - position < 9) {
+                    break;
+                }
+                int size = in.readInt();
+                int crc = in.readInt();
+                byte type = in.readByte();
+                if (size < 0 || size > length - position - 9 || (type != PUT && type != REMOVE)) {
+                    break;
+                }
+                byte[] data = new byte[size];
+                in.readFully(data);
+                CRC32 actual = new CRC32();
+                actual.update(type);
+                actual.update(data);
+                if ((int) actual.getValue() != crc) {
+                    break;
+                }
+                Properties record = new Properties();
+                record.load(new ByteArrayInputStream(data));
+                visitor.visit(type, record);
+                position += 9 + size;
+            }
+        }
+        if (position < length) {
+            try (FileChannel channel = FileChannel.open(journal.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(position);
+            }
+        }
+    }
+
+    /**
+     * Deletes the journal and the rotated records.
+     */
+    synchronized void delete() {
+        close();
+        file.delete();
+        rotated.delete();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException ignore) {
+            }
+            out = null;
+        }
+    }
+
+    interface Visitor {
+        void visit(byte type, Properties record);
+    }
+}
@@ -21,21 +21,34 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Properties;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.codehaus.httpcache4j.HTTPResponse;
 import org.codehaus.httpcache4j.payload.FilePayload;
 import org.codehaus.httpcache4j.payload.Payload;
 import org.codehaus.httpcache4j.uri.URIBuilder;
+import org.codehaus.httpcache4j.util.LRUMap;
 import org.codehaus.httpcache4j.util.MemoryCache;
 import org.codehaus.httpcache4j.util.Preconditions;
 import org.codehaus.httpcache4j.util.SerializationUtils;
 
 /**
- * Persistent version of the in memory cache. This stores a serialized version of the
- * hashmap on every save. The cache is then restored on startup.
+ * Persistent version of the in memory cache.
+ * <p>
+ * Every item stored or removed is appended to a {@link Journal}.
+ * When the {@link SerializationPolicy} says so, a snapshot of the whole cache is serialized in the background,
+ * and the journal is started over. The cache is restored on startup from the snapshot, and the journal replayed on top.
  *
  * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
  */
@@ -46,7 +59,13 @@ public class PersistentCacheStorage extends MemoryCacheStorage implements Memory
 
     private final File serializationFile;
     private final FileManager fileManager;
+    private final transient Journal journal;
+    private final transient ExecutorService snapshots = Executors.newSingleThreadExecutor(new BackgroundThreadFactory("httpcache4j-snapshot-"));
+    private final transient AtomicBoolean snapshotPending = new AtomicBoolean();
+    private final transient Object snapshotLock = new Object();
 
+    // Changed when the cache is cleared, so a snapshot of the cache from before is not kept. Guarded by the write lock.
+    private transient long generation;
     private transient int modCount;
     private long lastSerialization = 0L;
     private SerializationPolicy serializationPolicy = new DefaultSerializationPolicy();
@@ -67,13 +86,24 @@ public class PersistentCacheStorage extends MemoryCacheStorage implements Memory
         fileManager = new FileManager(Objects.requireNonNull(storageDirectory, "You may not have a null storageDirectory"));
 
         serializationFile = new File(storageDirectory, name);
+        journal = new Journal(new File(storageDirectory, name + ".journal"));
         getCacheFromDisk();
 
-        Runtime.getRuntime().addShutdownHook(new Thread(this::saveCacheToDisk));
+        Runtime.getRuntime().addShutdownHook(new Thread(this::snapshot));
     }
 
+    @Override
     public void onRemove(Key key) {
+        super.onRemove(key);
         fileManager.remove(key);
+        journal(Journal.REMOVE, key.toProperties());
+    }
+
+    @Override
+    protected void onPut(Key key, CacheItem item) {
+        Properties record = key.toProperties();
+        record.putAll(((SerializableCacheItem) item).toProperties());
+        journal(Journal.PUT, record);
     }
 
     FileManager getFileManager() {
@@ -86,7 +116,9 @@ public class PersistentCacheStorage extends MemoryCacheStorage implements Memory
 
     @Override
     protected void afterClear() {
+        generation++;
         serializationFile.delete();
+        journal.delete();
         fileManager.clear();
     }
 
@@ -105,7 +137,7 @@ public class PersistentCacheStorage extends MemoryCacheStorage implements Memory
         HTTPResponse res = super.putImpl(key, resolvedResponse);
         if (serializationPolicy.shouldWePersist(modCount++, lastSerialization)) {
             lastSerialization = System.currentTimeMillis();
-            saveCacheToDisk();
+            requestSnapshot();
         }
         return res;
     }
@@ -129,6 +161,88 @@ public class PersistentCacheStorage extends MemoryCacheStorage implements Memory
         return null;
     }
 
+    /**
+     * Writes a snapshot, and waits for it to be written.
+     * The write lock is only held while the journal is rotated and the cache copied, and while the snapshot is renamed.
+     */
+    public void snapshot() {
+        synchronized (snapshotLock) {
+            long[] snapshotGeneration = new long[1];
+            MemoryCache copy = withWriteLock(() -> {
+                try {
+                    journal.rotate();
+                } catch (IOException e) {
+                    //Ignored, the journal is replayed on top of the snapshot.
+                }
+                snapshotGeneration[0] = generation;
+                return copyOf(cache);
+            });
+            File tmp = new File(serializationFile.getPath() + ".tmp");
+            try {
+                try (FileOutputStream outputStream = new FileOutputStream(tmp)) {
+                    SerializationUtils.serialize(copy, outputStream);
+                }
+                withWriteLock(() -> {
+                    if (generation == snapshotGeneration[0]) {
+                        try {
+                            Files.move(tmp.toPath(), serializationFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                            journal.discardRotated();
+                        } catch (IOException e) {
+                            //Ignored, the rotated journal is kept until the next snapshot.
+                        }
+                    }
+                    return null;
+                });
+            }
+            catch (Exception e) {
+                //Ignored, the rotated journal is kept until the next snapshot.
+            }
+            tmp.delete();
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        super.shutdown();
+        snapshots.shutdown();
+        try {
+            snapshots.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        journal.close();
+    }
+
+    private void journal(byte type, Properties record) {
+        try {
+            journal.append(type, record);
+        } catch (IOException e) {
+            // A snapshot starts a new journal, after the record that may not have been written completely.
+            journal.close();
+            requestSnapshot();
+        }
+    }
+
+    private void requestSnapshot() {
+        if (!snapshots.isShutdown() && snapshotPending.compareAndSet(false, true)) {
+            snapshots.execute(() -> {
+                snapshotPending.set(false);
+                snapshot();
+            });
+        }
+    }
+
+    /**
+     * Copies the maps, not the items, so the snapshot can be serialized while the cache changes.
+     */
+    private MemoryCache copyOf(MemoryCache cache) {
+        MemoryCache copy = new MemoryCache(capacity);
+        for (Map.Entry<URI, LRUMap<Vary, CacheItem>> entry : cache.entrySet()) {
+            copy.put(entry.getKey(), new LRUMap<>(entry.getValue(), getVaryCapacity()));
+        }
+        return copy;
+    }
+
     private Key tmpKey(Key key) {
         return new Key(URIBuilder.fromURI(key.getURI()).addPath(rand.nextInt()+"_httpCache4jTmp").toURI(), key.getVary());
     }
@@ -157,21 +271,53 @@ public class PersistentCacheStorage extends MemoryCacheStorage implements Memory
             else {
                 cache = new MemoryCache(capacity);
             }
+            try {
+                journal.replay(this::replay);
+            } catch (IOException e) {
+                //Ignored, the changes after the snapshot are lost.
+            }
+            relocatePayloads();
+            cache.setEvictionPolicy(evictionPolicy);
             cache.setKeyListener(this);
+            reindex();
         });
     }
 
-    private void saveCacheToDisk() {
-        withReadLock(() -> {
-            cache.setKeyListener(null);
-            try(FileOutputStream outputStream = new FileOutputStream(serializationFile)) {
-                SerializationUtils.serialize(cache, outputStream);
+    /**
+     * Moves the payloads that are not where their keys resolve, which they were written by a version that spread the files differently,
+     * so they are deleted with their items.
+     */
+    private void relocatePayloads() {
+        for (Map.Entry<URI, LRUMap<Vary, CacheItem>> entry : cache.entrySet()) {
+            for (Map.Entry<Vary, CacheItem> variant : entry.getValue().entrySet()) {
+                CacheItem item = variant.getValue();
+                Payload payload = item.getResponse().getPayload().orElse(null);
+                Key key = Key.create(entry.getKey(), variant.getKey());
+                if (payload instanceof FilePayload && !((FilePayload) payload).getFile().getAbsoluteFile().equals(fileManager.resolve(key).getAbsoluteFile())) {
+                    try {
+                        File file = fileManager.moveFile(((FilePayload) payload).getFile(), key);
+                        HTTPResponse response = item.getResponse().withPayload(file == null ? null : new FilePayload(file, payload.getMimeType()));
+                        variant.setValue(new SerializableCacheItem(new DefaultCacheItem(response, item.getCachedTime())));
+                    } catch (IOException ignore) {
+                        //Ignored, the payload is read from where it is.
+                    }
+                }
             }
-            catch (Exception e) {
-                //Ignored, we create a new one.
+        }
+    }
+
+    private void replay(byte type, Properties record) {
+        Key key = Key.parse(record);
+        if (type == Journal.PUT) {
+            LRUMap<Vary, CacheItem> variants = cache.get(key.getURI());
+            if (variants == null) {
+                variants = new LRUMap<>(getVaryCapacity());
+                cache.put(key.getURI(), variants);
             }
-            cache.setKeyListener(this);
-            return null;
-        });
+            variants.put(key.getVary(), new SerializableCacheItem(SerializableCacheItem.parse(record)));
+        }
+        else {
+            cache.remove(key);
+        }
     }
 }
@@ -0,0 +1,312 @@
+/*
+ * Copyright (c) 2008, The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package org.codehaus.httpcache4j.cache;
+
+import org.codehaus.httpcache4j.HTTPRequest;
+import org.codehaus.httpcache4j.HTTPResponse;
+import org.codehaus.httpcache4j.HeaderConstants;
+import org.codehaus.httpcache4j.util.FrequencySketch;
+import org.codehaus.httpcache4j.util.Pair;
+import org.codehaus.httpcache4j.util.Preconditions;
+
+import java.io.File;
+import java.net.URI;
+import java.time.LocalDateTime;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * Two tiers of storage, a bounded {@link MemoryCacheStorage} in front of a {@link FilePersistentCacheStorage}.
+ * <p>
+ * Responses are stored in memory. Items the memory tier evicts to make room are demoted to disk instead of being lost,
+ * and responses too heavy for the memory tier on their own go straight to disk.
+ * Items found on disk are promoted back into memory once they have been hit {@code promotionFrequency} times,
+ * as counted by a {@link FrequencySketch}, so one-off hits do not push hot items out of memory.
+ * An item lives in one tier at a time. Between being evicted from memory and being written to disk it is pending,
+ * and is still found by lookups.
+ * The age of an item is carried over as an {@code Age} header when it moves between the tiers.
+ * <p>
+ * {@link #invalidate(URI)} and {@link #clear()} apply to both tiers, and to the pending items.
+ * Items are written to disk, promoted from it, and invalidated, under the lock the disk tier takes for the URI,
+ * so an item that is invalidated or replaced while it moves between the tiers does not come back.
+ *
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public class TieredCacheStorage implements CacheStorage {
+    private final MemoryTier memory;
+    private final FilePersistentCacheStorage disk;
+    private final int promotionFrequency;
+    private final FrequencySketch<Key> frequencies;
+    // Evicted from memory, not yet written to disk. Only removed under the disk lock for the URI.
+    private final ConcurrentMap<Key, CacheItem> pending = new ConcurrentHashMap<>();
+
+    public TieredCacheStorage(File storageDirectory) {
+        this(new FilePersistentCacheStorage(storageDirectory), 1000, 10, 2);
+    }
+
+    /**
+     * @param disk the disk tier.
+     * @param capacity the maximum number of URIs to keep in memory.
+     * @param varyCapacity the maximum number of variants to keep in memory per URI.
+     * @param promotionFrequency the number of hits on disk before an item is moved into memory.
+     */
+    public TieredCacheStorage(FilePersistentCacheStorage disk, int capacity, int varyCapacity, int promotionFrequency) {
+        Preconditions.checkArgument(promotionFrequency > 0, "Promotion frequency must be positive");
+        this.disk = Objects.requireNonNull(disk, "Disk storage may not be null");
+        this.memory = new MemoryTier(capacity, varyCapacity);
+        this.promotionFrequency = promotionFrequency;
+        this.frequencies = new FrequencySketch<>(capacity * varyCapacity);
+    }
+
+    /**
+     * The memory tier, to set its maximum weight or start its expiry sweeper.
+     */
+    public MemoryCacheStorage getMemoryStorage() {
+        return memory;
+    }
+
+    public FilePersistentCacheStorage getDiskStorage() {
+        return disk;
+    }
+
+    @Override
+    public HTTPResponse insert(HTTPRequest request, HTTPResponse response) {
+        HTTPResponse stored = memory.insert(request, response);
+        discardOlderCopies(Key.create(request, response), stored);
+        demote();
+        return stored;
+    }
+
+    @Override
+    public HTTPResponse update(HTTPRequest request, HTTPResponse response) {
+        Key key = Key.create(request, response);
+        ReentrantLock lock = disk.lockFor(key.getURI());
+        lock.lock();
+        try {
+            if (memory.get(key) == null && !pending.containsKey(key) && disk.get(key) != null) {
+                return disk.update(request, response);
+            }
+        } finally {
+            lock.unlock();
+        }
+        HTTPResponse updated = memory.update(request, response);
+        discardOlderCopies(key, updated);
+        demote();
+        return updated;
+    }
+
+    /**
+     * Called after the key has been stored in memory. A copy of it on its way to disk, or on disk, is older, and is removed.
+     * The stored response itself may be pending already, if memory evicted it straight away, as it does with a response
+     * heavier than its maximum weight, and is left to be written to disk.
+     */
+    private void discardOlderCopies(Key key, HTTPResponse stored) {
+        ReentrantLock lock = disk.lockFor(key.getURI());
+        lock.lock();
+        try {
+            CacheItem evicted = pending.get(key);
+            if (evicted != null && evicted.getResponse() != stored) {
+                pending.remove(key, evicted);
+            }
+            disk.invalidate(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public CacheItem get(Key key) {
+        CacheItem item = memory.get(key);
+        if (item == null) {
+            item = pending.get(key);
+        }
+        if (item == null) {
+            item = disk.get(key);
+            if (item != null) {
+                return hit(key, item, requestFor(key));
+            }
+        }
+        return item;
+    }
+
+    @Override
+    public CacheItem get(HTTPRequest request) {
+        CacheItem item = memory.get(request);
+        if (item == null) {
+            item = pendingItem(request);
+        }
+        if (item == null) {
+            Optional<Pair<Key, CacheItem>> found = disk.getItem(request);
+            if (found.isPresent()) {
+                return hit(found.get().getKey(), found.get().getValue(), request);
+            }
+        }
+        return item;
+    }
+
+    private CacheItem pendingItem(HTTPRequest request) {
+        if (pending.isEmpty()) {
+            return null;
+        }
+        URI uri = request.getNormalizedURI();
+        for (Map.Entry<Key, CacheItem> entry : pending.entrySet()) {
+            if (entry.getKey().getURI().equals(uri) && entry.getKey().getVary().matches(request)) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    private CacheItem hit(Key key, CacheItem item, HTTPRequest request) {
+        int frequency;
+        synchronized (frequencies) {
+            frequencies.increment(key);
+            frequency = frequencies.frequency(key);
+        }
+        if (frequency < promotionFrequency) {
+            return item;
+        }
+        HTTPResponse response = withAge(item);
+        if (!Key.create(request, response).equals(key)) {
+            return item;
+        }
+        ReentrantLock lock = disk.lockFor(key.getURI());
+        lock.lock();
+        try {
+            // Invalidated or replaced since it was read.
+            if (disk.get(key) != item) {
+                return item;
+            }
+            memory.insert(request, response);
+            disk.invalidate(key);
+        } finally {
+            lock.unlock();
+        }
+        demote();
+        CacheItem promoted = memory.get(key);
+        if (promoted == null) {
+            promoted = pending.get(key);
+        }
+        return promoted != null ? promoted : disk.get(key);
+    }
+
+    /**
+     * Writes the items evicted from memory to disk. Done after the memory tier is unlocked, so disk writes do not block it.
+     * An item stays pending until it is on disk, and is skipped if it was invalidated or replaced in the meantime.
+     */
+    private void demote() {
+        for (Key key : pending.keySet()) {
+            ReentrantLock lock = disk.lockFor(key.getURI());
+            lock.lock();
+            try {
+                CacheItem evicted = pending.get(key);
+                if (evicted == null) {
+                    continue;
+                }
+                HTTPRequest request = requestFor(key);
+                HTTPResponse response = withAge(evicted);
+                // Variations that are not made from request headers, like the authorization, can not be recreated.
+                if (Key.create(request, response).equals(key)) {
+                    disk.insert(request, response);
+                }
+                pending.remove(key, evicted);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static HTTPRequest requestFor(Key key) {
+        HTTPRequest request = new HTTPRequest(key.getURI());
+        for (Map.Entry<String, String> header : key.getVary().getVaryHeaders().entrySet()) {
+            if (header.getValue() != null) {
+                request = request.addHeader(header.getKey(), header.getValue());
+            }
+        }
+        return request;
+    }
+
+    private static HTTPResponse withAge(CacheItem item) {
+        HTTPResponse response = item.getResponse();
+        long age = Math.max(0, item.getAge(LocalDateTime.now()));
+        return response.withHeaders(response.getHeaders().set(HeaderConstants.AGE, String.valueOf(age)));
+    }
+
+    @Override
+    public void invalidate(URI uri) {
+        ReentrantLock lock = disk.lockFor(uri);
+        lock.lock();
+        try {
+            memory.invalidate(uri);
+            pending.keySet().removeIf(key -> key.getURI().equals(uri));
+            disk.invalidate(uri);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        pending.clear();
+        memory.clear();
+        disk.clear();
+        synchronized (frequencies) {
+            frequencies.clear();
+        }
+    }
+
+    @Override
+    public int size() {
+        return memory.size() + disk.size();
+    }
+
+    /**
+     * @return the weight of the memory tier, the disk tier does not keep track of its weight.
+     */
+    @Override
+    public long getWeight() {
+        return memory.getWeight();
+    }
+
+    @Override
+    public Iterator<Key> iterator() {
+        return Stream.concat(memory.stream(), disk.stream()).iterator();
+    }
+
+    @Override
+    public void shutdown() {
+        memory.shutdown();
+        disk.shutdown();
+    }
+
+    private class MemoryTier extends MemoryCacheStorage {
+        MemoryTier(int capacity, int varyCapacity) {
+            super(capacity, varyCapacity);
+        }
+
+        @Override
+        protected void onEvict(Key key, CacheItem item) {
+            pending.put(key, item);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2009. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+
+package org.codehaus.httpcache4j.cache;
+
+import org.codehaus.httpcache4j.HTTPRequest;
+import org.codehaus.httpcache4j.HTTPResponse;
+import org.codehaus.httpcache4j.Headers;
+import org.codehaus.httpcache4j.MIMEType;
+import org.codehaus.httpcache4j.Status;
+import org.codehaus.httpcache4j.payload.ByteArrayPayload;
+import org.codehaus.httpcache4j.util.IOUtils;
+import org.codehaus.httpcache4j.util.TestUtil;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public class ConcurrentFilePersistentCacheStorageTest extends ConcurrentCacheStorageAbstractTest {
+
+    @Test
+    public void readersNeverSeeAPartlyWrittenPayload() throws Exception {
+        HTTPRequest request = new HTTPRequest(URI.create("contended"));
+        cacheStorage.insert(request, response(0));
+        AtomicBoolean done = new AtomicBoolean();
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            Future<?> writer = executor.submit(() -> {
+                for (int i = 1; i < 200; i++) {
+                    cacheStorage.insert(request, response(i));
+                }
+                done.set(true);
+            });
+            Future<?> reader = executor.submit(() -> {
+                while (!done.get()) {
+                    CacheItem item = cacheStorage.get(request);
+                    assertNotNull(item);
+                    byte[] body = read(item);
+                    assertEquals(8192, body.length);
+                    byte first = body[0];
+                    for (byte b : body) {
+                        assertEquals(first, b);
+                    }
+                }
+                return null;
+            });
+            Future<?> other = executor.submit(() -> {
+                for (int i = 0; i < 200; i++) {
+                    cacheStorage.insert(new HTTPRequest(URI.create("other" + i)), response(i));
+                }
+            });
+            writer.get(30, TimeUnit.SECONDS);
+            reader.get(30, TimeUnit.SECONDS);
+            other.get(30, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(201, cacheStorage.size());
+    }
+
+    private static HTTPResponse response(int value) {
+        byte[] body = new byte[8192];
+        Arrays.fill(body, (byte) value);
+        try {
+            return new HTTPResponse(Optional.of(new ByteArrayPayload(new ByteArrayInputStream(body), MIMEType.APPLICATION_OCTET_STREAM)), Status.OK, new Headers());
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static byte[] read(CacheItem item) throws IOException {
+        try (InputStream stream = item.getResponse().getPayload().get().getInputStream()) {
+            return IOUtils.toByteArray(stream);
+        }
+    }
+
+    @Override
+    protected CacheStorage createCacheStorage() {
+        File storage = TestUtil.getTestFile("target/persistent2/concurrent/" + UUID.randomUUID().toString());
+        return new FilePersistentCacheStorage(storage);
+    }
+}
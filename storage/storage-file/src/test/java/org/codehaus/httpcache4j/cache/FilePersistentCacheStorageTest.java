@@ -17,8 +17,14 @@
 package org.codehaus.httpcache4j.cache;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URI;
+import java.nio.file.Files;
 import java.util.Optional;
+import java.util.Properties;
+import java.util.UUID;
 
 import org.codehaus.httpcache4j.HTTPRequest;
 import org.codehaus.httpcache4j.HTTPResponse;
@@ -78,6 +84,67 @@ public class FilePersistentCacheStorageTest extends CacheStorageAbstractTest {
         assertEquals(100, storage.size());
     }
 
+    @Test
+    public void indexIsRebuiltFromTheMetadata() {
+        for (int i = 0; i < 10; i++) {
+            storage.insert(new HTTPRequest(URI.create("foo" + i)), createRealResponse());
+        }
+        FilePersistentCacheStorage restored = new FilePersistentCacheStorage(TestUtil.getTestFile("target/persistent2"));
+        assertEquals(10, restored.size());
+        CacheItem item = restored.get(new HTTPRequest(URI.create("foo3")));
+        assertNotNull(item);
+        assertEquals(10, item.getResponse().getPayload().get().length());
+        assertNotNull(restored.get(Key.create(URI.create("foo3"), new Vary())));
+    }
+
+    @Test
+    public void hitsDoNotReadTheMetadata() {
+        storage.insert(REQUEST, createRealResponse());
+        Key key = Key.create(REQUEST.getNormalizedURI(), new Vary());
+        FilePersistentCacheStorage cacheStorage = (FilePersistentCacheStorage) storage;
+        assertTrue(new File(cacheStorage.getFileManager().resolve(key).getAbsolutePath() + ".metadata").delete());
+        assertNotNull(storage.get(REQUEST));
+        assertNotNull(storage.get(key));
+        assertEquals(1, storage.size());
+    }
+
+    @Test
+    public void metadataWrittenWithAnEarlierFileLayoutIsMoved() throws Exception {
+        File directory = TestUtil.getTestFile("target/persistent2-legacy/" + UUID.randomUUID().toString());
+        HTTPRequest updated = new HTTPRequest(URI.create("bar"));
+        FilePersistentCacheStorage current = new FilePersistentCacheStorage(directory);
+        current.insert(updated, createRealResponse());
+        writeLegacy(new File(directory, "files/zz/legacy/default"), REQUEST, 7);
+        writeLegacy(new File(directory, "files/yy/legacy/default"), updated, 5);
+
+        FilePersistentCacheStorage restored = new FilePersistentCacheStorage(directory);
+        assertEquals(2, restored.size());
+        FilePayload payload = (FilePayload) restored.get(REQUEST).getResponse().getPayload().get();
+        assertEquals(restored.getFileManager().resolve(Key.create(REQUEST.getNormalizedURI(), new Vary())).getAbsoluteFile(), payload.getFile().getAbsoluteFile());
+        assertEquals(7, payload.length());
+        assertEquals(10, restored.get(updated).getResponse().getPayload().get().length());
+        assertFalse(new File(directory, "files/zz").exists());
+        assertFalse(new File(directory, "files/yy").exists());
+
+        restored.invalidate(REQUEST.getNormalizedURI());
+        restored = new FilePersistentCacheStorage(directory);
+        assertNull(restored.get(REQUEST));
+        assertEquals(1, restored.size());
+        restored.clear();
+    }
+
+    private void writeLegacy(File file, HTTPRequest request, int length) throws IOException {
+        assertTrue(file.getParentFile().mkdirs());
+        Files.write(file.toPath(), new byte[length]);
+        HTTPResponse response = new HTTPResponse(Optional.of(new FilePayload(file, MIMEType.APPLICATION_OCTET_STREAM)), Status.OK, new Headers());
+        Properties properties = new Properties();
+        properties.putAll(Key.create(request.getNormalizedURI(), new Vary()).toProperties());
+        properties.putAll(new SerializableCacheItem(new DefaultCacheItem(response)).toProperties());
+        try (OutputStream out = new FileOutputStream(file.getAbsolutePath() + ".metadata")) {
+            properties.store(out, null);
+        }
+    }
+
     private HTTPResponse createRealResponse() {
         return new HTTPResponse(Optional.of(new InputStreamPayload(new NullInputStream(10), MIMEType.APPLICATION_OCTET_STREAM)), Status.OK, new Headers());
     }
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2008, The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package org.codehaus.httpcache4j.cache;
+
+import org.codehaus.httpcache4j.HTTPRequest;
+import org.codehaus.httpcache4j.HTTPResponse;
+import org.codehaus.httpcache4j.Headers;
+import org.codehaus.httpcache4j.MIMEType;
+import org.codehaus.httpcache4j.Status;
+import org.codehaus.httpcache4j.payload.ByteArrayPayload;
+import org.codehaus.httpcache4j.payload.FilePayload;
+import org.codehaus.httpcache4j.payload.InputStreamPayload;
+import org.codehaus.httpcache4j.payload.Payload;
+import org.codehaus.httpcache4j.util.IOUtils;
+import org.codehaus.httpcache4j.util.TestUtil;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Optional;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public class HybridCacheStorageTest extends CacheStorageAbstractTest {
+
+    @Override
+    protected CacheStorage createCacheStorage() {
+        return new HybridCacheStorage(10, 10, TestUtil.getTestFile("target/hybrid/" + UUID.randomUUID().toString()), 100);
+    }
+
+    @Test
+    public void smallPayloadsAreKeptOnTheHeap() throws IOException {
+        HTTPResponse stored = storage.insert(REQUEST, response(new InputStreamPayload(new ByteArrayInputStream(new byte[100]), MIMEType.APPLICATION_OCTET_STREAM)));
+        assertTrue(stored.getPayload().get() instanceof ByteArrayPayload);
+        assertEquals(100, length(storage.get(REQUEST)));
+        assertFalse(fileFor(REQUEST).exists());
+    }
+
+    @Test
+    public void largePayloadsAreSpilledToDisk() throws IOException {
+        HTTPResponse stored = storage.insert(REQUEST, response(new ByteArrayPayload(new ByteArrayInputStream(new byte[101]), MIMEType.APPLICATION_OCTET_STREAM)));
+        assertTrue(stored.getPayload().get() instanceof FilePayload);
+        assertEquals(fileFor(REQUEST), ((FilePayload) stored.getPayload().get()).getFile());
+        assertEquals(101, length(storage.get(REQUEST)));
+    }
+
+    @Test
+    public void spillingLeavesOnlyTheFileOfTheKey() throws IOException {
+        storage.insert(REQUEST, response(new ByteArrayPayload(new ByteArrayInputStream(new byte[1000]), MIMEType.APPLICATION_OCTET_STREAM)));
+        storage.insert(REQUEST, response(new ByteArrayPayload(new ByteArrayInputStream(new byte[2000]), MIMEType.APPLICATION_OCTET_STREAM)));
+        File uriDirectory = fileFor(REQUEST).getParentFile();
+        assertArrayEquals(new String[] {fileFor(REQUEST).getName()}, uriDirectory.list());
+        assertArrayEquals(new String[] {uriDirectory.getName()}, uriDirectory.getParentFile().list());
+        assertEquals(1, ((HybridCacheStorage) storage).getFileManager().getBaseDirectory().list().length);
+    }
+
+    @Test
+    public void largePayloadsOfUnknownLengthAreSpilledToDisk() throws IOException {
+        HTTPResponse stored = storage.insert(REQUEST, response(new InputStreamPayload(new ByteArrayInputStream(new byte[1000]), MIMEType.APPLICATION_OCTET_STREAM)));
+        assertTrue(stored.getPayload().get() instanceof FilePayload);
+        assertEquals(1000, length(storage.get(REQUEST)));
+    }
+
+    @Test
+    public void weightOnlyCountsPayloadsOnTheHeap() throws IOException {
+        storage.insert(new HTTPRequest(URI.create("small")), response(new ByteArrayPayload(new ByteArrayInputStream(new byte[50]), MIMEType.APPLICATION_OCTET_STREAM)));
+        long small = storage.getWeight();
+        assertTrue(small > 50);
+        storage.insert(new HTTPRequest(URI.create("large")), response(new ByteArrayPayload(new ByteArrayInputStream(new byte[10000]), MIMEType.APPLICATION_OCTET_STREAM)));
+        assertTrue(storage.getWeight() - small < 1000);
+    }
+
+    @Test
+    public void filesAreRemovedWithTheirItems() throws IOException {
+        storage.insert(REQUEST, response(new ByteArrayPayload(new ByteArrayInputStream(new byte[1000]), MIMEType.APPLICATION_OCTET_STREAM)));
+        assertTrue(fileFor(REQUEST).exists());
+        storage.update(REQUEST, response(new ByteArrayPayload(new ByteArrayInputStream(new byte[10]), MIMEType.APPLICATION_OCTET_STREAM)));
+        assertFalse(fileFor(REQUEST).exists());
+        assertEquals(10, length(storage.get(REQUEST)));
+
+        storage.insert(REQUEST, response(new ByteArrayPayload(new ByteArrayInputStream(new byte[1000]), MIMEType.APPLICATION_OCTET_STREAM)));
+        storage.invalidate(REQUEST.getNormalizedURI());
+        assertFalse(fileFor(REQUEST).exists());
+        assertEquals(0, storage.size());
+    }
+
+    @Test
+    public void storedResponsesCanBeStoredAgain() throws IOException {
+        HTTPResponse stored = storage.insert(REQUEST, response(new ByteArrayPayload(new ByteArrayInputStream(new byte[1000]), MIMEType.APPLICATION_OCTET_STREAM)));
+        storage.update(REQUEST, stored);
+        assertEquals(1000, length(storage.get(REQUEST)));
+    }
+
+    private File fileFor(HTTPRequest request) {
+        return ((HybridCacheStorage) storage).getFileManager().resolve(Key.create(request.getNormalizedURI(), new Vary()));
+    }
+
+    private static HTTPResponse response(Payload payload) {
+        return new HTTPResponse(Optional.of(payload), Status.OK, new Headers());
+    }
+
+    private static int length(CacheItem item) throws IOException {
+        try (InputStream stream = item.getResponse().getPayload().get().getInputStream()) {
+            return IOUtils.toByteArray(stream).length;
+        }
+    }
+
+    @Override
+    public void afterTest() {
+    }
+}
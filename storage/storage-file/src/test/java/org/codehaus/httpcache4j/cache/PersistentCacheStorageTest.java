@@ -19,12 +19,19 @@ package org.codehaus.httpcache4j.cache;
 import org.codehaus.httpcache4j.*;
 import org.codehaus.httpcache4j.payload.FilePayload;
 import org.codehaus.httpcache4j.payload.InputStreamPayload;
+import org.codehaus.httpcache4j.util.LRUMap;
+import org.codehaus.httpcache4j.util.MemoryCache;
 import org.codehaus.httpcache4j.util.NullInputStream;
+import org.codehaus.httpcache4j.util.SerializationUtils;
 import org.codehaus.httpcache4j.util.TestUtil;
 import org.junit.Test;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.URI;
+import java.nio.file.Files;
 import java.util.Optional;
 import java.util.UUID;
 
@@ -92,6 +99,108 @@ public class PersistentCacheStorageTest extends CacheStorageAbstractTest {
         t3.interrupt();
     }
 
+    @Test
+    public void weightIsRestoredWithTheCache() {
+        File directory = TestUtil.getTestFile("target/persistent/" + UUID.randomUUID().toString());
+        PersistentCacheStorage persistent = new PersistentCacheStorage(directory);
+        persistent.setSerializationPolicy((modifications, lastSerialization) -> true);
+        persistent.insert(REQUEST, createRealResponse());
+        long weight = persistent.getWeight();
+        assertTrue(weight > 10);
+        persistent.shutdown();
+
+        PersistentCacheStorage restored = new PersistentCacheStorage(directory);
+        assertEquals(1, restored.size());
+        assertEquals(weight, restored.getWeight());
+        restored.invalidate(REQUEST.getNormalizedURI());
+        assertEquals(0, restored.size());
+        assertEquals(0, restored.getWeight());
+    }
+
+    @Test
+    public void changesAreReplayedFromTheJournal() {
+        File directory = TestUtil.getTestFile("target/persistent/" + UUID.randomUUID().toString());
+        PersistentCacheStorage persistent = new PersistentCacheStorage(directory);
+        persistent.setSerializationPolicy((modifications, lastSerialization) -> false);
+        for (int i = 0; i < 10; i++) {
+            persistent.insert(new HTTPRequest(URI.create("foo" + i)), createRealResponse());
+        }
+        persistent.invalidate(URI.create("foo3"));
+        persistent.shutdown();
+        assertFalse(new File(directory, "persistent.ser").exists());
+
+        PersistentCacheStorage restored = new PersistentCacheStorage(directory);
+        assertEquals(9, restored.size());
+        assertNull(restored.get(new HTTPRequest(URI.create("foo3"))));
+        assertEquals(10, restored.get(new HTTPRequest(URI.create("foo4"))).getResponse().getPayload().get().length());
+        restored.clear();
+    }
+
+    @Test
+    public void snapshotStartsANewJournal() {
+        File directory = TestUtil.getTestFile("target/persistent/" + UUID.randomUUID().toString());
+        PersistentCacheStorage persistent = new PersistentCacheStorage(directory);
+        persistent.setSerializationPolicy((modifications, lastSerialization) -> false);
+        persistent.insert(new HTTPRequest(URI.create("foo1")), createRealResponse());
+        persistent.snapshot();
+        assertTrue(new File(directory, "persistent.ser").exists());
+        assertFalse(new File(directory, "persistent.ser.journal").exists());
+        persistent.insert(new HTTPRequest(URI.create("foo2")), createRealResponse());
+        persistent.invalidate(URI.create("foo1"));
+        persistent.shutdown();
+
+        PersistentCacheStorage restored = new PersistentCacheStorage(directory);
+        assertEquals(1, restored.size());
+        assertNotNull(restored.get(new HTTPRequest(URI.create("foo2"))));
+        restored.clear();
+    }
+
+    @Test
+    public void recordThatWasNotWrittenCompletelyIsDropped() throws Exception {
+        File directory = TestUtil.getTestFile("target/persistent/" + UUID.randomUUID().toString());
+        PersistentCacheStorage persistent = new PersistentCacheStorage(directory);
+        persistent.setSerializationPolicy((modifications, lastSerialization) -> false);
+        persistent.insert(new HTTPRequest(URI.create("foo1")), createRealResponse());
+        persistent.insert(new HTTPRequest(URI.create("foo2")), createRealResponse());
+        persistent.shutdown();
+        try (RandomAccessFile journal = new RandomAccessFile(new File(directory, "persistent.ser.journal"), "rw")) {
+            journal.setLength(journal.length() - 5);
+        }
+
+        PersistentCacheStorage restored = new PersistentCacheStorage(directory);
+        assertEquals(1, restored.size());
+        restored.insert(new HTTPRequest(URI.create("foo3")), createRealResponse());
+        restored.shutdown();
+        assertEquals(2, new PersistentCacheStorage(directory).size());
+        restored.clear();
+    }
+
+    @Test
+    public void payloadsWrittenWithAnEarlierFileLayoutAreMoved() throws Exception {
+        File directory = TestUtil.getTestFile("target/persistent/" + UUID.randomUUID().toString());
+        File legacy = new File(directory, "files/zz/legacy/default");
+        assertTrue(legacy.getParentFile().mkdirs());
+        Files.write(legacy.toPath(), new byte[10]);
+        HTTPResponse response = new HTTPResponse(Optional.of(new FilePayload(legacy, MIMEType.APPLICATION_OCTET_STREAM)), Status.OK, new Headers());
+        LRUMap<Vary, CacheItem> variants = new LRUMap<>(10);
+        variants.put(new Vary(), new SerializableCacheItem(new DefaultCacheItem(response)));
+        MemoryCache cache = new MemoryCache(1000);
+        cache.put(REQUEST.getNormalizedURI(), variants);
+        try (OutputStream out = new FileOutputStream(new File(directory, "persistent.ser"))) {
+            SerializationUtils.serialize(cache, out);
+        }
+
+        PersistentCacheStorage restored = new PersistentCacheStorage(directory);
+        FilePayload payload = (FilePayload) restored.get(REQUEST).getResponse().getPayload().get();
+        File resolved = restored.getFileManager().resolve(Key.create(REQUEST.getNormalizedURI(), new Vary()));
+        assertEquals(resolved.getAbsoluteFile(), payload.getFile().getAbsoluteFile());
+        assertEquals(10, payload.length());
+        assertFalse(new File(directory, "files/zz").exists());
+        restored.invalidate(REQUEST.getNormalizedURI());
+        assertFalse(resolved.exists());
+        restored.clear();
+    }
+
     private HTTPResponse createRealResponse() {
         return new HTTPResponse(Optional.of(new InputStreamPayload(new NullInputStream(10), MIMEType.APPLICATION_OCTET_STREAM)), Status.OK, new Headers());
     }
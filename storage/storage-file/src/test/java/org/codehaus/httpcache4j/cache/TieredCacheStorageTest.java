@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2008, The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package org.codehaus.httpcache4j.cache;
+
+import org.codehaus.httpcache4j.HTTPRequest;
+import org.codehaus.httpcache4j.HTTPResponse;
+import org.codehaus.httpcache4j.HeaderConstants;
+import org.codehaus.httpcache4j.Headers;
+import org.codehaus.httpcache4j.MIMEType;
+import org.codehaus.httpcache4j.Status;
+import org.codehaus.httpcache4j.payload.ByteArrayPayload;
+import org.codehaus.httpcache4j.payload.FilePayload;
+import org.codehaus.httpcache4j.util.IOUtils;
+import org.codehaus.httpcache4j.util.TestUtil;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public class TieredCacheStorageTest extends CacheStorageAbstractTest {
+
+    @Override
+    protected CacheStorage createCacheStorage() {
+        return tiered(2);
+    }
+
+    private static TieredCacheStorage tiered(int capacity) {
+        FilePersistentCacheStorage disk = new FilePersistentCacheStorage(TestUtil.getTestFile("target/tiered/" + UUID.randomUUID().toString()));
+        return new TieredCacheStorage(disk, capacity, 10, 2);
+    }
+
+    @Test
+    public void evictedItemsAreDemotedToDisk() throws IOException {
+        TieredCacheStorage tiered = (TieredCacheStorage) storage;
+        for (String uri : new String[] {"a", "b", "c"}) {
+            tiered.insert(new HTTPRequest(URI.create(uri)), response(uri));
+        }
+        assertEquals(2, tiered.getMemoryStorage().size());
+        assertEquals(1, tiered.getDiskStorage().size());
+        assertEquals(3, tiered.size());
+        CacheItem item = tiered.get(new HTTPRequest(URI.create("a")));
+        assertNotNull(item);
+        assertTrue(item.getResponse().getPayload().get() instanceof FilePayload);
+        assertEquals("a", body(item));
+    }
+
+    @Test
+    public void responseTooHeavyForMemoryGoesStraightToDisk() throws IOException {
+        TieredCacheStorage tiered = (TieredCacheStorage) storage;
+        tiered.getMemoryStorage().setMaximumWeight(1000);
+        tiered.insert(new HTTPRequest(URI.create("a")), response("a"));
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            large.append('b');
+        }
+        HTTPResponse stored = tiered.insert(new HTTPRequest(URI.create("b")), response(large.toString()));
+        assertEquals(2000, stored.getPayload().get().length());
+        assertEquals(1, tiered.getMemoryStorage().size());
+        assertNotNull(tiered.getMemoryStorage().get(new HTTPRequest(URI.create("a"))));
+        assertEquals(1, tiered.getDiskStorage().size());
+        assertEquals(large.toString(), body(tiered.get(new HTTPRequest(URI.create("b")))));
+    }
+
+    @Test
+    public void frequentlyHitItemsArePromotedToMemory() throws IOException {
+        TieredCacheStorage tiered = (TieredCacheStorage) storage;
+        for (String uri : new String[] {"a", "b", "c"}) {
+            tiered.insert(new HTTPRequest(URI.create(uri)), response(uri));
+        }
+        HTTPRequest request = new HTTPRequest(URI.create("a"));
+        assertTrue(tiered.get(request).getResponse().getPayload().get() instanceof FilePayload);
+        CacheItem promoted = tiered.get(request);
+        assertTrue(promoted.getResponse().getPayload().get() instanceof ByteArrayPayload);
+        assertEquals("a", body(promoted));
+        assertNotNull(tiered.getMemoryStorage().get(request));
+        assertNull(tiered.getDiskStorage().get(request));
+        assertEquals(3, tiered.size());
+        assertEquals(2, tiered.getMemoryStorage().size());
+    }
+
+    @Test
+    public void ageIsKeptWhenMovingBetweenTiers() throws IOException {
+        TieredCacheStorage tiered = tiered(1);
+        storage = tiered;
+        HTTPResponse response = response("a").withHeaders(new Headers().add(HeaderConstants.AGE, "100"));
+        tiered.insert(new HTTPRequest(URI.create("a")), response);
+        tiered.insert(new HTTPRequest(URI.create("b")), response("b"));
+        CacheItem demoted = tiered.getDiskStorage().get(new HTTPRequest(URI.create("a")));
+        assertNotNull(demoted);
+        assertTrue(demoted.getAge(demoted.getCachedTime()) >= 100);
+    }
+
+    @Test
+    public void invalidateAndClearApplyToBothTiers() throws IOException {
+        TieredCacheStorage tiered = (TieredCacheStorage) storage;
+        for (String uri : new String[] {"a", "b", "c"}) {
+            tiered.insert(new HTTPRequest(URI.create(uri)), response(uri));
+        }
+        tiered.invalidate(URI.create("a"));
+        assertNull(tiered.get(new HTTPRequest(URI.create("a"))));
+        assertEquals(2, tiered.size());
+        tiered.insert(new HTTPRequest(URI.create("d")), response("d"));
+        tiered.clear();
+        assertEquals(0, tiered.size());
+        assertEquals(0, tiered.getDiskStorage().size());
+    }
+
+    @Test
+    public void insertReplacesTheItemOnDisk() throws IOException {
+        TieredCacheStorage tiered = (TieredCacheStorage) storage;
+        for (String uri : new String[] {"a", "b", "c"}) {
+            tiered.insert(new HTTPRequest(URI.create(uri)), response(uri));
+        }
+        tiered.insert(new HTTPRequest(URI.create("a")), response("new"));
+        assertEquals(3, tiered.size());
+        assertEquals("new", body(tiered.get(new HTTPRequest(URI.create("a")))));
+    }
+
+    @Test
+    public void itemInvalidatedWhileBeingDemotedDoesNotComeBack() throws Exception {
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch proceed = new CountDownLatch(1);
+        FilePersistentCacheStorage disk = new FilePersistentCacheStorage(TestUtil.getTestFile("target/tiered/" + UUID.randomUUID().toString())) {
+            @Override
+            public HTTPResponse insert(HTTPRequest request, HTTPResponse response) {
+                if (request.getNormalizedURI().equals(URI.create("a"))) {
+                    writing.countDown();
+                    try {
+                        proceed.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return super.insert(request, response);
+            }
+        };
+        TieredCacheStorage tiered = new TieredCacheStorage(disk, 1, 10, 2);
+        storage = tiered;
+        tiered.insert(new HTTPRequest(URI.create("a")), response("a"));
+        Thread demoter = new Thread(() -> {
+            try {
+                tiered.insert(new HTTPRequest(URI.create("b")), response("b"));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        demoter.start();
+        writing.await();
+        assertEquals("a", body(tiered.get(new HTTPRequest(URI.create("a")))));
+
+        Thread invalidator = new Thread(() -> tiered.invalidate(URI.create("a")));
+        invalidator.start();
+        while (invalidator.isAlive() && invalidator.getState() != Thread.State.WAITING) {
+            Thread.sleep(1);
+        }
+        proceed.countDown();
+        demoter.join();
+        invalidator.join();
+        assertNull(tiered.get(new HTTPRequest(URI.create("a"))));
+        assertEquals(0, disk.size());
+    }
+
+    private static HTTPResponse response(String body) throws IOException {
+        ByteArrayPayload payload = new ByteArrayPayload(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)), MIMEType.APPLICATION_OCTET_STREAM);
+        return new HTTPResponse(Optional.of(payload), Status.OK, new Headers());
+    }
+
+    private static String body(CacheItem item) throws IOException {
+        try (InputStream stream = item.getResponse().getPayload().get().getInputStream()) {
+            return new String(IOUtils.toByteArray(stream), StandardCharsets.UTF_8);
+        }
+    }
+
+    @Override
+    public void afterTest() {
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2008, The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package org.codehaus.httpcache4j.cache;
+
+import org.codehaus.httpcache4j.util.IOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One file of the log of a {@link SegmentCacheStorage}.
+ * <p>
+ * Every record starts with a fixed size header:
+ * <pre>
+ * long sequence, int crc, byte type, int metadata length, long payload length
+ * </pre>
+ * followed by the metadata and the payload. The CRC covers the type, the metadata and the payload,
+ * and is written last, so a record that was not written completely is never taken as valid.
+ * An update record has no payload of its own, its metadata points at the payload of an earlier record.
+ * <p>
+ * Reads and writes are positional, so they do not block each other.
+ * The file is kept open as long as the segment is in use, or being read from or written to, see {@link #retain()}.
+ * A segment is sealed when a new one becomes the active segment, and is not written to after its pending writes are done.
+ *
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+final class Segment {
+    static final int HEADER_SIZE = 8 + 4 + 1 + 4 + 8;
+    static final byte PUT = 1;
+    static final byte INVALIDATE = 2;
+    static final byte UPDATE = 3;
+
+    private final long id;
+    private final File file;
+    private final FileChannel channel;
+    private final AtomicLong size;
+    private final AtomicLong liveBytes = new AtomicLong();
+    // One reference is held by the storage, the rest by open streams and pending writes.
+    private final AtomicInteger references = new AtomicInteger(1);
+    private final AtomicInteger pendingWrites = new AtomicInteger();
+    private volatile boolean sealed;
+
+    Segment(long id, File file) throws IOException {
+        this.id = id;
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.size = new AtomicLong(channel.size());
+    }
+
+    long getId() {
+        return id;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    long size() {
+        return size.get();
+    }
+
+    long getLiveBytes() {
+        return liveBytes.get();
+    }
+
+    void addLiveBytes(long bytes) {
+        liveBytes.addAndGet(bytes);
+    }
+
+    /**
+     * Reserves room for a record at the end of the segment. Must only be called by one thread at a time.
+     * The segment is retained until the write is done, see {@link #endWrite()}.
+     *
+     * @return the position of the record.
+     */
+    long reserve(long recordSize) {
+        if (!retain()) {
+            throw new IllegalStateException(this + " has been deleted");
+        }
+        pendingWrites.incrementAndGet();
+        return size.getAndAdd(recordSize);
+    }
+
+    void endWrite() {
+        pendingWrites.decrementAndGet();
+        release();
+    }
+
+    boolean hasPendingWrites() {
+        return pendingWrites.get() > 0;
+    }
+
+    /**
+     * Marks the segment as no longer active, so no more room is reserved in it.
+     */
+    void seal() {
+        sealed = true;
+    }
+
+    boolean isSealed() {
+        return sealed;
+    }
+
+    void writeHeader(long position, long sequence, int crc, byte type, int metadataLength, long payloadLength) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putLong(sequence).putInt(crc).put(type).putInt(metadataLength).putLong(payloadLength);
+        ((Buffer) header).flip();
+        write(header, position);
+    }
+
+    void writeCRC(long position, int crc) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        buffer.putInt(crc);
+        ((Buffer) buffer).flip();
+        write(buffer, position + 8);
+    }
+
+    void write(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Reads until the buffer is full, or the end of the file.
+     *
+     * @return the number of bytes read.
+     */
+    int read(ByteBuffer buffer, long position) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * Transfers a region of the segment to the channel, without reading it onto the heap.
+     */
+    long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        return IOUtils.transfer(channel, position, count, target);
+    }
+
+    /**
+     * Cuts off a record that was not written completely.
+     */
+    void truncate(long position) throws IOException {
+        channel.truncate(position);
+        size.set(position);
+    }
+
+    /**
+     * @return {@code false} if the segment has been deleted, and may not be read from.
+     */
+    boolean retain() {
+        int current;
+        do {
+            current = references.get();
+            if (current <= 0) {
+                return false;
+            }
+        } while (!references.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    void release() {
+        if (references.decrementAndGet() == 0) {
+            try {
+                channel.close();
+                Files.deleteIfExists(file.toPath());
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    boolean isDeleted() {
+        return references.get() <= 0;
+    }
+
+    /**
+     * Closes the file without deleting it.
+     */
+    void close() {
+        try {
+            channel.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    @Override
+    public String toString() {
+        return file.getName();
+    }
+}
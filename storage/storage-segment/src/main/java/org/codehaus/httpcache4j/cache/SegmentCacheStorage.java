@@ -0,0 +1,753 @@
+/*
+ * Copyright (c) 2008, The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package org.codehaus.httpcache4j.cache;
+
+import org.codehaus.httpcache4j.HTTPException;
+import org.codehaus.httpcache4j.HTTPRequest;
+import org.codehaus.httpcache4j.HTTPResponse;
+import org.codehaus.httpcache4j.MIMEType;
+import org.codehaus.httpcache4j.annotation.Beta;
+import org.codehaus.httpcache4j.payload.Payload;
+import org.codehaus.httpcache4j.util.Preconditions;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Log structured storage, which appends payloads and metadata to a few large segment files,
+ * instead of creating two files per variant.
+ * <p>
+ * Records are written one after the other to the active segment, which is replaced by a new one when it is full.
+ * An index in memory maps every key to the position of its record, hits are read with positional reads,
+ * and the index is rebuilt by reading the segments when the storage is created.
+ * Records that were not written completely are detected by their CRC, and skipped.
+ * <p>
+ * Payloads of unknown length are written to a file next to the segments first, so room can be reserved for them.
+ * An update of a response which still has the stored payload writes an update record, which points at the payload
+ * instead of copying it.
+ * <p>
+ * Replaced and invalidated records stay in their segment until it is compacted.
+ * {@link #compact()} copies the records still in use out of the segments where less than the compaction threshold
+ * is in use, and deletes the segments, {@link #startCompaction(Duration)} calls it in the background.
+ * Every record carries a sequence number, which is kept when the record is copied,
+ * so the latest write of a key wins when the index is rebuilt, wherever the records ended up.
+ * <p>
+ * Reads do not lock. Writes lock one of a number of stripes, chosen by the URI,
+ * and the end of the active segment only while room for the record is reserved.
+ *
+ * @see Segment
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+@Beta
+public class SegmentCacheStorage implements CacheStorage {
+    private static final String SUFFIX = ".segment";
+    private static final String SPILL_SUFFIX = ".spill";
+    private static final String PAYLOAD_SEGMENT = "payload-segment";
+    private static final String PAYLOAD_POSITION = "payload-position";
+    private static final String PAYLOAD_LENGTH = "payload-length";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Logger logger = Logger.getLogger(getClass().getName());
+    private final File directory;
+    private final long segmentSize;
+    private final double compactionThreshold;
+    private final ReentrantLock[] locks;
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private final ConcurrentNavigableMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<URI, Map<Vary, Record>> index = new ConcurrentHashMap<>();
+    private final AtomicInteger size = new AtomicInteger();
+    // Guarded by the append lock.
+    private Segment active;
+    private long sequence;
+    private ScheduledExecutorService compactor;
+
+    public SegmentCacheStorage(File directory) {
+        this(directory, 64 * 1024 * 1024, 0.5);
+    }
+
+    /**
+     * @param segmentSize the size a segment grows to before a new one is started, in bytes.
+     * @param compactionThreshold segments with less than this fraction of their bytes in use are compacted.
+     */
+    public SegmentCacheStorage(File directory, long segmentSize, double compactionThreshold) {
+        Preconditions.checkArgument(segmentSize > Segment.HEADER_SIZE, "Segment size must be larger than a record header");
+        Preconditions.checkArgument(compactionThreshold > 0 && compactionThreshold <= 1, "Compaction threshold must be above 0, and at most 1");
+        this.directory = new File(Objects.requireNonNull(directory, "Directory may not be null"), "segments");
+        this.segmentSize = segmentSize;
+        this.compactionThreshold = compactionThreshold;
+        this.locks = new ReentrantLock[16];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        try {
+            recover();
+        } catch (IOException e) {
+            throw new HTTPException(e);
+        }
+    }
+
+    @Override
+    public HTTPResponse insert(HTTPRequest request, HTTPResponse response) {
+        return store(Key.create(request, response), response, false);
+    }
+
+    /**
+     * Writes an update record pointing at the stored payload, if the response still has it,
+     * so revalidating a response does not copy its payload.
+     */
+    @Override
+    public HTTPResponse update(HTTPRequest request, HTTPResponse response) {
+        return store(Key.create(request, response), response, true);
+    }
+
+    private HTTPResponse store(Key key, HTTPResponse response, boolean update) {
+        ReentrantLock lock = lockFor(key.getURI());
+        lock.lock();
+        try {
+            Record stored = update ? withStoredPayload(key, response) : null;
+            Record record = stored != null ? appendUpdate(key, response, stored) : append(key, response);
+            index(key, record);
+            return record.item.getResponse();
+        } catch (IOException e) {
+            throw new HTTPException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the record of the key, if the response has its payload.
+     */
+    private Record withStoredPayload(Key key, HTTPResponse response) {
+        Map<Vary, Record> variants = index.get(key.getURI());
+        Record record = variants != null ? variants.get(key.getVary()) : null;
+        if (record == null || record.payloadLength == 0) {
+            return null;
+        }
+        Payload payload = response.getPayload().orElse(null);
+        return payload != null && payload == record.item.getResponse().getPayload().orElse(null) ? record : null;
+    }
+
+    @Override
+    public CacheItem get(Key key) {
+        Map<Vary, Record> variants = index.get(key.getURI());
+        Record record = variants != null ? variants.get(key.getVary()) : null;
+        return record != null ? record.item : null;
+    }
+
+    @Override
+    public CacheItem get(HTTPRequest request) {
+        Map<Vary, Record> variants = index.get(request.getNormalizedURI());
+        if (variants != null) {
+            for (Map.Entry<Vary, Record> variant : variants.entrySet()) {
+                if (variant.getKey().matches(request)) {
+                    return variant.getValue().item;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Writes an invalidation record, so the invalidated records stay invalid when the index is rebuilt.
+     */
+    @Override
+    public void invalidate(URI uri) {
+        ReentrantLock lock = lockFor(uri);
+        lock.lock();
+        try {
+            if (index.containsKey(uri)) {
+                Properties metadata = new Properties();
+                metadata.setProperty("uri", uri.toString());
+                writeRecord(Segment.INVALIDATE, -1, toBytes(metadata), null, 0);
+                unindex(uri);
+            }
+        } catch (IOException e) {
+            throw new HTTPException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Deletes every segment. Segments that are being read from are deleted when the streams are closed.
+     */
+    @Override
+    public void clear() {
+        for (ReentrantLock lock : locks) {
+            lock.lock();
+        }
+        appendLock.lock();
+        try {
+            index.clear();
+            size.set(0);
+            long next = active.getId() + 1;
+            for (Segment segment : segments.values()) {
+                segments.remove(segment.getId());
+                segment.release();
+            }
+            active = newSegment(next);
+        } catch (IOException e) {
+            throw new HTTPException(e);
+        } finally {
+            appendLock.unlock();
+            for (ReentrantLock lock : locks) {
+                lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return size.get();
+    }
+
+    @Override
+    public Iterator<Key> iterator() {
+        return index.entrySet().stream()
+                .flatMap(entry -> entry.getValue().keySet().stream().map(vary -> new Key(entry.getKey(), vary)))
+                .iterator();
+    }
+
+    /**
+     * @return the number of segment files.
+     */
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Starts calling {@link #compact()} in the background, until the storage is shut down.
+     * A segment that can not be compacted is logged, and tried again the next time.
+     *
+     * @param interval the time between every compaction.
+     */
+    public synchronized void startCompaction(Duration interval) {
+        Preconditions.checkArgument(!interval.isNegative() && !interval.isZero(), "Interval must be positive");
+        if (compactor != null) {
+            compactor.shutdownNow();
+        }
+        compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "httpcache4j-compaction");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(this::compactInBackground, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Compacts the sealed segments where less than the compaction threshold is in use,
+     * and no records are still being written.
+     *
+     * @return the number of segments that were compacted.
+     */
+    public synchronized int compact() {
+        int compacted = 0;
+        for (Segment segment : segments.values()) {
+            if (isCompactable(segment)) {
+                try {
+                    compact(segment);
+                    compacted++;
+                } catch (IOException e) {
+                    throw new HTTPException(e);
+                }
+            }
+        }
+        return compacted;
+    }
+
+    /**
+     * Like {@link #compact()}, but a failure is logged, and does not stop the rest of the segments from being compacted,
+     * or the compaction from being scheduled again.
+     */
+    private synchronized void compactInBackground() {
+        for (Segment segment : segments.values()) {
+            if (isCompactable(segment)) {
+                try {
+                    compact(segment);
+                } catch (IOException | RuntimeException e) {
+                    logger.log(Level.WARNING, String.format("Unable to compact %s", segment), e);
+                }
+            }
+        }
+    }
+
+    private boolean isCompactable(Segment segment) {
+        return segment.isSealed() && !segment.hasPendingWrites() && segment.getLiveBytes() < compactionThreshold * segment.size();
+    }
+
+    /**
+     * Copies the records in use to the active segment, and deletes the segment.
+     * The records of the segment are looked up in the index, so only the segment is read, not the whole index.
+     * Invalidation records are copied too, unless this is the oldest segment,
+     * as the records they invalidate may still be in older segments.
+     */
+    private void compact(Segment segment) throws IOException {
+        boolean oldest = segments.firstKey() == segment.getId();
+        scan(segment, (header, position, metadata) -> {
+            if (header.type == Segment.INVALIDATE) {
+                if (!oldest) {
+                    writeRecord(Segment.INVALIDATE, header.sequence, metadata, null, 0);
+                }
+            }
+            else {
+                copyIfCurrent(Key.parse(toProperties(metadata)), segment);
+            }
+        });
+        segments.remove(segment.getId());
+        segment.release();
+    }
+
+    /**
+     * Copies the record of the key, if it or the payload it points at is still in the segment.
+     *
+     * @throws IOException if the payload can not be read, so the segment is kept.
+     */
+    private void copyIfCurrent(Key key, Segment segment) throws IOException {
+        ReentrantLock lock = lockFor(key.getURI());
+        lock.lock();
+        try {
+            Map<Vary, Record> variants = index.get(key.getURI());
+            Record record = variants != null ? variants.get(key.getVary()) : null;
+            if (record == null || (record.segment != segment && record.payloadSegment != segment)) {
+                return;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(record.metadataLength);
+            record.segment.read(buffer, record.position + Segment.HEADER_SIZE);
+            byte[] metadata = buffer.array();
+            if (!record.hasOwnPayload()) {
+                // The copy has the payload in the record.
+                Properties properties = toProperties(metadata);
+                properties.remove(PAYLOAD_SEGMENT);
+                properties.remove(PAYLOAD_POSITION);
+                properties.remove(PAYLOAD_LENGTH);
+                metadata = toBytes(properties);
+            }
+            InputStream payload = record.payloadLength > 0 ? record.item.getResponse().getPayload().get().getInputStream() : null;
+            if (record.payloadLength > 0 && payload == null) {
+                throw new IOException(String.format("Payload of %s in %s is not available", key, segment));
+            }
+            try (InputStream stream = payload) {
+                Record copy = writeRecord(Segment.PUT, record.sequence, metadata, stream, record.payloadLength);
+                HTTPResponse response = record.item.getResponse();
+                index(key, copy.withItem(new DefaultCacheItem(response.withPayload(copy.payload(response.getPayload().map(Payload::getMimeType).orElse(null))), record.item.getCachedTime())));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public synchronized void shutdown() {
+        if (compactor != null) {
+            compactor.shutdownNow();
+            compactor = null;
+        }
+        for (Segment segment : segments.values()) {
+            segment.close();
+        }
+    }
+
+    private Record append(Key key, HTTPResponse response) throws IOException {
+        LocalDateTime cachedTime = LocalDateTime.now();
+        HTTPResponse withoutPayload = response.withPayload(null);
+        byte[] metadata = toBytes(metadata(key, withoutPayload, cachedTime));
+
+        Payload payload = response.getPayload().filter(Payload::isAvailable).orElse(null);
+        InputStream stream = payload != null ? payload.getInputStream() : null;
+        Record record;
+        try (InputStream is = stream) {
+            if (is == null) {
+                record = writeRecord(Segment.PUT, -1, metadata, null, 0);
+            }
+            else if (payload.length() < 0) {
+                record = writeSpilled(metadata, is);
+            }
+            else {
+                record = writeRecord(Segment.PUT, -1, metadata, is, payload.length());
+            }
+        }
+        MIMEType mimeType = payload != null ? payload.getMimeType() : null;
+        return record.withItem(new DefaultCacheItem(withoutPayload.withPayload(record.payload(mimeType)), cachedTime));
+    }
+
+    /**
+     * Writes an update record with the new metadata, pointing at the payload of the stored record.
+     */
+    private Record appendUpdate(Key key, HTTPResponse response, Record stored) throws IOException {
+        LocalDateTime cachedTime = LocalDateTime.now();
+        Properties properties = metadata(key, response.withPayload(null), cachedTime);
+        properties.setProperty(PAYLOAD_SEGMENT, String.valueOf(stored.payloadSegment.getId()));
+        properties.setProperty(PAYLOAD_POSITION, String.valueOf(stored.payloadPosition));
+        properties.setProperty(PAYLOAD_LENGTH, String.valueOf(stored.payloadLength));
+        Record record = writeRecord(Segment.UPDATE, -1, toBytes(properties), null, 0);
+        return record.withPayloadAt(stored.payloadSegment, stored.payloadPosition, stored.payloadLength).withItem(new DefaultCacheItem(response, cachedTime));
+    }
+
+    private Properties metadata(Key key, HTTPResponse withoutPayload, LocalDateTime cachedTime) {
+        Properties properties = new Properties();
+        properties.putAll(key.toProperties());
+        properties.putAll(new SerializableCacheItem(new DefaultCacheItem(withoutPayload, cachedTime)).toProperties());
+        return properties;
+    }
+
+    /**
+     * Writes a payload of unknown length to a file next to the segments first, so room can be reserved for it
+     * without reading it onto the heap.
+     */
+    private Record writeSpilled(byte[] metadata, InputStream payload) throws IOException {
+        Path spill = Files.createTempFile(directory.toPath(), "payload", SPILL_SUFFIX);
+        try {
+            Files.copy(payload, spill, StandardCopyOption.REPLACE_EXISTING);
+            try (InputStream stream = Files.newInputStream(spill)) {
+                return writeRecord(Segment.PUT, -1, metadata, stream, Files.size(spill));
+            }
+        } finally {
+            Files.deleteIfExists(spill);
+        }
+    }
+
+    /**
+     * Reserves room at the end of the active segment, and writes the header while holding the append lock,
+     * so every reserved record has a header, then writes the rest without the lock, and the CRC last.
+     * The write is pending in the segment until it is done, so the segment is not compacted under it.
+     *
+     * @param sequence the sequence number of the record, or {@code -1} for the next one.
+     */
+    private Record writeRecord(byte type, long sequence, byte[] metadata, InputStream payload, long payloadLength) throws IOException {
+        long recordSize = Segment.HEADER_SIZE + metadata.length + payloadLength;
+        Segment segment;
+        long position;
+        appendLock.lock();
+        try {
+            if (active.size() > 0 && active.size() + recordSize > segmentSize) {
+                active.seal();
+                active = newSegment(active.getId() + 1);
+            }
+            segment = active;
+            if (sequence < 0) {
+                sequence = ++this.sequence;
+            }
+            position = segment.reserve(recordSize);
+            try {
+                segment.writeHeader(position, sequence, 0, type, metadata.length, payloadLength);
+            } catch (IOException e) {
+                segment.endWrite();
+                throw e;
+            }
+        } finally {
+            appendLock.unlock();
+        }
+        try {
+            CRC32 crc = new CRC32();
+            crc.update(type);
+            crc.update(metadata);
+            segment.write(ByteBuffer.wrap(metadata), position + Segment.HEADER_SIZE);
+            long written = 0;
+            if (payload != null) {
+                byte[] buffer = new byte[(int) Math.min(BUFFER_SIZE, Math.max(1, payloadLength))];
+                int read;
+                while (written < payloadLength && (read = payload.read(buffer, 0, (int) Math.min(buffer.length, payloadLength - written))) != -1) {
+                    crc.update(buffer, 0, read);
+                    segment.write(ByteBuffer.wrap(buffer, 0, read), position + Segment.HEADER_SIZE + metadata.length + written);
+                    written += read;
+                }
+            }
+            if (written != payloadLength) {
+                // The CRC is left out, so the record is never read.
+                throw new IOException(String.format("Payload was %d bytes, expected %d", written, payloadLength));
+            }
+            segment.writeCRC(position, (int) crc.getValue());
+            return new Record(segment, position, sequence, metadata.length, payloadLength, null);
+        } finally {
+            segment.endWrite();
+        }
+    }
+
+    private void index(Key key, Record record) {
+        Map<Vary, Record> variants = index.computeIfAbsent(key.getURI(), uri -> new ConcurrentHashMap<>(2));
+        Record replaced = variants.put(key.getVary(), record);
+        record.addLiveBytes(1);
+        if (replaced != null) {
+            replaced.addLiveBytes(-1);
+        }
+        else {
+            size.incrementAndGet();
+        }
+    }
+
+    private void unindex(URI uri) {
+        Map<Vary, Record> variants = index.remove(uri);
+        if (variants != null) {
+            for (Record record : variants.values()) {
+                record.addLiveBytes(-1);
+            }
+            size.addAndGet(-variants.size());
+        }
+    }
+
+    private Segment newSegment(long id) throws IOException {
+        Segment segment = new Segment(id, new File(directory, String.format("%019d%s", id, SUFFIX)));
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private ReentrantLock lockFor(URI uri) {
+        int h = uri.hashCode();
+        h ^= (h >>> 16);
+        return locks[h & (locks.length - 1)];
+    }
+
+    /**
+     * Rebuilds the index from the segments. The record with the highest sequence number wins,
+     * unless an invalidation record of its URI has a higher one.
+     */
+    private void recover() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        File[] spilled = directory.listFiles((dir, name) -> name.endsWith(SPILL_SUFFIX));
+        for (File file : spilled != null ? spilled : new File[0]) {
+            Files.deleteIfExists(file.toPath());
+        }
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        long lastId = 0;
+        for (File file : files != null ? files : new File[0]) {
+            String name = file.getName();
+            long id = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+            Segment segment = new Segment(id, file);
+            segment.seal();
+            segments.put(id, segment);
+            lastId = Math.max(lastId, id);
+        }
+        Map<URI, Long> invalidations = new HashMap<>();
+        for (Segment segment : segments.values()) {
+            scan(segment, (header, position, metadata) -> {
+                sequence = Math.max(sequence, header.sequence);
+                Properties properties = toProperties(metadata);
+                if (header.type == Segment.INVALIDATE) {
+                    URI uri = URI.create(properties.getProperty("uri"));
+                    invalidations.merge(uri, header.sequence, Math::max);
+                    Map<Vary, Record> variants = index.get(uri);
+                    if (variants != null) {
+                        variants.entrySet().removeIf(variant -> variant.getValue().sequence < header.sequence && unindexed(variant.getValue()));
+                        index.remove(uri, Collections.emptyMap());
+                    }
+                    return;
+                }
+                Key key = Key.parse(properties);
+                Map<Vary, Record> variants = index.get(key.getURI());
+                Record current = variants != null ? variants.get(key.getVary()) : null;
+                if ((current != null && current.sequence > header.sequence) || invalidations.getOrDefault(key.getURI(), -1L) > header.sequence) {
+                    return;
+                }
+                CacheItem item = SerializableCacheItem.parse(properties);
+                HTTPResponse response = item.getResponse();
+                MIMEType mimeType = response.getHeaders().getContentType().orElse(MIMEType.APPLICATION_OCTET_STREAM);
+                Record record = new Record(segment, position, header.sequence, metadata.length, header.payloadLength, null);
+                if (header.type == Segment.UPDATE) {
+                    Segment payloadSegment = segments.get(Long.parseLong(properties.getProperty(PAYLOAD_SEGMENT)));
+                    long payloadPosition = Long.parseLong(properties.getProperty(PAYLOAD_POSITION));
+                    long payloadLength = Long.parseLong(properties.getProperty(PAYLOAD_LENGTH));
+                    if (payloadSegment == null || payloadPosition + payloadLength > payloadSegment.size()) {
+                        // The payload was compacted, and the copy is in a later segment.
+                        return;
+                    }
+                    record = record.withPayloadAt(payloadSegment, payloadPosition, payloadLength);
+                }
+                index(key, record.withItem(new DefaultCacheItem(response.withPayload(record.payload(mimeType)), item.getCachedTime())));
+            });
+        }
+        for (Segment segment : segments.values()) {
+            if (segment.size() == 0) {
+                segments.remove(segment.getId());
+                segment.release();
+            }
+        }
+        active = newSegment(lastId + 1);
+    }
+
+    private boolean unindexed(Record record) {
+        record.addLiveBytes(-1);
+        size.decrementAndGet();
+        return true;
+    }
+
+    /**
+     * Reads the valid records of a segment, skipping the ones with the wrong CRC,
+     * and cuts the segment off at the first header that is not valid, or the first record that ends past the end of the file,
+     * as it was never written completely.
+     */
+    private void scan(Segment segment, RecordVisitor visitor) throws IOException {
+        long position = 0;
+        ByteBuffer headerBuffer = ByteBuffer.allocate(Segment.HEADER_SIZE);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        while (position < segment.size()) {
+            ((Buffer) headerBuffer).clear();
+            Header header = null;
+            if (segment.read(headerBuffer, position) == Segment.HEADER_SIZE) {
+                ((Buffer) headerBuffer).flip();
+                header = new Header(headerBuffer.getLong(), headerBuffer.getInt(), headerBuffer.get(), headerBuffer.getInt(), headerBuffer.getLong());
+            }
+            if (header == null || !header.isValid() || position + header.recordSize() > segment.size()) {
+                segment.truncate(position);
+                return;
+            }
+            ByteBuffer metadata = ByteBuffer.allocate(header.metadataLength);
+            if (segment.read(metadata, position + Segment.HEADER_SIZE) < header.metadataLength) {
+                segment.truncate(position);
+                return;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(header.type);
+            crc.update(metadata.array());
+            long payloadPosition = position + Segment.HEADER_SIZE + header.metadataLength;
+            for (long read = 0; read < header.payloadLength; ) {
+                ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, (int) Math.min(buffer.length, header.payloadLength - read));
+                int count = segment.read(chunk, payloadPosition + read);
+                if (count <= 0) {
+                    segment.truncate(position);
+                    return;
+                }
+                crc.update(buffer, 0, count);
+                read += count;
+            }
+            if ((int) crc.getValue() == header.crc) {
+                visitor.visit(header, position, metadata.array());
+            }
+            position += header.recordSize();
+        }
+    }
+
+    private static byte[] toBytes(Properties properties) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        properties.store(out, null);
+        return out.toByteArray();
+    }
+
+    private static Properties toProperties(byte[] metadata) throws IOException {
+        Properties properties = new Properties();
+        properties.load(new ByteArrayInputStream(metadata));
+        return properties;
+    }
+
+    private interface RecordVisitor {
+        void visit(Header header, long position, byte[] metadata) throws IOException;
+    }
+
+    private static final class Header {
+        private final long sequence;
+        private final int crc;
+        private final byte type;
+        private final int metadataLength;
+        private final long payloadLength;
+
+        Header(long sequence, int crc, byte type, int metadataLength, long payloadLength) {
+            this.sequence = sequence;
+            this.crc = crc;
+            this.type = type;
+            this.metadataLength = metadataLength;
+            this.payloadLength = payloadLength;
+        }
+
+        boolean isValid() {
+            return (type == Segment.PUT || type == Segment.INVALIDATE || type == Segment.UPDATE) && sequence > 0 && metadataLength >= 0 && payloadLength >= 0;
+        }
+
+        long recordSize() {
+            return Segment.HEADER_SIZE + metadataLength + payloadLength;
+        }
+    }
+
+    private static final class Record {
+        private final Segment segment;
+        private final long position;
+        private final long sequence;
+        private final int metadataLength;
+        // The payload of the record itself, or of the earlier record an update record points at.
+        private final Segment payloadSegment;
+        private final long payloadPosition;
+        private final long payloadLength;
+        private final CacheItem item;
+
+        Record(Segment segment, long position, long sequence, int metadataLength, long payloadLength, CacheItem item) {
+            this(segment, position, sequence, metadataLength, segment, position + Segment.HEADER_SIZE + metadataLength, payloadLength, item);
+        }
+
+        private Record(Segment segment, long position, long sequence, int metadataLength, Segment payloadSegment, long payloadPosition, long payloadLength, CacheItem item) {
+            this.segment = segment;
+            this.position = position;
+            this.sequence = sequence;
+            this.metadataLength = metadataLength;
+            this.payloadSegment = payloadSegment;
+            this.payloadPosition = payloadPosition;
+            this.payloadLength = payloadLength;
+            this.item = item;
+        }
+
+        Record withItem(CacheItem item) {
+            return new Record(segment, position, sequence, metadataLength, payloadSegment, payloadPosition, payloadLength, item);
+        }
+
+        Record withPayloadAt(Segment payloadSegment, long payloadPosition, long payloadLength) {
+            return new Record(segment, position, sequence, metadataLength, payloadSegment, payloadPosition, payloadLength, item);
+        }
+
+        boolean hasOwnPayload() {
+            return payloadSegment == segment && payloadPosition == position + Segment.HEADER_SIZE + metadataLength;
+        }
+
+        Payload payload(MIMEType mimeType) {
+            if (payloadLength == 0) {
+                return null;
+            }
+            return new SegmentPayload(payloadSegment, payloadPosition, payloadLength, mimeType != null ? mimeType : MIMEType.APPLICATION_OCTET_STREAM);
+        }
+
+        /**
+         * Counts the record, and the payload it points at, as in use in their segments, or as no longer in use.
+         */
+        void addLiveBytes(int sign) {
+            segment.addLiveBytes(sign * (long) (Segment.HEADER_SIZE + metadataLength));
+            payloadSegment.addLiveBytes(sign * payloadLength);
+        }
+    }
+}
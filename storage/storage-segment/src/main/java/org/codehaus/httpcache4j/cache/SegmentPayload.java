@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2008, The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package org.codehaus.httpcache4j.cache;
+
+import org.codehaus.httpcache4j.HTTPException;
+import org.codehaus.httpcache4j.MIMEType;
+import org.codehaus.httpcache4j.payload.Payload;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A payload stored in a {@link Segment}, read with positional reads.
+ * An open stream keeps the segment from being deleted by compaction until it is closed.
+ *
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+final class SegmentPayload implements Payload {
+    private final Segment segment;
+    private final long position;
+    private final long length;
+    private final MIMEType mimeType;
+
+    SegmentPayload(Segment segment, long position, long length, MIMEType mimeType) {
+        this.segment = segment;
+        this.position = position;
+        this.length = length;
+        this.mimeType = mimeType;
+    }
+
+    @Override
+    public MIMEType getMimeType() {
+        return mimeType;
+    }
+
+    /**
+     * @return {@code null} if the segment has been deleted.
+     */
+    @Override
+    public InputStream getInputStream() {
+        if (!segment.retain()) {
+            return null;
+        }
+        return new SegmentInputStream();
+    }
+
+    @Override
+    public long transferTo(WritableByteChannel channel) throws IOException {
+        if (!segment.retain()) {
+            throw new IOException("Payload is not available");
+        }
+        try {
+            return segment.transferTo(position, length, channel);
+        } finally {
+            segment.release();
+        }
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return !segment.isDeleted();
+    }
+
+    Segment getSegment() {
+        return segment;
+    }
+
+    private class SegmentInputStream extends InputStream {
+        private long read;
+        private boolean closed;
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (len == 0) {
+                return 0;
+            }
+            long remaining = length - read;
+            if (remaining <= 0) {
+                return -1;
+            }
+            int count = segment.read(ByteBuffer.wrap(b, off, (int) Math.min(len, remaining)), position + read);
+            if (count <= 0) {
+                throw new HTTPException(String.format("Payload in %s ended before its length", segment));
+            }
+            read += count;
+            return count;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, length - read));
+            read += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, length - read);
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                segment.release();
+            }
+        }
+    }
+}
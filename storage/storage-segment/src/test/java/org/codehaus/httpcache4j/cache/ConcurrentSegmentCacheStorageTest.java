@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2008, The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package org.codehaus.httpcache4j.cache;
+
+import org.codehaus.httpcache4j.util.TestUtil;
+import org.junit.Test;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+
+/** @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a> */
+public class ConcurrentSegmentCacheStorageTest extends ConcurrentCacheStorageAbstractTest {
+
+    @Test
+    public void compactingWhileWritingKeepsEveryKey() throws InterruptedException {
+        SegmentCacheStorage storage = (SegmentCacheStorage) cacheStorage;
+        storage.startCompaction(Duration.ofMillis(5));
+        try {
+            testIterations(200, 200);
+            storage.compact();
+            int size = 0;
+            for (Key key : storage) {
+                size++;
+            }
+            assertEquals(storage.size(), size);
+        } finally {
+            storage.shutdown();
+        }
+    }
+
+    protected CacheStorage createCacheStorage() {
+        File storage = TestUtil.getTestFile("target/segment/concurrent/" + UUID.randomUUID().toString());
+        return new SegmentCacheStorage(storage, 4096, 0.5);
+    }
+}
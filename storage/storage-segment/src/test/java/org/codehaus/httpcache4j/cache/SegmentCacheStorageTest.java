@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) 2008, The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package org.codehaus.httpcache4j.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.channels.Channels;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.codehaus.httpcache4j.HTTPException;
+import org.codehaus.httpcache4j.HTTPRequest;
+import org.codehaus.httpcache4j.HTTPResponse;
+import org.codehaus.httpcache4j.Headers;
+import org.codehaus.httpcache4j.MIMEType;
+import org.codehaus.httpcache4j.Status;
+import org.codehaus.httpcache4j.payload.InputStreamPayload;
+import org.codehaus.httpcache4j.util.IOUtils;
+import org.codehaus.httpcache4j.util.NullInputStream;
+import org.codehaus.httpcache4j.util.TestUtil;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/** @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a> */
+public class SegmentCacheStorageTest extends CacheStorageAbstractTest {
+    private static final File DIRECTORY = TestUtil.getTestFile("target/segments");
+
+    @Override
+    protected CacheStorage createCacheStorage() {
+        return new SegmentCacheStorage(DIRECTORY, 1024, 0.5);
+    }
+
+    @Test
+    public void indexIsRebuiltFromTheSegments() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            storage.insert(new HTTPRequest(URI.create("foo" + i)), createRealResponse(100));
+        }
+        storage.insert(new HTTPRequest(URI.create("foo3")), createRealResponse(50));
+        storage.invalidate(URI.create("foo4"));
+        storage.shutdown();
+
+        SegmentCacheStorage restored = new SegmentCacheStorage(DIRECTORY, 1024, 0.5);
+        assertEquals(9, restored.size());
+        assertNull(restored.get(new HTTPRequest(URI.create("foo4"))));
+        CacheItem item = restored.get(new HTTPRequest(URI.create("foo3")));
+        assertNotNull(item);
+        try (InputStream stream = item.getResponse().getPayload().get().getInputStream()) {
+            assertEquals(50, IOUtils.toByteArray(stream).length);
+        }
+        storage = restored;
+    }
+
+    @Test
+    public void recordsThatWereNotWrittenCompletelyAreDropped() throws Exception {
+        storage.insert(new HTTPRequest(URI.create("foo1")), createRealResponse(10));
+        storage.insert(new HTTPRequest(URI.create("foo2")), createRealResponse(10));
+        storage.shutdown();
+
+        File[] files = new File(DIRECTORY, "segments").listFiles();
+        assertEquals(1, files.length);
+        try (RandomAccessFile file = new RandomAccessFile(files[0], "rw")) {
+            file.setLength(file.length() - 5);
+        }
+        SegmentCacheStorage restored = new SegmentCacheStorage(DIRECTORY, 1024, 0.5);
+        assertEquals(1, restored.size());
+        assertNotNull(restored.get(new HTTPRequest(URI.create("foo1"))));
+        assertNull(restored.get(new HTTPRequest(URI.create("foo2"))));
+        storage = restored;
+    }
+
+    @Test
+    public void compactionReclaimsReplacedRecords() throws Exception {
+        SegmentCacheStorage segmentStorage = (SegmentCacheStorage) storage;
+        for (int i = 0; i < 20; i++) {
+            storage.insert(REQUEST, createRealResponse(400));
+        }
+        storage.insert(new HTTPRequest(URI.create("bar")), createRealResponse(400));
+        int before = segmentStorage.getSegmentCount();
+        assertTrue(before > 3);
+        assertTrue(segmentStorage.compact() > 0);
+        assertTrue(segmentStorage.getSegmentCount() < before);
+        assertEquals(2, storage.size());
+        try (InputStream stream = storage.get(REQUEST).getResponse().getPayload().get().getInputStream()) {
+            assertEquals(400, IOUtils.toByteArray(stream).length);
+        }
+        storage.shutdown();
+        SegmentCacheStorage restored = new SegmentCacheStorage(DIRECTORY, 1024, 0.5);
+        assertEquals(2, restored.size());
+        storage = restored;
+    }
+
+    @Test
+    public void invalidationSurvivesCompaction() throws Exception {
+        SegmentCacheStorage segmentStorage = (SegmentCacheStorage) storage;
+        storage.insert(REQUEST, createRealResponse(800));
+        storage.insert(new HTTPRequest(URI.create("bar")), createRealResponse(800));
+        storage.invalidate(REQUEST.getNormalizedURI());
+        storage.insert(new HTTPRequest(URI.create("baz")), createRealResponse(800));
+        segmentStorage.compact();
+        storage.shutdown();
+        SegmentCacheStorage restored = new SegmentCacheStorage(DIRECTORY, 1024, 0.5);
+        assertNull(restored.get(REQUEST));
+        assertEquals(2, restored.size());
+        storage = restored;
+    }
+
+    @Test
+    public void openStreamsSurviveCompaction() throws Exception {
+        SegmentCacheStorage segmentStorage = (SegmentCacheStorage) storage;
+        storage.insert(REQUEST, createRealResponse(800));
+        storage.insert(new HTTPRequest(URI.create("bar")), createRealResponse(800));
+        try (InputStream stream = storage.get(REQUEST).getResponse().getPayload().get().getInputStream()) {
+            storage.invalidate(REQUEST.getNormalizedURI());
+            assertEquals(1, segmentStorage.compact());
+            assertEquals(800, IOUtils.toByteArray(stream).length);
+        }
+    }
+
+    @Test
+    public void segmentIsNotCompactedWhileARecordIsBeingWritten() throws Exception {
+        SegmentCacheStorage segmentStorage = (SegmentCacheStorage) storage;
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch proceed = new CountDownLatch(1);
+        InputStream slow = new FilterInputStream(new NullInputStream(800)) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                writing.countDown();
+                try {
+                    proceed.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return super.read(b, off, len);
+            }
+        };
+        HTTPResponse response = new HTTPResponse(Optional.of(new InputStreamPayload(slow, MIMEType.APPLICATION_OCTET_STREAM, 800)), Status.OK, new Headers());
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<HTTPResponse> insert = executor.submit(() -> storage.insert(REQUEST, response));
+            writing.await();
+            storage.insert(new HTTPRequest(URI.create("bar")), createRealResponse(100));
+            assertEquals(2, segmentStorage.getSegmentCount());
+            assertEquals(0, segmentStorage.compact());
+            proceed.countDown();
+            insert.get();
+        } finally {
+            executor.shutdownNow();
+        }
+        try (InputStream stream = storage.get(REQUEST).getResponse().getPayload().get().getInputStream()) {
+            assertEquals(800, IOUtils.toByteArray(stream).length);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void segmentEndingInAFailedWriteIsCompacted() throws Exception {
+        SegmentCacheStorage segmentStorage = (SegmentCacheStorage) storage;
+        InputStream failing = new FilterInputStream(new NullInputStream(3800)) {
+            private int read;
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (read >= 100) {
+                    throw new IOException("Connection reset");
+                }
+                int count = super.read(b, off, Math.min(len, 100 - read));
+                read += count;
+                return count;
+            }
+        };
+        HTTPResponse response = new HTTPResponse(Optional.of(new InputStreamPayload(failing, MIMEType.APPLICATION_OCTET_STREAM, 3800)), Status.OK, new Headers());
+        storage.insert(new HTTPRequest(URI.create("baz")), createRealResponse(100));
+        try {
+            storage.insert(REQUEST, response);
+            fail("The payload could not be read");
+        } catch (HTTPException expected) {
+        }
+        storage.insert(new HTTPRequest(URI.create("bar")), createRealResponse(100));
+        assertEquals(1, segmentStorage.compact());
+        assertEquals(2, storage.size());
+        assertNotNull(storage.get(new HTTPRequest(URI.create("bar"))));
+    }
+
+    @Test
+    public void updatePointsAtTheStoredPayload() throws Exception {
+        storage.insert(REQUEST, createRealResponse(800));
+        long before = segmentBytes();
+        HTTPResponse stored = storage.get(REQUEST).getResponse();
+        storage.update(REQUEST, stored.withHeaders(stored.getHeaders().set("X-Revalidated", "1")));
+        assertTrue(segmentBytes() - before < 800);
+        assertUpdated(storage);
+
+        storage.shutdown();
+        SegmentCacheStorage restored = new SegmentCacheStorage(DIRECTORY, 1024, 1);
+        storage = restored;
+        assertUpdated(restored);
+        assertTrue(restored.compact() > 0);
+        assertUpdated(restored);
+
+        restored.shutdown();
+        storage = new SegmentCacheStorage(DIRECTORY, 1024, 1);
+        assertUpdated(storage);
+    }
+
+    @Test
+    public void payloadOfUnknownLengthLeavesOnlySegments() throws Exception {
+        storage.insert(REQUEST, createRealResponse(3000));
+        try (InputStream stream = storage.get(REQUEST).getResponse().getPayload().get().getInputStream()) {
+            assertEquals(3000, IOUtils.toByteArray(stream).length);
+        }
+        for (File file : new File(DIRECTORY, "segments").listFiles()) {
+            assertTrue(file.getName(), file.getName().endsWith(".segment"));
+        }
+    }
+
+    private void assertUpdated(CacheStorage storage) throws IOException {
+        assertEquals(1, storage.size());
+        HTTPResponse response = storage.get(REQUEST).getResponse();
+        assertEquals(Optional.of("1"), response.getHeaders().getFirstHeaderValue("X-Revalidated"));
+        try (InputStream stream = response.getPayload().get().getInputStream()) {
+            assertEquals(800, IOUtils.toByteArray(stream).length);
+        }
+    }
+
+    private long segmentBytes() {
+        long bytes = 0;
+        for (File file : new File(DIRECTORY, "segments").listFiles()) {
+            bytes += file.length();
+        }
+        return bytes;
+    }
+
+    @Test
+    public void payloadIsTransferredFromTheSegment() throws Exception {
+        storage.insert(REQUEST, createRealResponse(300));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(300, storage.get(REQUEST).getResponse().getPayload().get().transferTo(Channels.newChannel(out)));
+        assertEquals(300, out.size());
+    }
+
+    private HTTPResponse createRealResponse(int length) {
+        return new HTTPResponse(Optional.of(new InputStreamPayload(new NullInputStream(length), MIMEType.APPLICATION_OCTET_STREAM)), Status.OK, new Headers());
+    }
+
+    @Override
+    public void afterTest() {
+        storage.shutdown();
+    }
+}